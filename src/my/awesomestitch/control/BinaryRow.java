@@ -0,0 +1,348 @@
+package my.awesomestitch.control;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+import org.postgis.LineString;
+import org.postgis.Point;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Builds one tuple of a COPY ... WITH (FORMAT binary) statement.  Each field is a 4-byte length followed by the
+ * value in PostgreSQL's binary send format, so the server does not have to parse any text.  Geometries are written
+ * as EWKB straight from the coordinates, and NUMERICs are rounded to their column's scale here.
+ * <p>The fields must be written in the order of the table's columns, with the types of those columns.  One BinaryRow
+ * is reused for every tuple by CopyWriter, so this is not thread-safe.
+ */
+public class BinaryRow {
+
+	/**
+	 * The signature, flags and header extension length that start every binary COPY
+	 */
+	static final byte[] HEADER = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte)0xFF, '\r', '\n', 0,
+		0, 0, 0, 0,
+		0, 0, 0, 0};
+
+	/**
+	 * A field count of -1, which ends a binary COPY
+	 */
+	static final byte[] TRAILER = {(byte)0xFF, (byte)0xFF};
+
+	private static final int SRID = 4326;
+
+	//EWKB geometry types and flags
+	private static final int WKB_POINT = 1;
+	private static final int WKB_LINESTRING = 2;
+	private static final int EWKB_Z = 0x80000000;
+	private static final int EWKB_M = 0x40000000;
+	private static final int EWKB_SRID = 0x20000000;
+
+	//Signs of a binary NUMERIC
+	private static final int NUMERIC_POS = 0x0000;
+	private static final int NUMERIC_NEG = 0x4000;
+	private static final int NUMERIC_NAN = 0xC000;
+
+	private static final double[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+
+	private byte[] buf = new byte[256];
+	private int size = 0;
+
+	/**
+	 * Scratch space for the base-10000 digits of a NUMERIC
+	 */
+	private final short[] digits = new short[8];
+
+	/**
+	 * Clears the row and writes its field count.
+	 * @param fieldCount The number of columns in the table
+	 */
+	public void begin(int fieldCount){
+		size = 0;
+		putShort(fieldCount);
+	}
+
+	public void writeNull(){
+		putInt(-1);
+	}
+
+	public void writeBoolean(boolean value){
+		putInt(1);
+		ensure(1);
+		buf[size++] = (byte)(value ? 1 : 0);
+	}
+
+	/**
+	 * Writes a SMALLINT field
+	 */
+	public void writeShort(short value){
+		putInt(2);
+		putShort(value);
+	}
+
+	/**
+	 * Writes an INTEGER field
+	 */
+	public void writeInt(int value){
+		putInt(4);
+		putInt(value);
+	}
+
+	/**
+	 * Writes a BIGINT field
+	 */
+	public void writeLong(long value){
+		putInt(8);
+		putLong(value);
+	}
+
+	/**
+	 * Writes a VARCHAR or TEXT field in UTF-8.
+	 * @param value The text - null is written as SQL NULL
+	 */
+	public void writeText(String value){
+		if(value==null){
+			writeNull();
+			return;
+		}
+		int lengthPos = size;
+		putInt(0);
+		int n = value.length();
+		ensure(n);
+		int start = size;
+		for(int i = 0; i < n; i++){
+			char c = value.charAt(i);
+			if(c >= 0x80){
+				//Not plain ASCII - let the JDK encode the rest
+				size = start + i;
+				byte[] rest = value.substring(i).getBytes(StandardCharsets.UTF_8);
+				ensure(rest.length);
+				System.arraycopy(rest, 0, buf, size, rest.length);
+				size += rest.length;
+				break;
+			}
+			buf[size++] = (byte)c;
+		}
+		setInt(lengthPos, size - start);
+	}
+
+	/**
+	 * Writes a text field with the same result as the CSV format used by DBObject.getCSVLine().  There, a null
+	 * String becomes the text "null" and an empty String becomes SQL NULL, so rows stay the same whichever format
+	 * DBConnection is configured to use.
+	 * @param value The text
+	 */
+	public void writeCSVText(String value){
+		if(value==null)
+			writeText("null");
+		else if(value.isEmpty())
+			writeNull();
+		else
+			writeText(value);
+	}
+
+	/**
+	 * Writes a NUMERIC(p, scale) field, rounding half away from zero like the server does for the text form of the
+	 * same float.
+	 * @param value The value
+	 * @param scale The scale of the column
+	 * @throws SQLException If the value is infinite, which NUMERIC cannot hold
+	 */
+	public void writeNumeric(float value, int scale) throws SQLException{
+		if(Float.isNaN(value) || Float.isInfinite(value)){
+			writeNumeric((double)value, scale);
+			return;
+		}
+		double abs = Math.abs((double)value);
+		long unscaled = round(abs, Math.ulp(value), scale);
+		if(unscaled < 0)
+			unscaled = new BigDecimal(Float.toString(Math.abs(value))).setScale(scale, RoundingMode.HALF_UP).unscaledValue().longValue();
+		putNumeric(value < 0 ? NUMERIC_NEG : NUMERIC_POS, unscaled, scale);
+	}
+
+	/**
+	 * Writes a NUMERIC(p, scale) field, rounding half away from zero like the server does for the text form of the
+	 * same double.
+	 * @param value The value
+	 * @param scale The scale of the column
+	 * @throws SQLException If the value is infinite, which NUMERIC cannot hold
+	 */
+	public void writeNumeric(double value, int scale) throws SQLException{
+		if(Double.isNaN(value)){
+			putInt(8);
+			putShort(0);
+			putShort(0);
+			putShort(NUMERIC_NAN);
+			putShort(0);
+			return;
+		}
+		if(Double.isInfinite(value))
+			throw new SQLException("Cannot store " + value + " in a NUMERIC column", "22003");
+
+		double abs = Math.abs(value);
+		long unscaled = round(abs, Math.ulp(value), scale);
+		if(unscaled < 0)
+			unscaled = BigDecimal.valueOf(abs).setScale(scale, RoundingMode.HALF_UP).unscaledValue().longValue();
+		putNumeric(value < 0 ? NUMERIC_NEG : NUMERIC_POS, unscaled, scale);
+	}
+
+	/**
+	 * Rounds a non-negative value to the given number of decimal places, using only arithmetic.  This only differs
+	 * from rounding the shortest decimal form of the value when it lies next to a tie, so those are left to the caller.
+	 * @param abs The value
+	 * @param ulp The precision of the value's type at this magnitude
+	 * @param scale The number of decimal places
+	 * @return The value times 10^scale, rounded, or -1 if it is too close to a tie to decide this way
+	 */
+	private static long round(double abs, double ulp, int scale){
+		double x = abs * POW10[scale];
+		double floor = Math.floor(x);
+		double frac = x - floor;
+		if(Math.abs(frac - 0.5) <= 4 * ulp * POW10[scale] || x >= 1e15)
+			return -1;
+		return (long)floor + (frac > 0.5 ? 1 : 0);
+	}
+
+	/**
+	 * Writes a NUMERIC in base 10000.  The unscaled value is padded so the decimal point falls on a digit boundary.
+	 */
+	private void putNumeric(int sign, long unscaled, int scale){
+		int pad = (4 - scale % 4) % 4;
+		long v = unscaled;
+		for(int i = 0; i < pad; i++)
+			v *= 10;
+		int fracDigits = (scale + pad) / 4;
+
+		//Split into base-10000 digits, least significant first
+		int n = 0;
+		while(v > 0){
+			digits[n++] = (short)(v % 10000);
+			v /= 10000;
+		}
+		int weight = n - fracDigits - 1;
+
+		//Trailing zero digits are dropped, which does not change the weight
+		int low = 0;
+		while(low < n && digits[low]==0)
+			low++;
+		int ndigits = n - low;
+		if(ndigits==0){
+			sign = NUMERIC_POS;
+			weight = 0;
+		}
+
+		putInt(8 + 2 * ndigits);
+		putShort(ndigits);
+		putShort(weight);
+		putShort(sign);
+		putShort(scale);
+		for(int i = n - 1; i >= low; i--)
+			putShort(digits[i]);
+	}
+
+	/**
+	 * Writes a POINT geometry field as EWKB with SRID 4326
+	 */
+	public void writePoint(Point point){
+		int lengthPos = size;
+		putInt(0);
+		int start = size;
+		putGeometryHeader(WKB_POINT, point);
+		putCoordinates(point);
+		setInt(lengthPos, size - start);
+	}
+
+	/**
+	 * Writes a LINESTRING geometry field as EWKB with SRID 4326
+	 */
+	public void writeLineString(LineString line){
+		int lengthPos = size;
+		putInt(0);
+		int start = size;
+		Point[] points = line.getPoints();
+		putGeometryHeader(WKB_LINESTRING, points.length > 0 ? points[0] : new Point(0, 0));
+		putIntLE(points.length);
+		for(Point p : points)
+			putCoordinates(p);
+		setInt(lengthPos, size - start);
+	}
+
+	private void putGeometryHeader(int type, Point first){
+		ensure(9);
+		buf[size++] = 1;	//little-endian (NDR)
+		if(first.dimension==3)
+			type |= EWKB_Z;
+		if(first.haveMeasure)
+			type |= EWKB_M;
+		putIntLE(type | EWKB_SRID);
+		putIntLE(SRID);
+	}
+
+	private void putCoordinates(Point p){
+		putLongLE(Double.doubleToLongBits(p.x));
+		putLongLE(Double.doubleToLongBits(p.y));
+		if(p.dimension==3)
+			putLongLE(Double.doubleToLongBits(p.z));
+		if(p.haveMeasure)
+			putLongLE(Double.doubleToLongBits(p.m));
+	}
+
+	/**
+	 * @return The buffer holding this row - only the first size() bytes are valid
+	 */
+	byte[] array(){
+		return buf;
+	}
+
+	int size(){
+		return size;
+	}
+
+	private void ensure(int extra){
+		if(size + extra > buf.length){
+			byte[] grown = new byte[Math.max(buf.length * 2, size + extra)];
+			System.arraycopy(buf, 0, grown, 0, size);
+			buf = grown;
+		}
+	}
+
+	private void putShort(int v){
+		ensure(2);
+		buf[size++] = (byte)(v >>> 8);
+		buf[size++] = (byte)v;
+	}
+
+	private void putInt(int v){
+		ensure(4);
+		setInt(size, v);
+		size += 4;
+	}
+
+	private void setInt(int pos, int v){
+		buf[pos] = (byte)(v >>> 24);
+		buf[pos + 1] = (byte)(v >>> 16);
+		buf[pos + 2] = (byte)(v >>> 8);
+		buf[pos + 3] = (byte)v;
+	}
+
+	private void putLong(long v){
+		putInt((int)(v >>> 32));
+		putInt((int)v);
+	}
+
+	private void putIntLE(int v){
+		ensure(4);
+		buf[size++] = (byte)v;
+		buf[size++] = (byte)(v >>> 8);
+		buf[size++] = (byte)(v >>> 16);
+		buf[size++] = (byte)(v >>> 24);
+	}
+
+	private void putLongLE(long v){
+		putIntLE((int)v);
+		putIntLE((int)(v >>> 32));
+	}
+}
@@ -0,0 +1,239 @@
+package my.awesomestitch.control;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * The SQL used by DBConnection.boundingBoxQuery().  All of the Links, Nodes, CountingNodes and (optionally)
+ * DetailLinkMappings of a box come back from ONE parameterized statement: the Links are selected in a CTE, and the
+ * Nodes at their ends are selected from that CTE on the server, instead of sending every node_id back in an IN list.
+ * <p>The four kinds of rows are combined with UNION ALL.  The first column, "kind", tells them apart, and every other
+ * column keeps its name from its own table (NULL for the other kinds), so the usual Link(ResultSet),
+ * Node(ResultSet), etc. constructors can read them.  The SQL only depends on the options and the schema, so it is
+ * built once and the same PreparedStatement can be reused for every box.
+ */
+class BoundingBoxStatement {
+
+	static final String KIND_LINK = "L";
+	static final String KIND_NODE = "N";
+	static final String KIND_COUNTING_NODE = "C";
+	static final String KIND_MAPPING = "M";
+
+	//Markers in the SQL template, replaced by parameters
+	private static final String ENVELOPE = "{ENVELOPE}";
+	private static final String TIME = "{TIME}";
+
+	private static final String[][] LINK_COLUMNS = {
+		{"link_id", "bigint"}, {"begin_node_id", "bigint"}, {"end_node_id", "bigint"}, {"begin_angle", "numeric"},
+		{"end_angle", "numeric"}, {"street_length", "numeric"}, {"osm_name", "varchar"}, {"osm_class", "varchar"},
+		{"osm_way_id", "bigint"}, {"geom", "geometry"}, {"osm_changeset", "bigint"}, {"birth_timestamp", "bigint"},
+		{"death_timestamp", "bigint"}};
+
+	private static final String[][] DETAIL_LINK_COLUMNS = {{"proc_link_id", "bigint"}};
+
+	private static final String[][] NODE_COLUMNS = {
+		{"node_id", "bigint"}, {"is_complete", "boolean"}, {"num_in_links", "smallint"}, {"num_out_links", "smallint"},
+		{"osm_traffic_controller", "varchar"}, {"geom", "geometry"}, {"osm_changeset", "bigint"},
+		{"birth_timestamp", "bigint"}, {"death_timestamp", "bigint"}};
+
+	private static final String[][] COUNTING_NODE_COLUMNS = {
+		{"counting_node_id", "bigint"}, {"name", "varchar"}, {"link1_id", "bigint"}, {"link2_id", "bigint"},
+		{"offset_ratio1", "numeric"}, {"offset_ratio2", "numeric"}, {"geom", "geometry"}, {"birth_timestamp", "bigint"},
+		{"death_timestamp", "bigint"}};
+
+	private static final String[][] MAPPING_COLUMNS = {
+		{"link_id", "bigint"}, {"detail_link_id", "bigint"}, {"osm_way_id", "bigint"}, {"birth_timestamp", "bigint"},
+		{"death_timestamp", "bigint"}};
+
+	/**
+	 * Statements which have been built, by options and schema
+	 */
+	private static final Hashtable<String, BoundingBoxStatement> cache = new Hashtable<String, BoundingBoxStatement>();
+
+	private final String sql;
+
+	/**
+	 * For each parameter of sql, true if it is a timestamp, false if it starts an envelope (which takes 4 parameters)
+	 */
+	private final boolean[] timeParams;
+
+	/**
+	 * Gets the statement for a set of boundingBoxQuery() options.
+	 * @param processed True for the processed map, False for the detailed map
+	 * @param includeFullWay True to also select the rest of each Way that crosses the box
+	 * @param includeDetailLinkMapping True to also select the DetailLinkMappings of those Ways
+	 * @param schema The schema the tables are in
+	 * @return The statement
+	 */
+	static BoundingBoxStatement get(boolean processed, boolean includeFullWay, boolean includeDetailLinkMapping, String schema){
+		String key = processed + "," + includeFullWay + "," + includeDetailLinkMapping + "," + schema;
+		BoundingBoxStatement statement = cache.get(key);
+		if(statement==null){
+			statement = new BoundingBoxStatement(processed, includeFullWay, includeDetailLinkMapping, schema);
+			cache.put(key, statement);
+		}
+		return statement;
+	}
+
+	private BoundingBoxStatement(boolean processed, boolean includeFullWay, boolean includeDetailLinkMapping, String schema){
+		String links = schema + (processed ? ".links" : ".detail_links");
+		String nodes = schema + (processed ? ".nodes" : ".detail_nodes");
+		String countingNodes = schema + ".counting_nodes";
+		String mappings = schema + ".detail_link_mapping";
+
+		String[][] linkColumns = LINK_COLUMNS;
+		if(!processed)
+			linkColumns = concat(DETAIL_LINK_COLUMNS, LINK_COLUMNS);
+
+		//Every output column, in order, with its type
+		Map<String, String> columns = new LinkedHashMap<String, String>();
+		addColumns(columns, linkColumns);
+		addColumns(columns, NODE_COLUMNS);
+		addColumns(columns, COUNTING_NODE_COLUMNS);
+		if(includeDetailLinkMapping)
+			addColumns(columns, MAPPING_COLUMNS);
+
+		String alive = " AND x.birth_timestamp <= " + TIME + " AND x.death_timestamp > " + TIME;
+		String inBox = "ST_Intersects(x.geom, " + ENVELOPE + ")" + alive;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("WITH cn AS (SELECT x.* FROM ").append(countingNodes).append(" x WHERE ").append(inBox).append("), ");
+
+		//Links which cross the box, or the entire Ways that do
+		sb.append("l AS (");
+		if(includeFullWay){
+			sb.append("SELECT x.* FROM ").append(links).append(" x WHERE x.osm_way_id IN (SELECT x.osm_way_id FROM ")
+				.append(links).append(" x WHERE ").append(inBox).append(")").append(alive);
+		}
+		else
+			sb.append("SELECT x.* FROM ").append(links).append(" x WHERE ").append(inBox);
+		//Links referred to by the CountingNodes, in case they fall slightly out of the box
+		if(processed){
+			sb.append(" UNION ALL SELECT x.* FROM ").append(links)
+				.append(" x WHERE x.link_id IN (SELECT link1_id FROM cn UNION SELECT link2_id FROM cn)").append(alive);
+		}
+		sb.append("), ");
+
+		//Nodes at either end of those Links
+		sb.append("n AS (SELECT x.* FROM ").append(nodes)
+			.append(" x WHERE x.node_id IN (SELECT begin_node_id FROM l UNION SELECT end_node_id FROM l)").append(alive).append(") ");
+
+		sb.append(select(KIND_LINK, "l", columns, linkColumns));
+		sb.append(" UNION ALL ").append(select(KIND_NODE, "n", columns, NODE_COLUMNS));
+		sb.append(" UNION ALL ").append(select(KIND_COUNTING_NODE, "cn", columns, COUNTING_NODE_COLUMNS));
+		if(includeDetailLinkMapping){
+			sb.append(" UNION ALL ").append(select(KIND_MAPPING, mappings + " x", columns, MAPPING_COLUMNS))
+				.append(" WHERE x.osm_way_id IN (SELECT x.osm_way_id FROM ").append(links).append(" x WHERE ").append(inBox)
+				.append(")").append(alive);
+		}
+		sb.append(";");
+
+		//Replace the markers with parameters, remembering which is which
+		List<Boolean> params = new ArrayList<Boolean>();
+		StringBuilder result = new StringBuilder(sb.length());
+		int pos = 0;
+		while(true){
+			int env = sb.indexOf(ENVELOPE, pos);
+			int time = sb.indexOf(TIME, pos);
+			if(env < 0 && time < 0)
+				break;
+			if(time < 0 || (env >= 0 && env < time)){
+				result.append(sb, pos, env).append("ST_MakeEnvelope(?, ?, ?, ?, 4326)");
+				params.add(false);
+				pos = env + ENVELOPE.length();
+			}
+			else{
+				result.append(sb, pos, time).append("?");
+				params.add(true);
+				pos = time + TIME.length();
+			}
+		}
+		result.append(sb, pos, sb.length());
+
+		this.sql = result.toString();
+		this.timeParams = new boolean[params.size()];
+		for(int i = 0; i < timeParams.length; i++)
+			timeParams[i] = params.get(i);
+	}
+
+	/**
+	 * @return The SQL of this statement, with ? for the parameters
+	 */
+	String getSql(){
+		return sql;
+	}
+
+	/**
+	 * Sets the parameters of a PreparedStatement made from getSql().
+	 * @param pst The PreparedStatement
+	 * @param left The longitude of the left side of the box, including any safety margin
+	 * @param bottom The latitude of the bottom of the box
+	 * @param right The longitude of the right side of the box
+	 * @param top The latitude of the top of the box
+	 * @param timestamp The time for which we want the map
+	 * @throws SQLException If the parameters cannot be set
+	 */
+	void bind(PreparedStatement pst, double left, double bottom, double right, double top, long timestamp) throws SQLException{
+		int index = 1;
+		for(boolean isTime : timeParams){
+			if(isTime)
+				pst.setLong(index++, timestamp);
+			else{
+				pst.setDouble(index++, left);
+				pst.setDouble(index++, bottom);
+				pst.setDouble(index++, right);
+				pst.setDouble(index++, top);
+			}
+		}
+	}
+
+	/**
+	 * Builds one branch of the UNION ALL.
+	 * @param kind The value of the kind column for these rows
+	 * @param from The CTE or table (with alias x) to select from
+	 * @param columns All output columns
+	 * @param own The columns which this kind of row has
+	 */
+	private static String select(String kind, String from, Map<String, String> columns, String[][] own){
+		StringBuilder sb = new StringBuilder("SELECT '").append(kind).append("'::text AS kind");
+		for(Map.Entry<String, String> column : columns.entrySet()){
+			String name = column.getKey();
+			String type = column.getValue();
+			sb.append(", ");
+			if(has(own, name))
+				sb.append(name).append("::").append(type);
+			else
+				sb.append("NULL::").append(type);
+			sb.append(" AS ").append(name);
+		}
+		return sb.append(" FROM ").append(from).toString();
+	}
+
+	private static boolean has(String[][] columns, String name){
+		for(String[] column : columns)
+			if(column[0].equals(name))
+				return true;
+		return false;
+	}
+
+	private static void addColumns(Map<String, String> columns, String[][] toAdd){
+		for(String[] column : toAdd)
+			if(!columns.containsKey(column[0]))
+				columns.put(column[0], column[1]);
+	}
+
+	private static String[][] concat(String[][] a, String[][] b){
+		String[][] result = new String[a.length + b.length][];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+}
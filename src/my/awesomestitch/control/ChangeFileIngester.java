@@ -0,0 +1,450 @@
+package my.awesomestitch.control;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import my.awesomestitch.mapobjects.BBox;
+import my.awesomestitch.mapobjects.DetailLink;
+import my.awesomestitch.mapobjects.DetailNode;
+import my.awesomestitch.mapobjects.Link;
+import my.awesomestitch.mapobjects.LongMap;
+import my.awesomestitch.mapobjects.Node;
+import my.awesomestitch.mapobjects.OsmEventReader;
+import my.awesomestitch.mapobjects.Tile;
+import my.awesomestitch.mapobjects.User;
+import my.awesomestitch.mapobjects.Way;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Brings the Tiles we already have up to date from OSM change files (.osc or .osc.gz, e.g. the minutely, hourly or
+ * daily diffs published by OSM), instead of downloading each Tile again with force=true.
+ * <p>The files are read first and merged, later changes replacing earlier ones.  Then only the Tiles where a changed
+ * Node or Way is (or used to be) are updated: the detailed map of each one is read from the DB, the changes are
+ * applied to it, and the result goes to the DBResolverThreads like a freshly parsed Tile.  So the usual versioning
+ * (birth and death timestamps, the ChangeLog) is applied, and only these Tiles are preprocessed again.
+ * <p>A change which is not newer than the version in the DB is ignored, so reading the same file twice does no harm.
+ * A changed Way which uses a Node that is neither in the DB nor in the change files (e.g. a footway which became a
+ * street) cannot be built here - its Tile is downloaded again instead.
+ */
+public class ChangeFileIngester {
+
+	/**
+	 * The latest change of a Node
+	 */
+	private static class NodeChange {
+		final long changeset;
+		/**
+		 * The new version, or null if the Node was deleted
+		 */
+		final Node node;
+
+		NodeChange(long changeset, Node node){
+			this.changeset = changeset;
+			this.node = node;
+		}
+	}
+
+	/**
+	 * The latest change of a Way
+	 */
+	private static class WayChange {
+		final long id;
+		final long changeset;
+		final boolean deleted;
+		/**
+		 * The tags of the new version
+		 */
+		final Way way = new Way();
+		long[] refs = new long[0];
+
+		WayChange(long id, long changeset, boolean deleted){
+			this.id = id;
+			this.changeset = changeset;
+			this.deleted = deleted;
+		}
+
+		boolean isImportant(){
+			return !deleted && way.isImportant();
+		}
+	}
+
+	private final LongMap<NodeChange> nodeChanges = new LongMap<NodeChange>();
+	private final LongMap<WayChange> wayChanges = new LongMap<WayChange>();
+
+	/**
+	 * Applies every change file in a directory (and its subdirectories), in order of their paths.  This is the order
+	 * of the numbered files in an OSM replication directory.
+	 * @param dirName The directory
+	 * @param user The User who is requesting the updates.  Useful for sending notifications.
+	 * @return The number of Tiles that were enqueued for updating
+	 * @throws IOException If a file cannot be read - then nothing is changed
+	 */
+	public static int applyDirectory(String dirName, User user) throws IOException{
+		List<String> fileNames = new ArrayList<String>();
+		listChangeFiles(new File(dirName), fileNames);
+		if(fileNames.isEmpty())
+			Log.v("OSM", "No change files in " + dirName);
+		return apply(fileNames, user);
+	}
+
+	private static void listChangeFiles(File dir, List<String> fileNames) throws IOException{
+		File[] files = dir.listFiles();
+		if(files==null)
+			throw new IOException("Cannot list " + dir);
+		Arrays.sort(files);
+		for(File file : files){
+			if(file.isDirectory())
+				listChangeFiles(file, fileNames);
+			else if(file.getName().endsWith(".osc") || file.getName().endsWith(".osc.gz"))
+				fileNames.add(file.getPath());
+		}
+	}
+
+	/**
+	 * Applies change files to the Tiles that we have.  Returns once every affected detailed map has been handed to the
+	 * DBResolverThreads - use Controller.joinAll() to wait for the rest.  Tiles which are already in the pipeline are
+	 * waited for, and then updated, so this may block until they are done.
+	 * @param fileNames .osc or .osc.gz files, oldest first
+	 * @param user The User who is requesting the updates.  Useful for sending notifications.
+	 * @return The number of Tiles that were enqueued for updating
+	 * @throws IOException If a file cannot be read - then nothing is changed
+	 */
+	public static int apply(List<String> fileNames, User user) throws IOException{
+		long start_time = System.currentTimeMillis();
+		ChangeFileIngester ingester = new ChangeFileIngester();
+		for(String fileName : fileNames)
+			ingester.read(fileName);
+		Log.v("OSM", "Read " + ingester.nodeChanges.size() + " changed nodes and " + ingester.wayChanges.size()
+				+ " changed ways from " + fileNames.size() + " files.");
+		if(ingester.nodeChanges.size()==0 && ingester.wayChanges.size()==0)
+			return 0;
+
+		//Only Tiles that we have are updated - the others will be up to date whenever they are downloaded
+		List<Tile> tiles = DBConnection.lookupTiles(ingester.affectedTiles(start_time));
+		int enqueued = 0;
+		while(!tiles.isEmpty()){
+			List<Tile> accepted = Controller.enqueueLocalTiles(tiles, user, true);
+			for(Tile tile : accepted)
+				ingester.enqueueChangedMap(tile, start_time);
+			enqueued += accepted.size();
+
+			//A Tile which is already in the pipeline may be building its detailed map from older data, which would
+			//replace our changes - so they are applied on top of it once it is done
+			List<Tile> skipped = ingester.notAccepted(tiles, accepted);
+			if(!skipped.isEmpty()){
+				Log.v("OSM", skipped.size() + " changed tiles are already in the pipeline - waiting for them to apply their changes: " + skipped);
+				try{
+					Controller.awaitTiles(skipped);
+				}
+				catch(InterruptedException e){
+					Log.v("OSM", "Interrupted - the changes to " + skipped + " were not applied");
+					break;
+				}
+			}
+			tiles = skipped;
+		}
+
+		Log.v("OSM", "Handed " + enqueued + " changed tiles to the resolvers after "
+				+ (System.currentTimeMillis() - start_time) / 1000 + " secs.");
+		return enqueued;
+	}
+
+	/**
+	 * Applies the changes to the detailed map of a Tile which was accepted by Controller.enqueueLocalTiles(), and
+	 * hands it to the DBResolverThreads.  If that fails, the Tile is downloaded instead.
+	 */
+	private void enqueueChangedMap(Tile tile, long start_time){
+		try{
+			BBox detailedMap = buildDetailedMap(tile, start_time);
+			if(detailedMap==null){
+				Log.v("OSM", "The changes to " + tile + " use nodes that we do not have - downloading it instead");
+				Controller.retryDownload(tile);
+			}
+			else{
+				detailedMap.setTile(tile);
+				DBResolverThread.enqueueDetailedBBox(detailedMap);
+			}
+		}
+		catch(InterruptedException e){
+			Controller.retryDownload(tile);
+		}
+		catch(Exception e){
+			Log.v("OSM", "Failed to apply changes to " + tile + " - downloading it instead");
+			Log.e(e);
+			Controller.retryDownload(tile);
+		}
+	}
+
+	/**
+	 * @return The Tiles which Controller.enqueueLocalTiles() did not accept, because they are already in the pipeline
+	 */
+	private List<Tile> notAccepted(List<Tile> tiles, List<Tile> accepted){
+		LongMap<Tile> acceptedKeys = new LongMap<Tile>(accepted.size());
+		for(Tile tile : accepted)
+			acceptedKeys.put(Controller.tileKey(tile), tile);
+		LongMap<Tile> skipped = new LongMap<Tile>();
+		for(Tile tile : tiles)
+			if(!acceptedKeys.containsKey(Controller.tileKey(tile)))
+				skipped.put(Controller.tileKey(tile), tile);
+		return skipped.values();
+	}
+
+	/**
+	 * Reads one change file into nodeChanges and wayChanges.
+	 */
+	private void read(String fileName) throws IOException{
+		OsmEventReader reader;
+		if(fileName.endsWith(".gz")){
+			InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+			try{
+				reader = new OsmEventReader(in);
+			}
+			catch(IOException e){
+				in.close();
+				throw e;
+			}
+		}
+		else
+			reader = OsmEventReader.open(fileName);
+
+		String action = null;
+		WayChange currentWay = null;
+		List<Long> refs = new ArrayList<Long>();
+		try{
+			int event;
+			while((event = reader.next()) != OsmEventReader.END_DOCUMENT){
+				try{
+					if(event==OsmEventReader.CHANGE)
+						action = reader.getAction();
+					else if(event==OsmEventReader.NODE){
+						currentWay = null;
+						//Deleted Nodes may not have coordinates
+						if("delete".equals(action))
+							nodeChanges.put(reader.getId(), new NodeChange(reader.getChangeset(), null));
+						else
+							nodeChanges.put(reader.getId(), new NodeChange(reader.getChangeset(), new Node(reader)));
+					}
+					else if(event==OsmEventReader.WAY){
+						currentWay = new WayChange(reader.getId(), reader.getChangeset(), "delete".equals(action));
+						refs.clear();
+					}
+					else if(event==OsmEventReader.ND && currentWay!=null)
+						refs.add(reader.getRef());
+					else if(event==OsmEventReader.TAG && currentWay!=null)
+						currentWay.way.addTag(reader.getKey(), reader.getValue());
+					else if(event==OsmEventReader.WAY_END && currentWay!=null){
+						currentWay.refs = new long[refs.size()];
+						for(int i = 0; i < currentWay.refs.length; i++)
+							currentWay.refs[i] = refs.get(i);
+						wayChanges.put(currentWay.id, currentWay);
+						currentWay = null;
+					}
+				}
+				catch(Exception e){
+					Log.e(e);
+					Log.v("ERROR", "Ignoring...");
+				}
+			}
+		}
+		finally{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Finds the Tiles that the changes may affect: where the changed Nodes and Ways were, according to the DB, and
+	 * where the changed Ways are now.
+	 */
+	private List<Tile> affectedTiles(long NOW){
+		Set<Long> nodeIds = new HashSet<Long>();
+		for(long id : nodeChanges.keys())
+			nodeIds.add(id);
+		Set<Long> wayIds = new HashSet<Long>();
+		for(WayChange change : wayChanges.values()){
+			wayIds.add(change.id);
+			if(change.isImportant())
+				for(long ref : change.refs)
+					nodeIds.add(ref);
+		}
+		List<Tile> tiles = DBConnection.lookupTilesTouching(nodeIds, wayIds, NOW);
+
+		//New Nodes of the changed Ways are not in the DB yet
+		Set<Long> seen = new HashSet<Long>();
+		for(Tile tile : tiles)
+			seen.add(Controller.tileKey(tile));
+		for(WayChange change : wayChanges.values()){
+			if(!change.isImportant())
+				continue;
+			for(long ref : change.refs){
+				NodeChange nodeChange = nodeChanges.get(ref);
+				if(nodeChange==null || nodeChange.node==null)
+					continue;
+				Tile tile = new Tile(nodeChange.node.getGeom().x, nodeChange.node.getGeom().y);
+				if(seen.add(Controller.tileKey(tile)))
+					tiles.add(tile);
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Builds the new detailed map of a Tile: its current map from the DB, with the changes applied.
+	 * @param tile A Tile which we have
+	 * @param NOW The time of the current map
+	 * @return The new detailed map, or null if a changed Way uses a Node that we do not know
+	 */
+	private BBox buildDetailedMap(Tile tile, long NOW){
+		double[] coordinates = ParserThread.tileCoordinates(tile);
+		//The same region that the resolver will compare the new map against
+		BBox oldMap = DBConnection.boundingBoxQuery(coordinates[0], coordinates[1], coordinates[2], coordinates[3], NOW, false, true, true, false);
+		return applyChanges(oldMap, tile);
+	}
+
+	/**
+	 * Applies the changes to a detailed map.
+	 * @param oldMap The current detailed map of a Tile, with its safety margin and the full Ways that cross it
+	 * @param tile The Tile
+	 * @return The new detailed map, or null if a changed Way uses a Node that we do not know
+	 */
+	private BBox applyChanges(BBox oldMap, Tile tile){
+		double[] coordinates = ParserThread.tileCoordinates(tile);
+		long appliedChangeset = 0;
+
+		//1) The Nodes, with their changes
+		LongMap<Node> nodes = new LongMap<Node>();
+		for(Node node : oldMap.getAllNodes()){
+			NodeChange change = nodeChanges.get(node.getId());
+			if(change==null || change.changeset <= node.getOsm_changeset())
+				nodes.put(node.getId(), node);
+			else{
+				appliedChangeset = Math.max(appliedChangeset, change.changeset);
+				if(change.node!=null)
+					nodes.put(node.getId(), new DetailNode(change.node));
+			}
+		}
+
+		//2) The Ways which changed - the ones in the map are rebuilt, and new important ones are added if they touch it
+		LongMap<Long> wayChangesets = new LongMap<Long>();
+		Set<Long> usedNodeIds = new HashSet<Long>();
+		for(Link link : oldMap.getAllLinks()){
+			Long changeset = wayChangesets.get(link.getOsm_way_id());
+			if(changeset==null || link.getOsm_changeset() > changeset)
+				wayChangesets.put(link.getOsm_way_id(), link.getOsm_changeset());
+			usedNodeIds.add(link.getBegin_node_id());
+			usedNodeIds.add(link.getEnd_node_id());
+		}
+		Set<Long> replacedWays = new HashSet<Long>();
+		List<WayChange> newWays = new ArrayList<WayChange>();
+		for(WayChange change : wayChanges.values()){
+			Long changeset = wayChangesets.get(change.id);
+			if(changeset!=null){
+				if(change.changeset <= changeset)
+					continue;
+				replacedWays.add(change.id);
+				appliedChangeset = Math.max(appliedChangeset, change.changeset);
+				if(change.isImportant())
+					newWays.add(change);
+			}
+			else if(change.isImportant() && touches(change, nodes, oldMap)){
+				appliedChangeset = Math.max(appliedChangeset, change.changeset);
+				newWays.add(change);
+			}
+		}
+
+		//3) The Links - old ones are kept (moved along with their Nodes), and the new Ways are split up like the parser does
+		List<Link> links = new ArrayList<Link>();
+		for(Link link : oldMap.getAllLinks()){
+			if(replacedWays.contains(link.getOsm_way_id()))
+				continue;
+			Node begin = nodes.get(link.getBegin_node_id());
+			Node end = nodes.get(link.getEnd_node_id());
+			if(begin==null || end==null)
+				continue;
+			if(begin==oldMap.getNode(begin.getId()) && end==oldMap.getNode(end.getId()))
+				links.add(link);
+			else{
+				DetailLink moved = new DetailLink(begin, end, link.getOsm_name(), link.getOsm_class(), link.getOsm_way_id());
+				moved.setOsm_changeset(link.getOsm_changeset());
+				moved.setStreet_length(moved.haversine());
+				moved.setProc_link_id(((DetailLink)link).getProc_link_id());
+				links.add(moved);
+			}
+		}
+		for(WayChange change : newWays){
+			Way way = change.way;
+			Node prevNode = null;
+			for(long ref : change.refs){
+				Node node = nodes.get(ref);
+				if(node==null){
+					NodeChange nodeChange = nodeChanges.get(ref);
+					if(nodeChange==null || nodeChange.node==null)
+						return null;
+					node = new DetailNode(nodeChange.node);
+					nodes.put(ref, node);
+				}
+				if(prevNode!=null){
+					if(!way.oneWay || !way.backwards)
+						links.add(newLink(prevNode, node, change));
+					if(!way.oneWay || way.backwards)
+						links.add(newLink(node, prevNode, change));
+				}
+				prevNode = node;
+			}
+		}
+
+		//4) Nodes which are no longer on any street are left out (and so deleted), like the parser does
+		Set<Long> stillUsedNodeIds = new HashSet<Long>();
+		for(Link link : links){
+			stillUsedNodeIds.add(link.getBegin_node_id());
+			stillUsedNodeIds.add(link.getEnd_node_id());
+		}
+		BBox newMap = new BBox(coordinates[0], coordinates[1], coordinates[2], coordinates[3]);
+		for(long id : nodes.keys()){
+			if(stillUsedNodeIds.contains(id) || !usedNodeIds.contains(id))
+				newMap.add(nodes.get(id));
+		}
+		for(Link link : links)
+			newMap.add(link);
+		//Old versions of what was deleted must count as older than this map
+		newMap.raiseMaxChangeSet(appliedChangeset);
+
+		Log.v("OSM", "Changes to " + tile + " : " + oldMap + " -> " + newMap);
+		return newMap;
+	}
+
+	/**
+	 * @return True if a changed Way uses a Node of the map, or a new Node inside of it (or its safety margin)
+	 */
+	private boolean touches(WayChange change, LongMap<Node> nodes, BBox map){
+		double m = BBox.SAFETY_MARGIN_SIZE;
+		for(long ref : change.refs){
+			if(nodes.containsKey(ref))
+				return true;
+			NodeChange nodeChange = nodeChanges.get(ref);
+			if(nodeChange!=null && nodeChange.node!=null){
+				double lon = nodeChange.node.getGeom().x, lat = nodeChange.node.getGeom().y;
+				if(lon >= map.leftLon - m && lon <= map.rightLon + m && lat >= map.bottomLat - m && lat <= map.topLat + m)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static DetailLink newLink(Node begin, Node end, WayChange change){
+		DetailLink link = new DetailLink(begin, end, change.way.name, change.way.street_class, change.id);
+		link.setOsm_changeset(change.changeset);
+		link.setStreet_length(link.haversine());
+		return link;
+	}
+}
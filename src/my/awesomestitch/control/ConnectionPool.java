@@ -0,0 +1,227 @@
+package my.awesomestitch.control;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.PGStatement;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * A fixed-size pool of connections to the PostGres database, so the downloader, parser, processor and resolver
+ * threads each get their own backend instead of taking turns on one Connection.
+ * <p>Connections are checked out per thread: the first acquire() on a thread takes a Connection from the pool, and
+ * any nested acquire() on the same thread (e.g. flush() falling back to insertNow()) gets that same Connection.  It
+ * goes back to the pool when the matching number of release() calls have been made.  Connections are opened lazily,
+ * up to maxSize, and acquire() waits when all of them are checked out.
+ * <p>Each Connection also keeps the PreparedStatements made for it by prepare(), so statements which are run over
+ * and over (like the bounding box query) are parsed and planned once per Connection by the server.
+ */
+class ConnectionPool {
+
+	/**
+	 * How long acquire() waits before logging that the pool is exhausted (and then waiting again)
+	 */
+	private static final long WAIT_WARNING_SECONDS = 30;
+
+	private final String url, userName, password;
+
+	private final int maxSize;
+
+	/**
+	 * Run on every Connection when it is opened, outside of any transaction (or null)
+	 */
+	private final String setupSql;
+
+	/**
+	 * Connections which are open but not checked out
+	 */
+	private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+
+	/**
+	 * Every Connection opened by this pool, so close() can reach the checked out ones too
+	 */
+	private final List<Connection> all = new LinkedList<Connection>();
+
+	/**
+	 * The cached PreparedStatements of each Connection, by SQL.  Only the thread holding a Connection touches its map.
+	 */
+	private final Map<Connection, Map<String, PreparedStatement>> statements =
+			new IdentityHashMap<Connection, Map<String, PreparedStatement>>();
+
+	/**
+	 * The Connection held by each thread, with the number of unmatched acquire() calls
+	 */
+	private final ThreadLocal<Checkout> checkouts = new ThreadLocal<Checkout>();
+
+	private static class Checkout {
+		final Connection con;
+		int depth = 1;
+
+		Checkout(Connection con){
+			this.con = con;
+		}
+	}
+
+	/**
+	 * Creates a pool and opens its first Connection, so bad credentials are noticed right away.
+	 * @param url The JDBC url of the database
+	 * @param userName The username used to connect to the database
+	 * @param password The password required to login to the database
+	 * @param maxSize The maximum number of Connections open at once
+	 * @param setupSql Statements to run on each new Connection, e.g. to create its temporary tables.  Null for none.
+	 * @throws SQLException If the first Connection cannot be opened
+	 */
+	ConnectionPool(String url, String userName, String password, int maxSize, String setupSql) throws SQLException{
+		this.url = url;
+		this.userName = userName;
+		this.password = password;
+		this.maxSize = Math.max(1, maxSize);
+		this.setupSql = setupSql;
+		idle.add(open());
+	}
+
+	/**
+	 * Checks out a Connection for the calling thread, or returns the one it already holds.  Every call must be
+	 * matched by a call to release() on the same thread, typically in a finally block.
+	 * @return A Connection which no other thread is using
+	 * @throws SQLException If a new Connection had to be opened and that failed
+	 */
+	Connection acquire() throws SQLException{
+		Checkout checkout = checkouts.get();
+		if(checkout!=null){
+			checkout.depth++;
+			return checkout.con;
+		}
+
+		Connection con = idle.poll();
+		while(con==null || con.isClosed()){
+			synchronized(all){
+				if(con!=null){
+					all.remove(con);
+					statements.remove(con);
+				}
+				con = null;
+				if(all.size() < maxSize)
+					con = open();
+			}
+			if(con==null)
+				con = waitForIdle();
+		}
+		checkouts.set(new Checkout(con));
+		return con;
+	}
+
+	/**
+	 * Gets a PreparedStatement for the Connection which the calling thread has checked out, reusing the one made by an
+	 * earlier call with the same SQL.  The statement is prepared on the server the first time it is executed.  It
+	 * belongs to the pool, so the caller must close its ResultSets but not the statement itself.
+	 * @param con The Connection returned by acquire() on this thread
+	 * @param sql The SQL, with ? for the parameters
+	 * @return The statement, ready to have its parameters set
+	 * @throws SQLException If the statement cannot be prepared
+	 */
+	PreparedStatement prepare(Connection con, String sql) throws SQLException{
+		Map<String, PreparedStatement> cached;
+		synchronized(all){
+			cached = statements.get(con);
+			if(cached==null){
+				cached = new HashMap<String, PreparedStatement>();
+				statements.put(con, cached);
+			}
+		}
+		PreparedStatement pst = cached.get(sql);
+		if(pst==null){
+			pst = con.prepareStatement(sql);
+			if(pst instanceof PGStatement)
+				((PGStatement)pst).setPrepareThreshold(1);
+			cached.put(sql, pst);
+		}
+		else
+			pst.clearParameters();
+		return pst;
+	}
+
+	/**
+	 * Undoes one acquire() by the calling thread.  The Connection goes back to the pool once every acquire() has
+	 * been released.  Does nothing if this thread holds no Connection.
+	 */
+	void release(){
+		Checkout checkout = checkouts.get();
+		if(checkout==null)
+			return;
+		if(--checkout.depth==0){
+			checkouts.remove();
+			idle.add(checkout.con);
+		}
+	}
+
+	/**
+	 * Closes every Connection, including those which are checked out.
+	 */
+	void close(){
+		synchronized(all){
+			for(Connection con : all){
+				try{
+					con.close();
+				}
+				catch(SQLException e){
+					Log.e(e);
+				}
+			}
+			all.clear();
+			idle.clear();
+			statements.clear();
+		}
+	}
+
+	private Connection open() throws SQLException{
+		Connection con = DriverManager.getConnection(url, userName, password);
+		if(setupSql!=null){
+			try(Statement st = con.createStatement()){
+				st.execute(setupSql);
+			}
+			catch(SQLException e){
+				con.close();
+				throw e;
+			}
+		}
+		synchronized(all){
+			all.add(con);
+		}
+		return con;
+	}
+
+	private Connection waitForIdle(){
+		boolean interrupted = false;
+		try{
+			while(true){
+				try{
+					Connection con = idle.poll(WAIT_WARNING_SECONDS, TimeUnit.SECONDS);
+					if(con!=null)
+						return con;
+					Log.v("DB", Thread.currentThread().getName() + " is waiting for one of " + maxSize + " DB connections");
+				}
+				catch(InterruptedException e){
+					//Finish checking out - the caller cannot do anything useful without a Connection
+					interrupted = true;
+				}
+			}
+		}
+		finally{
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -2,38 +2,108 @@ package my.awesomestitch.control;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import my.awesomestitch.mapobjects.BBox;
+import my.awesomestitch.mapobjects.LongMap;
 import my.awesomestitch.mapobjects.Tile;
 import my.awesomestitch.mapobjects.User;
 import my.awesomestitch.mapobjects.UserTile;
 
+/**
+ * 
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * Runs the tile pipeline : download --> parse --> resolve detailed map --> preprocess --> resolve processed map.
+ * Each stage has a fixed pool of long-lived worker threads, and Tiles are handed from one stage to the next through
+ * in-memory queues.  The status columns of the tiles table are still written at every step, but only as a durable
+ * record (for Notifier, and so that unfinished Tiles can be resumed after a restart) - they are never polled.
+ * 
+ * Preprocessing a Tile needs the detailed map of its neighbors (and of the Tiles its Ways reach), so a Tile is only
+ * preprocessed once those have their detailed map in the DB - see TileDependencyTracker.  Tiles far apart do not
+ * wait for each other.
+ */
 public class Controller {
 
-	//Keep track of the necessary threads
+	//Sizes of the worker pools
 	private static int MAX_DOWNLOADER_THREADS = 2;
-	private static List<MapDownloaderThread> mapDownloaderThreads = new LinkedList<MapDownloaderThread>();
-
 	private static int MAX_PARSER_THREADS = 2;
-	private static List<ParserThread> parserThreads = new LinkedList<ParserThread>();
-
 	private static int MAX_PROCESSOR_THREADS = 2;
-	private static List<MapProcessorThread> processorThreads = new LinkedList<MapProcessorThread>();
+	private static int MAX_RESOLVER_THREADS = 2;
 
-	private static DBResolverThread dbResolverThread = null;
+	/**
+	 * Maximum number of downloaded Tiles waiting to be parsed.  This bounds the number of .osm files on disk.
+	 */
+	private static int MAX_PARSE_QUEUE_SIZE = 10;
 
 	/**
-	 * The threads that are waiting for the processor threads to finish.
+	 * How many times a Tile may fail (to download, parse, preprocess, or be resolved) before it is given up on
 	 */
-	private static List<Thread> threadsWaitingToJoin = new LinkedList<Thread>();
+	private static int MAX_ATTEMPTS = 5;
 
 	/**
-	 * Synchronize on this object when updating tile status.  This prevents DB race conditions.
+	 * How long a Tile waits before it is retried after its first failure, in ms.  This doubles with every failure.
+	 */
+	private static long RETRY_DELAY = 5000;
+
+	//The worker threads, once they have been started
+	private static List<Thread> workers = new LinkedList<Thread>();
+
+	/**
+	 * Tiles waiting to be downloaded.  This is unbounded, since any number of Tiles may be enqueued at once.
+	 */
+	private static BlockingQueue<Tile> downloadQueue = new LinkedBlockingQueue<Tile>();
+
+	/**
+	 * Downloaded Tiles waiting to be parsed
+	 */
+	private static BlockingQueue<Tile> parseQueue = null;
+
+	/**
+	 * Tiles whose detailed map is complete, waiting to be preprocessed.  This is unbounded because it is filled
+	 * by the DBResolverThreads, which must never block on the processor threads (they block on it).
+	 */
+	private static BlockingQueue<Tile> processQueue = new LinkedBlockingQueue<Tile>();
+
+	/**
+	 * Every Tile currently somewhere in the pipeline, keyed by tileKey()
+	 */
+	private static LongMap<Tile> tilesInPipeline = new LongMap<Tile>();
+
+	/**
+	 * Holds back the Tiles whose detailed map is done until their neighbors' are too
+	 */
+	private static TileDependencyTracker dependencies = new TileDependencyTracker();
+
+	/**
+	 * How many times each Tile in the pipeline has failed so far, keyed by tileKey()
+	 */
+	private static LongMap<Integer> failures = new LongMap<Integer>();
+
+	/**
+	 * Tiles which were requested with force=true while they were already in the pipeline, keyed by tileKey().  They
+	 * start over once they leave it, since the run in progress may have started from older data.
+	 */
+	private static LongMap<Tile> forcedLater = new LongMap<Tile>();
+
+	/**
+	 * Puts failed Tiles back into their queue once they have waited out their delay.  Created on the first failure.
+	 */
+	private static Timer retryTimer = null;
+
+	/**
+	 * Synchronize on this object when updating the pipeline state.
 	 */
 	public static final Object lock = new Object();
 
+	/**
+	 * Notified whenever a Tile leaves the pipeline.
+	 */
 	public static final Object joinLock = new Object();
 
 	public static void setMaxDownloaderThreads(int max) {
@@ -47,205 +117,306 @@ public class Controller {
 	public static void setMaxProcessorThreads(int max) {
 		MAX_PROCESSOR_THREADS = max;
 	}
-	
-	/**
-	 * Removes finished threads from the lists of currently running threads.
-	 * This way, the lists accurately represent the currently running threads.
-	 */
-	private static void cleanThreadLists(){
-		for(Iterator<MapDownloaderThread> it = mapDownloaderThreads.iterator(); it.hasNext();){
-			MapDownloaderThread thread = it.next();
-			if(thread.isFinished())
-			//	mapDownloaderThreads.remove(thread);
-				it.remove();
-		}
 
-		for(Iterator<MapProcessorThread> it = processorThreads.iterator(); it.hasNext();){
-			MapProcessorThread thread = it.next();
-			if(thread.isFinished())
-			//	processorThreads.remove(thread);
-				it.remove();
-		}
+	public static void setMaxResolverThreads(int max) {
+		MAX_RESOLVER_THREADS = max;
+	}
 
-		for(Iterator<ParserThread> it = parserThreads.iterator(); it.hasNext();){
-			ParserThread thread = it.next();
-			if(thread.isFinished())
-			//	parserThreads.remove(thread);	
-				it.remove();
-		}
+	public static void setMaxParseQueueSize(int max) {
+		MAX_PARSE_QUEUE_SIZE = max;
+	}
 
-		if(dbResolverThread!= null && dbResolverThread.isFinished())
-			dbResolverThread = null;
+	public static void setMaxAttempts(int max) {
+		MAX_ATTEMPTS = max;
 	}
 
+	public static void setRetryDelay(long delay) {
+		RETRY_DELAY = delay;
+	}
 
 	/**
-	 * This method starts the threads which download, parse, process, and update the enqueued Tiles.
-	 * Lists are maintained of the currently running threads, ensuring that a fixed number can run at a time.
+	 * Packs the grid coordinates of a Tile into one key.
 	 */
-	public static void startThreadsIfNecessary(){
-		synchronized(lock){
-			//Update the thread lists to accurately represent the currently running threads
-			cleanThreadLists();
-
-			//Find Tiles in the DB where download_status==WAITING
-			//These are tiles that are queued for download
-			//Then create a new MapDownloaderThread to download the .osm file
-			try {
-				synchronized(mapDownloaderThreads){
-					ResultSet rs = DBConnection.executeQuery("SELECT * FROM tmp_schema.tiles WHERE download_status=" + Tile.WAITING + ";");
-					while(rs.next() && mapDownloaderThreads.size() < MAX_DOWNLOADER_THREADS){
-						Tile tile = new Tile(rs);
-
-						MapDownloaderThread thread = new MapDownloaderThread(tile);
-						mapDownloaderThreads.add(thread);
-
-						thread.start();
-					}
-				}
-			} catch (SQLException e) {
-				Log.v("DB", "Error searching for tiles queued for download.");
-				Log.e(e);
-			}
+	static long tileKey(Tile tile){
+		return tileKey(tile.getGrid_x(), tile.getGrid_y());
+	}
 
-			//If there are any Tiles in the DB where download_status==DONE and detailed_map_status==WAITING
-			//These are tiles that are done downloading, and are queued for parsing
-			//Then create a new ParserThread to parse the .osm thread
-			try{
-				synchronized(parserThreads){
-					ResultSet rs = DBConnection.executeQuery("SELECT * from tmp_schema.tiles WHERE download_status=" + Tile.DONE+ " AND detailed_map_status=" + Tile.WAITING + ";");
+	static long tileKey(int grid_x, int grid_y){
+		return ((long)grid_x << 32) | (grid_y & 0xffffffffL);
+	}
 
-					while(rs.next() && parserThreads.size() < MAX_PARSER_THREADS){
-						Tile tile = new Tile(rs);
 
-						ParserThread thread = new ParserThread(tile);
-						parserThreads.add(thread);
-						thread.start();
-					}
-				}
-			} catch(SQLException e){
-				Log.v("DB", "Error searching for tiles queued for parsing.");
+	/**
+	 * Starts the worker threads which download, parse, process, and update the enqueued Tiles.  The first call
+	 * also resumes any Tiles which were left unfinished in the DB by a previous run.  Later calls do nothing, so it
+	 * is safe to call this as often as one likes.
+	 */
+	public static void startThreadsIfNecessary(){
+		synchronized(lock){
+			if(!workers.isEmpty())
+				return;
+
+			parseQueue = new LinkedBlockingQueue<Tile>(MAX_PARSE_QUEUE_SIZE);
+			resumeUnfinishedTiles();
+
+			for(int i = 0; i < MAX_DOWNLOADER_THREADS; i++)
+				workers.add(new MapDownloaderThread());
+			for(int i = 0; i < MAX_PARSER_THREADS; i++)
+				workers.add(new ParserThread());
+			for(int i = 0; i < MAX_PROCESSOR_THREADS; i++)
+				workers.add(new MapProcessorThread());
+			for(int i = 0; i < MAX_RESOLVER_THREADS; i++)
+				workers.add(new DBResolverThread());
+
+			//The workers wait for work forever, so they must not keep the JVM alive.  Use joinAll() to wait for them.
+			for(Thread worker : workers){
+				worker.setDaemon(true);
+				worker.start();
 			}
+		}
+	}
 
-			//If all tiles in the DB have detailed_map_status==DONE, then the detailed map is fully created
-			//It is now possible to begin preprocessing it and creating the processed map
-			//all tiles with processed_map_status==WAITING must be processed
-			try{
-				synchronized(processorThreads){
-					//Query for all tiles that are not done with the detailed map parsing
-					ResultSet rs = DBConnection.executeQuery("SELECT * from tmp_schema.tiles WHERE detailed_map_status!=" + Tile.DONE + ";");
-					//If none exist, then we can proceed
-					if(!rs.next()){
-						ResultSet rs2 = DBConnection.executeQuery("SELECT * from tmp_schema.tiles where processed_map_status=" + Tile.WAITING + ";");
-
-						while(rs2.next() && processorThreads.size() < MAX_PROCESSOR_THREADS){
-							Tile tile = new Tile(rs2);
-							Log.v("DEBUG", "" + tile);
-							MapProcessorThread thread = new MapProcessorThread(tile);
-							processorThreads.add(thread);
-							thread.start();
-						}
+	/**
+	 * Reads the tiles table ONCE and puts every Tile that a previous run did not finish back into the right stage
+	 * of the pipeline, according to its status columns.  Stages that were IN_PROGRESS are simply redone.  Tiles which
+	 * were given up on (FAILED) are not resumed.
+	 */
+	private static void resumeUnfinishedTiles(){
+		try {
+			//Tiles which were given up on stay FAILED until they are requested again - otherwise a Tile which always
+			//fails would be retried on every restart
+			ResultSet rs = DBConnection.executeQuery("SELECT * FROM tmp_schema.tiles WHERE processed_map_status IN ("
+					+ Tile.WAITING + "," + Tile.IN_PROGRESS + ");");
+			List<Tile> resumed = new LinkedList<Tile>();
+			while(rs!=null && rs.next())
+				resumed.add(new Tile(rs));
+			List<Tile> done = new LinkedList<Tile>();
+
+			for(Tile tile : resumed){
+				if(tilesInPipeline.containsKey(tileKey(tile)))
+					continue;
+				Log.v("TILE", "Resuming unfinished tile " + tile);
+				if(tile.getDownload_status()!=Tile.DONE){
+					tile.setDownload_status(Tile.WAITING);
+					tile.setDetailed_map_status(Tile.WAITING);
+					addToPipeline(tile);
+				}
+				else if(tile.getDetailed_map_status()!=Tile.DONE){
+					tile.setDetailed_map_status(Tile.WAITING);
+					tilesInPipeline.put(tileKey(tile), tile);
+					dependencies.detailedMapPending(tile);
+					//The parse queue is empty at this point, and resumed tiles beyond its capacity are re-downloaded
+					if(!parseQueue.offer(tile)){
+						tile.setDownload_status(Tile.WAITING);
+						downloadQueue.add(tile);
 					}
 				}
-			} catch(SQLException e){
-				Log.v("DB", "Error searching for tiles queued for preprocessing.");
+				else{
+					tilesInPipeline.put(tileKey(tile), tile);
+					done.add(tile);
+				}
+				tile.setProcessed_map_status(Tile.WAITING);
 			}
+			//Their detailed maps are not loaded again, so these only wait for their neighbors
+			for(Tile tile : done)
+				processQueue.addAll(dependencies.detailedMapDone(tile, null));
+		} catch (SQLException e) {
+			Log.v("DB", "Error searching for unfinished tiles.");
+			Log.e(e);
+		}
+	}
 
-			//If there are any BBoxes in the detailed queue or the processed queue, then they need to be added to the DB
-			//So start a new DBResolverThread if there is not already one running
-			if(DBResolverThread.hasBBoxesInQueue() && dbResolverThread==null){
-				DBResolverThread thread = new DBResolverThread();
-				dbResolverThread = thread;
-				thread.start();
-			}
+	/**
+	 * Puts a Tile at the start of the pipeline.  Must be called while holding lock.
+	 */
+	private static void addToPipeline(Tile tile){
+		tilesInPipeline.put(tileKey(tile), tile);
+		dependencies.detailedMapPending(tile);
+		downloadQueue.add(tile);
+	}
 
+	/**
+	 * Registers a Tile whose detailed map is supplied by the caller.  Must be called while holding lock.
+	 */
+	private static void addLocalToPipeline(Tile tile, List<Tile> local){
+		tilesInPipeline.put(tileKey(tile), tile);
+		dependencies.detailedMapPending(tile);
+		local.add(tile);
+	}
 
-		}
-		
-		if(finishedRunning()){
-			synchronized(joinLock){
-				joinLock.notify();
-			}
-		}
+	//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	//Called by the worker threads to move Tiles between stages
 
+	/**
+	 * Blocks until a Tile is waiting to be downloaded.
+	 */
+	static Tile takeTileToDownload() throws InterruptedException{
+		return downloadQueue.take();
+	}
 
+	/**
+	 * Blocks until a downloaded Tile is waiting to be parsed.
+	 */
+	static Tile takeTileToParse() throws InterruptedException{
+		return parseQueue.take();
 	}
 
+	/**
+	 * Blocks until a Tile is ready to be preprocessed.
+	 */
+	static Tile takeTileToProcess() throws InterruptedException{
+		return processQueue.take();
+	}
 
+	/**
+	 * Called by a MapDownloaderThread once the .osm file of a Tile is on disk.  Blocks if the parsers are behind.
+	 */
+	static void tileDownloaded(Tile tile) throws InterruptedException{
+		parseQueue.put(tile);
+	}
 
 	/**
-	 * Adds a new Tile into the processing pipeline by adding it into the DB.  Background threads will then
-	 * download the Tile, parse it, preprocess it, and add the map data into the DB.
-	 * @param tile The Tile that needs to be downloaded.
-	 * @param user The User who is requesting the download.  Useful for sending notifications.
-	 * @param force By default, Tiles are ignored if we already have them.  Set this to True if you want to force it to re-download these tiles.
-	 * @param runThreads Tells whether or not to run the processing threads.  Recommended setting is True, but one may wish to call enqueue many times, then startNecessaryThreads() ONCE at the end
-	 * @return True if the Tile was added to the DB, false if it was ignored (the Tile already exists)
+	 * Called when a Tile could not be downloaded or parsed.  It goes back to the end of the download queue after a
+	 * delay, or is given up on if it has failed too many times.
 	 */
-	public static boolean enqueue(Tile tile, User user, boolean force, boolean runThreads){
+	static void retryDownload(Tile tile){
+		tile.setDownload_status(Tile.WAITING);
+		tile.setDetailed_map_status(Tile.WAITING);
+		retry(tile, downloadQueue);
+	}
 
+	/**
+	 * Called when a Tile could not be preprocessed, or its processed map could not be resolved.  It goes back to the
+	 * end of the process queue after a delay, or is given up on if it has failed too many times.
+	 */
+	static void retryProcessing(Tile tile){
+		tile.setProcessed_map_status(Tile.WAITING);
+		retry(tile, processQueue);
+	}
 
-		//Now, check if we already have this tile.  We will not re-download it unless force=true
-		Tile oldVersion =  DBConnection.lookupTile(tile.getGrid_x(), tile.getGrid_y());
-		if(oldVersion!=null && !force){
+	/**
+	 * Counts a failure of a Tile, and puts it back into a queue once it has waited RETRY_DELAY * 2^(failures-1) ms.
+	 * After MAX_ATTEMPTS failures, it is given up on instead.
+	 */
+	private static void retry(final Tile tile, final BlockingQueue<Tile> queue){
+		int failed;
+		synchronized(lock){
+			Integer before = failures.get(tileKey(tile));
+			failed = before==null ? 1 : before + 1;
+			failures.put(tileKey(tile), failed);
+			if(failed < MAX_ATTEMPTS && retryTimer==null)
+				retryTimer = new Timer("Retry", true);
+		}
+		if(failed >= MAX_ATTEMPTS){
+			giveUp(tile, failed);
+			return;
+		}
+
+		recordStatus(tile);
+		long delay = RETRY_DELAY << Math.min(failed - 1, 10);
+		Log.v("TILE", "Retrying " + tile + " in " + delay + " ms (" + failed + " of " + MAX_ATTEMPTS + " attempts failed)");
+		retryTimer.schedule(new TimerTask(){
+			@Override
+			public void run(){
+				queue.add(tile);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Takes a Tile which has failed too often out of the pipeline, and marks every stage it had not finished as
+	 * FAILED in the DB.  Tiles which were waiting for its detailed map are preprocessed without it.
+	 */
+	private static void giveUp(Tile tile, int failed){
+		Log.v("TILE", "Giving up on " + tile + " after " + failed + " failed attempts");
+		if(tile.getDownload_status()!=Tile.DONE)
+			tile.setDownload_status(Tile.FAILED);
+		if(tile.getDetailed_map_status()!=Tile.DONE)
+			tile.setDetailed_map_status(Tile.FAILED);
+		tile.setProcessed_map_status(Tile.FAILED);
+		recordStatus(tile);
 
-			if(oldVersion.getProcessed_map_status()!=Tile.DONE)
-				Log.v("TILE", "No need to re-download tile " + tile + " - it is already in the queue.");
-			else
-				Log.v("TILE", "No need to re-download tile " + tile + " - we already have it.  Use force=true to update this tile.");
-			//Return false - this tile does not need to be downloaded/processed
-			return false;
+		synchronized(lock){
+			processQueue.addAll(dependencies.detailedMapFailed(tile));
+			removeFromPipeline(tile);
 		}
+		tileLeftPipeline();
+	}
 
-		if(oldVersion==null){
-			tile.setForce(false); // No need to force a tile that we don't have. Forcing is only required to overwrite existing tiles
-			//Reset the status of this tile to waiting for download
-			tile.setDownload_status(Tile.WAITING);
-			tile.setDetailed_map_status(Tile.WAITING);
-			tile.setProcessed_map_status(Tile.WAITING);
+	/**
+	 * Called by a DBResolverThread once the detailed map of a Tile is in the DB.  Hands the Tiles which no longer
+	 * wait for anything (this one, or the ones it was holding back) to the processor threads.
+	 * @param detailedMap The detailed map that was resolved - its extent tells which Tiles this one waits for
+	 */
+	static void detailedMapResolved(BBox detailedMap){
+		synchronized(lock){
+			processQueue.addAll(dependencies.detailedMapDone(detailedMap.getTile(), detailedMap));
 		}
-		else
-			tile.setForce(true);
+	}
 
+	/**
+	 * Called by a DBResolverThread once the processed map of a Tile is in the DB.  The Tile leaves the pipeline.
+	 */
+	static void processedMapResolved(Tile tile){
+		synchronized(lock){
+			removeFromPipeline(tile);
+		}
+		tileLeftPipeline();
+	}
 
+	/**
+	 * Takes a Tile out of the pipeline.  If it was forced again while it was in the pipeline, it is put back at the
+	 * start.  Must be called while holding lock.
+	 */
+	private static void removeFromPipeline(Tile tile){
+		long key = tileKey(tile);
+		failures.remove(key);
+		tilesInPipeline.remove(key);
+
+		Tile again = forcedLater.remove(key);
+		if(again!=null){
+			Log.v("TILE", "Downloading " + again + " again, as it was forced while in the pipeline");
+			again.setForce(true);
+			again.setDownload_status(Tile.WAITING);
+			again.setDetailed_map_status(Tile.WAITING);
+			again.setProcessed_map_status(Tile.WAITING);
+			recordStatus(again);
+			addToPipeline(again);
+		}
+	}
 
-		//Add this tile to the list of tiles which still need to be downloaded
-		//Also add it to the workingSet - it will be removed once downloading and processing is complete
-		synchronized(lock){
-			tile.setCreated_timestamp(System.currentTimeMillis());
-
-			//Create a new UserTile - records that the user has ordered this tile in the DB
-			//Later, this information can be used to determine whether a given user has other tiles in the queue
-			
-			if(user == null)
-				user = DBConnection.getDefaultUser();
-			
-			
-			UserTile ut = new UserTile(user.getUser_id(), tile.getGrid_x(), tile.getGrid_y());
-			ut.setOwned_timestamp(UserTile.DNE);
-			ut.setOrdered_timestamp(System.currentTimeMillis());
-
-			//If this UserTile already exists in the DB, remove it - it needs to be replaced
-			DBConnection.deleteUserTile(ut);
-			//Add this order to the DB
-			DBConnection.insertNow(ut);
-			
-			
-
-			if(oldVersion==null)
-				DBConnection.insertNow(tile);
-			else
-				DBConnection.updateTile(tile);
+	/**
+	 * Wakes the threads in joinAll() and awaitTiles(), which check whether the Tiles they wait for are gone.
+	 */
+	private static void tileLeftPipeline(){
+		synchronized(joinLock){
+			joinLock.notifyAll();
 		}
+	}
+
+	/**
+	 * Writes the status columns of a Tile to the DB.  The pipeline does not read them back - they are a durable
+	 * record of progress.
+	 */
+	static void recordStatus(Tile tile){
+		DBConnection.updateTile(tile);
+	}
 
-		Log.v("TILE", "Enqueued tile " + tile +"");
 
-		//If desired, start the necessary number of threads to continue the processing of the tile
-		if(runThreads)
-			startThreadsIfNecessary();
 
-		//Return true - we need to wait on this tile
-		return true;
+	/**
+	 * Adds a new Tile into the processing pipeline and records it in the DB.  Background threads will then
+	 * download the Tile, parse it, preprocess it, and add the map data into the DB.
+	 * @param tile The Tile that needs to be downloaded.
+	 * @param user The User who is requesting the download.  Useful for sending notifications.
+	 * @param force By default, Tiles are ignored if we already have them.  Set this to True if you want to force it to re-download these tiles.
+	 * @param runThreads Tells whether or not to start the processing threads.  If False, the Tile waits in the queue until startThreadsIfNecessary() is called
+	 * @return True if the Tile was added to the DB, false if it was ignored (the Tile already exists)
+	 */
+	public static boolean enqueue(Tile tile, User user, boolean force, boolean runThreads){
+		List<Tile> tiles = new LinkedList<Tile>();
+		tiles.add(tile);
+		return enqueueTiles(tiles, user, force, runThreads) > 0;
 	}
 
 	/**
@@ -270,9 +441,167 @@ public class Controller {
 		enqueue(tile, user, false);
 	}
 
+	/**
+	 * Adds many Tiles into the processing pipeline at once.  This does the same thing as calling enqueue() on each
+	 * of them, but uses a handful of set-based statements instead of several round trips to the DB per Tile:
+	 * one query finds the Tiles we already have, then new Tiles, updated Tiles and UserTiles are each written with
+	 * multi-row statements.
+	 * @param tiles The Tiles that need to be downloaded.  Duplicate coordinates are only enqueued once.
+	 * @param user The User who is requesting the download.  Useful for sending notifications.
+	 * @param force By default, Tiles are ignored if we already have them.  Set this to True if you want to force it to re-download these tiles.
+	 * @param runThreads Tells whether or not to start the processing threads.  If False, the Tiles wait in the queue until startThreadsIfNecessary() is called
+	 * @return The number of Tiles that were added to the pipeline (Tiles which already exist are ignored unless
+	 * force=true).  Tiles which are already in the pipeline are recorded as ordered by the user, and if force=true,
+	 * they are added again once they leave the pipeline - they are not counted here.
+	 */
+	public static int enqueueTiles(List<Tile> tiles, User user, boolean force, boolean runThreads){
+		return enqueueTiles(tiles, user, force, runThreads, null);
+	}
+
+	/**
+	 * Adds Tiles into the pipeline whose detailed maps the caller already has (e.g. from a local extract - see
+	 * ExtractIngester), so they skip the downloaders and parsers.  The processing threads are started.
+	 * @param tiles The Tiles.  Duplicate coordinates are only enqueued once.
+	 * @param user The User who is requesting the Tiles.  Useful for sending notifications.
+	 * @param force Set to True if you want to overwrite any existing Tiles
+	 * @return The Tiles which were accepted.  The caller MUST hand the detailed map of each one to
+	 * DBResolverThread.enqueueDetailedBBox(), or give it back with retryDownload(), or the pipeline never finishes.
+	 */
+	static List<Tile> enqueueLocalTiles(List<Tile> tiles, User user, boolean force){
+		List<Tile> accepted = new ArrayList<Tile>();
+		enqueueTiles(tiles, user, force, true, accepted);
+		return accepted;
+	}
+
+	/**
+	 * Does the work of enqueueTiles() and enqueueLocalTiles().
+	 * @param local Null to send the Tiles to the downloaders.  Otherwise, the Tiles are only registered in the
+	 * pipeline, and those which were accepted are added to this list.
+	 */
+	private static int enqueueTiles(List<Tile> tiles, User user, boolean force, boolean runThreads, List<Tile> local){
+		if(user == null)
+			user = DBConnection.getDefaultUser();
+
+		//Remove duplicate coordinates, keeping the first Tile given for each
+		LongMap<Tile> requested = new LongMap<Tile>(tiles.size());
+		List<Tile> uniqueTiles = new ArrayList<Tile>(tiles.size());
+		for(Tile tile : tiles){
+			if(!requested.containsKey(tileKey(tile))){
+				requested.put(tileKey(tile), tile);
+				uniqueTiles.add(tile);
+			}
+		}
+
+		List<Tile> newTiles = new ArrayList<Tile>();
+		List<Tile> forcedTiles = new ArrayList<Tile>();
+		List<UserTile> orders = new ArrayList<UserTile>();
+
+		synchronized(lock){
+			//Now, check which of these tiles we already have.  We will not re-download them unless force=true
+			LongMap<Tile> oldVersions = new LongMap<Tile>(uniqueTiles.size());
+			for(Tile oldVersion : DBConnection.lookupTiles(uniqueTiles))
+				oldVersions.put(tileKey(oldVersion), oldVersion);
+
+			long now = System.currentTimeMillis();
+			for(Tile tile : uniqueTiles){
+				Tile oldVersion = oldVersions.get(tileKey(tile));
+				//A Tile which was given up on is simply tried again
+				if(oldVersion!=null && !force && oldVersion.getProcessed_map_status()!=Tile.FAILED){
+					if(oldVersion.getProcessed_map_status()!=Tile.DONE)
+						Log.v("TILE", "No need to re-download tile " + tile + " - it is already in the queue.");
+					else
+						Log.v("TILE", "No need to re-download tile " + tile + " - we already have it.  Use force=true to update this tile.");
+					continue;
+				}
+
+				if(oldVersion==null){
+					tile.setForce(false); // No need to force a tile that we don't have. Forcing is only required to overwrite existing tiles
+					//Reset the status of this tile to waiting for download
+					tile.setDownload_status(Tile.WAITING);
+					tile.setDetailed_map_status(Tile.WAITING);
+					tile.setProcessed_map_status(Tile.WAITING);
+				}
+				else
+					tile.setForce(true);
+				tile.setCreated_timestamp(now);
+				if(local!=null){
+					//Not downloaded - if we crash before the detailed map is done, it will be downloaded on restart
+					tile.setDownload_status(Tile.WAITING);
+					tile.setDetailed_map_status(Tile.IN_PROGRESS);
+					tile.setProcessed_map_status(Tile.WAITING);
+				}
+
+				//Create a new UserTile - records that the user has ordered this tile in the DB
+				//Later, this information can be used to determine whether a given user has other tiles in the queue
+				UserTile ut = new UserTile(user.getUser_id(), tile.getGrid_x(), tile.getGrid_y());
+				ut.setOwned_timestamp(UserTile.DNE);
+				ut.setOrdered_timestamp(now);
+				orders.add(ut);
+
+				if(tilesInPipeline.containsKey(tileKey(tile))){
+					//Already on its way - the order is enough for the user to be notified when it is done
+					Log.v("TILE", "Tile " + tile + " is already in the pipeline.");
+					//but a forced Tile may be built from data older than the request, so it is done again afterwards.
+					//Callers with local maps wait for the Tile themselves (see ChangeFileIngester)
+					if(force && local==null){
+						Log.v("TILE", "Tile " + tile + " will be downloaded again once it leaves the pipeline.");
+						forcedLater.put(tileKey(tile), tile);
+					}
+				}
+				else if(oldVersion==null)
+					newTiles.add(tile);
+				else
+					forcedTiles.add(tile);
+			}
+
+			//Record everything in the DB with a few multi-row statements
+			DBConnection.upsertUserTiles(orders);
+			DBConnection.insertTiles(newTiles);
+			DBConnection.updateTiles(forcedTiles);
+
+			//Hand the tiles to the downloader threads.  They stay in tilesInPipeline until their processed map is in the DB
+			if(local!=null){
+				for(Tile tile : newTiles)
+					addLocalToPipeline(tile, local);
+				for(Tile tile : forcedTiles)
+					addLocalToPipeline(tile, local);
+			}
+			else{
+				for(Tile tile : newTiles)
+					addToPipeline(tile);
+				for(Tile tile : forcedTiles)
+					addToPipeline(tile);
+			}
+		}
+
+		int added = newTiles.size() + forcedTiles.size();
+		Log.v("TILE", "Enqueued " + added + " of " + uniqueTiles.size() + " tiles (" + (orders.size() - added)
+				+ " more were already in the pipeline)");
 
+		//If desired, start the necessary number of threads to continue the processing of the tiles
+		if(runThreads)
+			startThreadsIfNecessary();
 
+		return added;
+	}
 
+	/**
+	 * Enqueues every Tile in a rectangle of grid coordinates, using enqueueTiles().
+	 * @param min_x The smallest x-coordinate in the region
+	 * @param min_y The smallest y-coordinate in the region
+	 * @param max_x The largest x-coordinate in the region
+	 * @param max_y The largest y-coordinate in the region
+	 * @param user The User who is requesting the Tiles.  Useful for sending notifications.
+	 * @param force Set to True if you want to overwrite any existing Tiles in the region
+	 * @return The number of Tiles that were added
+	 */
+	public static int enqueueRegion(int min_x, int min_y, int max_x, int max_y, User user, boolean force){
+		List<Tile> tiles = new ArrayList<Tile>();
+		for(int x = min_x; x <= max_x; x++)
+			for(int y = min_y; y <= max_y; y++)
+				tiles.add(new Tile(x, y));
+		return enqueueTiles(tiles, user, force, true);
+	}
 
 	/**
 	 * Enqueues an NxN square of Tiles for download.
@@ -284,20 +613,7 @@ public class Controller {
 	 * @return The number of Tiles that were added (less than or equal to (tile_radius+1)^2 since some tiles may already exist)
 	 */
 	public static int enqueueSquareOfTiles(int tile_x, int tile_y, int tile_radius, User user, boolean force){
-		int numEnqueued = 0;
-		//Iterate through the square around this tile
-		for(int x = tile_x - tile_radius; x <= tile_x + tile_radius; x++){
-			for(int y = tile_y - tile_radius; y <= tile_y + tile_radius; y++){
-				Tile tile = new Tile(x,y);
-				boolean result = enqueue(tile, user, force, false);
-				if(result)
-					numEnqueued += 1;
-			}
-		}
-
-		startThreadsIfNecessary();
-		return numEnqueued;
-
+		return enqueueRegion(tile_x - tile_radius, tile_y - tile_radius, tile_x + tile_radius, tile_y + tile_radius, user, force);
 	}
 
 	/**
@@ -318,37 +634,52 @@ public class Controller {
 	}
 
 	/**
-	 * Indicates whether all threads have finished running.  If they are, then the map is ready to use.
-	 * @return True if all threads are finished running, False if not.
+	 * Indicates whether all enqueued Tiles have made it through the pipeline.  If they have, then the map is ready to use.
+	 * @return True if no Tiles are left in the pipeline, False if not.
 	 */
 	public static boolean finishedRunning(){
 		synchronized(lock){
-			cleanThreadLists();
-			
-			// System.out.println("[downloader]" + "[parser]" + "[processor]" + "[dbResolver]"+
-			//		mapDownloaderThreads.size() + "|" + parserThreads.size() + "|" + processorThreads.size() + "|" + dbResolverThread);
-			
-			return (mapDownloaderThreads.size()==0 && parserThreads.size()==0 && processorThreads.size()==0 &&  dbResolverThread==null);
+			return tilesInPipeline.isEmpty();
+		}
+	}
+
+	/**
+	 * Blocks until none of the given Tiles is in the pipeline any more (they are done, or were given up on).
+	 * @param tiles Any Tiles
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	static void awaitTiles(List<Tile> tiles) throws InterruptedException{
+		synchronized(joinLock){
+			while(true){
+				boolean inPipeline = false;
+				synchronized(lock){
+					for(Tile tile : tiles)
+						inPipeline |= tilesInPipeline.containsKey(tileKey(tile));
+				}
+				if(!inPipeline)
+					return;
+				joinLock.wait();
+			}
 		}
 	}
 
 	/**
-	 * Blocks until all threads are done running and the map is ready.
+	 * Blocks until all enqueued Tiles are done and the map is ready.
 	 */
 	public static void joinAll(){
 
-		//The method will not execute until all threads are finished running.
-		//Technially the loop should only execute once, but it is implemented as
-		//a while loop for robustness
-		while(!finishedRunning()){
-			synchronized(joinLock){
+		//Make sure that somebody is actually working on the queued Tiles
+		startThreadsIfNecessary();
+
+		synchronized(joinLock){
+			while(!finishedRunning()){
 				try {
 					joinLock.wait();
 				} catch (InterruptedException e) {
 					Log.e(e);
+					return;
 				}
 			}
-
 		}
 	}
 
@@ -0,0 +1,70 @@
+package my.awesomestitch.control;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Running totals of the COPY statements sent to one table by DBConnection.flush().  Failed batches are not counted,
+ * since their objects end up being inserted one by one.
+ */
+public class CopyStats {
+
+	private final String tableName;
+
+	private long batches = 0;
+	private long rows = 0;
+	private long bytes = 0;
+	private long nanos = 0;
+
+	CopyStats(String tableName){
+		this.tableName = tableName;
+	}
+
+	/**
+	 * Adds one successful COPY to the totals
+	 * @param rows The number of rows written
+	 * @param bytes The number of bytes sent to the server
+	 * @param nanos The time taken, from starting the COPY until the server accepted it
+	 */
+	synchronized void record(long rows, long bytes, long nanos){
+		this.batches++;
+		this.rows += rows;
+		this.bytes += bytes;
+		this.nanos += nanos;
+	}
+
+	public String getTableName(){
+		return tableName;
+	}
+
+	public synchronized long getBatches(){
+		return batches;
+	}
+
+	public synchronized long getRows(){
+		return rows;
+	}
+
+	public synchronized long getBytes(){
+		return bytes;
+	}
+
+	/**
+	 * @return The average number of rows copied per second spent in COPY
+	 */
+	public synchronized double getRowsPerSecond(){
+		return nanos==0 ? 0 : rows * 1e9 / nanos;
+	}
+
+	/**
+	 * @return The average number of bytes copied per second spent in COPY
+	 */
+	public synchronized double getBytesPerSecond(){
+		return nanos==0 ? 0 : bytes * 1e9 / nanos;
+	}
+
+	public synchronized String toString(){
+		return tableName + " : " + rows + " rows, " + bytes + " bytes in " + batches + " batches, " +
+				(long)getRowsPerSecond() + " rows/s, " + (long)getBytesPerSecond() + " bytes/s";
+	}
+}
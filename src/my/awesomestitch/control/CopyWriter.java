@@ -0,0 +1,156 @@
+package my.awesomestitch.control;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+import org.postgresql.copy.CopyIn;
+
+import my.awesomestitch.mapobjects.DBObject;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Streams DBObjects into a COPY ... FROM STDIN statement.  Each row is built in a StringBuilder (CSV) or a BinaryRow
+ * (binary format) and copied into a fixed byte buffer, which is handed to the server whenever it fills up.  All of
+ * these are reused for every row, so a batch never exists as one big String or byte[].  Not thread-safe -
+ * DBConnection.flush() holds the buffer's lock.
+ */
+class CopyWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final StringBuilder row = new StringBuilder(256);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private final BinaryRow binaryRow = new BinaryRow();
+
+	private CopyIn copyIn;
+	private boolean binary;
+	private long rowCount, byteCount;
+
+	/**
+	 * Starts writing to a new COPY.
+	 * @param copyIn An active COPY, from CopyManager.copyIn()
+	 * @param binary True if the COPY is WITH (FORMAT binary), false if it is CSV
+	 * @throws SQLException If the server rejects the data
+	 */
+	void begin(CopyIn copyIn, boolean binary) throws SQLException{
+		this.copyIn = copyIn;
+		this.binary = binary;
+		this.rowCount = 0;
+		this.byteCount = 0;
+		this.bytes.clear();
+		if(binary)
+			put(BinaryRow.HEADER, 0, BinaryRow.HEADER.length);
+	}
+
+	/**
+	 * Appends one object's row to the COPY.
+	 * @param dbo The object - in binary mode, it must support DBObject.writeBinaryRow()
+	 * @throws SQLException If the server rejects the data
+	 */
+	void write(DBObject dbo) throws SQLException{
+		if(binary){
+			dbo.writeBinaryRow(binaryRow);
+			put(binaryRow.array(), 0, binaryRow.size());
+			rowCount++;
+			return;
+		}
+
+		row.setLength(0);
+		dbo.appendCSVLine(row);
+		encodeRow();
+	}
+
+	/**
+	 * Appends a row of numbers to a CSV COPY, separated by commas.
+	 * @param values The values of the row's columns
+	 * @throws SQLException If the server rejects the data
+	 */
+	void write(long[] values) throws SQLException{
+		row.setLength(0);
+		for(int i = 0; i < values.length; i++){
+			if(i > 0)
+				row.append(',');
+			row.append(values[i]);
+		}
+		row.append('\n');
+		encodeRow();
+	}
+
+	private void encodeRow() throws SQLException{
+		CharBuffer chars = CharBuffer.wrap(row);
+		encoder.reset();
+		while(true){
+			CoderResult result = encoder.encode(chars, bytes, true);
+			if(result.isOverflow())
+				send();
+			else
+				break;
+		}
+		while(encoder.flush(bytes).isOverflow())
+			send();
+		rowCount++;
+	}
+
+	/**
+	 * Sends the remaining bytes and completes the COPY.
+	 * @return The number of rows the server reports having copied
+	 * @throws SQLException If the server rejects the data
+	 */
+	long end() throws SQLException{
+		if(binary)
+			put(BinaryRow.TRAILER, 0, BinaryRow.TRAILER.length);
+		send();
+		CopyIn done = copyIn;
+		copyIn = null;
+		return done.endCopy();
+	}
+
+	/**
+	 * Abandons the COPY after an error, so the connection can be used again.
+	 */
+	void cancel(){
+		if(copyIn!=null && copyIn.isActive()){
+			try{
+				copyIn.cancelCopy();
+			}
+			catch(SQLException e){
+				Log.e(e);
+			}
+		}
+		copyIn = null;
+	}
+
+	long getRowCount(){
+		return rowCount;
+	}
+
+	long getByteCount(){
+		return byteCount;
+	}
+
+	private void put(byte[] data, int offset, int length) throws SQLException{
+		while(length > 0){
+			if(!bytes.hasRemaining())
+				send();
+			int n = Math.min(length, bytes.remaining());
+			bytes.put(data, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void send() throws SQLException{
+		if(bytes.position() > 0){
+			copyIn.writeToCopy(bytes.array(), 0, bytes.position());
+			byteCount += bytes.position();
+			bytes.clear();
+		}
+	}
+}
@@ -1,30 +1,33 @@
 package my.awesomestitch.control;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
-import org.postgis.LinearRing;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+
 import org.postgis.Point;
-import org.postgis.Polygon;
 import org.postgresql.PGConnection;
 import org.postgresql.copy.CopyManager;
 
 import my.awesomestitch.mapobjects.BBox;
+import my.awesomestitch.mapobjects.CompactGraph;
 import my.awesomestitch.mapobjects.CountingNode;
 import my.awesomestitch.mapobjects.DBObject;
 import my.awesomestitch.mapobjects.DetailLink;
@@ -44,9 +47,25 @@ import my.awesomestitch.mapobjects.Way;
 public class DBConnection {
 
 	/**
-	 * The Connection object from the java.sql package
+	 * The connections to the database.  Each thread checks one out with getConnection() and gives it back with
+	 * releaseConnection(), so threads do not have to wait for each other's statements.
+	 */
+	private static ConnectionPool pool = null;
+
+	/**
+	 * The maximum number of connections in the pool
+	 */
+	private static int poolSize = 8;
+
+	/**
+	 * How many rows streamEntireMap() and streamBoundingBox() fetch from their cursor at a time
+	 */
+	private static int fetchSize = 10000;
+
+	/**
+	 * Makes the disconnected copies of query results returned by executeQuery()
 	 */
-	protected static Connection con = null;
+	private static RowSetFactory rowSetFactory = null;
 	/**
 	 * The name of the schema we are currently editing
 	 */
@@ -62,21 +81,84 @@ public class DBConnection {
 	/**
 	 * A table which maps SQL table names to the buffer of objects which will eventually be
 	 * inserted into that table.  In this way, we can keep a separate buffer for each type of
-	 * object.
+	 * object.  Each thread has its own table, so objects buffered by one resolver are always
+	 * flushed inside that resolver's own transaction.
 	 */
-	static Hashtable<String, LinkedList<DBObject>> bufferTable;
+	private static final ThreadLocal<Hashtable<String, LinkedList<DBObject>>> bufferTables =
+			new ThreadLocal<Hashtable<String, LinkedList<DBObject>>>(){
+		@Override
+		protected Hashtable<String, LinkedList<DBObject>> initialValue(){
+			return new Hashtable<String, LinkedList<DBObject>>();
+		}
+	};
 
 	/**
-	 * A table which maps each type of DBObject to the next available ID number of that type.
+	 * If true, flush() sends objects which support it with COPY ... WITH (FORMAT binary) instead of CSV
 	 */
-	private static Hashtable<String, Long> nextIdTable;
-	
+	private static boolean binaryCopy = false;
 
 	/**
-	 * Accessor method for the con object.
+	 * Throughput of the bulk inserts done by flush(), by table name
+	 */
+	private static Hashtable<String, CopyStats> copyStats = new Hashtable<String, CopyStats>();
+
+	/**
+	 * Each thread which flushes buffers keeps its own CopyWriter, so its row and byte buffers are reused
+	 */
+	private static ThreadLocal<CopyWriter> copyWriters = new ThreadLocal<CopyWriter>(){
+		@Override
+		protected CopyWriter initialValue(){
+			return new CopyWriter();
+		}
+	};
+
+	/**
+	 * Checks out a connection for the calling thread.  Nested calls on the same thread return the same connection.
+	 * Every call must be matched by releaseConnection(), typically in a finally block.
 	 * @return the sql connection
+	 * @throws SQLException if there is no connection to the database
+	 */
+	public static Connection getConnection() throws SQLException{
+		if(pool==null)
+			throw new SQLException("Not connected to the database");
+		return pool.acquire();
+	}
+
+	/**
+	 * Gives back the connection checked out by getConnection() on this thread.
+	 */
+	public static void releaseConnection(){
+		if(pool!=null)
+			pool.release();
+	}
+
+	/**
+	 * Gets a cached PreparedStatement for the connection checked out by this thread, so the server only has to parse
+	 * and plan it once per connection.  Checks out a connection like getConnection() does, so it must be matched by
+	 * releaseConnection().  The statement must not be closed - only its ResultSets.
+	 * @param sql The SQL, with ? for the parameters
+	 * @return The statement
+	 * @throws SQLException if there is no connection to the database, or the statement is invalid
+	 */
+	public static PreparedStatement prepareStatement(String sql) throws SQLException{
+		return pool.prepare(getConnection(), sql);
+	}
+
+	/**
+	 * Sets how many rows the streaming reads hold in memory at once.
+	 * @param size The number of rows per fetch from the cursor
 	 */
-	public static Connection getConnection(){return con;}
+	public static void setFetchSize(int size){
+		fetchSize = size;
+	}
+
+	/**
+	 * Sets the maximum number of connections to the database.  Must be called before connecting.
+	 * @param size The number of connections
+	 */
+	public static void setPoolSize(int size){
+		poolSize = size;
+	}
 
 
 	/**
@@ -92,8 +174,8 @@ public class DBConnection {
 
 
 		try{
-			//Use the JDBC DriverManager to make the connection.
-			con = DriverManager.getConnection(url, userName, password);
+			//Use the JDBC DriverManager to make the connections.
+			pool = new ConnectionPool(url, userName, password, poolSize, createStagingTables());
 		}
 		catch(SQLException ex){
 			Log.v("DB","SQL EXCEPTION!");
@@ -202,13 +284,66 @@ public class DBConnection {
 					if (max > 0)
 						Controller.setMaxProcessorThreads(max);
 				}
+				else if(toks[0].equalsIgnoreCase("max_resolver_threads"))
+				{
+					int max = Integer.parseInt(toks[1].trim());
+					if (max > 0)
+						Controller.setMaxResolverThreads(max);
+				}
 				else if(toks[0].equalsIgnoreCase("max_queue_size"))
 				{
 					int max = Integer.parseInt(toks[1].trim());
 					if (max > 0)
 						max_queue_size = max;
 					DBResolverThread.init(max_queue_size);
+					Controller.setMaxParseQueueSize(max_queue_size);
+				}
+				else if(toks[0].equalsIgnoreCase("max_attempts"))
+				{
+					int max = Integer.parseInt(toks[1].trim());
+					if (max > 0)
+						Controller.setMaxAttempts(max);
+				}
+				else if(toks[0].equalsIgnoreCase("retry_delay"))
+				{
+					long delay = Long.parseLong(toks[1].trim());
+					if (delay >= 0)
+						Controller.setRetryDelay(delay);
 				}
+				else if(toks[0].equalsIgnoreCase("parse_while_downloading"))
+					MapDownloaderThread.setParseWhileDownloading(Boolean.parseBoolean(toks[1].trim()));
+				else if(toks[0].equalsIgnoreCase("max_http_connections"))
+				{
+					int max = Integer.parseInt(toks[1].trim());
+					if (max > 0)
+						MapDownloaderThread.setMaxConnections(max);
+				}
+				else if(toks[0].equalsIgnoreCase("db_pool_size"))
+				{
+					int size = Integer.parseInt(toks[1].trim());
+					if (size > 0)
+						setPoolSize(size);
+				}
+				else if(toks[0].equalsIgnoreCase("db_fetch_size"))
+				{
+					int size = Integer.parseInt(toks[1].trim());
+					if (size > 0)
+						setFetchSize(size);
+				}
+				else if(toks[0].equalsIgnoreCase("copy_format"))
+					setBinaryCopy(toks[1].trim().equalsIgnoreCase("binary"));
+				else if(toks[0].equalsIgnoreCase("resolver_mode"))
+					DBResolverThread.setSqlResolver(toks[1].trim().equalsIgnoreCase("sql"));
+				else if(toks[0].equalsIgnoreCase("resolver_batch_size"))
+				{
+					int size = Integer.parseInt(toks[1].trim());
+					if (size > 0)
+						DBResolverThread.setBatchSize(size);
+				}
+				else if(toks[0].equalsIgnoreCase("parallel_preprocess"))
+					BBox.setParallelPreprocess(Boolean.parseBoolean(toks[1].trim()));
+				else if(toks[0].equalsIgnoreCase("incremental_preprocess"))
+					MapProcessorThread.setIncrementalPreprocess(Boolean.parseBoolean(toks[1].trim()));
 				else if(toks[0].equalsIgnoreCase("print_log_stdout"))
 					Log.alsoPrint = Boolean.parseBoolean(toks[1].trim());
 				else if(toks[0].equalsIgnoreCase("way_whitelist"))
@@ -242,6 +377,11 @@ public class DBConnection {
 		//If that schema does not exist, create it
 		if(!schemaExists)
 			createBasicSchema();
+		else{
+			createLinkEndpointIndexes();
+			createIdSequences();
+			addTileSnapshotColumn();
+		}
 		
 		
 		setDefaultUser(DEFAULT_USERNAME, null);
@@ -257,12 +397,9 @@ public class DBConnection {
 	 */
 	public static boolean schemaExists(String schemaName){
 		
-		try{
-			Statement st = con.createStatement();
-
-			//check if schema exists
-			String query = "select table_schema from information_schema.tables where table_schema = '" + schemaName + "';";
-			ResultSet rs = st.executeQuery(query);
+		//check if schema exists
+		String query = "select table_schema from information_schema.tables where table_schema = '" + schemaName + "';";
+		try(Statement st = getConnection().createStatement(); ResultSet rs = st.executeQuery(query)){
 			while(rs.next()){
 				return true;
 			}
@@ -273,6 +410,9 @@ public class DBConnection {
 			Log.v("DB","SQL EXCEPTION");
 			Log.v("DB",e.getSQLState());
 		}
+		finally{
+			releaseConnection();
+		}
 		return false;
 	}
 	
@@ -284,13 +424,10 @@ public class DBConnection {
 	 * @return True of the table exists, False if it does not
 	 */
 	public static boolean tableExists(String schemaName, String tableName){
-		try{
-			Statement st = con.createStatement();
-
-			//check if schema exists
-			String query = "SELECT table_schema FROM information_schema.tables WHERE table_schema = '" + schemaName + 
-					"' AND table_name='" + tableName + "';";
-			ResultSet rs = st.executeQuery(query);
+		//check if schema exists
+		String query = "SELECT table_schema FROM information_schema.tables WHERE table_schema = '" + schemaName + 
+				"' AND table_name='" + tableName + "';";
+		try(Statement st = getConnection().createStatement(); ResultSet rs = st.executeQuery(query)){
 			while(rs.next()){
 				return true;
 			}
@@ -301,6 +438,9 @@ public class DBConnection {
 			Log.v("DB","SQL EXCEPTION");
 			Log.v("DB",e.getSQLState());
 		}
+		finally{
+			releaseConnection();
+		}
 		return false;
 		
 	}
@@ -345,7 +485,7 @@ public class DBConnection {
 		executeUpdate("CREATE TABLE tmp_schema.links ( link_id BIGINT, begin_node_id BIGINT NOT NULL, end_node_id BIGINT NOT NULL, begin_angle NUMERIC(5,2), end_angle NUMERIC(5,2), street_length NUMERIC(8,3), osm_name CHARACTER VARYING(100), osm_class CHARACTER VARYING(30), osm_way_id BIGINT, geom geometry('LINESTRING', 4326), osm_changeset BIGINT, birth_timestamp BIGINT, death_timestamp BIGINT, UNIQUE (link_id, birth_timestamp), UNIQUE (begin_node_id, end_node_id, birth_timestamp) );");
 		executeUpdate("CREATE TABLE tmp_schema.detail_links ( link_id BIGINT, proc_link_id BIGINT, begin_node_id BIGINT NOT NULL, end_node_id BIGINT NOT NULL, begin_angle NUMERIC(5,2), end_angle NUMERIC(5,2), street_length NUMERIC(8,3), osm_name CHARACTER VARYING(100), osm_class CHARACTER VARYING(30), osm_way_id BIGINT, geom geometry('LINESTRING', 4326), osm_changeset BIGINT, birth_timestamp BIGINT, death_timestamp BIGINT, UNIQUE (link_id, birth_timestamp) );");
 		executeUpdate("CREATE TABLE tmp_schema.detail_link_mapping ( link_id BIGINT, detail_link_id BIGINT, osm_way_id BIGINT, birth_timestamp BIGINT, death_timestamp BIGINT );");
-		executeUpdate("CREATE TABLE tmp_schema.tiles ( grid_x INTEGER, grid_y INTEGER, left_lon NUMERIC, bottom_lat NUMERIC, created_timestamp BIGINT, updated_timestamp BIGINT, download_status int, detailed_map_status int, processed_map_status int, geom geometry('POLYGON', 4326) );");
+		executeUpdate("CREATE TABLE tmp_schema.tiles ( grid_x INTEGER, grid_y INTEGER, left_lon NUMERIC, bottom_lat NUMERIC, created_timestamp BIGINT, updated_timestamp BIGINT, download_status int, detailed_map_status int, processed_map_status int, geom geometry('POLYGON', 4326), snapshot_timestamp BIGINT );");
 		executeUpdate("CREATE TABLE tmp_schema.user_tiles ( user_id BIGINT, grid_x INTEGER, grid_y INTEGER, ordered_timestamp BIGINT, owned_timestamp BIGINT, UNIQUE (user_id, grid_x, grid_y) );");
 		executeUpdate("CREATE TABLE tmp_schema.users ( user_id BIGINT, username CHARACTER VARYING(100) NOT NULL, password CHARACTER VARYING(100), email CHARACTER VARYING(100), phone_number CHARACTER VARYING(40), first_name CHARACTER VARYING(100), last_name CHARACTER VARYING(100), UNIQUE (username), CONSTRAINT users_pkey PRIMARY KEY (user_id) );");
 		executeUpdate("CREATE TABLE tmp_schema.extravars (name CHARACTER VARYING, val CHARACTER VARYING, UNIQUE(name) );");
@@ -375,6 +515,65 @@ public class DBConnection {
 		executeUpdate("CREATE INDEX detail_links_birth_timestamp on tmp_schema.detail_links USING btree(birth_timestamp);");
 		executeUpdate("CREATE INDEX detail_links_death_timestamp on tmp_schema.detail_links USING btree(death_timestamp);");
 
+		createLinkEndpointIndexes();
+		createIdSequences();
+	}
+
+	/**
+	 * Makes sure the objects whose ids we generate (rather than import from OSM) have a sequence in this schema, so
+	 * their ids can be reserved in blocks by any number of threads and programs sharing the schema.
+	 */
+	private static void createIdSequences(){
+		//Blocks reserved in another schema mean nothing here
+		IdAllocator.clear();
+		DBObject[] prototypes = {new Node(), new DetailNode(), new Link(), new DetailLink(), new CountingNode(), new User("", "")};
+		for(DBObject prototype : prototypes)
+			IdAllocator.createSequence(prototype);
+	}
+
+	/**
+	 * Adds tiles.snapshot_timestamp to schemas which were made before it existed.
+	 */
+	private static void addTileSnapshotColumn(){
+		ResultSet rs = executeQuery("SELECT column_name FROM information_schema.columns WHERE table_schema = '" + schema
+				+ "' AND table_name = 'tiles' AND column_name = 'snapshot_timestamp';");
+		try{
+			if(rs==null || rs.next())
+				return;
+		}
+		catch(SQLException e){
+			Log.e(e);
+			return;
+		}
+		Log.v("DB", "Adding column tiles.snapshot_timestamp");
+		executeUpdate("ALTER TABLE tmp_schema.tiles ADD COLUMN snapshot_timestamp BIGINT;");
+	}
+
+	/**
+	 * Creates the indexes used to find the Links attached to a Node (e.g. by updateNodeLinkCounts()), if they do not
+	 * exist yet.  Schemas made before these indexes were added get them the next time they are chosen.
+	 */
+	private static void createLinkEndpointIndexes(){
+		String[][] indexes = {
+				{"links_end_node_id", "links", "end_node_id"},
+				{"detail_links_begin_node_id", "detail_links", "begin_node_id"},
+				{"detail_links_end_node_id", "detail_links", "end_node_id"}};
+		//links.begin_node_id is already covered by the UNIQUE (begin_node_id, end_node_id, birth_timestamp) constraint
+
+		for(String[] index : indexes){
+			ResultSet rs = executeQuery("SELECT indexname FROM pg_indexes WHERE schemaname = '" + schema
+					+ "' AND indexname = '" + index[0] + "';");
+			try{
+				if(rs==null || rs.next())
+					continue;
+			}
+			catch(SQLException e){
+				Log.e(e);
+				continue;
+			}
+			Log.v("DB", "Creating index " + index[0]);
+			executeUpdate("CREATE INDEX " + index[0] + " ON tmp_schema." + index[1] + " USING btree(" + index[2] + ");");
+		}
 	}
 
 	
@@ -394,8 +593,18 @@ public class DBConnection {
 			String sql = dbo.getInsertStatement();
 			sql = sql.replace("tmp_schema", DBConnection.getSchemaName());
 			
+			Connection con = null;
+			Savepoint savepoint = null;
 			try{
-				PreparedStatement pst = con.prepareStatement(sql);
+				con = getConnection();
+				savepoint = savepointIfInTransaction(con);
+			}
+			catch(SQLException e){
+				Log.e(e);
+				releaseConnection();
+				return;
+			}
+			try(PreparedStatement pst = con.prepareStatement(sql)){
 				pst.setString(1, ((my.awesomestitch.mapobjects.User) dbo).getUsername());
 				pst.setString(2, ((my.awesomestitch.mapobjects.User) dbo).getPassword());
 				pst.setString(3, ((my.awesomestitch.mapobjects.User) dbo).getEmail());
@@ -403,11 +612,13 @@ public class DBConnection {
 				pst.setString(5, ((my.awesomestitch.mapobjects.User) dbo).getFirst_name());
 				pst.setString(6, ((my.awesomestitch.mapobjects.User) dbo).getLast_name());
 				pst.executeUpdate();
+				releaseSavepoint(con, savepoint);
 			}
 			catch(SQLException e){
+				rollbackToSavepoint(con, savepoint);
 				String tname = dbo.getTableName().replace("tmp_schema", DBConnection.getSchemaName());
 
-				if(e.getSQLState().equals("23505")){
+				if("23505".equals(e.getSQLState())){
 					//uniqueness violation - that is ok
 					Log.v("DB","SQL Exception on insert into: " + tname + "--uniqueness");
 					Log.v("DEBUG", sql);
@@ -419,6 +630,9 @@ public class DBConnection {
 					Log.e(e);
 				}
 			}
+			finally{
+				releaseConnection();
+			}
 			
 			return;
 		}
@@ -427,15 +641,27 @@ public class DBConnection {
 		String sql = dbo.getInsertStatement();
 		sql = sql.replace("tmp_schema", DBConnection.getSchemaName());
 
-		//execute it
+		//execute it - inside a transaction, a failed insert is undone on its own instead of aborting the transaction
+		Connection con = null;
+		Savepoint savepoint = null;
 		try{
-			Statement st = con.createStatement();
+			con = getConnection();
+			savepoint = savepointIfInTransaction(con);
+		}
+		catch(SQLException e){
+			Log.e(e);
+			releaseConnection();
+			return;
+		}
+		try(Statement st = con.createStatement()){
 			st.executeUpdate(sql);
+			releaseSavepoint(con, savepoint);
 		}
 		catch(SQLException e){
+			rollbackToSavepoint(con, savepoint);
 			String tname = dbo.getTableName().replace("tmp_schema", DBConnection.getSchemaName());
 
-			if(e.getSQLState().equals("23505")){
+			if("23505".equals(e.getSQLState())){
 				//uniqueness violation - that is ok
 				Log.v("DB","SQL Exception on insert into: " + tname + "--uniqueness");
 				Log.v("DEBUG", sql);
@@ -447,6 +673,9 @@ public class DBConnection {
 				Log.e(e);
 			}
 		}
+		finally{
+			releaseConnection();
+		}
 
 	}
 
@@ -461,10 +690,7 @@ public class DBConnection {
 	 */
 	public static void insertLater(DBObject dbo){
 		String tableName = dbo.getTableName();
-		//If this is the first time using the buffer table, instantiate it
-		if(bufferTable==null){
-			bufferTable = new Hashtable<String, LinkedList<DBObject>>();
-		}
+		Hashtable<String, LinkedList<DBObject>> bufferTable = bufferTables.get();
 
 		LinkedList<DBObject> buffer;
 		synchronized(bufferTable){
@@ -504,49 +730,50 @@ public class DBConnection {
 	 */
 	public static void flush(String tableName) {
 
-		//if this buffer (or the entire buffer table) has not been created yet, just return
+		//if this buffer has not been created yet, just return
 		//because there is obviously nothing to flush
-		if(bufferTable==null)
-			return;
-
+		Hashtable<String, LinkedList<DBObject>> bufferTable = bufferTables.get();
 		if(!bufferTable.containsKey(tableName))
 			return;
 
 		//get the relevant buffer
 		LinkedList<DBObject> buffer = bufferTable.get(tableName);
 		synchronized(buffer){
+			if(buffer.isEmpty())
+				return;
+
 			//try bulk-insert first
+			CopyWriter writer = copyWriters.get();
+			Connection con = null;
+			Savepoint savepoint = null;
 			try{
-				//concatenate objects into one large CSV table
-				String csv = "";
-				for(DBObject dbo : buffer){
-					csv += dbo.getCSVLine();
-				}
-
-
-				//set up copy statement, using a stream that reads from our big String
+				//stream each object's CSV line straight into the COPY
+				long start = System.nanoTime();
+				con = getConnection();
+				//inside a transaction, a failed COPY must be undone before the one-by-one inserts can run
+				savepoint = savepointIfInTransaction(con);
 				CopyManager cpMan = ((PGConnection)con).getCopyAPI();
-				InputStream is = new ByteArrayInputStream(csv.getBytes());
 				String trueTableName = tableName.replace("tmp_schema", DBConnection.getSchemaName());
+				if(binaryCopy && buffer.getFirst().hasBinaryRow())
+					writer.begin(cpMan.copyIn("COPY " + trueTableName + " FROM STDIN WITH (FORMAT binary);"), true);
+				else
+					writer.begin(cpMan.copyIn("COPY " + trueTableName + " FROM STDIN WITH CSV DELIMITER AS '|';"), false);
+				for(DBObject dbo : buffer)
+					writer.write(dbo);
+				writer.end();
+				releaseSavepoint(con, savepoint);
 
-				cpMan.copyIn("COPY " + trueTableName + " FROM STDIN WITH CSV DELIMITER AS '|';", is);
+				getCopyStats(tableName).record(writer.getRowCount(), writer.getByteCount(), System.nanoTime() - start);
 				//Log.v("DB","Bulk upload successful for " + tableName);
 			}
-			catch(IOException e){
+			catch(SQLException e){
 				//something in the bulk insert failed - probably some integrity constraint
 				//we will now try to insert the objects one by one in case some of them are valid
+				writer.cancel();
+				rollbackToSavepoint(con, savepoint);
 
-				//Log.v("DB","IOException : Bulk insert failed on table " + tableName);
-				Log.e(e);
-				//insert object one by one. Some may fail, but others may succeed
-				for(DBObject dbo : buffer)
-					insertNow(dbo);
-
-
-			}
-			catch(SQLException e){
 				//Log.v("DB","Bulk upload NOT successful for " + tableName);
-				if(e.getSQLState().equals("23505")){
+				if("23505".equals(e.getSQLState())){
 					//uniqueness violation - that is ok
 					Log.v("DB","SQLException : Bulk insert failed on table " + tableName + " --uniqueness");
 
@@ -560,6 +787,9 @@ public class DBConnection {
 				for(DBObject dbo : buffer)
 					insertNow(dbo);
 			}
+			finally{
+				releaseConnection();
+			}
 			//the buffer associated with this table will now be empty
 			buffer.clear();
 		}
@@ -567,100 +797,166 @@ public class DBConnection {
 	}
 
 	/**
-	 * Get next available id for this type of object.  The first time this method is executed,
-	 * this is performed by checking the highest-valued id in the database table.  After that, it 
-	 * simply increments the id by 1 each time.
-	 * @param dbo - Any object that overrides the DBObject class
+	 * Throws away every object waiting in this thread's insertLater() buffers without inserting it.  Used when the
+	 * work that buffered them has been rolled back, so they are not flushed along with the next piece of work.
 	 */
-	private static void updateId(DBObject dbo) {
-		//If this object has been marked with genIdOnInsert=false, we simply return instead of
-		//generating a new id.
-		if(!dbo.getGenIdOnInsert())
-			return;
-
-		//If the nextIdTable does not exist, create it
-		if(nextIdTable==null)
-			nextIdTable = new Hashtable<String, Long>();
-
-		synchronized(nextIdTable){
-			Long next_id = 0l;
-			if(!nextIdTable.containsKey(dbo.getTableName())){
-				//If the nextIdTable has no entry for this table, we create it by querying the database
-				try{
-					//query the database for the highest link id
-					Statement st = DBConnection.getConnection().createStatement();
-					String query = dbo.getHighestIdQuery();
-					if(query!= null){
-						query = query.replace("tmp_schema", DBConnection.getSchemaName());
-						ResultSet rs = st.executeQuery(query);
-						Log.v("DEBUG", query);
-						rs.next();
-
-						//our next id is that id + 1
-						if(!dbo.usesNegativeId())
-							next_id = new Long(rs.getLong(1) + 1);
-						else
-							next_id = new Long(rs.getLong(1) - 1);
-						//Log.v("DEBUG", "Got id " + next_id);
-					}
-
-				}
-				catch(SQLException e){
-					Log.v("DB","SQL EXCEPTION - couldn't query " + dbo.getTableName() + " for highest entry");
-					if(!dbo.usesNegativeId())
-						next_id = new Long(1);
-					else
-						next_id = new Long(-1);
-				}
-				catch(NullPointerException e){
-					Log.v("DB","NULL POINTER EXCEPTION");
-					Log.e(e);
-					if(!dbo.usesNegativeId())
-						next_id = new Long(1);
-					else
-						next_id = new Long(-1);
+	static void discardBuffers(){
+		Hashtable<String, LinkedList<DBObject>> bufferTable = bufferTables.get();
+		synchronized(bufferTable){
+			for(LinkedList<DBObject> buffer : bufferTable.values()){
+				synchronized(buffer){
+					buffer.clear();
 				}
 			}
-			else{
-				//We already have an entry for this id number - get it
-				next_id = nextIdTable.get(dbo.getTableName());
+		}
+	}
+
+	/**
+	 * Chooses the format of the COPY statements used by flush().  Nodes and Links can be sent in the binary format,
+	 * which needs no text formatting on our side or parsing on the server's.  Other objects always use CSV.
+	 * @param binary True for COPY ... WITH (FORMAT binary), false for CSV
+	 */
+	public static void setBinaryCopy(boolean binary){
+		binaryCopy = binary;
+	}
+
+	/**
+	 * @param tableName The name of a table, as returned by DBObject.getTableName()
+	 * @return The throughput of bulk inserts into this table so far
+	 */
+	public static CopyStats getCopyStats(String tableName){
+		synchronized(copyStats){
+			CopyStats stats = copyStats.get(tableName);
+			if(stats==null){
+				stats = new CopyStats(tableName);
+				copyStats.put(tableName, stats);
 			}
+			return stats;
+		}
+	}
 
-			//now that we have figured out the next id number, assign it to this object
-			dbo.setId(next_id.longValue());
+	/**
+	 * @return The throughput of bulk inserts into every table that has been flushed so far
+	 */
+	public static List<CopyStats> getAllCopyStats(){
+		synchronized(copyStats){
+			return new LinkedList<CopyStats>(copyStats.values());
+		}
+	}
 
-			//increment the id number and add it back to the table
-			if(!dbo.usesNegativeId())
-				nextIdTable.put(dbo.getTableName(), new Long(next_id + 1));
+	/**
+	 * COPYs objects into any table with the same columns as their own table (e.g. a temporary staging table), using
+	 * the same format flush() would.  Unlike flush(), nothing is retried one by one if the COPY fails.
+	 * @param tableName The table, including its schema if it has one
+	 * @param objects The objects - all of the same type
+	 * @throws SQLException If the COPY fails
+	 */
+	static void copyIn(String tableName, Collection<? extends DBObject> objects) throws SQLException{
+		if(objects.isEmpty())
+			return;
+		CopyWriter writer = copyWriters.get();
+		try{
+			CopyManager cpMan = ((PGConnection)getConnection()).getCopyAPI();
+			if(binaryCopy && objects.iterator().next().hasBinaryRow())
+				writer.begin(cpMan.copyIn("COPY " + tableName + " FROM STDIN WITH (FORMAT binary);"), true);
 			else
-				nextIdTable.put(dbo.getTableName(), new Long(next_id - 1));
+				writer.begin(cpMan.copyIn("COPY " + tableName + " FROM STDIN WITH CSV DELIMITER AS '|';"), false);
+			for(DBObject dbo : objects)
+				writer.write(dbo);
+			writer.end();
+		}
+		catch(SQLException e){
+			writer.cancel();
+			throw e;
+		}
+		finally{
+			releaseConnection();
+		}
+	}
+
+	/**
+	 * COPYs rows of numbers into a table whose columns are all numeric.
+	 * @param tableName The table, including its schema if it has one
+	 * @param rows The rows, each with one value per column
+	 * @throws SQLException If the COPY fails
+	 */
+	static void copyRows(String tableName, Collection<long[]> rows) throws SQLException{
+		if(rows.isEmpty())
+			return;
+		CopyWriter writer = copyWriters.get();
+		try{
+			CopyManager cpMan = ((PGConnection)getConnection()).getCopyAPI();
+			writer.begin(cpMan.copyIn("COPY " + tableName + " FROM STDIN WITH CSV;"), false);
+			for(long[] row : rows)
+				writer.write(row);
+			writer.end();
+		}
+		catch(SQLException e){
+			writer.cancel();
+			throw e;
 		}
+		finally{
+			releaseConnection();
+		}
+	}
 
+	/**
+	 * Get next available id for this type of object.  Ids come from the table's IdAllocator, which
+	 * reserves them from the DB in blocks, so this usually just increments a counter.
+	 * @param dbo - Any object that overrides the DBObject class
+	 */
+	private static void updateId(DBObject dbo) {
+		//If this object has been marked with genIdOnInsert=false, we simply return instead of
+		//generating a new id.
+		if(!dbo.getGenIdOnInsert())
+			return;
+
+		dbo.setId(reserveIds(dbo, 1));
+	}
+
+	/**
+	 * Reserves a block of consecutive ids for this type of object, for objects which are given their ids by the DB
+	 * (e.g. by SqlResolver) instead of by updateId().
+	 * @param dbo Any object of the type in question
+	 * @param count The number of ids to reserve
+	 * @return The first id of the block.  The others follow it, counting up - or down, if dbo.usesNegativeId()
+	 */
+	static long reserveIds(DBObject dbo, int count) {
+		return IdAllocator.get(dbo).reserve(count);
 	}
 
 
 
 	/**
 	 * A simple wrapper for SQL queries.  Errors are logged, but otherwise ignored.
+	 * The result is copied into memory so the Statement and connection can be given back right away - large
+	 * results should be read with a Statement of their own instead.
 	 * @param sql - A String that represents the sql query, typically beginning with "SELECT" 
-	 * @return - A ResultSet which represents the result of the query
+	 * @return - A disconnected ResultSet which represents the result of the query
 	 */
 	public static ResultSet executeQuery(String sql){
 		sql = sql.replace("tmp_schema", DBConnection.getSchemaName());
 
-		try {
-			Statement st = DBConnection.getConnection().createStatement();
-			ResultSet rs = st.executeQuery(sql);
-			return rs;
+		try(Statement st = DBConnection.getConnection().createStatement(); ResultSet rs = st.executeQuery(sql)) {
+			CachedRowSet result = getRowSetFactory().createCachedRowSet();
+			result.populate(rs);
+			return result;
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
 			Log.v("DB", "SQL Exception");
 			Log.v("DB", sql);
 			Log.e(e);
 			return null;
+		} finally {
+			releaseConnection();
 		}
 	}
 
+	private static synchronized RowSetFactory getRowSetFactory() throws SQLException{
+		if(rowSetFactory==null)
+			rowSetFactory = RowSetProvider.newFactory();
+		return rowSetFactory;
+	}
+
 	/**
 	 * A simple wrapper for SQL updates.
 	 * @param sql
@@ -668,14 +964,14 @@ public class DBConnection {
 	public static void executeUpdate(String sql){
 		sql = sql.replace("tmp_schema", DBConnection.getSchemaName());
 
-		try {
-			Statement st = DBConnection.getConnection().createStatement();
+		try(Statement st = DBConnection.getConnection().createStatement()) {
 			st.executeUpdate(sql);
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
 			Log.v("DB", "SQL Exception");
 			Log.v("DB", sql);
 			Log.e(e);
+		} finally {
+			releaseConnection();
 		}
 	}
 
@@ -694,19 +990,18 @@ public class DBConnection {
 	 * @throws UserDNEException if the user does not exist in the database
 	 */
 	public static boolean validateUser(User u) throws UserDNEException{
-		try{
-			//Look up user by username
-			//Prepare query
-			
-			// TODO: SQL Injection
-			
-			// String query = "SELECT * FROM " + u.getTableName() + " WHERE username='" + u.getUsername() + "';";
-			String query = "SELECT * FROM " + u.getTableName() + " WHERE username= ?";
-			query = query.replace("tmp_schema", DBConnection.getSchemaName());
-			PreparedStatement pst = DBConnection.getConnection().prepareStatement(query);
+		//Look up user by username
+		//Prepare query
+		
+		// TODO: SQL Injection
+		
+		// String query = "SELECT * FROM " + u.getTableName() + " WHERE username='" + u.getUsername() + "';";
+		String query = "SELECT * FROM " + u.getTableName() + " WHERE username= ?";
+		query = query.replace("tmp_schema", DBConnection.getSchemaName());
+		try(PreparedStatement pst = DBConnection.getConnection().prepareStatement(query)){
 			pst.setString(1, u.getUsername());
 			//execute query
-			ResultSet rs = pst.executeQuery(query);
+			ResultSet rs = pst.executeQuery();
 			//Generate a User from the row returned from the database
 			if(rs.next()){
 				User matchUser = new User(rs);
@@ -737,6 +1032,9 @@ public class DBConnection {
 			Log.e(e);
 			return false;
 		}
+		finally{
+			releaseConnection();
+		}
 	}
 
 
@@ -770,10 +1068,7 @@ public class DBConnection {
 	public static CountingNode getCountingNodeById(long id){
 		String tableName = new CountingNode().getTableName().replace("tmp_schema", getSchemaName());
 		String query = "SELECT * FROM " + tableName + " WHERE counting_node_id = " + id + ";";
-		try{
-			Connection con = getConnection();
-			Statement st = con.createStatement();
-			ResultSet rs = st.executeQuery(query);
+		try(Statement st = getConnection().createStatement(); ResultSet rs = st.executeQuery(query)){
 			if(rs.next())
 				return new CountingNode(rs);
 			else
@@ -785,6 +1080,9 @@ public class DBConnection {
 			Log.e(e);
 			return null;
 		}
+		finally{
+			releaseConnection();
+		}
 	}
 
 
@@ -925,244 +1223,56 @@ public class DBConnection {
 			effectiveBottom -= BBox.SAFETY_MARGIN_SIZE;
 		}
 
-		Point topLeftCorner = new Point(effectiveLeft, effectiveTop);
-		Point topRightCorner = new Point(effectiveRight, effectiveTop);
-		Point bottomLeftCorner = new Point(effectiveLeft, effectiveBottom);
-		Point bottomRightCorner = new Point(effectiveRight, effectiveBottom);
-
-		//combine points into a polygon object
-		Point[] pointList = {topLeftCorner, topRightCorner, bottomRightCorner, bottomLeftCorner, topLeftCorner};
-		LinearRing[] ring = {new LinearRing(pointList)};
-		Polygon box = new Polygon(ring);
-
-		//get relevant table names
-		String nodeTableName, linkTableName, countingNodeTableName = null;
-		if(processed){
-			nodeTableName = (new Node()).getTableName().replace("tmp_schema", getSchemaName());
-			linkTableName = (new Link()).getTableName().replace("tmp_schema", getSchemaName());
-			countingNodeTableName = (new CountingNode()).getTableName().replace("tmp_schema", getSchemaName());
-		}
-		else{
-			nodeTableName = (new DetailNode()).getTableName().replace("tmp_schema", getSchemaName());
-			linkTableName = (new DetailLink()).getTableName().replace("tmp_schema", getSchemaName());
-			countingNodeTableName = (new CountingNode()).getTableName().replace("tmp_schema", getSchemaName());
-		}
-
-
 		//setup the BoundingBox object, where we will place all Nodes and Links
 		BBox bbox = new BBox(left, top, right, bottom);
 
-		//======================== STEP 1 ====================================
-		//Get all of the Links that intersect the Bounding Box (A GiST index is used for fast querying)
-
-
-		String query;
-		if(!includeFullWay){
-			//Simple query - the full way is not desired, so just get links that intersect the box
-			query = "SELECT * FROM " + linkTableName + " WHERE ST_Intersects("
-					+ linkTableName + ".geom, 'SRID=4326;" + box.toString() + "'::geometry)" +
-					"and birth_timestamp <= " + timestamp + " and death_timestamp > " + timestamp + ";";
-		}
-		else{
-			//A more complex query which contains all links that intersect the box, PLUS any additional links that are part of the same Way
-
-			//Note the similarity of this subquery to the simple query above
-			String subquery = "SELECT osm_way_id FROM " + linkTableName + " WHERE ST_Intersects("
-					+ linkTableName + ".geom, 'SRID=4326;" + box.toString() + "'::geometry)" +
-					"and birth_timestamp <= " + timestamp + " and death_timestamp > " + timestamp;
-
-			//Select Links whose way_id matches the way_id of any Link intersecting the box
-			query = "SELECT * FROM " + linkTableName + " WHERE osm_way_id in (" + subquery + ")" + 
-					" AND birth_timestamp <= " + timestamp + " and death_timestamp > " + timestamp + ";";
-		}
-
-		//Iterate through the results and store all Links in a Set
+		//Everything in the box comes back from one statement - see BoundingBoxStatement
+		BoundingBoxStatement statement = BoundingBoxStatement.get(processed, includeFullWay, includeDetailLinkMapping, getSchemaName());
 		Set<Link> linkSet = new HashSet<Link>();
+		List<Node> nodeList = new LinkedList<Node>();
+		List<CountingNode> countingNodeList = new LinkedList<CountingNode>();
+		List<DetailLinkMapping> dlmList = new LinkedList<DetailLinkMapping>();
 		try{
-
-			Statement st = getConnection().createStatement();
-			ResultSet rs = st.executeQuery(query);
-
-			//loop through the resultset, convert each row into a Link object, and add it to the list
-			while(rs.next()){
-				Link l;
-				if(processed)
-					l = new Link(rs);
-				else
-					l = new DetailLink(rs);
-				linkSet.add(l);
-			}
-		}
-		catch(SQLException e){
-			Log.v("DB","SQL EXCEPTION");
-			Log.v("DB",e.getSQLState());
-			Log.e(e);
-		}
-
-
-		// =================================== STEP 2 =======================================
-		//also retrieve CountingNodes that intersect the box
-		query = "SELECT * FROM " + countingNodeTableName + " WHERE ST_Intersects("
-				+ countingNodeTableName + ".geom, 'SRID=4326;" + box.toString() + "'::geometry)" +
-				"and birth_timestamp <= " + timestamp + " and death_timestamp > " + timestamp + ";";
-
-		Set<Long> extraLinkIds = new HashSet<Long>();
-
-		//execute query
-		try{
-			Statement st = getConnection().createStatement();
-			ResultSet rs = st.executeQuery(query);
-
-			//loop through the resultset, convert each row into a Node object, and add it to the list
-			while(rs.next()){
-				CountingNode cn = new CountingNode(rs);
-				bbox.add(cn);
-				//Keep track of extra links which may need to be loaded
-				//(in case this CountingNode is inside the BBox but refers to links slightly outside of the BBox)
-				if(cn.getLink1_id()!=Link.INVALID_LINK_ID)
-					extraLinkIds.add(cn.getLink1_id());
-				if(cn.getLink2_id()!=Link.INVALID_LINK_ID)
-					extraLinkIds.add(cn.getLink2_id());
-
+			PreparedStatement pst = prepareStatement(statement.getSql());
+			statement.bind(pst, effectiveLeft, effectiveBottom, effectiveRight, effectiveTop, timestamp);
+			try(ResultSet rs = pst.executeQuery()){
+				//loop through the resultset, and convert each row into an object of the kind it came from
+				while(rs.next()){
+					String kind = rs.getString("kind");
+					if(kind.equals(BoundingBoxStatement.KIND_LINK))
+						linkSet.add(processed ? new Link(rs) : new DetailLink(rs));
+					else if(kind.equals(BoundingBoxStatement.KIND_NODE))
+						nodeList.add(processed ? new Node(rs) : new DetailNode(rs));
+					else if(kind.equals(BoundingBoxStatement.KIND_COUNTING_NODE))
+						countingNodeList.add(new CountingNode(rs));
+					else if(kind.equals(BoundingBoxStatement.KIND_MAPPING))
+						dlmList.add(new DetailLinkMapping(rs));
+				}
 			}
 		}
 		catch(SQLException e){
 			Log.v("DB","SQL EXCEPTION");
 			Log.v("DB",e.getSQLState());
+			Log.v("DB",statement.getSql());
 			Log.e(e);
 		}
-
-
-		//=============================  STEP 3 ===================================
-		//retrieve extra links that are referred to by the CountingNodes
-		//Just in case they fall slightly out of the box
-		if(processed){
-			if(!extraLinkIds.isEmpty()){
-				String linkIdSetString = "(";
-				boolean firstElem = true;
-				for(long id : extraLinkIds){
-					if(!firstElem)
-						linkIdSetString += ", ";
-					linkIdSetString += id;
-					firstElem = false;
-				}
-				linkIdSetString +=")";
-
-				query = "SELECT * FROM " + linkTableName + " WHERE link_id in " + linkIdSetString +
-						" and birth_timestamp <= " + timestamp + " and death_timestamp > " + timestamp + ";";
-				//Log.v("DEBUG", query);
-				try{
-					Statement st = getConnection().createStatement();
-					ResultSet rs = st.executeQuery(query);
-
-					//loop through the resultset, convert each row into a Link object, and add it to the list
-					while(rs.next()){
-						Link l;
-						if(processed)
-							l = new Link(rs);
-						else
-							l = new DetailLink(rs);
-						linkSet.add(l);
-					}
-				}
-				catch(SQLException e){
-					Log.v("DB","SQL EXCEPTION");
-					Log.v("DB",e.getSQLState());
-					Log.e(e);
-				}
-			}
+		finally{
+			releaseConnection();
 		}
 
-
-		//============================== STEP 4 ==================================
-		// Retrieve all nodes that match the desired links (i.e. the set of begin_nodes and end_nodes)
-		if(!linkSet.isEmpty()){
-			Set<Long> nodeIds = new HashSet<Long>();
-			for(Link l : linkSet){
-				nodeIds.add(l.getBegin_node_id());
-				nodeIds.add(l.getEnd_node_id());
-			}
-			StringBuilder nodeStringBuilder = new StringBuilder("(");
-			//String nodeIdSetString = "(";
-			boolean firstElem = true;
-			for(long id : nodeIds){
-				if(!firstElem)
-					nodeStringBuilder.append(", ");
-				nodeStringBuilder.append(id);
-				firstElem = false;
-			}
-			nodeStringBuilder.append(")");
-			String nodeIdSetString = nodeStringBuilder.toString();
-
-			//System.out.println("Done. executing.");
-			//Generate query to select nodes within the box
-			//query has form:
-			//SELECT * FROM schema_name.nodes where ST_Intersects(schema_name.nodes.geom, 'box_WKT_string');
-			query = "SELECT * FROM " + nodeTableName + " WHERE node_id in " + nodeIdSetString +
-					" and birth_timestamp <= " + timestamp + " and death_timestamp > " + timestamp + ";";
-			//Log.v("DEBUG", query);
-			//execute query
-			try{
-				Statement st = getConnection().createStatement();
-				ResultSet rs = st.executeQuery(query);
-
-				//loop through the resultset, convert each row into a Node object, and add it to the list
-				while(rs.next()){
-					Node n;
-					if(processed)
-						n = new Node(rs);
-					else
-						n = new DetailNode(rs);
-					bbox.add(n);
-				}
-			}
-			catch(SQLException e){
-				Log.v("DB","SQL EXCEPTION");
-				Log.v("DB",e.getSQLState());
-				Log.e(e);
-			}
-		}
-
-
+		for(CountingNode cn : countingNodeList)
+			bbox.add(cn);
+		for(Node n : nodeList)
+			bbox.add(n);
 		//Now that the appropriate nodes are loaded, the Links can be added to the BBox
 		for(Link l: linkSet){
 			bbox.add(l);
 		}
 
-
-		// ============================== STEP 5 =====================================
 		//If desired, also include the mapping between DetailLInks and processed Links
-		if(includeDetailLinkMapping){
-			String subquery = "SELECT osm_way_id FROM " + linkTableName + " WHERE ST_Intersects("
-					+ linkTableName + ".geom, 'SRID=4326;" + box.toString() + "'::geometry)" +
-					"and birth_timestamp <= " + timestamp + " and death_timestamp > " + timestamp;
-
-
-			String dlmTable = new DetailLinkMapping().getTableName().replace("tmp_schema", getSchemaName());
-
-			query = "SELECT * FROM " + dlmTable + " WHERE osm_way_id in (" + subquery + ")" + 
-					" AND birth_timestamp <= " + timestamp + " and death_timestamp > " + timestamp + ";";
-
-			ResultSet rs = executeQuery(query);
-
-			List<DetailLinkMapping> dlmList = new LinkedList<DetailLinkMapping>();
-			try {
-				while(rs.next()){
-					DetailLinkMapping dlm = new DetailLinkMapping(rs);
-					dlmList.add(dlm);
-				}
-			} catch (SQLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-
+		if(includeDetailLinkMapping)
 			bbox.setDetailLinkMappings(dlmList);
 
-		}
-
-
-
-
 		Log.v("DB", "Returning " + bbox);
 		//STEP 3 - Return the newly created BoundingBox
 		return bbox;
@@ -1224,7 +1334,7 @@ public class DBConnection {
 
 	/**
 	 * Grabs the entire map from the DB and puts it into a BBox.  Not recommended for large maps unless you have a crazy 
-	 * amount of memory.
+	 * amount of memory - use streamEntireMap() or getCompactMap() instead.
 	 * @param processed True to select the entire processed map, False to select the entire detailed map
 	 * @return A BBox containing all Nodes and Links in the DB
 	 */
@@ -1235,6 +1345,139 @@ public class DBConnection {
 
 	}
 
+	/**
+	 * Reads the current version of the entire map through a cursor, handing each Node and then each Link to a
+	 * MapVisitor.  Only fetchSize rows are held in memory at once, so this works for maps of any size.
+	 * @param processed True to read the processed map, False to read the detailed map
+	 * @param visitor Receives every Node and Link
+	 * @return True if the whole map was read, False if there was an error
+	 */
+	public static boolean streamEntireMap(boolean processed, MapVisitor visitor){
+		String linkTable = getSchemaName() + (processed ? ".links" : ".detail_links");
+		String nodeTable = getSchemaName() + (processed ? ".nodes" : ".detail_nodes");
+		long NOW = System.currentTimeMillis();
+
+		String alive = " WHERE birth_timestamp <= ? AND death_timestamp > ?";
+		return streamMap("SELECT * FROM " + nodeTable + alive, "SELECT * FROM " + linkTable + alive,
+				new Object[]{NOW, NOW}, new Object[]{NOW, NOW}, processed, visitor);
+	}
+
+	/**
+	 * Reads the Links which cross a box, and the Nodes at their ends, through a cursor, handing each Node and then
+	 * each Link to a MapVisitor.  Unlike boundingBoxQuery(), the box is never held in memory, so it can be as large
+	 * as needed.  No safety margin, full Ways or CountingNodes are included.
+	 * @param left		the longitude of the left side of the box
+	 * @param top		the latitude of the top of the box
+	 * @param right		the longitude of the right side of the box
+	 * @param bottom	the latitude of the bottom of the box
+	 * @param timestamp the time for which we want to retrieve the map state
+	 * @param processed True to read the processed map, False to read the detailed map
+	 * @param visitor Receives every Node and Link
+	 * @return True if the whole box was read, False if there was an error
+	 */
+	public static boolean streamBoundingBox(double left, double top, double right, double bottom, long timestamp,
+			boolean processed, MapVisitor visitor){
+		String linkTable = getSchemaName() + (processed ? ".links" : ".detail_links");
+		String nodeTable = getSchemaName() + (processed ? ".nodes" : ".detail_nodes");
+
+		String alive = "birth_timestamp <= ? AND death_timestamp > ?";
+		String inBox = "ST_Intersects(geom, ST_MakeEnvelope(?, ?, ?, ?, 4326)) AND " + alive;
+		String linkSql = "SELECT * FROM " + linkTable + " WHERE " + inBox;
+		String nodeSql = "SELECT * FROM " + nodeTable + " WHERE node_id IN (SELECT begin_node_id FROM " + linkTable
+				+ " WHERE " + inBox + " UNION SELECT end_node_id FROM " + linkTable + " WHERE " + inBox + ") AND " + alive;
+
+		Object[] linkParams = {left, bottom, right, top, timestamp, timestamp};
+		Object[] nodeParams = {left, bottom, right, top, timestamp, timestamp,
+				left, bottom, right, top, timestamp, timestamp, timestamp, timestamp};
+		return streamMap(nodeSql, linkSql, nodeParams, linkParams, processed, visitor);
+	}
+
+	/**
+	 * Reads the current version of the entire processed map into a CompactGraph, without creating a BBox.  Only the
+	 * graph's primitive arrays grow with the size of the map.
+	 * @return The processed map, or null if there was an error
+	 */
+	public static CompactGraph getCompactMap(){
+		final CompactGraph.Builder builder = new CompactGraph.Builder();
+		boolean ok = streamEntireMap(true, new MapVisitor(){
+			@Override
+			public void visitNode(Node node){
+				builder.addNode(node.getId(), node.getGeom().y, node.getGeom().x);
+			}
+
+			@Override
+			public void visitLink(Link l){
+				builder.addLink(l.getId(), l.getBegin_node_id(), l.getEnd_node_id(), l.getStreet_length(), l.getBegin_angle(),
+						l.getEnd_angle(), l.getOsm_way_id(), l.getOsm_name(), l.getOsm_class());
+			}
+		});
+		return ok ? builder.build() : null;
+	}
+
+	/**
+	 * Runs a node query and then a link query through server-side cursors, converting one row at a time.  The
+	 * PostGres driver only uses a cursor inside a transaction, so one is opened here unless the calling thread is
+	 * already in one.
+	 */
+	private static boolean streamMap(String nodeSql, String linkSql, Object[] nodeParams, Object[] linkParams,
+			boolean processed, MapVisitor visitor){
+		long numNodes = 0, numLinks = 0;
+		boolean ownTransaction = false;
+		boolean success = false;
+		Connection con = null;
+		String sql = nodeSql;
+		try{
+			con = getConnection();
+			ownTransaction = beginTransaction(con);
+
+			try(PreparedStatement pst = prepareCursor(con, nodeSql, nodeParams); ResultSet rs = pst.executeQuery()){
+				while(rs.next()){
+					visitor.visitNode(processed ? new Node(rs) : new DetailNode(rs));
+					numNodes++;
+				}
+			}
+
+			sql = linkSql;
+			try(PreparedStatement pst = prepareCursor(con, linkSql, linkParams); ResultSet rs = pst.executeQuery()){
+				while(rs.next()){
+					visitor.visitLink(processed ? new Link(rs) : new DetailLink(rs));
+					numLinks++;
+				}
+			}
+
+			success = true;
+			Log.v("DB", "Streamed " + numNodes + " nodes and " + numLinks + " links");
+		}
+		catch(SQLException e){
+			Log.v("DB","SQL EXCEPTION");
+			Log.v("DB",e.getSQLState());
+			Log.v("DB",sql);
+			Log.e(e);
+		}
+		finally{
+			endTransaction(con, ownTransaction, success);
+			releaseConnection();
+		}
+		return success;
+	}
+
+	/**
+	 * Prepares a query whose results will be fetched fetchSize rows at a time.
+	 */
+	private static PreparedStatement prepareCursor(Connection con, String sql, Object[] params) throws SQLException{
+		PreparedStatement pst = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try{
+			pst.setFetchSize(fetchSize);
+			for(int i = 0; i < params.length; i++)
+				pst.setObject(i + 1, params[i]);
+			return pst;
+		}
+		catch(SQLException e){
+			pst.close();
+			throw e;
+		}
+	}
+
 
 	/**
 	 * Recall that each Node maintains a count of attached in-links and out-links.
@@ -1254,27 +1497,45 @@ public class DBConnection {
 			linkTableName = new DetailLink().getTableName().replace("tmp_schema", getSchemaName());;
 		}
 
-		StringBuilder sb = new StringBuilder();
-
+		if(nodeList.isEmpty())
+			return;
 
+		//All of the node ids go in as one array parameter
+		StringBuilder ids = new StringBuilder("{");
 		for(Node node : nodeList){
-			String sql = "UPDATE " + nodeTableName +  
-					" SET num_in_links=(SELECT COUNT(*) FROM " + linkTableName + " WHERE end_node_id=" + node.getId() + "), " +
-					"num_out_links=(SELECT COUNT(*) FROM " + linkTableName + " WHERE begin_node_id=" + node.getId() + ") " +
-					"WHERE node_id=" + node.getId() + " AND birth_timestamp <=" + timeStamp + " AND death_timestamp >" + timeStamp + ";";
-			sb.append(sql);
-		}
-
-		String sql = sb.toString();
+			if(ids.length() > 1)
+				ids.append(',');
+			ids.append(node.getId());
+		}
+		ids.append('}');
+
+		//Count the live Links at each end of the affected Nodes in one grouped join, instead of two
+		//COUNT(*) subqueries per Node.  Nodes without any live Links get counts of 0.
+		String alive = " WHERE l.birth_timestamp <= ? AND l.death_timestamp > ?";
+		String sql = "WITH ids AS (SELECT DISTINCT unnest(?::bigint[]) AS node_id), " +
+				"ends AS (SELECT l.end_node_id AS node_id, 1 AS num_in, 0 AS num_out FROM " + linkTableName + " l " +
+				"JOIN ids ON l.end_node_id = ids.node_id" + alive + " UNION ALL " +
+				"SELECT l.begin_node_id, 0, 1 FROM " + linkTableName + " l " +
+				"JOIN ids ON l.begin_node_id = ids.node_id" + alive + "), " +
+				"counts AS (SELECT ids.node_id, COALESCE(SUM(e.num_in), 0) AS num_in, COALESCE(SUM(e.num_out), 0) AS num_out " +
+				"FROM ids LEFT JOIN ends e ON e.node_id = ids.node_id GROUP BY ids.node_id) " +
+				"UPDATE " + nodeTableName + " n SET num_in_links = c.num_in::smallint, num_out_links = c.num_out::smallint " +
+				"FROM counts c WHERE n.node_id = c.node_id AND n.birth_timestamp <= ? AND n.death_timestamp > ?;";
 
 		try{
-			Statement st = con.createStatement();
-			st.executeUpdate(sql);
+			PreparedStatement pst = prepareStatement(sql);
+			pst.setString(1, ids.toString());
+			for(int i = 2; i <= 7; i++)
+				pst.setLong(i, timeStamp);
+			pst.executeUpdate();
 		}
 		catch(SQLException e){
 			Log.v("DB", "Could not update node link_counts.");
 			Log.e(e);
 		}
+		finally{
+			releaseConnection();
+		}
 
 
 	}
@@ -1292,30 +1553,11 @@ public class DBConnection {
 		else
 			tableName = new DetailNode().getTableName().replace("tmp_schema", getSchemaName());
 
-		StringBuilder sb = new StringBuilder();
-
-
-		for(Node node : nodeList){
-			String tmp = "UPDATE " + tableName + " SET death_timestamp = " + node.getDeath_timestamp() + 
-					"WHERE node_id = " + node.getId() + " AND birth_timestamp = " + node.getBirth_timestamp() + ";";
-			sb.append(tmp);
-		}
-
-		String sql = sb.toString();
-
-		try{
-			Statement st = con.createStatement();
-			st.executeUpdate(sql);
-		}
-		catch(SQLException e){
-			Log.v("DB", "Could not update node death_timestamps.");
-			Log.e(e);
-		}
-
-
-
-
+		List<long[]> rows = new ArrayList<long[]>(nodeList.size());
+		for(Node node : nodeList)
+			rows.add(new long[]{node.getId(), node.getBirth_timestamp(), node.getDeath_timestamp()});
 
+		updateDeathTimestamps(tableName, new String[]{"node_id"}, rows);
 	}
 
 
@@ -1333,25 +1575,11 @@ public class DBConnection {
 		else
 			tableName = new DetailLink().getTableName().replace("tmp_schema", getSchemaName());
 
+		List<long[]> rows = new ArrayList<long[]>(linkList.size());
+		for(Link link : linkList)
+			rows.add(new long[]{link.getId(), link.getBirth_timestamp(), link.getDeath_timestamp()});
 
-
-		StringBuilder sb = new StringBuilder();
-		for(Link link : linkList){
-			String tmp = "UPDATE " + tableName + " SET death_timestamp = " + link.getDeath_timestamp() + 
-					" WHERE link_id = " + link.getId() + " AND birth_timestamp = " + link.getBirth_timestamp() + ";";
-			sb.append(tmp);
-		}
-
-		String sql = sb.toString();
-
-		try{
-			Statement st = con.createStatement();
-			st.executeUpdate(sql);
-		}
-		catch(SQLException e){
-			Log.v("DB", "Could not update link death_timestamps.");
-			Log.e(e);
-		}
+		updateDeathTimestamps(tableName, new String[]{"link_id"}, rows);
 	}
 
 	/**
@@ -1362,52 +1590,211 @@ public class DBConnection {
 
 		String tableName = new CountingNode().getTableName().replace("tmp_schema", getSchemaName());
 
+		List<long[]> rows = new ArrayList<long[]>(countingNodeList.size());
+		for(CountingNode cn : countingNodeList)
+			rows.add(new long[]{cn.getId(), cn.getBirth_timestamp(), cn.getDeath_timestamp()});
 
-		StringBuilder sb = new StringBuilder();
-		for(CountingNode cn : countingNodeList){
-			String tmp = "UPDATE " + tableName + " SET death_timestamp = " + cn.getDeath_timestamp() + 
-					"WHERE counting_node_id = " + cn.getId() + " AND birth_timestamp = " + cn.getBirth_timestamp() + ";";
-			sb.append(tmp);
-		}
+		updateDeathTimestamps(tableName, new String[]{"counting_node_id"}, rows);
+	}
 
-		String sql = sb.toString();
+	/**
+	 * Updates the death timestamps for a set of DetailLinkMappings
+	 * @param dlmList A list of DetialLinkMappings that contain the correct timestamps
+	 */
+	public static void updateDLMDeathTimestamps(List<DetailLinkMapping> dlmList){
+		String tableName = new DetailLinkMapping().getTableName().replace("tmp_schema", getSchemaName());
 
+		List<long[]> rows = new ArrayList<long[]>(dlmList.size());
+		for(DetailLinkMapping dlm : dlmList)
+			rows.add(new long[]{dlm.getLink_id(), dlm.getDetail_link_id(), dlm.getBirth_timestamp(), dlm.getDeath_timestamp()});
+
+		updateDeathTimestamps(tableName, new String[]{"link_id", "detail_link_id"}, rows);
+	}
+
+	/**
+	 * The key columns of the tables whose death timestamps are set through a staging table - see updateDeathTimestamps()
+	 */
+	private static final String[][] STAGED_KEYS = {{"node_id"}, {"link_id"}, {"counting_node_id"}, {"link_id", "detail_link_id"}};
+
+	/**
+	 * Staging tables with fewer rows than this are not ANALYZEd.  The planner already estimates a temporary table's
+	 * size from its number of pages, which is close enough for a small batch.
+	 */
+	private static final int ANALYZE_THRESHOLD = 10000;
+
+	/**
+	 * @return The name of the staging table for a set of key columns
+	 */
+	private static String stagingTable(String[] keyColumns){
+		StringBuilder name = new StringBuilder("death_timestamp_updates");
+		for(String key : keyColumns)
+			name.append('_').append(key);
+		return name.toString();
+	}
+
+	/**
+	 * @return The statements which create the staging tables of updateDeathTimestamps().  They are temporary tables, so
+	 * ConnectionPool runs these once on every Connection it opens, outside of any transaction.
+	 */
+	private static String createStagingTables(){
+		StringBuilder sql = new StringBuilder();
+		for(String[] keyColumns : STAGED_KEYS){
+			sql.append("CREATE TEMP TABLE ").append(stagingTable(keyColumns)).append(" (");
+			for(String key : keyColumns)
+				sql.append(key).append(" bigint, ");
+			sql.append("birth_timestamp bigint, death_timestamp bigint); ");
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * Sets the death_timestamp of many rows of one table at once.  The new values are COPYed into a temporary
+	 * staging table, which is then joined to the real table by a single UPDATE ... FROM, instead of running one
+	 * UPDATE (and one index lookup) per row.  The staging table is created once per connection (see
+	 * createStagingTables()) and is emptied in the same round trip as the UPDATE - if that fails, the transaction
+	 * (or savepoint) is rolled back, which empties it too.  So this takes two round trips: the COPY, and the UPDATE.
+	 * @param tableName The table to update, including its schema
+	 * @param keyColumns The columns which, together with birth_timestamp, identify a row of the table.  Must be one of
+	 * STAGED_KEYS.
+	 * @param rows One array per row to update: the values of keyColumns, then birth_timestamp, then the new
+	 * death_timestamp
+	 */
+	private static void updateDeathTimestamps(String tableName, String[] keyColumns, List<long[]> rows){
+		if(rows.isEmpty())
+			return;
+
+		String staging = stagingTable(keyColumns);
+		StringBuilder join = new StringBuilder();
+		for(String key : keyColumns)
+			join.append("t.").append(key).append(" = u.").append(key).append(" AND ");
+
+		StringBuilder sql = new StringBuilder();
+		//Give the planner a row count for big batches, so it picks a join that suits them
+		if(rows.size() >= ANALYZE_THRESHOLD)
+			sql.append("ANALYZE ").append(staging).append("; ");
+		sql.append("UPDATE ").append(tableName).append(" t SET death_timestamp = u.death_timestamp FROM ").append(staging)
+			.append(" u WHERE ").append(join).append("t.birth_timestamp = u.birth_timestamp; TRUNCATE ").append(staging).append(';');
+
+		long start = System.nanoTime();
+		boolean ownTransaction = false;
+		boolean success = false;
+		Connection con = null;
 		try{
-			Statement st = con.createStatement();
-			st.executeUpdate(sql);
+			con = getConnection();
+			ownTransaction = beginTransaction(con);
+			copyRows(staging, rows);
+
+			int updated = 0;
+			try(Statement st = con.createStatement()){
+				//Only the UPDATE counts rows - ANALYZE and TRUNCATE report 0
+				boolean isResultSet = st.execute(sql.toString());
+				while(true){
+					if(!isResultSet){
+						int count = st.getUpdateCount();
+						if(count==-1)
+							break;
+						updated += count;
+					}
+					isResultSet = st.getMoreResults();
+				}
+			}
+			success = true;
+			Log.v("DB", "Updated " + updated + " of " + rows.size() + " death_timestamps in " + tableName + " in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
 		}
 		catch(SQLException e){
-			Log.v("DB", "Could not update countingNode death_timestamps.");
+			Log.v("DB", "Could not update death_timestamps in " + tableName);
 			Log.e(e);
 		}
-
-
+		finally{
+			endTransaction(con, ownTransaction, success);
+			releaseConnection();
+		}
 	}
 
 	/**
-	 * Updates the death timestamps for a set of DetailLinkMappings
-	 * @param dlmList A list of DetialLinkMappings that contain the correct timestamps
+	 * Starts a transaction on a connection, unless it is already in one (e.g. a caller further up this thread's
+	 * stack started it).
+	 * @param con The connection checked out by this thread
+	 * @return True if a transaction was started, which the caller must finish with endTransaction()
+	 * @throws SQLException If the connection is broken
 	 */
-	public static void updateDLMDeathTimestamps(List<DetailLinkMapping> dlmList){
-		String tableName = new DetailLinkMapping().getTableName().replace("tmp_schema", getSchemaName());
+	static boolean beginTransaction(Connection con) throws SQLException{
+		if(!con.getAutoCommit())
+			return false;
+		con.setAutoCommit(false);
+		return true;
+	}
 
+	/**
+	 * Marks a savepoint if a connection is inside a transaction, so that a statement which is allowed to fail (like
+	 * an insert of a row that may already exist) can be undone without aborting the whole transaction.
+	 * @param con The connection checked out by this thread
+	 * @return The savepoint, or null if the connection is in autocommit mode and needs none
+	 * @throws SQLException If the savepoint cannot be set
+	 */
+	static Savepoint savepointIfInTransaction(Connection con) throws SQLException{
+		if(con.getAutoCommit())
+			return null;
+		return con.setSavepoint();
+	}
 
-		StringBuilder sb = new StringBuilder();
-		for(DetailLinkMapping dlm : dlmList){
-			String tmp = "UPDATE " + tableName + " SET death_timestamp = " + dlm.getDeath_timestamp() + 
-					"WHERE link_id = " + dlm.getLink_id() + " AND detail_link_id = " + dlm.getDetail_link_id() + 
-					" AND birth_timestamp = " + dlm.getBirth_timestamp() + ";";
-			sb.append(tmp);
+	/**
+	 * Releases a savepoint made by savepointIfInTransaction() once its statements have succeeded.  Errors are logged.
+	 * @param con The connection
+	 * @param savepoint The savepoint, or null to do nothing
+	 */
+	static void releaseSavepoint(Connection con, Savepoint savepoint){
+		if(savepoint==null)
+			return;
+		try{
+			con.releaseSavepoint(savepoint);
 		}
+		catch(SQLException e){
+			Log.e(e);
+		}
+	}
 
-		String sql = sb.toString();
+	/**
+	 * Undoes everything since a savepoint made by savepointIfInTransaction(), leaving the rest of the transaction
+	 * usable.  Errors are logged.
+	 * @param con The connection
+	 * @param savepoint The savepoint, or null to do nothing
+	 */
+	static void rollbackToSavepoint(Connection con, Savepoint savepoint){
+		if(savepoint==null)
+			return;
+		try{
+			con.rollback(savepoint);
+		}
+		catch(SQLException e){
+			Log.e(e);
+		}
+	}
 
+	/**
+	 * Commits or rolls back a transaction started by beginTransaction(), and returns the connection to autocommit.
+	 * Does nothing if beginTransaction() did not start one.  Errors are logged.
+	 * @param con The connection, or null if it could not be checked out
+	 * @param ownTransaction The value returned by beginTransaction()
+	 * @param success True to commit, False to roll back
+	 */
+	static void endTransaction(Connection con, boolean ownTransaction, boolean success){
+		if(con==null || !ownTransaction)
+			return;
 		try{
-			Statement st = con.createStatement();
-			st.executeUpdate(sql);
+			if(success)
+				con.commit();
+			else
+				con.rollback();
+		}
+		catch(SQLException e){
+			Log.e(e);
+		}
+		try{
+			con.setAutoCommit(true);
 		}
 		catch(SQLException e){
-			Log.v("DB", "Could not update maneuver death_timestamps.");
 			Log.e(e);
 		}
 	}
@@ -1427,9 +1814,7 @@ public class DBConnection {
 
 
 
-		try{
-			Statement st = getConnection().createStatement();
-			ResultSet rs = st.executeQuery(sql);
+		try(Statement st = getConnection().createStatement(); ResultSet rs = st.executeQuery(sql)){
 			//If a result was found, return it. Otherwise return null;
 			if(rs.next())
 				return new Link(rs);
@@ -1442,6 +1827,9 @@ public class DBConnection {
 			Log.e(e);
 			return null;
 		}
+		finally{
+			releaseConnection();
+		}
 	}
 
 	/**
@@ -1605,14 +1993,16 @@ public class DBConnection {
 				" WHERE " + "user_id=" + user_id + " AND grid_x=" + grid_x + " AND grid_y=" + grid_y + ";";
 		sql = sql.replace("tmp_schema", getSchemaName());
 
-		try{
-			Statement st = con.createStatement();
+		try(Statement st = getConnection().createStatement()){
 			st.executeUpdate(sql);
 		}
 		catch(SQLException e){
 			Log.v("DB", "Couldn't delete UserTile.");
 			Log.e(e);
 		}
+		finally{
+			releaseConnection();
+		}
 	}
 
 
@@ -1720,10 +2110,8 @@ public class DBConnection {
 	 * @return A UTC timestamp
 	 */
 	public static long getLatestUpdateTime(){
-		try{
-			Statement st = con.createStatement();
-			String sql = "SELECT * FROM " + schema + ".extravars WHERE name='latestUpdateTime';";
-			ResultSet rs = st.executeQuery(sql);
+		String sql = "SELECT * FROM " + schema + ".extravars WHERE name='latestUpdateTime';";
+		try(Statement st = getConnection().createStatement(); ResultSet rs = st.executeQuery(sql)){
 			if(rs.next()){
 				String tmp = rs.getString("val");
 				return Long.parseLong(tmp);
@@ -1733,6 +2121,9 @@ public class DBConnection {
 			Log.v("DB", "SQL EXCEPTION - couldn't get latest update time");
 			Log.e(e);
 		}
+		finally{
+			releaseConnection();
+		}
 		return 0;
 	}
 
@@ -1742,12 +2133,14 @@ public class DBConnection {
 	 * @param time the current time
 	 */
 	public static void setLatestUpdateTime(Long time){
-		try{
+		try(Statement st = getConnection().createStatement()){
 			//first figure out if this row exists or not
-			Statement st = con.createStatement();
 			String sql = "SELECT * FROM " + schema + ".extravars WHERE name='latestUpdateTime';";
-			ResultSet rs = st.executeQuery(sql);
-			if(rs.next()){
+			boolean exists;
+			try(ResultSet rs = st.executeQuery(sql)){
+				exists = rs.next();
+			}
+			if(exists){
 				//If the row exists, update it to the new time
 				sql = "UPDATE " + schema + ".extravars SET val='" + time + "' WHERE name='latestUpdateTime';";
 				st.executeUpdate(sql);
@@ -1762,10 +2155,23 @@ public class DBConnection {
 			Log.v("DB", "SQL EXCEPTION - couldn't set latest update time");
 			Log.e(e);
 		}
+		finally{
+			releaseConnection();
+		}
 
 	}
 
 
+	/**
+	 * Records when the detailed map that a Tile's processed map was built from was read.  This is kept apart from
+	 * updateTile(), so that re-enqueueing a Tile does not reset it.
+	 * @param t The Tile, with its snapshot_timestamp set
+	 */
+	public static void updateTileSnapshot(Tile t){
+		executeUpdate("UPDATE tmp_schema.tiles SET snapshot_timestamp=" + t.getSnapshot_timestamp()
+				+ " WHERE grid_x=" + t.getGrid_x() + " AND grid_y=" + t.getGrid_y() + ";");
+	}
+
 	/**
 	 * Update the updated_timestamp and still_downloading fields of a Tile in the DB
 	 * @param t the Tile to update
@@ -1777,8 +2183,7 @@ public class DBConnection {
 				" WHERE grid_x=" + t.getGrid_x() + " AND grid_y=" + t.getGrid_y() + ";";
 		sql = sql.replace("tmp_schema", getSchemaName());
 
-		try{
-			Statement st = con.createStatement();
+		try(Statement st = getConnection().createStatement()){
 			st.executeUpdate(sql);
 		}
 		catch(SQLException e){
@@ -1786,6 +2191,184 @@ public class DBConnection {
 			Log.v("DB", sql);
 			Log.e(e);
 		}
+		finally{
+			releaseConnection();
+		}
+	}
+
+	/**
+	 * Maximum number of rows sent in one multi-row statement by the batch Tile methods below.
+	 */
+	private static final int TILE_BATCH_SIZE = 1000;
+
+	/**
+	 * Looks up many Tiles with one query per TILE_BATCH_SIZE coordinates, instead of one lookupTile() each.
+	 * @param tiles Tiles whose grid_x and grid_y are of interest
+	 * @return The Tiles which exist in the DB - coordinates which are not in the DB are simply left out
+	 */
+	public static List<Tile> lookupTiles(List<Tile> tiles){
+		List<Tile> found = new LinkedList<Tile>();
+		for(int start = 0; start < tiles.size(); start += TILE_BATCH_SIZE){
+			List<Tile> batch = tiles.subList(start, Math.min(tiles.size(), start + TILE_BATCH_SIZE));
+			StringBuilder sql = new StringBuilder();
+			sql.append("SELECT t.* FROM tmp_schema.tiles t JOIN (VALUES ");
+			boolean first = true;
+			for(Tile tile : batch){
+				if(!first)
+					sql.append(',');
+				sql.append('(').append(tile.getGrid_x()).append(',').append(tile.getGrid_y()).append(')');
+				first = false;
+			}
+			sql.append(") AS v(grid_x, grid_y) ON t.grid_x=v.grid_x AND t.grid_y=v.grid_y;");
+
+			ResultSet rs = executeQuery(sql.toString());
+			if(rs==null)
+				continue;
+			try{
+				while(rs.next())
+					found.add(new Tile(rs));
+			}catch(SQLException e){
+				Log.v("DB", "SQL EXCEPTION - fetching Tiles by coordinates");
+				Log.e(e);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the Tiles which contain any live version of some detailed Nodes, or of either end of a detailed Link of
+	 * some Ways.  Used to find the Tiles that an OSM change file affects, since it says which elements changed but not
+	 * where they used to be.
+	 * @param nodeIds OSM Node ids
+	 * @param wayIds OSM Way ids
+	 * @param timestamp The time of the map to query (since there can be multiple map versions)
+	 * @return Tiles with the grid coordinates of each match, once each.  They may or may not exist in the DB.
+	 */
+	public static List<Tile> lookupTilesTouching(Collection<Long> nodeIds, Collection<Long> wayIds, long timestamp){
+		String alive = " AND birth_timestamp <= " + timestamp + " AND death_timestamp > " + timestamp;
+		List<String> pointQueries = new LinkedList<String>();
+		for(String ids : idLists(nodeIds))
+			pointQueries.add("SELECT geom AS p FROM tmp_schema.detail_nodes WHERE node_id IN (" + ids + ")" + alive);
+		for(String ids : idLists(wayIds)){
+			pointQueries.add("SELECT ST_StartPoint(geom) AS p FROM tmp_schema.detail_links WHERE osm_way_id IN (" + ids + ")" + alive);
+			pointQueries.add("SELECT ST_EndPoint(geom) AS p FROM tmp_schema.detail_links WHERE osm_way_id IN (" + ids + ")" + alive);
+		}
+
+		Set<Long> seen = new HashSet<Long>();
+		List<Tile> tiles = new LinkedList<Tile>();
+		for(String pointQuery : pointQueries){
+			String sql = "SELECT DISTINCT floor(ST_X(p) / " + Tile.BIG_TILE_SIZE + ") AS grid_x, floor(ST_Y(p) / "
+					+ Tile.BIG_TILE_SIZE + ") AS grid_y FROM (" + pointQuery + ") AS points;";
+			ResultSet rs = executeQuery(sql);
+			if(rs==null)
+				continue;
+			try{
+				while(rs.next()){
+					int grid_x = rs.getInt("grid_x");
+					int grid_y = rs.getInt("grid_y");
+					if(seen.add(((long)grid_x << 32) | (grid_y & 0xffffffffL)))
+						tiles.add(new Tile(grid_x, grid_y));
+				}
+			}catch(SQLException e){
+				Log.v("DB", "SQL EXCEPTION - finding Tiles of changed elements");
+				Log.e(e);
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Splits ids into comma-separated lists of at most TILE_BATCH_SIZE, for IN (...) clauses.
+	 */
+	private static List<String> idLists(Collection<Long> ids){
+		List<String> lists = new LinkedList<String>();
+		StringBuilder list = new StringBuilder();
+		int count = 0;
+		for(long id : ids){
+			if(count > 0)
+				list.append(',');
+			list.append(id);
+			if(++count==TILE_BATCH_SIZE){
+				lists.add(list.toString());
+				list.setLength(0);
+				count = 0;
+			}
+		}
+		if(count > 0)
+			lists.add(list.toString());
+		return lists;
+	}
+
+	/**
+	 * Inserts many new Tiles with multi-row INSERT statements.
+	 * @param tiles Tiles which are not in the DB yet
+	 */
+	public static void insertTiles(List<Tile> tiles){
+		for(int start = 0; start < tiles.size(); start += TILE_BATCH_SIZE){
+			StringBuilder sql = new StringBuilder();
+			sql.append("INSERT INTO tmp_schema.tiles ").append(Tile.INSERT_COLUMNS).append(" VALUES ");
+			boolean first = true;
+			for(Tile tile : tiles.subList(start, Math.min(tiles.size(), start + TILE_BATCH_SIZE))){
+				if(!first)
+					sql.append(',');
+				sql.append(tile.getInsertValues());
+				first = false;
+			}
+			sql.append(';');
+			executeUpdate(sql.toString());
+		}
+	}
+
+	/**
+	 * Does the same as updateTile() for many Tiles, with one UPDATE ... FROM (VALUES ...) statement per batch.
+	 * @param tiles Tiles which are already in the DB
+	 */
+	public static void updateTiles(List<Tile> tiles){
+		for(int start = 0; start < tiles.size(); start += TILE_BATCH_SIZE){
+			StringBuilder sql = new StringBuilder();
+			sql.append("UPDATE tmp_schema.tiles t SET updated_timestamp=v.updated_timestamp, download_status=v.download_status,"
+					+ " detailed_map_status=v.detailed_map_status, processed_map_status=v.processed_map_status FROM (VALUES ");
+			boolean first = true;
+			for(Tile tile : tiles.subList(start, Math.min(tiles.size(), start + TILE_BATCH_SIZE))){
+				if(!first)
+					sql.append(',');
+				sql.append('(').append(tile.getGrid_x()).append(',').append(tile.getGrid_y()).append(',')
+					.append(tile.getUpdated_timestamp()).append("::bigint,").append(tile.getDownload_status()).append(',')
+					.append(tile.getDetailed_map_status()).append(',').append(tile.getProcessed_map_status()).append(')');
+				first = false;
+			}
+			sql.append(") AS v(grid_x, grid_y, updated_timestamp, download_status, detailed_map_status, processed_map_status)"
+					+ " WHERE t.grid_x=v.grid_x AND t.grid_y=v.grid_y;");
+			executeUpdate(sql.toString());
+		}
+	}
+
+	/**
+	 * Records many UserTiles at once.  A UserTile which already exists for the same user and coordinates is
+	 * replaced, which is what deleteUserTile() followed by insertNow() does for a single one.  The existing rows are
+	 * updated first, then the others are inserted, so this does not need INSERT ... ON CONFLICT (PostgreSQL 9.5+).
+	 * Callers must not record the same UserTiles concurrently - Controller holds its lock.
+	 * @param userTiles The UserTiles to record - at most one per (user_id, grid_x, grid_y)
+	 */
+	public static void upsertUserTiles(List<UserTile> userTiles){
+		for(int start = 0; start < userTiles.size(); start += TILE_BATCH_SIZE){
+			StringBuilder values = new StringBuilder();
+			values.append("(VALUES ");
+			boolean first = true;
+			for(UserTile ut : userTiles.subList(start, Math.min(userTiles.size(), start + TILE_BATCH_SIZE))){
+				if(!first)
+					values.append(',');
+				values.append(ut.getInsertValues());
+				first = false;
+			}
+			values.append(") AS v").append(UserTile.INSERT_COLUMNS);
+			String match = "u.user_id=v.user_id AND u.grid_x=v.grid_x AND u.grid_y=v.grid_y";
+
+			executeUpdate("UPDATE tmp_schema.user_tiles u SET ordered_timestamp=v.ordered_timestamp, owned_timestamp=v.owned_timestamp"
+					+ " FROM " + values + " WHERE " + match + ";");
+			executeUpdate("INSERT INTO tmp_schema.user_tiles " + UserTile.INSERT_COLUMNS + " SELECT * FROM " + values
+					+ " WHERE NOT EXISTS (SELECT 1 FROM tmp_schema.user_tiles u WHERE " + match + ");");
+		}
 	}
 
 	/**
@@ -1795,10 +2378,7 @@ public class DBConnection {
 	public static int numTilesWaiting(){
 		String sql = "SELECT COUNT(*) FROM " + new Tile(0,0).getTableName() + " WHERE still_downloading=true";
 		sql = sql.replace("tmp_schema", getSchemaName());
-		try{
-			Statement st = con.createStatement();
-			ResultSet rs = st.executeQuery(sql);
-
+		try(Statement st = getConnection().createStatement(); ResultSet rs = st.executeQuery(sql)){
 			rs.next();
 			return rs.getInt(1);
 
@@ -1808,6 +2388,9 @@ public class DBConnection {
 			Log.v("DB", sql);
 			Log.e(e);
 		}
+		finally{
+			releaseConnection();
+		}
 		return 0;
 	}
 
@@ -1,10 +1,15 @@
 package my.awesomestitch.control;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import my.awesomestitch.mapobjects.BBox;
 import my.awesomestitch.mapobjects.ChangeLog;
@@ -21,26 +26,98 @@ public class DBResolverThread extends Thread {
 
 
 	private static int MAX_QUEUE_SIZE = 10;
+
+	/**
+	 * If true, tiles are compared against the DB by SqlResolver on the server, instead of in Java
+	 */
+	private static boolean sqlResolver = false;
+
 	/**
-	 * A Queue of detailed BBoxes which need to be added to the DB
+	 * The most BBoxes resolved in one transaction.  A batch only takes the BBoxes which are already queued, so a
+	 * lone Tile is never held back waiting for others.
 	 */
-	// private static Queue<BBox> detailedBBoxes = new LinkedBlockingQueue<BBox>(MAX_QUEUE_SIZE);
-	private static Queue<BBox> detailedBBoxes = null;
+	private static int batchSize = 8;
+
+	/**
+	 * Keeps resolvers from working on neighboring Tiles at the same time
+	 */
+	private static final RegionLockManager regionLocks = new RegionLockManager();
+
+	/**
+	 * When each resolver started the batch it is working on.  Everything that batch adds to the DB is born at or after
+	 * this time, but other connections cannot see it until the batch commits.  A batch reads the clock and registers
+	 * itself while holding this map's monitor, which committedBefore() also holds, so it is never missed.
+	 */
+	private static final ConcurrentHashMap<Thread, Long> batchStarts = new ConcurrentHashMap<Thread, Long>();
+
+	private static int thread_num = 1;
+	/**
+	 * A Queue of detailed BBoxes which need to be added to the DB.  It is bounded, so parsers block (rather than
+	 * filling the heap) when the resolver falls behind.
+	 */
+	private static BlockingQueue<BBox> detailedBBoxes = new LinkedBlockingQueue<BBox>(MAX_QUEUE_SIZE);
 	
 	/**
 	 * A Queue of processed BBoxes which need to be added to the DB
 	 */
-	// private static Queue<BBox> processedBBoxes = new LinkedBlockingQueue<BBox>(MAX_QUEUE_SIZE);
-	private static Queue<BBox> processedBBoxes = null;
+	private static BlockingQueue<BBox> processedBBoxes = new LinkedBlockingQueue<BBox>(MAX_QUEUE_SIZE);
 
-	private boolean isComplete = false;
+	/**
+	 * One permit for every BBox in either queue.  The resolver sleeps on this instead of polling both queues.
+	 */
+	private static Semaphore bboxesAvailable = new Semaphore(0);
 	
+	/**
+	 * Sets the capacity of the BBox queues.  Must be called before the pipeline is started.
+	 * @param max The maximum number of BBoxes waiting in each queue
+	 */
 	public static void init(int max) {
 		MAX_QUEUE_SIZE = max;
 		detailedBBoxes = new LinkedBlockingQueue<BBox>(MAX_QUEUE_SIZE);
 		processedBBoxes = new LinkedBlockingQueue<BBox>(MAX_QUEUE_SIZE);
 	}
 
+	/**
+	 * Chooses how new tiles are compared against the map in the DB.  Must be called before the pipeline is started.
+	 * @param sql True to compare them with set-based SQL on the server (see SqlResolver), False to load the old map
+	 * into a BBox and compare it in Java
+	 */
+	public static void setSqlResolver(boolean sql){
+		sqlResolver = sql;
+	}
+
+	/**
+	 * Sets the most BBoxes that are resolved in one transaction (and so share one commit).  Must be called before the
+	 * pipeline is started.
+	 * @param size The batch size - 1 commits every BBox on its own
+	 */
+	public static void setBatchSize(int size){
+		batchSize = Math.max(1, size);
+	}
+
+	/**
+	 * Creates a resolver worker.  Once started, it adds BBoxes from both queues to the DB until the program exits.
+	 * Several workers may run at once - each locks the region of the Tiles it is resolving, so only Tiles which are
+	 * not neighbors are resolved concurrently.
+	 */
+	public DBResolverThread(){
+		setName("DBResolver " + thread_num++);
+	}
+
+
+	/**
+	 * Gives a time before which every change to the map has been committed.  Anything a batch in progress adds will be
+	 * born at or after this time, even though a query made now cannot see it yet.
+	 * @param now The current time
+	 * @return now, or the start time of the oldest batch in progress if it is earlier
+	 */
+	public static long committedBefore(long now){
+		synchronized(batchStarts){
+			for(long start : batchStarts.values())
+				now = Math.min(now, start);
+		}
+		return now;
+	}
 
 	/**
 	 * Helper method - tells whether two nodes have identical properties. This is useful because we don't want to make a new version of a node
@@ -119,15 +196,15 @@ public class DBResolverThread extends Thread {
 
 		//Before we start inserting things into the DB, get the correct #inlinks and #outlinks
 		for(Node n : newMap.getAllNodes()){
-			n.setNum_in_links((short)newMap.getInLinks(n.getId()).size());
-			n.setNum_out_links((short)newMap.getOutLinks(n.getId()).size());
+			n.setNum_in_links((short)newMap.getInDegree(n.getId()));
+			n.setNum_out_links((short)newMap.getOutDegree(n.getId()));
 		}
 
 
 		//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
 		//Step 3 - Compare the Node sets in these two BBoxes and record any changes in the DB
 		List<Node> nodesToUpdate = new LinkedList<Node>(); //A list of Nodes whose death_timestamp we will update
-		for(long nodeId : newMap.nodes.keySet()){
+		for(long nodeId : newMap.nodes.keys()){
 			if(!oldMap.safeHasNode(nodeId)){
 				//Case (A) - the Node exists in OSM but not in our DB. So we must add it.
 				Node node = newMap.getNode(nodeId);
@@ -163,8 +240,8 @@ public class DBResolverThread extends Thread {
 
 		}
 
-		for(long nodeId : oldMap.nodes.keySet()){
-			Node node = oldMap.nodes.get(nodeId);
+		for(Node node : oldMap.nodes.values()){
+			long nodeId = node.getId();
 			if(!newMap.safeHasNode(nodeId) && newMap.getMaxChangeSet() > node.getOsm_changeset()){
 				//CASE (D) - the Node exists in our DB, but not in OSM, so we must mark it as dead
 				//Note that we also check that the maximum changeset in the osm box is greater than this node's changeset
@@ -186,9 +263,10 @@ public class DBResolverThread extends Thread {
 		//Step 4 - Compare the Link sets in the two BBoxes and record any changes in the DB
 		List<Link> linksToUpdate = new LinkedList<Link>();	//A list of Links whose death_timestamps we will update
 		List<CountingNode> countingNodesToUpdate = new LinkedList<CountingNode>();
-		for(List<Long> nodeIds : newMap.links.keySet()){
-			long begin_node_id = nodeIds.get(0);
-			long end_node_id = nodeIds.get(1);
+		List<CountingNode> oldCountingNodes = oldMap.getAllCountingNodes();
+		for(Link newLink : newMap.links.values()){
+			long begin_node_id = newLink.getBegin_node_id();
+			long end_node_id = newLink.getEnd_node_id();
 
 			if(!oldMap.safeHasLink(begin_node_id, end_node_id)){
 				//Case (A) - the Node exists in OSM but not in our DB. So we must add it.
@@ -214,8 +292,7 @@ public class DBResolverThread extends Thread {
 					DBConnection.insertLater(osmLink);
 
 					dbLink.setDeath_timestamp(NOW);				//The old link dies now
-					for(long id : oldMap.countingNodes.keySet()){
-						CountingNode cn = oldMap.countingNodes.get(id);
+					for(CountingNode cn : oldCountingNodes){
 						if(cn.getLink1_id()==dbLink.getId() || cn.getLink2_id()==dbLink.getId()){
 							cn.setDeath_timestamp(NOW);
 							cn.setName_filter(dbLink.getOsm_name());
@@ -238,10 +315,9 @@ public class DBResolverThread extends Thread {
 
 		}
 
-		for(List<Long> nodeIds : oldMap.links.keySet()){
-			long begin_node_id = nodeIds.get(0);
-			long end_node_id = nodeIds.get(1);
-			Link link = oldMap.getLink(begin_node_id, end_node_id);
+		for(Link link : oldMap.links.values()){
+			long begin_node_id = link.getBegin_node_id();
+			long end_node_id = link.getEnd_node_id();
 
 			if(!newMap.safeHasLink(begin_node_id, end_node_id) && newMap.getMaxChangeSet() > link.getOsm_changeset()){
 				//Case (D) - the Link exists in our DB but not in OSM, so we must mark it as dead
@@ -350,21 +426,25 @@ public class DBResolverThread extends Thread {
 
 
 	/**
-	 * Add a detailed BBox into the queue of boxes to be resolved in the DB
-	 * And start a DBResolverThread if necessary
+	 * Add a detailed BBox into the queue of boxes to be resolved in the DB.
+	 * Blocks while the queue is full.
 	 * @param bbox A detailed BBox
+	 * @throws InterruptedException If interrupted while waiting for room in the queue
 	 */
-	public static void enqueueDetailedBBox(BBox bbox){
-		detailedBBoxes.add(bbox);
+	public static void enqueueDetailedBBox(BBox bbox) throws InterruptedException{
+		detailedBBoxes.put(bbox);
+		bboxesAvailable.release();
 	}
 
 	/**
-	 * Add a processed BBox into the queue of boxes to be resolved in the DB
-	 * And start a DBResolverThread if necessary
+	 * Add a processed BBox into the queue of boxes to be resolved in the DB.
+	 * Blocks while the queue is full.
 	 * @param bbox A processed BBox
+	 * @throws InterruptedException If interrupted while waiting for room in the queue
 	 */
-	public static void enqueueProcessedBBox(BBox bbox){
-		processedBBoxes.add(bbox);
+	public static void enqueueProcessedBBox(BBox bbox) throws InterruptedException{
+		processedBBoxes.put(bbox);
+		bboxesAvailable.release();
 	}
 	
 	/**
@@ -376,93 +456,219 @@ public class DBResolverThread extends Thread {
 	}
 
 	public void run(){
+		while(true){
+			try {
+				bboxesAvailable.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
 
-		//This thread runs as long as there are still detailedBBoxes or processedBBoxes to add to the DB
-
-		if(detailedBBoxes.size() > 0){
+			//Take whatever else is already waiting, up to the batch size, so it can share one commit.
 			//Detailed BBoxes are given preference - their queue must be empty before processed BBoxes are even considered
 			//This avoids race conditions and also decreases memory usage
-			long NOW = System.currentTimeMillis();
+			List<BBox> detailed = new ArrayList<BBox>();
+			List<BBox> processed = new ArrayList<BBox>();
+			int taken = 0;
+			do{
+				BBox bbox = detailedBBoxes.poll();
+				if(bbox!=null)
+					detailed.add(bbox);
+				else
+					processed.add(processedBBoxes.poll());
+				taken++;
+			}while(taken < batchSize && bboxesAvailable.tryAcquire());
+
+			//Wait until no other resolver is working next to these Tiles
+			List<Tile> tiles = new ArrayList<Tile>();
+			for(BBox bbox : detailed)
+				tiles.add(bbox.getTile());
+			for(BBox bbox : processed)
+				tiles.add(bbox.getTile());
+			try{
+				regionLocks.lock(tiles);
+			}
+			catch(InterruptedException e){
+				//Shutting down - these Tiles are still IN_PROGRESS in the DB, so they will be redone on restart
+				return;
+			}
+			try{
+				resolveBatch(detailed, processed);
+			}
+			finally{
+				regionLocks.unlock(tiles);
+			}
+		}
+	}
 
-			//Get the newly parsed detailedMap from the queue
-			BBox newDetailedMap = detailedBBoxes.remove();
+	/**
+	 * Resolves several BBoxes in ONE transaction, so the DB syncs its log once for the whole batch instead of once for
+	 * every flush, update and insert.  Each BBox gets a savepoint: if it fails, only its own changes are rolled back and
+	 * the rest of the batch is still committed.  Nothing is reported to the Controller (or the users) until the
+	 * commit, so the processor threads never read a detailed map that is not in the DB yet.  The maps which were not
+	 * committed are handed back to the Controller to be retried.
+	 * @param detailed Detailed BBoxes, which are resolved first
+	 * @param processed Processed BBoxes
+	 */
+	private static void resolveBatch(List<BBox> detailed, List<BBox> processed){
+		long start;
+		synchronized(batchStarts){
+			start = System.currentTimeMillis();
+			batchStarts.put(Thread.currentThread(), start);
+		}
+		List<BBox> resolved = new ArrayList<BBox>();
+		int size = detailed.size() + processed.size();
+		Connection con = null;
+		boolean ownTransaction = false;
+		boolean committed = false;
+		try{
+			//Every DBConnection call made by this thread uses this connection, so they all join the transaction
+			con = DBConnection.getConnection();
+			ownTransaction = DBConnection.beginTransaction(con);
+			for(BBox bbox : detailed)
+				resolveInSavepoint(con, bbox, false, resolved);
+			for(BBox bbox : processed)
+				resolveInSavepoint(con, bbox, true, resolved);
+			if(ownTransaction)
+				con.commit();
+			committed = true;
+		}
+		catch(SQLException e){
+			Log.v("DB", "Failed to commit a batch of " + size + " maps");
+			Log.e(e);
+			resolved.clear();
+			DBConnection.discardBuffers();
+		}
+		finally{
+			DBConnection.endTransaction(con, ownTransaction, committed);
+			DBConnection.releaseConnection();
+			batchStarts.remove(Thread.currentThread());
+		}
+		if(committed)
+			Log.v("DB", "Committed " + resolved.size() + " of " + size + " maps in " + (System.currentTimeMillis() - start) + " ms");
+
+		//Only the maps which are in the DB move on.  A failed detailed map is downloaded again, and its neighbors keep
+		//waiting for it meanwhile - otherwise they would be preprocessed without it.  A failed processed map is redone.
+		for(BBox bbox : detailed){
+			if(resolved.contains(bbox))
+				Controller.detailedMapResolved(bbox);
+			else
+				Controller.retryDownload(bbox.getTile());
+		}
+		for(BBox bbox : processed){
+			if(resolved.contains(bbox)){
+				Notifier.SendNotificationIfNecessary(bbox.getTile());
+				Controller.processedMapResolved(bbox.getTile());
+			}
+			else
+				Controller.retryProcessing(bbox.getTile());
+		}
+	}
 
+	/**
+	 * Resolves one BBox of a batch behind a savepoint.  If it fails, its changes are rolled back and the batch goes on.
+	 * @param con The connection holding the batch's transaction
+	 * @param bbox The BBox
+	 * @param isProcessed True for a processed map, False for a detailed map
+	 * @param resolved The BBoxes which have succeeded so far - bbox is added if it succeeds
+	 * @throws SQLException If the savepoint cannot be set or rolled back, which breaks the whole batch
+	 */
+	private static void resolveInSavepoint(Connection con, BBox bbox, boolean isProcessed, List<BBox> resolved) throws SQLException{
+		Savepoint savepoint = con.setSavepoint();
+		try{
+			if(isProcessed)
+				resolveProcessedMap(bbox);
+			else
+				resolveDetailedMap(bbox);
+			//Fails if any statement of this BBox failed (and only logged it), since that aborts the transaction
+			con.releaseSavepoint(savepoint);
+			resolved.add(bbox);
+		}
+		catch(Exception e){
+			Log.v("DB", "Failed to resolve " + (isProcessed ? "processed" : "detailed") + " map of " + bbox.getTile());
+			Log.e(e);
+			con.rollback(savepoint);
+			//Anything it buffered but did not flush was rolled back too
+			DBConnection.discardBuffers();
+		}
+	}
+
+	/**
+	 * Adds a newly parsed detailed map to the DB, and marks its Tile as done.  Runs inside the batch's transaction.
+	 * @param newDetailedMap A BBox created by ParserThread.parseBBox()
+	 */
+	private static void resolveDetailedMap(BBox newDetailedMap) throws SQLException{
+		long NOW = System.currentTimeMillis();
+
+		String fileName = "";
+		String description = "";
+		Tile tile = newDetailedMap.getTile();
+		if(tile!=null){
+			fileName = tile.fileName();
+			description = "Update of " + fileName;
+		}
+
+		if(sqlResolver){
+			//Compare the new map against the DB without downloading the old one
+			SqlResolver.resolve(newDetailedMap, NOW, fileName, description, false);
+		}
+		else{
 			//1) query the database for the current version of the map within the region spanned by the OSM file
 			//If this is the first time this tile is added, this may contain a few links that go over the border, etc...
 			long start_time = System.currentTimeMillis();
 			BBox oldDetailedMap = DBConnection.boundingBoxQuery(newDetailedMap.leftLon, newDetailedMap.topLat, newDetailedMap.rightLon, newDetailedMap.bottomLat, NOW, false, true, true, false);
 
-			String fileName = "";
-			String description = "";
-			Tile tile = newDetailedMap.getTile();
-			if(tile!=null){
-				fileName = tile.fileName();
-				description = "Update of " + fileName;
-			}
-
 			//2) Compare our current DB version of the map against the new version loaded from the OSM file
 			//TODO: Make sure references from detailedLink -> processedLink are properly updated
 			resolveDifferencesInDB(newDetailedMap, oldDetailedMap, start_time, fileName, description, false);
-
-			//Mark the tile as complete
-			synchronized(Controller.lock){
-				tile.setDetailed_map_status(Tile.DONE);
-				DBConnection.updateTile(tile);
-			}
 		}
-		else if(processedBBoxes.size() > 0){
 
-			long NOW = System.currentTimeMillis();
+		//Mark the tile as complete
+		tile.setDetailed_map_status(Tile.DONE);
+		Controller.recordStatus(tile);
+	}
 
-			//Get the newly parsed detailedMap from the queue
-			BBox newProcessedMap = processedBBoxes.remove();
+	/**
+	 * Adds a newly preprocessed map to the DB and marks its Tile as done.  Runs inside the batch's transaction - the
+	 * waiting users are notified by resolveBatch() once it commits.
+	 * @param newProcessedMap A BBox created by BBox.preprocess()
+	 */
+	private static void resolveProcessedMap(BBox newProcessedMap) throws SQLException{
+		long NOW = System.currentTimeMillis();
+
+		String fileName = "";
+		String description = "";
+		Tile tile = newProcessedMap.getTile();
+		if(tile!=null){
+			fileName = tile.fileName();
+			description = "Update of " + fileName;
+		}
 
+		if(sqlResolver){
+			//Compare the new map against the DB without downloading the old one
+			SqlResolver.resolve(newProcessedMap, NOW, fileName, description, true);
+		}
+		else{
 			//1) query the database for the current version of the map within the region spanned by the OSM file
 			//If this is the first time this tile is added, this may contain a few links that go over the border, etc...
 			long start_time = System.currentTimeMillis();
 			BBox oldProcessedMap = DBConnection.boundingBoxQuery(newProcessedMap.leftLon, newProcessedMap.topLat, newProcessedMap.rightLon, newProcessedMap.bottomLat, NOW, true, true, true, true);
 
-			String fileName = "";
-			String description = "";
-			Tile tile = newProcessedMap.getTile();
-			if(tile!=null){
-				fileName = tile.fileName();
-				description = "Update of " + fileName;
-			}
-
 			//2) Compare our current DB version of the map against the new version loaded from the OSM file
 			//TODO: Make sure references from detailedLink -> processedLink are properly updated
 			resolveDifferencesInDB(newProcessedMap, oldProcessedMap, start_time, fileName, description, true);
-
-
-
-			//Mark the tile as complete
-			synchronized(Controller.lock){
-				tile.setProcessed_map_status(Tile.DONE);
-				tile.setUpdated_timestamp(System.currentTimeMillis());
-				DBConnection.updateTile(tile);
-			}
-			
-			//TODO: Send Email
-			Notifier.SendNotificationIfNecessary(tile);
-
 		}
 
-		//Mark this thread as complete and start any new threads if necessary
-		isComplete = true;
-		Controller.startThreadsIfNecessary();
-		
-	}
 
 
-	/**
-	 * Tells whether the thread is finished running.  This can happen due to a successful run or an error.
-	 * @return True if the thread completed successfully or failed, False if it is still running
-	 */
-	public boolean isFinished(){
-		if(isComplete)
-			return true;
-		return !super.isAlive();
+		//Mark the tile as complete
+		tile.setProcessed_map_status(Tile.DONE);
+		tile.setUpdated_timestamp(System.currentTimeMillis());
+		Controller.recordStatus(tile);
+		//The processed map is as new as the detailed map it was built from - the next incremental preprocess starts there
+		if(newProcessedMap.getTimestamp() > 0){
+			tile.setSnapshot_timestamp(newProcessedMap.getTimestamp());
+			DBConnection.updateTileSnapshot(tile);
+		}
 	}
 }
 
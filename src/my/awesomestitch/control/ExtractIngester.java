@@ -0,0 +1,575 @@
+package my.awesomestitch.control;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import my.awesomestitch.mapobjects.BBox;
+import my.awesomestitch.mapobjects.LongMap;
+import my.awesomestitch.mapobjects.OsmEventReader;
+import my.awesomestitch.mapobjects.PbfDecoder;
+import my.awesomestitch.mapobjects.Tile;
+import my.awesomestitch.mapobjects.User;
+import my.awesomestitch.mapobjects.Way;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Loads a whole region from a local OSM extract (.osm.pbf or .osm) instead of downloading it from the OSM server one
+ * Tile at a time.  The file is read once: PBF blocks are inflated and decoded in parallel, on every core, and each
+ * important Way is routed to the Tiles which contain at least one of its Nodes - exactly the Ways the server would have
+ * returned for that Tile's bbox.  Each Tile's Ways and their Nodes are then replayed through ParserThread.parseBBox(),
+ * and the resulting detailed maps go to the DBResolverThreads like any downloaded Tile.
+ * <p>Only Tiles which lie entirely inside the bounds of the extract (the bbox in a PBF header, or the &lt;bounds&gt;
+ * of an .osm file) are built from it.  An extract is clipped at its bounds, so it only partly covers the Tiles on its
+ * border - those are downloaded from the OSM server as usual.  An extract without bounds is not trusted at all.
+ * <p>Every Node of the extract is kept in memory until the Ways have been read (about 28 bytes per Node, in primitive
+ * arrays), since a Way's Nodes come before it in the file and we cannot know in advance which ones matter.
+ */
+public class ExtractIngester {
+
+	/**
+	 * The only Way tags that ParserThread.parseBBox() looks at - the others are dropped as the Ways are read
+	 */
+	private static final List<String> WAY_KEYS = Arrays.asList("name", "ref", "highway", "oneway");
+
+	private static int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Every Node in the extract, sorted by id once the first Way is read
+	 */
+	private final NodeStore nodes = new NodeStore();
+
+	/**
+	 * The important Ways touching each Tile, by tileKey()
+	 */
+	private final LongMap<List<ExtractWay>> waysByTile = new LongMap<List<ExtractWay>>();
+
+	/**
+	 * The area covered by the extract as {min_lon, min_lat, max_lon, max_lat}, or null if the file does not say
+	 */
+	private double[] bounds = null;
+
+	/**
+	 * Sets the number of threads which decode blocks and build Tiles.  Defaults to the number of cores.
+	 * @param count The number of threads
+	 */
+	public static void setThreads(int count){
+		threads = Math.max(1, count);
+	}
+
+	/**
+	 * Reads an extract and puts every Tile it touches through the pipeline.  Tiles inside of its bounds are built
+	 * from the extract, the ones on its border are enqueued for download.  Returns once all of the detailed maps
+	 * have been handed to the DBResolverThreads - use Controller.joinAll() to wait for the rest.
+	 * @param fileName A .pbf file, or an .osm file
+	 * @param user The User who is requesting the Tiles.  Useful for sending notifications.
+	 * @param force Set to True to overwrite Tiles that we already have
+	 * @return The number of Tiles that were enqueued, whether from the extract or for download
+	 * @throws IOException If the file cannot be read
+	 */
+	public static int ingest(String fileName, User user, boolean force) throws IOException{
+		long start_time = System.currentTimeMillis();
+		ExtractIngester ingester = new ExtractIngester();
+		if(fileName.endsWith(".pbf"))
+			ingester.readPbf(fileName);
+		else
+			ingester.readOsm(fileName);
+
+		Log.v("OSM", "Read " + ingester.nodes.size + " nodes and " + ingester.waysByTile.size() + " tiles from " + fileName
+				+ " after " + (System.currentTimeMillis() - start_time) / 1000 + " secs.");
+
+		List<Tile> inside = new ArrayList<Tile>();
+		List<Tile> border = new ArrayList<Tile>();
+		for(long key : ingester.waysByTile.keys()){
+			Tile tile = new Tile((int)(key >> 32), (int)key);
+			if(ingester.contains(tile))
+				inside.add(tile);
+			else
+				border.add(tile);
+		}
+		if(ingester.bounds==null)
+			Log.v("OSM", fileName + " does not give its bounds, so none of its tiles can be trusted to be complete");
+		for(Tile tile : border)
+			ingester.waysByTile.remove(tileKey(tile.getGrid_x(), tile.getGrid_y()));
+
+		int downloads = Controller.enqueueTiles(border, user, force, true);
+		Log.v("OSM", "Enqueued " + downloads + " of the " + border.size() + " tiles on the border of " + fileName
+				+ " for download");
+
+		List<Tile> accepted = Controller.enqueueLocalTiles(inside, user, force);
+		ingester.buildTiles(accepted, fileName);
+		Log.v("OSM", "Handed " + accepted.size() + " tiles from " + fileName + " to the resolvers after "
+				+ (System.currentTimeMillis() - start_time) / 1000 + " secs.");
+		return accepted.size() + downloads;
+	}
+
+	/**
+	 * @return True if a Tile lies entirely inside the bounds of the extract, so the extract has all of its Ways
+	 */
+	private boolean contains(Tile tile){
+		if(bounds==null)
+			return false;
+		//Tile corners are multiples of BIG_TILE_SIZE, so allow for rounding when they sit right on the bounds
+		double epsilon = 1e-9;
+		return tile.getLeft_lon() >= bounds[0] - epsilon && tile.getBottom_lat() >= bounds[1] - epsilon
+				&& tile.getLeft_lon() + Tile.BIG_TILE_SIZE <= bounds[2] + epsilon
+				&& tile.getBottom_lat() + Tile.BIG_TILE_SIZE <= bounds[3] + epsilon;
+	}
+
+	/**
+	 * Reads a PBF file.  Blobs are split off in order on this thread, decoded on the pool, and their results are
+	 * consumed in file order, so the Nodes still come before the Ways.
+	 */
+	private void readPbf(String fileName) throws IOException{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Deque<Future<PbfDecoder.Block>> pending = new ArrayDeque<Future<PbfDecoder.Block>>();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16))){
+			PbfDecoder.Blob blob;
+			while((blob = PbfDecoder.readBlob(in)) != null){
+				if(blob.type.equals("OSMHeader"))
+					bounds = PbfDecoder.checkHeader(blob);
+				else if(blob.type.equals("OSMData")){
+					final PbfDecoder.Blob data = blob;
+					pending.add(pool.submit(new Callable<PbfDecoder.Block>(){
+						@Override
+						public PbfDecoder.Block call() throws IOException{
+							return PbfDecoder.decode(data);
+						}
+					}));
+					//Keep every core busy, but do not read much further ahead than they can decode
+					if(pending.size() >= 2 * threads)
+						add(await(pending.poll()));
+				}
+			}
+			while(!pending.isEmpty())
+				add(await(pending.poll()));
+		}
+		finally{
+			pool.shutdownNow();
+		}
+	}
+
+	private static PbfDecoder.Block await(Future<PbfDecoder.Block> future) throws IOException{
+		try{
+			return future.get();
+		}
+		catch(InterruptedException e){
+			throw new InterruptedIOException("Interrupted while decoding");
+		}
+		catch(ExecutionException e){
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void add(PbfDecoder.Block block){
+		for(int i = 0; i < block.nodeCount; i++)
+			nodes.add(block.nodeIds[i], block.nodeLats[i], block.nodeLons[i], block.nodeChangesets[i]);
+		for(PbfDecoder.Way way : block.ways){
+			ExtractWay extractWay = new ExtractWay(way.id, way.changeset, way.refs);
+			for(int i = 0; i < way.keys.length; i++)
+				extractWay.addTag(way.keys[i], way.values[i]);
+			route(extractWay);
+		}
+	}
+
+	/**
+	 * Reads an .osm file, on this thread only.
+	 */
+	private void readOsm(String fileName) throws IOException{
+		OsmEventReader reader = OsmEventReader.open(fileName);
+		ExtractWay currentWay = null;
+		LongList refs = new LongList();
+		try{
+			int event;
+			while((event = reader.next()) != OsmEventReader.END_DOCUMENT){
+				try{
+					if(event==OsmEventReader.NODE)
+						nodes.add(reader.getId(), (int)Math.round(reader.getLat() * 1e7), (int)Math.round(reader.getLon() * 1e7),
+								reader.getChangeset());
+					else if(event==OsmEventReader.WAY){
+						currentWay = new ExtractWay(reader.getId(), reader.getChangeset(), null);
+						refs.size = 0;
+					}
+					else if(event==OsmEventReader.ND && currentWay!=null)
+						refs.add(reader.getRef());
+					else if(event==OsmEventReader.TAG && currentWay!=null)
+						currentWay.addTag(reader.getKey(), reader.getValue());
+					else if(event==OsmEventReader.BOUNDS && bounds==null)
+						bounds = new double[]{reader.getMinLon(), reader.getMinLat(), reader.getMaxLon(), reader.getMaxLat()};
+					else if(event==OsmEventReader.WAY_END && currentWay!=null){
+						currentWay.refs = Arrays.copyOf(refs.values, refs.size);
+						route(currentWay);
+						currentWay = null;
+					}
+				}
+				catch(Exception e){
+					Log.e(e);
+					Log.v("ERROR", "Ignoring...");
+				}
+			}
+		}
+		finally{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Adds an important Way to the list of every Tile that contains one of its Nodes.
+	 */
+	private void route(ExtractWay way){
+		if(!way.isImportant())
+			return;
+		nodes.seal();
+
+		long[] keys = new long[way.refs.length];
+		int count = 0;
+		for(long ref : way.refs){
+			int index = nodes.indexOf(ref);
+			if(index < 0)
+				continue;
+			long key = pointKey(nodes.lons[index], nodes.lats[index]);
+			boolean seen = false;
+			for(int i = 0; i < count && !seen; i++)
+				seen = keys[i]==key;
+			if(!seen)
+				keys[count++] = key;
+		}
+
+		for(int i = 0; i < count; i++){
+			List<ExtractWay> ways = waysByTile.get(keys[i]);
+			if(ways==null){
+				ways = new ArrayList<ExtractWay>();
+				waysByTile.put(keys[i], ways);
+			}
+			ways.add(way);
+		}
+	}
+
+	/**
+	 * Builds the detailed map of each Tile on the pool and hands it to the resolvers.  The resolvers' queue is
+	 * bounded, so this only runs a few Tiles ahead of them.
+	 */
+	private void buildTiles(List<Tile> tiles, final String fileName) throws IOException{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try{
+			for(final Tile tile : tiles){
+				final long key = tileKey(tile.getGrid_x(), tile.getGrid_y());
+				pool.submit(new Runnable(){
+					@Override
+					public void run(){
+						try{
+							List<ExtractWay> ways;
+							synchronized(waysByTile){
+								ways = waysByTile.remove(key);
+							}
+							BBox parsedBox = ParserThread.parseBBox(new TileReader(nodes, ways), fileName + " " + tile,
+									ParserThread.tileCoordinates(tile));
+							parsedBox.setTile(tile);
+							DBResolverThread.enqueueDetailedBBox(parsedBox);
+						}
+						catch(InterruptedException e){
+							Controller.retryDownload(tile);
+						}
+						catch(Exception e){
+							//Fall back to downloading this Tile, so the pipeline still finishes
+							Log.v("OSM", "Failed to build " + tile + " from " + fileName);
+							Log.e(e);
+							Controller.retryDownload(tile);
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		}
+		catch(InterruptedException e){
+			throw new InterruptedIOException("Interrupted while building tiles");
+		}
+		finally{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return The key of the Tile containing a point, as stored in waysByTile
+	 */
+	private static long pointKey(int lon7, int lat7){
+		return tileKey((int)Math.floor(lon7 / 1e7 / Tile.BIG_TILE_SIZE), (int)Math.floor(lat7 / 1e7 / Tile.BIG_TILE_SIZE));
+	}
+
+	private static long tileKey(int grid_x, int grid_y){
+		return ((long)grid_x << 32) | (grid_y & 0xffffffffL);
+	}
+
+
+	/**
+	 * A Way of the extract, with only the tags that the parser looks at
+	 */
+	private static class ExtractWay {
+		final long id;
+		final long changeset;
+		long[] refs;
+		String[] keys = new String[0];
+		String[] values = new String[0];
+
+		ExtractWay(long id, long changeset, long[] refs){
+			this.id = id;
+			this.changeset = changeset;
+			this.refs = refs;
+		}
+
+		void addTag(String key, String value){
+			if(!WAY_KEYS.contains(key))
+				return;
+			keys = Arrays.copyOf(keys, keys.length + 1);
+			values = Arrays.copyOf(values, values.length + 1);
+			keys[keys.length - 1] = key;
+			values[values.length - 1] = value;
+		}
+
+		/**
+		 * @return True if ParserThread.parseBBox() would keep this Way
+		 */
+		boolean isImportant(){
+			Way way = new Way();
+			for(int i = 0; i < keys.length; i++)
+				way.addTag(keys[i], values[i]);
+			return way.isImportant();
+		}
+	}
+
+	/**
+	 * The Nodes of the extract in parallel primitive arrays.  Coordinates are in units of 1e-7 degrees.
+	 * <p>Extracts are normally sorted by id, so Nodes are appended and found by binary search.  If they are not, they
+	 * are sorted once, when seal() is called.  Read-only after that, so any number of threads may look Nodes up.
+	 */
+	private static class NodeStore {
+		long[] ids = new long[1024];
+		int[] lats = new int[1024];
+		int[] lons = new int[1024];
+		long[] changesets = new long[1024];
+		int size = 0;
+		boolean sorted = true;
+		boolean sealed = false;
+
+		void add(long id, int lat, int lon, long changeset){
+			if(sealed){
+				//Nodes after Ways cannot be found by the Ways which came before them
+				Log.v("OSM", "Ignoring node " + id + " which comes after the ways");
+				return;
+			}
+			if(size==ids.length){
+				int capacity = size * 2;
+				ids = Arrays.copyOf(ids, capacity);
+				lats = Arrays.copyOf(lats, capacity);
+				lons = Arrays.copyOf(lons, capacity);
+				changesets = Arrays.copyOf(changesets, capacity);
+			}
+			if(size > 0 && id <= ids[size - 1])
+				sorted = false;
+			ids[size] = id;
+			lats[size] = lat;
+			lons[size] = lon;
+			changesets[size] = changeset;
+			size++;
+		}
+
+		void seal(){
+			if(sealed)
+				return;
+			sealed = true;
+			if(!sorted){
+				Log.v("OSM", "Sorting " + size + " nodes by id");
+				Integer[] order = new Integer[size];
+				for(int i = 0; i < size; i++)
+					order[i] = i;
+				final long[] unsortedIds = ids;
+				Arrays.sort(order, new Comparator<Integer>(){
+					@Override
+					public int compare(Integer a, Integer b){
+						return Long.compare(unsortedIds[a], unsortedIds[b]);
+					}
+				});
+				long[] newIds = new long[size];
+				int[] newLats = new int[size], newLons = new int[size];
+				long[] newChangesets = new long[size];
+				for(int i = 0; i < size; i++){
+					newIds[i] = ids[order[i]];
+					newLats[i] = lats[order[i]];
+					newLons[i] = lons[order[i]];
+					newChangesets[i] = changesets[order[i]];
+				}
+				ids = newIds;
+				lats = newLats;
+				lons = newLons;
+				changesets = newChangesets;
+				sorted = true;
+			}
+		}
+
+		/**
+		 * @return The index of a Node, or -1 if it is not in the extract
+		 */
+		int indexOf(long id){
+			int index = Arrays.binarySearch(ids, 0, size, id);
+			return index < 0 ? -1 : index;
+		}
+	}
+
+	/**
+	 * Replays the Ways of one Tile, and the Nodes they use, as if they had been read from the OSM server's answer for
+	 * that Tile: first every Node, then each Way with its nds and tags.
+	 */
+	private static class TileReader extends OsmEventReader {
+		private final NodeStore nodes;
+		private final List<ExtractWay> ways;
+
+		/**
+		 * Indexes into nodes of every Node used by the Ways, in order
+		 */
+		private final int[] nodeIndexes;
+
+		private int nodeIndex = -1;
+		private int wayIndex = 0;
+
+		/**
+		 * Position within the current Way: -1 before its WAY event, then its refs, then its tags
+		 */
+		private int part = -1;
+
+		//The current element
+		private int node;
+		private long ref;
+		private String key, value;
+
+		TileReader(NodeStore nodes, List<ExtractWay> ways){
+			this.nodes = nodes;
+			this.ways = ways==null ? new ArrayList<ExtractWay>() : ways;
+
+			int count = 0;
+			for(ExtractWay way : this.ways)
+				count += way.refs.length;
+			int[] indexes = new int[count];
+			count = 0;
+			for(ExtractWay way : this.ways){
+				for(long ref : way.refs){
+					int index = nodes.indexOf(ref);
+					if(index >= 0)
+						indexes[count++] = index;
+				}
+			}
+			Arrays.sort(indexes, 0, count);
+			int unique = 0;
+			for(int i = 0; i < count; i++)
+				if(unique==0 || indexes[i]!=indexes[unique - 1])
+					indexes[unique++] = indexes[i];
+			this.nodeIndexes = Arrays.copyOf(indexes, unique);
+		}
+
+		@Override
+		public int next(){
+			if(nodeIndex + 1 < nodeIndexes.length){
+				node = nodeIndexes[++nodeIndex];
+				return NODE;
+			}
+			nodeIndex = nodeIndexes.length;
+
+			if(wayIndex >= ways.size())
+				return END_DOCUMENT;
+			ExtractWay way = ways.get(wayIndex);
+			if(part < 0){
+				part = 0;
+				return WAY;
+			}
+			if(part < way.refs.length){
+				ref = way.refs[part++];
+				return ND;
+			}
+			int tag = part - way.refs.length;
+			if(tag < way.keys.length){
+				key = way.keys[tag];
+				value = way.values[tag];
+				part++;
+				return TAG;
+			}
+			wayIndex++;
+			part = -1;
+			return WAY_END;
+		}
+
+		@Override
+		public void close(){
+		}
+
+		private boolean inNodes(){
+			return nodeIndex < nodeIndexes.length;
+		}
+
+		@Override
+		public long getId(){
+			return inNodes() ? nodes.ids[node] : ways.get(wayIndex).id;
+		}
+
+		@Override
+		public long getChangeset(){
+			return inNodes() ? nodes.changesets[node] : ways.get(wayIndex).changeset;
+		}
+
+		@Override
+		public double getLat(){
+			return nodes.lats[node] / 1e7;
+		}
+
+		@Override
+		public double getLon(){
+			return nodes.lons[node] / 1e7;
+		}
+
+		@Override
+		public long getRef(){
+			return ref;
+		}
+
+		@Override
+		public String getKey(){
+			return key;
+		}
+
+		@Override
+		public String getValue(){
+			return value;
+		}
+	}
+
+	/**
+	 * A growable array of longs
+	 */
+	private static class LongList {
+		long[] values = new long[64];
+		int size = 0;
+
+		void add(long value){
+			if(size==values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+}
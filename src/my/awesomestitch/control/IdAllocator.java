@@ -0,0 +1,260 @@
+package my.awesomestitch.control;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import my.awesomestitch.mapobjects.DBObject;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Hands out unique ids for one table.  Ids are taken from a block held in memory with a single atomic add, so
+ * parser and resolver threads never wait on each other to number their objects.  When a block runs out, the next one
+ * is reserved from a Postgres sequence (tmp_schema.[table]_id_seq), which counts up by BLOCK_SIZE on every nextval().
+ * Every program sharing the schema reserves its blocks from the same sequence, so they never hand out the same id.
+ * <p>Tables without a sequence (see createSequence()) are numbered by a counter in memory, starting after the highest
+ * id in the table, as before.  Ids are unique but not dense: a block that is not used up is simply skipped.
+ */
+class IdAllocator {
+
+	/**
+	 * The number of ids reserved by each nextval().  It is the INCREMENT of every sequence, so it can never change
+	 * once a schema has been created.
+	 */
+	static final int BLOCK_SIZE = 1000;
+
+	/**
+	 * The allocator of each table, by the table's name with the schema filled in
+	 */
+	private static final ConcurrentMap<String, IdAllocator> allocators = new ConcurrentHashMap<String, IdAllocator>();
+
+	/**
+	 * A range of ids which this program may hand out.  Ids are counted as positive magnitudes - tables that use
+	 * negative ids negate them on the way out.
+	 */
+	private static class Block {
+		final AtomicLong next;
+		final long end;
+
+		Block(long first, long end){
+			this.next = new AtomicLong(first);
+			this.end = end;
+		}
+	}
+
+	private final DBObject prototype;
+	private final String tableName;
+	private final boolean negative;
+
+	/**
+	 * False if this table has no sequence (or it could not be used), so ids are counted in memory only
+	 */
+	private volatile boolean sequenced;
+
+	private volatile Block block = new Block(0, 0);
+
+	private IdAllocator(DBObject prototype, String tableName, boolean sequenced){
+		this.prototype = prototype;
+		this.tableName = tableName;
+		this.negative = prototype.usesNegativeId();
+		this.sequenced = sequenced;
+	}
+
+	/**
+	 * Gets the allocator for a type of object.  If createSequence() has not been called for it, it counts in memory.
+	 * @param dbo Any object of the type in question
+	 * @return The allocator
+	 */
+	static IdAllocator get(DBObject dbo){
+		String tableName = trueTableName(dbo);
+		IdAllocator allocator = allocators.get(tableName);
+		if(allocator==null){
+			allocators.putIfAbsent(tableName, new IdAllocator(dbo, tableName, false));
+			allocator = allocators.get(tableName);
+		}
+		return allocator;
+	}
+
+	/**
+	 * Makes sure a type of object has a sequence in the current schema, creating it just past the highest id in its
+	 * table if needed, and makes get() return an allocator which uses it.
+	 * @param dbo Any object of the type in question
+	 */
+	static void createSequence(DBObject dbo){
+		String tableName = trueTableName(dbo);
+		String sequenceName = tableName + "_id_seq";
+		String[] parts = sequenceName.split("\\.");
+
+		Connection con = null;
+		try{
+			con = DBConnection.getConnection();
+			boolean exists;
+			try(PreparedStatement pst = con.prepareStatement("SELECT 1 FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+					+ "WHERE n.nspname = ? AND c.relname = ? AND c.relkind = 'S';")){
+				pst.setString(1, parts[0]);
+				pst.setString(2, parts[1]);
+				try(ResultSet rs = pst.executeQuery()){
+					exists = rs.next();
+				}
+			}
+
+			if(!exists){
+				long start = highestId(con, dbo) + 1;
+				Log.v("DB", "Creating sequence " + sequenceName + " starting at " + start);
+				try(Statement st = con.createStatement()){
+					st.executeUpdate("CREATE SEQUENCE " + sequenceName + " INCREMENT BY " + BLOCK_SIZE + " START WITH " + start + ";");
+				}
+				catch(SQLException e){
+					//Another program sharing this schema may have created it first - that is ok
+					if(!"42P07".equals(e.getSQLState()) && !"23505".equals(e.getSQLState()))
+						throw e;
+				}
+			}
+			allocators.put(tableName, new IdAllocator(dbo, tableName, true));
+		}
+		catch(SQLException e){
+			Log.v("DB", "Could not create " + sequenceName + " - ids will be counted in memory");
+			Log.e(e);
+		}
+		finally{
+			DBConnection.releaseConnection();
+		}
+	}
+
+	/**
+	 * Forgets every allocator, along with any ids they had reserved.  Called when the schema changes.
+	 */
+	static void clear(){
+		allocators.clear();
+	}
+
+	/**
+	 * Reserves a block of consecutive ids.
+	 * @param count The number of ids
+	 * @return The first id of the block.  The others follow it, counting up - or down, if the table uses negative ids
+	 */
+	long reserve(int count){
+		while(true){
+			Block current = block;
+			long first = current.next.getAndAdd(count);
+			if(first + count <= current.end)
+				return negative ? -first : first;
+			//This block is used up - the first thread to notice gets the next one, and the others retry on it.
+			//Check out this thread's connection first, so refill() never waits on the pool while holding the lock.
+			boolean checkedOut = false;
+			try{
+				DBConnection.getConnection();
+				checkedOut = true;
+			}
+			catch(SQLException e){
+				Log.e(e);
+			}
+			try{
+				refill(current, count);
+			}
+			finally{
+				if(checkedOut)
+					DBConnection.releaseConnection();
+			}
+		}
+	}
+
+	private synchronized void refill(Block exhausted, int count){
+		if(block!=exhausted)
+			return;
+		if(sequenced){
+			try{
+				block = fetchBlock(count);
+				return;
+			}
+			catch(SQLException e){
+				Log.v("DB", "Could not reserve ids for " + tableName + " from its sequence - counting in memory instead");
+				Log.e(e);
+				sequenced = false;
+			}
+		}
+		//Count in memory, starting after the last block we had (or after the highest id in the table)
+		long first = exhausted.end;
+		if(first==0){
+			Connection con = null;
+			try{
+				con = DBConnection.getConnection();
+				first = highestId(con, prototype) + 1;
+			}
+			catch(SQLException e){
+				Log.v("DB", "SQL EXCEPTION - couldn't query " + tableName + " for highest entry");
+				first = 1;
+			}
+			finally{
+				DBConnection.releaseConnection();
+			}
+		}
+		block = new Block(first, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reserves enough blocks from the sequence for count ids.  If several blocks are needed and another program takes
+	 * one in between, they are not consecutive - they are abandoned and we try again.
+	 */
+	private Block fetchBlock(int count) throws SQLException{
+		int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		String sql = "SELECT nextval('" + tableName + "_id_seq') FROM generate_series(1, " + blocks + ");";
+
+		Connection con = DBConnection.getConnection();
+		try{
+			while(true){
+				//A failed nextval() must not abort the transaction of the thread that asked for an id
+				Savepoint savepoint = DBConnection.savepointIfInTransaction(con);
+				long first = 0, last = 0;
+				boolean consecutive = true;
+				try(Statement st = con.createStatement(); ResultSet rs = st.executeQuery(sql)){
+					for(int i = 0; rs.next(); i++){
+						long value = rs.getLong(1);
+						if(i==0)
+							first = value;
+						else if(value!=last + BLOCK_SIZE)
+							consecutive = false;
+						last = value;
+					}
+					DBConnection.releaseSavepoint(con, savepoint);
+				}
+				catch(SQLException e){
+					DBConnection.rollbackToSavepoint(con, savepoint);
+					throw e;
+				}
+				if(consecutive)
+					return new Block(first, last + BLOCK_SIZE);
+			}
+		}
+		finally{
+			DBConnection.releaseConnection();
+		}
+	}
+
+	/**
+	 * @return The magnitude of the highest id in the table of this type of object, or 0 if it has no highest id query
+	 */
+	private static long highestId(Connection con, DBObject dbo) throws SQLException{
+		String query = dbo.getHighestIdQuery();
+		if(query==null)
+			return 0;
+		query = query.replace("tmp_schema", DBConnection.getSchemaName());
+		try(Statement st = con.createStatement(); ResultSet rs = st.executeQuery(query)){
+			Log.v("DEBUG", query);
+			rs.next();
+			return Math.abs(rs.getLong(1));
+		}
+	}
+
+	private static String trueTableName(DBObject dbo){
+		return dbo.getTableName().replace("tmp_schema", DBConnection.getSchemaName());
+	}
+}
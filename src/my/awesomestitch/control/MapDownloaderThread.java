@@ -1,46 +1,81 @@
 package my.awesomestitch.control;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
-import java.util.Set;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DecompressingHttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
 
 import my.awesomestitch.control.DBConnection;
+import my.awesomestitch.mapobjects.BBox;
+import my.awesomestitch.mapobjects.OsmEventReader;
 import my.awesomestitch.mapobjects.Tile;
 import my.awesomestitch.mapobjects.User;
 import my.awesomestitch.mapobjects.UserTile;
 
-
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Downloads Tiles from the OSM server.  Every downloader shares one pooled, gzip-aware HttpClient (see getHttpClient()),
+ * so connections are kept alive between Tiles, and the body goes from the socket to disk with FileChannel.transferFrom().
+ * <p>Each download blocks its thread: the number of downloads in flight is max_downloader_threads, and
+ * max_http_connections only needs to be as large.  Non-blocking transfers would need HttpAsyncClient (or a hand-written
+ * NIO HTTP client with TLS and chunked encoding), which is not among our libraries - and the OSM server is slow to
+ * start sending each map, so a few more blocked threads cost far less than the transfers themselves.
+ */
 public class MapDownloaderThread extends Thread{
 	// private static int MAX_DOWNLOAD_THREADS = 2;
 	private static int thread_num = 1;
 	public String name;
 
-	private static List<MapDownloaderThread> runningThreads = new LinkedList<MapDownloaderThread>();
-	private static Queue<Tile> toDownloadQueue = new LinkedList<Tile>();
-	private static HashSet<Tile> workingSet = new HashSet<Tile>();
-
 	//private final String OSM_SERVER_NAME = "http://jxapi.openstreetmap.org/xapi/api/0.6/map?";
 
+	//Timeouts of the shared HTTP client.  The read timeout is long because the server may think for a while
+	//before it starts sending a big map.
+	private static final int CONNECT_TIMEOUT_MS = 30 * 1000;
+	private static final int READ_TIMEOUT_MS = 5 * 60 * 1000;
 
-	Tile tileToDownload = null;
-	boolean isComplete = false;
+	/**
+	 * The most bytes moved from the socket to the file by one transferFrom()
+	 */
+	private static final long TRANSFER_SIZE = 1 << 20;
 
-	public MapDownloaderThread(Tile tile){
-		tileToDownload = tile;
+	private static int maxConnections = 8;
+
+	/**
+	 * If true, each response is parsed as it arrives - see setParseWhileDownloading()
+	 */
+	private static boolean parseWhileDownloading = false;
+
+	/**
+	 * Shared by every downloader - see getHttpClient()
+	 */
+	private static HttpClient httpClient = null;
+
+
+	/**
+	 * Creates a downloader worker.  Once started, it downloads Tiles from Controller's download queue until
+	 * the program exits.
+	 */
+	public MapDownloaderThread(){
 		this.name = "DL " + thread_num++;
+		setName(name);
 	}
 
 
@@ -52,59 +87,67 @@ public class MapDownloaderThread extends Thread{
 
 	@Override
 	public void run(){
-		
-		
+		while(true){
+			Tile tileToDownload;
+			try {
+				tileToDownload = Controller.takeTileToDownload();
+			} catch (InterruptedException e) {
+				return;
+			}
 
-		echo("Processing " + tileToDownload);
+			echo("Processing " + tileToDownload);
 
-		//If we were able to get a tile, it must be downloaded and marked for processing
-		if(tileToDownload!=null){
 			try{
-				//Mark this tile as currently downloading
-				synchronized(Controller.lock){
+				if(parseWhileDownloading){
+					//Mark this tile as currently downloading AND parsing
 					tileToDownload.setDownload_status(Tile.IN_PROGRESS);
-					DBConnection.updateTile(tileToDownload);
-				}
+					tileToDownload.setDetailed_map_status(Tile.IN_PROGRESS);
+					Controller.recordStatus(tileToDownload);
+
+					echo("Downloading and parsing " + tileToDownload);
+					BBox parsedBox = downloadAndParseTile(tileToDownload);
 
-				echo("Downloading " + tileToDownload);
-				downloadTile(tileToDownload);
-				
-				//Tile successfully downloaded.  Mark it as complete
-				synchronized(Controller.lock){
+					//The parsers are skipped - the detailed map goes straight to the DB
 					tileToDownload.setDownload_status(Tile.DONE);
-					DBConnection.updateTile(tileToDownload);
+					Controller.recordStatus(tileToDownload);
+					parsedBox.setTile(tileToDownload);
+					DBResolverThread.enqueueDetailedBBox(parsedBox);
 				}
+				else{
+					//Mark this tile as currently downloading
+					tileToDownload.setDownload_status(Tile.IN_PROGRESS);
+					Controller.recordStatus(tileToDownload);
 
+					echo("Downloading " + tileToDownload);
+					downloadTile(tileToDownload);
 
+					//Tile successfully downloaded.  Mark it as complete and hand it to the parsers
+					tileToDownload.setDownload_status(Tile.DONE);
+					Controller.recordStatus(tileToDownload);
+					Controller.tileDownloaded(tileToDownload);
+				}
 			}
 			catch(IOException e){
 				//Tile failed to download.  Put it back into the waiting state.
 				//This means we will try again later.
 				echo("Failed " + tileToDownload);
-				synchronized(Controller.lock){
-					tileToDownload.setDownload_status(Tile.WAITING);
-					DBConnection.updateTile(tileToDownload);
-				}
+				Controller.retryDownload(tileToDownload);
+			}
+			catch(InterruptedException e){
+				return;
+			}
+			catch(Exception e){
+				//Never let one bad tile kill the worker
+				Log.e(e);
+				Controller.retryDownload(tileToDownload);
 			}
 		}
-
-		//Mark this thread as complete and start any new threads if necessary
-		isComplete = true;
-		Controller.startThreadsIfNecessary();
-
 	}
 
 	/**
-	 * Tells whether the thread is finished running.  This can happen due to a successful run or an error.
-	 * @return True if the thread completed successfully or failed, False if it is still running
+	 * @return The URL from which the OSM server sends the map of a Tile
 	 */
-	public boolean isFinished(){
-		if(isComplete)
-			return true;
-		return !super.isAlive();
-	}
-
-	private void downloadTile(Tile tile) throws IOException{
+	private static String tileAddress(Tile tile){
 		//Extract coordinates from the tile
 		double left = tile.getLeft_lon();
 		double bottom = tile.getBottom_lat();
@@ -115,49 +158,26 @@ public class MapDownloaderThread extends Thread{
 		if(left > 180 || right > 180){left -= 360;right -= 360;}
 		if(left < -180 || right < -180){left += 360; right +=360;}
 
-		long start_time = System.currentTimeMillis();
-
-
 		//URL makes call to openstreetmap's jxapi library
-		String address = DBConnection.OSM_SERVER_NAME + "bbox=" + left + "," + bottom + "," + right + "," + top;
+		return DBConnection.OSM_SERVER_NAME + "bbox=" + left + "," + bottom + "," + right + "," + top;
+	}
 
+	private void downloadTile(Tile tile) throws IOException{
+		long start_time = System.currentTimeMillis();
+		String address = tileAddress(tile);
 
 		//The place where we will save the returned .osm file
-		String outPath = tile.fileName();
-
-		//Initiate Apache HTTP request
-		HttpGet httpGet = new HttpGet(address);
-		httpGet.setHeader("Accept", "text/html,application/xhtml+xml,application/xml");
-
-		InputStream in = null;
-		OutputStream out = null;
+		File outFile = new File(tile.fileName());
 		File tmp = new File(Tile.MAP_DIR);
 		tmp.mkdir();
 
+		long bytes;
 		try{
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpResponse response = httpclient.execute(httpGet);
-			HttpEntity entity = response.getEntity();
-
-			//Read bytes from the http response and write them to the file
-			out = new FileOutputStream(outPath);
-			if (entity != null) {
-				in = entity.getContent();
-				int CHUNK_SIZE = 4096;
-				byte data[] = new byte[CHUNK_SIZE];
-				int count;
-				while((count=in.read(data, 0, CHUNK_SIZE)) != -1){
-					out.write(data, 0, count);
-				}
-			}
+			bytes = download(address, outFile);
 		}
 		catch(IOException e){
 			Log.v("OSM", "Failure downloading tile.");
 			Log.e(e);
-			if(in!=null)
-				in.close();
-			if(out!=null)
-				out.close();
 			throw e;
 		}
 
@@ -165,31 +185,198 @@ public class MapDownloaderThread extends Thread{
 
 		long elapsed = (stop_time - start_time) / 1000;
 
-		String partialFile = outPath.split("/")[1];
-		Log.v("TILE", "Successfully downloaded " + partialFile + " after " + elapsed + " secs.");
+		Log.v("TILE", "Successfully downloaded " + outFile.getName() + " (" + bytes + " bytes) after " + elapsed + " secs.");
+	}
 
-		in.close();
-		out.close();
+	/**
+	 * Downloads and parses a Tile in one pass, saving the .osm file along the way.
+	 * @param tile The Tile
+	 * @return Its detailed map
+	 * @throws IOException If the download fails at any point - no partial map is ever returned
+	 */
+	private BBox downloadAndParseTile(Tile tile) throws IOException{
+		long start_time = System.currentTimeMillis();
+		File outFile = new File(tile.fileName());
+		new File(Tile.MAP_DIR).mkdir();
 
-	}
+		BBox parsedBox;
+		try{
+			parsedBox = downloadAndParse(tileAddress(tile), outFile, ParserThread.tileCoordinates(tile));
+		}
+		catch(IOException e){
+			Log.v("OSM", "Failure downloading tile.");
+			Log.e(e);
+			throw e;
+		}
 
+		long elapsed = (System.currentTimeMillis() - start_time) / 1000;
+		Log.v("TILE", "Successfully downloaded and parsed " + outFile.getName() + " after " + elapsed + " secs.");
+		return parsedBox;
+	}
 
+	/**
+	 * Chooses whether downloaders also parse.  If so, each response is parsed while it arrives, instead of being
+	 * saved first and read back from disk by a ParserThread, so a Tile takes about as long as the slower of the two
+	 * instead of both.  The .osm file is still saved.  Parsing then happens on the downloader threads, so there
+	 * should be at least as many of them as there would have been parsers.  Must be called before the pipeline starts.
+	 * @param fused True to download and parse in one pass
+	 */
+	public static void setParseWhileDownloading(boolean fused){
+		parseWhileDownloading = fused;
+	}
 
-	public static void joinAll(){
+	/**
+	 * Sets the most HTTP connections kept open to the OSM server, shared by all downloaders.  Must be called before
+	 * the first download.
+	 * @param max The size of the connection pool
+	 */
+	public static void setMaxConnections(int max){
+		maxConnections = max;
+	}
 
-		List<MapDownloaderThread> threads = new LinkedList<MapDownloaderThread>(runningThreads);
+	/**
+	 * Gets the HTTP client shared by every downloader.  Its connections are pooled and kept alive between requests,
+	 * so consecutive Tiles from the same server skip the TCP (and TLS) handshake.  It asks for gzip-compressed
+	 * responses and transparently decompresses them.
+	 * @return The client, which is safe to use from any number of threads at once
+	 */
+	static synchronized HttpClient getHttpClient(){
+		if(httpClient==null){
+			PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+			connectionManager.setMaxTotal(maxConnections);
+			connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+			DefaultHttpClient client = new DefaultHttpClient(connectionManager);
+			HttpConnectionParams.setConnectionTimeout(client.getParams(), CONNECT_TIMEOUT_MS);
+			HttpConnectionParams.setSoTimeout(client.getParams(), READ_TIMEOUT_MS);
+
+			//Adds Accept-Encoding: gzip,deflate to every request and decompresses the responses
+			httpClient = new DecompressingHttpClient(client);
+		}
+		return httpClient;
+	}
 
-		for(MapDownloaderThread thread : threads){
-			try {
-				thread.join();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				Log.e(e);
+	/**
+	 * Downloads a URL into a file.  The body is moved from the socket to the file through NIO channels, and is first
+	 * written to a .part file which is renamed when complete, so the parser never sees half of a file.
+	 * Any server that answers GET requests (e.g. a local stand-in for the OSM server) will do.
+	 * @param address The URL
+	 * @param outFile The file to write - it is replaced if it exists
+	 * @return The number of bytes written (after decompression)
+	 * @throws IOException If the request fails, the server does not answer 200 OK, or the file cannot be written
+	 */
+	static long download(String address, File outFile) throws IOException{
+		HttpGet httpGet = newRequest(address);
+		File partFile = new File(outFile.getPath() + ".part");
+		try{
+			HttpEntity entity = execute(httpGet);
+
+			long bytes = 0;
+			try(FileOutputStream out = new FileOutputStream(partFile); FileChannel file = out.getChannel()){
+				if(entity != null){
+					//Closing the stream at its end gives the connection back to the pool
+					try(ReadableByteChannel in = Channels.newChannel(entity.getContent())){
+						long count;
+						while((count = file.transferFrom(in, bytes, TRANSFER_SIZE)) > 0)
+							bytes += count;
+					}
+				}
 			}
+
+			replace(partFile, outFile);
+			return bytes;
+		}
+		catch(IOException e){
+			//Drop the connection instead of reading the rest of a broken response
+			httpGet.abort();
+			partFile.delete();
+			throw e;
 		}
 	}
 
+	/**
+	 * Downloads an OSM document and parses it at the same time.  The response is teed: the parser reads it as it
+	 * arrives, and every byte is also written to a .part file, which is renamed to outFile once the whole response is
+	 * in, just like download().
+	 * @param address The URL
+	 * @param outFile The file to write - it is replaced if it exists
+	 * @param coordinates {left, top, right, bottom} of the map, as for ParserThread.parseBBox()
+	 * @return The detailed map
+	 * @throws IOException If the request fails, the server does not answer 200 OK, the response is cut short or is not
+	 * a well-formed document, or the file cannot be written.  A partial map is never returned.
+	 */
+	static BBox downloadAndParse(String address, File outFile, double[] coordinates) throws IOException{
+		HttpGet httpGet = newRequest(address);
+		File partFile = new File(outFile.getPath() + ".part");
+		try{
+			HttpEntity entity = execute(httpGet);
+			if(entity == null)
+				throw new IOException("Empty response from " + address);
+
+			BBox parsedBox;
+			try(TeeInputStream tee = new TeeInputStream(entity.getContent(),
+					new BufferedOutputStream(new FileOutputStream(partFile), 1 << 16))){
+				//The parser closes its stream at the end of the document, but the rest must still be copied to disk
+				InputStream unclosable = new FilterInputStream(tee){
+					@Override
+					public void close(){}
+				};
+				try{
+					parsedBox = ParserThread.parseBBox(new OsmEventReader(unclosable), outFile.getPath(), coordinates, true);
+				}
+				catch(IOException e){
+					//Report the network error rather than the parse error it caused
+					throw tee.getFailure()!=null ? tee.getFailure() : e;
+				}
+				//The .part file may have failed to write even though the parser read everything
+				if(tee.getFailure()!=null)
+					throw tee.getFailure();
+				tee.drain();
+			}
 
+			replace(partFile, outFile);
+			return parsedBox;
+		}
+		catch(IOException e){
+			//Drop the connection instead of reading the rest of a broken response
+			httpGet.abort();
+			partFile.delete();
+			throw e;
+		}
+	}
 
+	private static HttpGet newRequest(String address){
+		//Initiate Apache HTTP request
+		HttpGet httpGet = new HttpGet(address);
+		httpGet.setHeader("Accept", "text/html,application/xhtml+xml,application/xml");
+		return httpGet;
+	}
+
+	/**
+	 * Sends a request with the shared client.
+	 * @return The body of the response, which the caller must read to the end (or abort the request)
+	 * @throws IOException If the request fails or the server does not answer 200 OK
+	 */
+	private static HttpEntity execute(HttpGet httpGet) throws IOException{
+		HttpResponse response = getHttpClient().execute(httpGet);
+		HttpEntity entity = response.getEntity();
+
+		int status = response.getStatusLine().getStatusCode();
+		if(status != HttpStatus.SC_OK){
+			//Read the rest of the error page so the connection can be reused
+			EntityUtils.consume(entity);
+			throw new IOException("Got " + response.getStatusLine() + " from " + httpGet.getURI());
+		}
+		return entity;
+	}
 
+	/**
+	 * Moves a finished .part file over the real one.
+	 */
+	private static void replace(File partFile, File outFile) throws IOException{
+		if(outFile.exists() && !outFile.delete())
+			throw new IOException("Could not replace " + outFile);
+		if(!partFile.renameTo(outFile))
+			throw new IOException("Could not rename " + partFile + " to " + outFile);
+	}
 }
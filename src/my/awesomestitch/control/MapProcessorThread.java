@@ -1,13 +1,5 @@
 package my.awesomestitch.control;
 
-import java.io.IOException;
-import java.text.DateFormat;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Properties;
-import java.util.Queue;
 //import java.util.Set;
 
 //import javax.mail.Message;
@@ -26,24 +18,27 @@ import my.awesomestitch.mapobjects.Tile;
 
 
 public class MapProcessorThread extends Thread {
-	private static Queue<Tile> toProcessQueue = new LinkedList<Tile>();
-
-	public static List<Tile> processingOrDownloading = new LinkedList<Tile>();
-
-	private static List<MapProcessorThread> runningThreads = new LinkedList<MapProcessorThread>();
 
 	String name;
 	static int thread_num = 1;
-	Tile tileToProcess = null;
-	boolean isComplete = false;
-
-
 
+	/**
+	 * If true, a Tile which has been processed before only has the chains that changed since then collapsed again
+	 * (see BBox.preprocessChanges()), instead of the whole map.
+	 */
+	private static boolean incrementalPreprocess = false;
 
+	public static void setIncrementalPreprocess(boolean incremental){
+		incrementalPreprocess = incremental;
+	}
 
-	public MapProcessorThread(Tile tile){
+	/**
+	 * Creates a processor worker.  Once started, it preprocesses Tiles from Controller's process queue until
+	 * the program exits.
+	 */
+	public MapProcessorThread(){
 		this.name = "PC " + thread_num++;
-		this.tileToProcess = tile;
+		setName(name);
 	}
 
 	public void echo(String str){
@@ -54,53 +49,76 @@ public class MapProcessorThread extends Thread {
 
 	@Override
 	public void run(){
+		while(true){
+			Tile tileToProcess;
+			try {
+				tileToProcess = Controller.takeTileToProcess();
+			} catch (InterruptedException e) {
+				return;
+			}
 
+			try{
+				processTile(tileToProcess);
+			}
+			catch(InterruptedException e){
+				return;
+			}
+			catch(Exception e){
+				Log.v("TILE", "Failed to process " + tileToProcess);
+				Log.e(e);
+				Controller.retryProcessing(tileToProcess);
+			}
+		}
+	}
 
+	/**
+	 * Builds the processed map of a Tile from the detailed map in the DB, and hands it to the DBResolverThread.
+	 * @param tileToProcess A Tile whose detailed map (and that of its neighbors) is in the DB
+	 * @throws InterruptedException If the thread is interrupted while waiting for room in the resolver's queue
+	 */
+	private void processTile(Tile tileToProcess) throws InterruptedException{
 		echo("got " + tileToProcess);
 
-		synchronized(Controller.lock){
-			tileToProcess.setProcessed_map_status(Tile.IN_PROGRESS);
-			DBConnection.updateTile(tileToProcess);
+		//When the detailed map that the Tile's processed map was built from was loaded, or 0 if it has none.
+		//Tiles which are requested again without being in the DB (or are downloaded again) start from 0.
+		long lastProcessed = 0;
+		if(incrementalPreprocess){
+			Tile stored = DBConnection.lookupTile(tileToProcess.getGrid_x(), tileToProcess.getGrid_y());
+			if(stored!=null)
+				lastProcessed = stored.getSnapshot_timestamp();
 		}
-		
-		
-		//If we were able to get a tile, it must be downloaded and marked for processing
-			//Get the coordinates of this tile and the current time
-			double left = tileToProcess.getLeft_lon();
-			double top = tileToProcess.getBottom_lat() + Tile.BIG_TILE_SIZE;
-			double right = tileToProcess.getLeft_lon() + Tile.BIG_TILE_SIZE;
-			double bottom = tileToProcess.getBottom_lat();
-			long NOW =System.currentTimeMillis();
-
-			//Load the newest version of the detailed map from the DB
-			BBox newDetailedMap = DBConnection.boundingBoxQuery(left, top, right, bottom, NOW, false, true, true, true);
-
-			//Perform the preprocessing - this is a fairly heavy computation
-			BBox newProcessedMap = newDetailedMap.preprocess();
-			newProcessedMap.setTile(tileToProcess);
-
-			//Add the processed tile to the list of DB updates
-			synchronized(Controller.lock){
-				DBResolverThread.enqueueProcessedBBox(newProcessedMap);
-			}
-
-
-
-
-		//Mark this thread as complete and start any new threads if necessary
-		isComplete = true;
-		Controller.startThreadsIfNecessary();
-	}
 
+		tileToProcess.setProcessed_map_status(Tile.IN_PROGRESS);
+		Controller.recordStatus(tileToProcess);
+
+		//Get the coordinates of this tile and the current time
+		double left = tileToProcess.getLeft_lon();
+		double top = tileToProcess.getBottom_lat() + Tile.BIG_TILE_SIZE;
+		double right = tileToProcess.getLeft_lon() + Tile.BIG_TILE_SIZE;
+		double bottom = tileToProcess.getBottom_lat();
+		long NOW =System.currentTimeMillis();
+		//Changes which are still being committed are not in the map we load, so it only counts as this new
+		long mapTimestamp = DBResolverThread.committedBefore(NOW);
+
+		//Load the newest version of the detailed map from the DB
+		BBox newDetailedMap = DBConnection.boundingBoxQuery(left, top, right, bottom, NOW, false, true, true, true);
+
+		//Perform the preprocessing - this is a fairly heavy computation
+		//If the Tile's processed map is in the DB, only the parts which changed since it was built are redone
+		BBox newProcessedMap = null;
+		if(incrementalPreprocess && lastProcessed > 0){
+			BBox oldProcessedMap = DBConnection.boundingBoxQuery(left, top, right, bottom, NOW, true, true, true, true);
+			newProcessedMap = newDetailedMap.preprocessChanges(oldProcessedMap, lastProcessed);
+			if(newProcessedMap==null)
+				echo("too many changes, preprocessing all of " + tileToProcess);
+		}
+		if(newProcessedMap==null)
+			newProcessedMap = newDetailedMap.preprocess();
+		newProcessedMap.setTile(tileToProcess);
+		newProcessedMap.setTimestamp(mapTimestamp);
 
-	/**
-	 * Tells whether the thread is finished running.  This can happen due to a successful run or an error.
-	 * @return True if the thread completed successfully or failed, False if it is still running
-	 */
-	public boolean isFinished(){
-		if(isComplete)
-			return true;
-		return !super.isAlive();
+		//Add the processed tile to the list of DB updates
+		DBResolverThread.enqueueProcessedBBox(newProcessedMap);
 	}
 
 	
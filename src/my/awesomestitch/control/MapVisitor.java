@@ -0,0 +1,29 @@
+package my.awesomestitch.control;
+
+import my.awesomestitch.mapobjects.Link;
+import my.awesomestitch.mapobjects.Node;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Receives the Nodes and Links of a map one at a time, as DBConnection.streamEntireMap() and
+ * DBConnection.streamBoundingBox() read them from a cursor.  Nothing is kept after a call returns, so an export,
+ * plot or analysis of the whole map only needs as much memory as the visitor itself holds on to.
+ * <p>All of the Nodes are visited before any of the Links.  In the detailed map they are DetailNodes and
+ * DetailLinks.  The visitor runs inside the read's transaction, on the reading thread's connection.
+ */
+public interface MapVisitor {
+
+	/**
+	 * Called once for each Node.
+	 * @param node The Node - it is not referenced again after this call
+	 */
+	public void visitNode(Node node);
+
+	/**
+	 * Called once for each Link, after every Node has been visited.
+	 * @param link The Link - it is not referenced again after this call
+	 */
+	public void visitLink(Link link);
+}
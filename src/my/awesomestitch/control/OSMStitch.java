@@ -1,8 +1,8 @@
 package my.awesomestitch.control;
 
+import java.io.File;
 import java.io.FileNotFoundException;
-
-import my.awesomestitch.mapobjects.BBox;
+import java.io.IOException;
 
 public class OSMStitch {
 	public static void main(String[] args){
@@ -12,13 +12,26 @@ public class OSMStitch {
 			Log.v("ERROR", "Config file not found.");
 		}
 		
-		//40.1130° N, 88.2612° W
-		Controller.enqueueSquare(-88.26, 40.113, 1, null, false);
+		if(args.length > 0){
+			//Load a local extract (.osm.pbf or .osm) instead of downloading, or update our tiles from a directory of change files
+			try {
+				if(new File(args[0]).isDirectory())
+					ChangeFileIngester.applyDirectory(args[0], null);
+				else
+					ExtractIngester.ingest(args[0], null, false);
+			} catch (IOException e) {
+				Log.v("ERROR", "Could not read " + args[0]);
+				Log.e(e);
+			}
+		}
+		else{
+			//40.1130° N, 88.2612° W
+			Controller.enqueueSquare(-88.26, 40.113, 1, null, false);
+		}
 		
 		Controller.joinAll();
 		
-		BBox box = DBConnection.getEntireMap(true);
-		Plotter.plotMap(box, "tmp_map.pdf");
+		Plotter.plotEntireMap(true, "tmp_map.pdf");
 		
 		
 		
@@ -42,9 +42,9 @@ import my.awesomestitch.mapobjects.DetailLinkMapping;
 import my.awesomestitch.mapobjects.DetailNode;
 import my.awesomestitch.mapobjects.Link;
 import my.awesomestitch.mapobjects.Node;
+import my.awesomestitch.mapobjects.OsmEventReader;
 import my.awesomestitch.mapobjects.Tile;
 import my.awesomestitch.mapobjects.Way;
-import my.awesomestitch.mapobjects.XMLTag;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -58,15 +58,59 @@ import org.postgresql.geometric.PGpoint;
 
 public class ParserThread extends Thread{
 
-	Tile tileToParse;
-	boolean isComplete = false;
+	private static int thread_num = 1;
 
-	public ParserThread(Tile tile){
-		tileToParse = tile;
+	/**
+	 * Creates a parser worker.  Once started, it parses downloaded Tiles from Controller's parse queue until
+	 * the program exits.
+	 */
+	public ParserThread(){
+		setName("PS " + thread_num++);
 	}
 
 
+	/**
+	 * Parses an .osm file into a detailed map.
+	 * @param fileName The .osm file
+	 * @param coordinates {left, top, right, bottom} of the map, or null to take them from the file's bounds
+	 * @return The detailed map, or null if the file does not exist
+	 */
 	public static BBox parseBBox(String fileName, double[] coordinates){
+		OsmEventReader reader;
+		try {
+			reader = OsmEventReader.open(fileName);
+		} catch (FileNotFoundException e) {
+			Log.v("OSM", "Incorrect file name: " + fileName);
+			Log.e(e);
+			return null;
+		}
+		return parseBBox(reader, fileName, coordinates);
+	}
+
+	/**
+	 * Parses OSM elements into a detailed map as the reader produces them.  The reader may be reading a file, or a
+	 * stream which is still arriving from the network (see MapDownloaderThread.downloadAndParse()).
+	 * @param reader A reader positioned at the start of an OSM document - it is closed when the document ends
+	 * @param fileName The name of the document, for logging
+	 * @param coordinates {left, top, right, bottom} of the map, or null to take them from the document's bounds
+	 * @return The detailed map.  If the document is truncated or malformed, the map of whatever was read before.
+	 */
+	public static BBox parseBBox(OsmEventReader reader, String fileName, double[] coordinates){
+		try{
+			return parseBBox(reader, fileName, coordinates, false);
+		}
+		catch(IOException e){
+			//Only thrown when strict
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Same as the previous method, but may refuse a truncated or malformed document.
+	 * @param strict If true, an error reading the document is thrown instead of ending the map where it occurred
+	 * @throws IOException If strict, and the document cannot be read to the end - the reader is closed
+	 */
+	public static BBox parseBBox(OsmEventReader reader, String fileName, double[] coordinates, boolean strict) throws IOException{
 
 		double left = 0, top = 0, right = 0, bottom = 0;
 		if(coordinates!=null){
@@ -95,73 +139,56 @@ public class ParserThread extends Thread{
 		//STEP 1 : Load all nodes from the file
 		//STEP 2 : Load all ways from the file (and update the way-count for referenced nodes)
 		//these steps are done together
-		List<XMLTag> tags;
-		try {
-			tags = XMLTag.parseFile(fileName);
-		} catch (FileNotFoundException e) {
-			Log.v("OSM", "Incorrect file name: " + fileName);
-			Log.e(e);
-			return null;
-		}
 
-		for(XMLTag tag : tags){
-			if(tag==null || tag.getType()==null)
-				continue;
-			
-			//System.out.println(line);
-			//parse the line into an XML tag and check the type
+		//Pull elements from the file one at a time - the document is never held in memory
+		int event;
+		while(true){
+			try{
+				event = reader.next();
+			}
+			catch(IOException e){
+				Log.v("OSM", "Error reading " + fileName);
+				Log.e(e);
+				if(strict){
+					reader.close();
+					throw e;
+				}
+				//A truncated or malformed file - keep whatever we have read so far
+				break;
+			}
+			if(event==OsmEventReader.END_DOCUMENT)
+				break;
+
 			try{
-				if(tag.getType().equals("bounds") && coordinates==null){
-					tmp_bbox.leftLon = Double.parseDouble(tag.getValue("minlon"));
-					tmp_bbox.rightLon = Double.parseDouble(tag.getValue("maxlon"));
-					tmp_bbox.bottomLat = Double.parseDouble(tag.getValue("minlat"));
-					tmp_bbox.topLat = Double.parseDouble(tag.getValue("maxlat"));
+				if(event==OsmEventReader.BOUNDS && coordinates==null){
+					tmp_bbox.leftLon = reader.getMinLon();
+					tmp_bbox.rightLon = reader.getMaxLon();
+					tmp_bbox.bottomLat = reader.getMinLat();
+					tmp_bbox.topLat = reader.getMaxLat();
 
 				}
-				if(tag.getType().equals("node")){
+				if(event==OsmEventReader.NODE){
 					//if it's a node, put it into the node table
-					Node n = new Node(tag);
-					//long osmId = Long.parseLong(tag.getValue("id"));
-					//osmNodeLookup.put(new Long(osmId), n);
-					//n.insertIntoDB();
+					Node n = new Node(reader);
 					tmp_bbox.add(n);
 				}
-				else if(tag.getType().equals("way")){
+				else if(event==OsmEventReader.WAY){
 					//if it's a way, extract the way id
 					currentWay = new Way();
-					currentWay.id = Long.parseLong(tag.getValue("id"));
-					currentWay.changeset = Long.parseLong(tag.getValue("changeset"));
+					currentWay.id = reader.getId();
+					currentWay.changeset = reader.getChangeset();
 				}
-				else if(tag.getType().equals("nd")){
+				else if(event==OsmEventReader.ND){
 					//if it's an nd tag, add this node to the current Way that we are building
-					//Node n = osmNodeLookup.get(new Long(osmId));
-					long osmId = Long.parseLong(tag.getValue("ref"));
+					long osmId = reader.getRef();
 					Node n = tmp_bbox.getNode(osmId);
 					currentWay.nodes.add(n);
 				}
-				else if(tag.getType().equals("tag")&& currentWay != null){
+				else if(event==OsmEventReader.TAG && currentWay != null){
 					//if it's a way tag, we may be able to extract the street name or class
-					String key = tag.getValue("k");
-					if(key.equals("name"))
-						currentWay.name = tag.getValue("v"); //get streetname from the tag
-					if(key.equals("ref") && currentWay.name==null)
-						currentWay.name = tag.getValue("v");
-					else if(key.equals("highway"))
-						currentWay.street_class = tag.getValue("v"); //get street class
-					else if(key.equals("oneway")){ //get one-way street status
-						String val = tag.getValue("v");
-						if(val.equals("yes") || val.equals("true") || val.equals("1")) //one way streets
-							currentWay.oneWay = true;
-						if(val.equals("no") || val.equals("false") || val.equals("0")) //normal streets
-							currentWay.oneWay = false;
-						if(val.equals("reverse") || val.equals("-1")){  	//one way streets that are encoded backwards
-							currentWay.oneWay = true;
-							currentWay.backwards = true;
-						}
-					}
-
+					currentWay.addTag(reader.getKey(), reader.getValue());
 				}
-				else if(tag.getType().equals("/way")){
+				else if(event==OsmEventReader.WAY_END){
 					//done building the current way
 					//update the nodes within this way and add the way to the list
 					if(currentWay.isImportant()){
@@ -177,6 +204,7 @@ public class ParserThread extends Thread{
 				Log.v("ERROR", "Ignoring...");
 			}
 		}
+		reader.close();
 
 
 		Log.v("OSM", "tmp_bbox : " + tmp_bbox);
@@ -306,44 +334,58 @@ public class ParserThread extends Thread{
 
 	@Override
 	public void run(){
-		//Mark this tile as currently processing
-		synchronized(Controller.lock){
-			tileToParse.setDetailed_map_status(Tile.IN_PROGRESS);
-			DBConnection.updateTile(tileToParse);
+		while(true){
+			Tile tileToParse;
+			try {
+				tileToParse = Controller.takeTileToParse();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try{
+				parseTile(tileToParse);
+			}
+			catch(InterruptedException e){
+				return;
+			}
+			catch(Exception e){
+				//The file is probably bad - download it again
+				Log.v("OSM", "Failed to parse " + tileToParse);
+				Log.e(e);
+				Controller.retryDownload(tileToParse);
+			}
 		}
+	}
+
+	/**
+	 * Parses the downloaded .osm file of a Tile and hands the resulting detailed map to the DBResolverThread.
+	 * @param tileToParse A Tile whose file has been downloaded
+	 * @throws InterruptedException If the thread is interrupted while waiting for room in the resolver's queue
+	 */
+	private void parseTile(Tile tileToParse) throws InterruptedException{
+		//Mark this tile as currently processing
+		tileToParse.setDetailed_map_status(Tile.IN_PROGRESS);
+		Controller.recordStatus(tileToParse);
 
 		//Extract file name and coordinates from the Tile
 		String fileName = tileToParse.fileName();
-		double[] coordinates = {tileToParse.getLeft_lon(), tileToParse.getBottom_lat() + Tile.BIG_TILE_SIZE,
-				tileToParse.getLeft_lon() + Tile.BIG_TILE_SIZE, tileToParse.getBottom_lat()};
+		double[] coordinates = tileCoordinates(tileToParse);
 
 		//Parse the file
 		BBox parsedBox = parseBBox(fileName, coordinates);
 		parsedBox.setTile(tileToParse);
 
 		//Add the newly created BBox to the queue of DB updates
-		synchronized(Controller.lock){
-			DBResolverThread.enqueueDetailedBBox(parsedBox);
-		}
-
-
-
-		//Mark this thread as complete and start any new threads if necessary
-		isComplete = true;
-		Controller.startThreadsIfNecessary();
-
-
+		DBResolverThread.enqueueDetailedBBox(parsedBox);
 	}
 
-
 	/**
-	 * Tells whether the thread is finished running.  This can happen due to a successful run or an error.
-	 * @return True if the thread completed successfully or failed, False if it is still running
+	 * @param tile Any Tile
+	 * @return {left, top, right, bottom} of the Tile, as expected by parseBBox()
 	 */
-	public boolean isFinished(){
-		if(isComplete)
-			return true;
-		return !super.isAlive();
+	static double[] tileCoordinates(Tile tile){
+		return new double[]{tile.getLeft_lon(), tile.getBottom_lat() + Tile.BIG_TILE_SIZE,
+				tile.getLeft_lon() + Tile.BIG_TILE_SIZE, tile.getBottom_lat()};
 	}
 
 
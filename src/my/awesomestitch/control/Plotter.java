@@ -56,6 +56,42 @@ public class Plotter {
 		plotMap(nodeFileName, linkFileName, outFileName);
 	}
 
+	/**
+	 * Plots the entire map in the DB as a PDF file.  The map is streamed straight from the DB into the temporary CSV
+	 * files, so it never has to fit in memory.
+	 * @param processed True to plot the processed map, False to plot the detailed map
+	 * @param outFileName The PDF file to be output.
+	 */
+	public static void plotEntireMap(boolean processed, String outFileName){
+		String nodeFileName = outFileName + "_nodes.csv";
+		String linkFileName = outFileName + "_links.csv";
+
+		try(final PrintWriter nodeWriter = new PrintWriter(new BufferedWriter(new FileWriter(nodeFileName)));
+				final PrintWriter linkWriter = new PrintWriter(new BufferedWriter(new FileWriter(linkFileName)))){
+			nodeWriter.println(BBox.NODE_FILE_HEADER);
+			linkWriter.println(BBox.LINK_FILE_HEADER);
+			boolean ok = DBConnection.streamEntireMap(processed, new MapVisitor(){
+				@Override
+				public void visitNode(Node node){
+					nodeWriter.println(BBox.getNodeFileLine(node));
+				}
+
+				@Override
+				public void visitLink(Link link){
+					linkWriter.println(BBox.getLinkFileLine(link));
+				}
+			});
+			if(!ok)
+				return;
+		} catch (IOException e) {
+			Log.e(e);
+			return;
+		}
+
+		//Call the Rscript on these two CSV files
+		plotMap(nodeFileName, linkFileName, outFileName);
+	}
+
 
 
 
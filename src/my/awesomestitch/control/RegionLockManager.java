@@ -0,0 +1,77 @@
+package my.awesomestitch.control;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import my.awesomestitch.mapobjects.BBox;
+import my.awesomestitch.mapobjects.Tile;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Keeps DBResolverThreads from resolving neighboring Tiles at the same time.  A Tile's map reaches
+ * BBox.SAFETY_MARGIN_SIZE past its edges (border Nodes, Links that cross the border, their link counts and
+ * CountingNodes), so two Tiles whose boxes overlap change some of the same rows, and must be diffed and committed
+ * one after the other.  Tiles farther apart than that touch disjoint rows, so they can be resolved concurrently.
+ * <p>Locks are held on grid cells.  A worker locks all of the Tiles in its batch at once, so workers never deadlock
+ * by each holding half of what the other needs.
+ */
+class RegionLockManager {
+
+	/**
+	 * Two Tiles conflict if they are at most this many grid cells apart in x and in y.  With margins smaller than half
+	 * a Tile, this is 1: only the 8 neighbors of a Tile conflict with it.
+	 */
+	static final int RADIUS = (int)Math.ceil(2 * BBox.SAFETY_MARGIN_SIZE / Tile.BIG_TILE_SIZE);
+
+	/**
+	 * The grid cells (x, y) of every locked Tile, once per lock()
+	 */
+	private final List<int[]> locked = new LinkedList<int[]>();
+
+	/**
+	 * Waits until none of the Tiles are within RADIUS of a Tile locked by another worker, then locks them all.
+	 * Tiles in the same call may be neighbors of each other - the caller resolves those one at a time anyway.
+	 * @param tiles The Tiles about to be resolved.  Null entries are ignored.
+	 * @throws InterruptedException If interrupted while waiting - nothing is locked in that case
+	 */
+	synchronized void lock(Collection<Tile> tiles) throws InterruptedException{
+		while(conflicts(tiles))
+			wait();
+		for(Tile tile : tiles)
+			if(tile!=null)
+				locked.add(new int[]{tile.getGrid_x(), tile.getGrid_y()});
+	}
+
+	/**
+	 * Releases Tiles locked by lock(), and wakes up any workers waiting for them.
+	 * @param tiles The same Tiles that were passed to lock()
+	 */
+	synchronized void unlock(Collection<Tile> tiles){
+		for(Tile tile : tiles){
+			if(tile==null)
+				continue;
+			for(int[] cell : locked){
+				if(cell[0]==tile.getGrid_x() && cell[1]==tile.getGrid_y()){
+					locked.remove(cell);
+					break;
+				}
+			}
+		}
+		notifyAll();
+	}
+
+	private boolean conflicts(Collection<Tile> tiles){
+		for(Tile tile : tiles){
+			if(tile==null)
+				continue;
+			for(int[] cell : locked){
+				if(Math.abs(cell[0] - tile.getGrid_x()) <= RADIUS && Math.abs(cell[1] - tile.getGrid_y()) <= RADIUS)
+					return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,463 @@
+package my.awesomestitch.control;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.postgis.Point;
+
+import my.awesomestitch.mapobjects.BBox;
+import my.awesomestitch.mapobjects.ChangeLog;
+import my.awesomestitch.mapobjects.CountingNode;
+import my.awesomestitch.mapobjects.DetailLink;
+import my.awesomestitch.mapobjects.DetailLinkMapping;
+import my.awesomestitch.mapobjects.DetailNode;
+import my.awesomestitch.mapobjects.Link;
+import my.awesomestitch.mapobjects.Node;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * The "sql" resolver mode of DBResolverThread.  Instead of downloading the old version of a tile into a BBox and
+ * comparing it in Java, the new version is COPYed into temporary staging tables, and the comparison is done by a
+ * handful of set-based statements on the server, all in one transaction.  Only the COPY and a few counts cross the
+ * network.
+ * <p>The old map is selected the same way boundingBoxQuery() does for the Java resolver (safety margin, full Ways,
+ * and the Links of the CountingNodes for processed maps), and the same case A/B/C/D rules are applied to Nodes,
+ * Links and DetailLinkMappings.  A few details necessarily differ:
+ * <ul>
+ * <li>Old Links count as inside the box if ST_Intersects() says so, which includes Links that only touch its edge.</li>
+ * <li>Nodes are identical if their positions and traffic controllers are equal.  The number of Ways through a Node is
+ * not stored in the DB, so it cannot be compared.</li>
+ * <li>DetailLinkMappings are compared using the final ids of their processed Links (after new Links are given ids).</li>
+ * </ul>
+ * The values taken from the new map (its bounds and its newest changeset) are bound as parameters, and the ids given
+ * to the new Links in the DB are copied back onto the Links of newMap, as the Java resolver does.  All of the temporary
+ * tables are dropped when the transaction commits.
+ */
+class SqlResolver {
+
+	//The values of the "kind" column of resolve_node_changes and resolve_link_changes
+	private static final String ADDED = "A";
+	private static final String UPDATED = "B";
+	private static final String UNTOUCHED = "C";
+	private static final String DELETED = "D";
+
+	private final BBox newMap;
+	private final long NOW;
+	private final boolean isProcessed;
+	private final ChangeLog chLog;
+
+	private final String nodeTable, linkTable, countingNodeTable, mappingTable;
+
+	/**
+	 * A box, whose coordinates are bound with bindBox()
+	 */
+	private static final String ENVELOPE = "ST_MakeEnvelope(?, ?, ?, ?, 4326)";
+
+	/**
+	 * CountingNodes whose Links were updated - they are recreated once the transaction is done
+	 */
+	private final List<CountingNode> countingNodesToRecreate = new LinkedList<CountingNode>();
+
+	/**
+	 * Adds a new version of a tile to the DB, recording the changes in the change log.
+	 * @param newMap The new detailed or processed map of the tile
+	 * @param NOW The birth_timestamp of new versions, and the death_timestamp of old ones
+	 * @param fileName The OSM file the map came from
+	 * @param description A description for the change log
+	 * @param isProcessed True if newMap is a processed map, False if it is a detailed map
+	 * @throws SQLException If anything fails - then nothing is changed in the DB
+	 */
+	static void resolve(BBox newMap, long NOW, String fileName, String description, boolean isProcessed) throws SQLException{
+		new SqlResolver(newMap, NOW, fileName, description, isProcessed).resolve();
+	}
+
+	private SqlResolver(BBox newMap, long NOW, String fileName, String description, boolean isProcessed){
+		this.newMap = newMap;
+		this.NOW = NOW;
+		this.isProcessed = isProcessed;
+
+		if(isProcessed)
+			chLog = new ChangeLog(NOW, fileName, description);
+		else
+			chLog = new ChangeLog(NOW, fileName, "DETAILED MAP : " + description);
+
+		String schema = DBConnection.getSchemaName();
+		if(isProcessed){
+			nodeTable = new Node().getTableName().replace("tmp_schema", schema);
+			linkTable = new Link().getTableName().replace("tmp_schema", schema);
+		}
+		else{
+			nodeTable = new DetailNode().getTableName().replace("tmp_schema", schema);
+			linkTable = new DetailLink().getTableName().replace("tmp_schema", schema);
+		}
+		countingNodeTable = new CountingNode().getTableName().replace("tmp_schema", schema);
+		mappingTable = new DetailLinkMapping().getTableName().replace("tmp_schema", schema);
+	}
+
+	private void resolve() throws SQLException{
+		prepareNewMap();
+
+		boolean ownTransaction = false;
+		boolean success = false;
+		Connection con = null;
+		try{
+			con = DBConnection.getConnection();
+			ownTransaction = DBConnection.beginTransaction(con);
+			try(Statement st = con.createStatement()){
+				stageNewMap(st);
+				selectOldMap(st);
+				resolveNodes(st);
+				resolveLinks(st);
+
+				//Update the link counts on our nodes
+				List<Node> borderNodes = new LinkedList<Node>();
+				for(Node n : newMap.getAllNodes()){
+					if(!newMap.inBox(n))
+						borderNodes.add(n);
+				}
+				DBConnection.updateNodeLinkCounts(borderNodes, NOW, isProcessed);
+
+				if(newMap.getDetailLinkMappings()!=null)
+					resolveMappings(st);
+			}
+
+			//Record this change in the change log
+			DBConnection.insertNow(chLog);
+			success = true;
+		}
+		finally{
+			DBConnection.endTransaction(con, ownTransaction, success);
+			DBConnection.releaseConnection();
+		}
+
+		//Attempt to add new CountingNodes in place of the ones on updated Links
+		for(CountingNode cn : countingNodesToRecreate)
+			DBConnection.createCountingNode(cn.getGeom().x, cn.getGeom().y, cn.getName(), cn.getName_filter());
+	}
+
+	/**
+	 * Gives every new Node and Link the values they will have if they are inserted, as the Java resolver does.
+	 */
+	private void prepareNewMap(){
+		for(Node n : newMap.getAllNodes()){
+			n.setNum_in_links((short)newMap.getInDegree(n.getId()));
+			n.setNum_out_links((short)newMap.getOutDegree(n.getId()));
+			n.setBirth_timestamp(NOW);
+			n.setDeath_timestamp(DBResolverThread.DISTANT_FUTURE);
+		}
+		for(Link l : newMap.getAllLinks()){
+			l.setBirth_timestamp(NOW);
+			l.setDeath_timestamp(DBResolverThread.DISTANT_FUTURE);
+			if(l instanceof DetailLink){
+				DetailLink d = (DetailLink)l;
+				if(d.getProc_link()!=null)
+					d.setProc_link_id(d.getProc_link().getId());
+			}
+		}
+	}
+
+	/**
+	 * COPYs the new map into staging tables.  Every Node and Link goes into resolve_new_nodes and resolve_new_links,
+	 * and the ones in the safety margin are also listed in resolve_safe_node_ids and resolve_safe_link_keys.
+	 */
+	private void stageNewMap(Statement st) throws SQLException{
+		st.execute(createTemp("resolve_new_nodes", "(LIKE " + nodeTable + ")")
+				+ createTemp("resolve_new_links", "(LIKE " + linkTable + ")")
+				+ createTemp("resolve_safe_node_ids", "(node_id bigint)")
+				+ createTemp("resolve_safe_link_keys", "(begin_node_id bigint, end_node_id bigint)"));
+
+		DBConnection.copyIn("resolve_new_nodes", newMap.getAllNodes());
+		DBConnection.copyIn("resolve_new_links", newMap.getAllLinks());
+
+		List<long[]> rows = new ArrayList<long[]>(newMap.safeNodes.size());
+		for(Node n : newMap.safeNodes.values())
+			rows.add(new long[]{n.getId()});
+		DBConnection.copyRows("resolve_safe_node_ids", rows);
+
+		rows = new ArrayList<long[]>(newMap.safeLinks.size());
+		for(Link l : newMap.safeLinks.values())
+			rows.add(new long[]{l.getBegin_node_id(), l.getEnd_node_id()});
+		DBConnection.copyRows("resolve_safe_link_keys", rows);
+
+		if(newMap.getDetailLinkMappings()!=null){
+			st.execute(createTemp("resolve_new_mappings",
+					"(begin_node_id bigint, end_node_id bigint, detail_link_id bigint, osm_way_id bigint)"));
+			rows = new ArrayList<long[]>(newMap.getDetailLinkMappings().size());
+			for(DetailLinkMapping dlm : newMap.getDetailLinkMappings()){
+				Link processed = dlm.getProcessed();
+				long detailLinkId = dlm.getDetailed()!=null ? dlm.getDetailed().getId() : dlm.getDetail_link_id();
+				rows.add(new long[]{processed.getBegin_node_id(), processed.getEnd_node_id(), detailLinkId, dlm.getOsm_way_id()});
+			}
+			DBConnection.copyRows("resolve_new_mappings", rows);
+		}
+
+		st.execute("ANALYZE resolve_new_nodes; ANALYZE resolve_new_links; ANALYZE resolve_safe_node_ids; "
+				+ "ANALYZE resolve_safe_link_keys;");
+	}
+
+	/**
+	 * Copies the current version of the map around the box into temporary tables, with an in_box column telling
+	 * whether each Node or Link would be in the main part of a BBox or in its safety margin.
+	 */
+	private void selectOldMap(Statement st) throws SQLException{
+		String waysInBox = "SELECT y.osm_way_id FROM " + linkTable + " y WHERE ST_Intersects(y.geom, " + ENVELOPE
+				+ ") AND " + alive("y");
+
+		//The tables are created empty and then filled, since CREATE TABLE AS cannot take parameters
+		String tables = createTemp("resolve_old_counting_nodes", "(LIKE " + countingNodeTable + ")")
+				+ createTemp("resolve_old_links", "AS SELECT x.*, TRUE AS in_box FROM " + linkTable + " x LIMIT 0")
+				+ createTemp("resolve_old_nodes", "AS SELECT x.*, TRUE AS in_box FROM " + nodeTable + " x LIMIT 0");
+		if(newMap.getDetailLinkMappings()!=null)
+			tables += createTemp("resolve_old_mappings", "(LIKE " + mappingTable + ")");
+		st.execute(tables);
+
+		Connection con = st.getConnection();
+		try(PreparedStatement ps = con.prepareStatement("INSERT INTO resolve_old_counting_nodes SELECT x.* FROM "
+				+ countingNodeTable + " x WHERE ST_Intersects(x.geom, " + ENVELOPE + ") AND " + alive("x") + ";")){
+			bindBox(ps, 1, BBox.SAFETY_MARGIN_SIZE);
+			ps.executeUpdate();
+		}
+
+		//Links which cross the box, the rest of their Ways, and (in the processed map) the Links of CountingNodes
+		String links = "INSERT INTO resolve_old_links SELECT x.*, ST_Intersects(x.geom, " + ENVELOPE + ") FROM "
+				+ linkTable + " x WHERE " + alive("x") + " AND (x.osm_way_id IN (" + waysInBox + ")";
+		if(isProcessed)
+			links += " OR x.link_id IN (SELECT link1_id FROM resolve_old_counting_nodes UNION SELECT link2_id FROM resolve_old_counting_nodes)";
+		try(PreparedStatement ps = con.prepareStatement(links + ");")){
+			int index = bindBox(ps, 1, 0);
+			bindBox(ps, index, BBox.SAFETY_MARGIN_SIZE);
+			ps.executeUpdate();
+		}
+
+		//Nodes at the ends of those Links
+		try(PreparedStatement ps = con.prepareStatement("INSERT INTO resolve_old_nodes SELECT x.*, (ST_X(x.geom) > ? "
+				+ "AND ST_X(x.geom) < ? AND ST_Y(x.geom) < ? AND ST_Y(x.geom) > ?) FROM " + nodeTable + " x WHERE "
+				+ alive("x") + " AND x.node_id IN (SELECT begin_node_id FROM resolve_old_links UNION SELECT end_node_id "
+				+ "FROM resolve_old_links);")){
+			ps.setDouble(1, newMap.leftLon);
+			ps.setDouble(2, newMap.rightLon);
+			ps.setDouble(3, newMap.topLat);
+			ps.setDouble(4, newMap.bottomLat);
+			ps.executeUpdate();
+		}
+
+		//The mappings of those Ways, before any of them change
+		if(newMap.getDetailLinkMappings()!=null){
+			try(PreparedStatement ps = con.prepareStatement("INSERT INTO resolve_old_mappings SELECT x.* FROM "
+					+ mappingTable + " x WHERE x.osm_way_id IN (" + waysInBox + ") AND " + alive("x") + ";")){
+				bindBox(ps, 1, BBox.SAFETY_MARGIN_SIZE);
+				ps.executeUpdate();
+			}
+		}
+
+		//A BBox only keeps Links whose Nodes it has, and moves the Nodes of Links in the box out of the safety margin
+		st.execute("DELETE FROM resolve_old_links o WHERE NOT EXISTS (SELECT 1 FROM resolve_old_nodes n WHERE "
+				+ "n.node_id = o.begin_node_id) OR NOT EXISTS (SELECT 1 FROM resolve_old_nodes n WHERE n.node_id = o.end_node_id);"
+				+ "UPDATE resolve_old_nodes SET in_box = TRUE WHERE NOT in_box AND node_id IN (SELECT begin_node_id "
+				+ "FROM resolve_old_links WHERE in_box UNION SELECT end_node_id FROM resolve_old_links WHERE in_box);"
+				+ "ANALYZE resolve_old_links; ANALYZE resolve_old_nodes;");
+	}
+
+	/**
+	 * Step 3 of DBResolverThread.resolveDifferencesInDB(), for Nodes
+	 */
+	private void resolveNodes(Statement st) throws SQLException{
+		String identical = "ST_X(n.geom) = ST_X(o.geom) AND ST_Y(n.geom) = ST_Y(o.geom) "
+				+ "AND n.osm_traffic_controller IS NOT DISTINCT FROM o.osm_traffic_controller";
+
+		st.execute(createTemp("resolve_node_changes", "(node_id bigint, old_birth bigint, kind text)"));
+		try(PreparedStatement ps = st.getConnection().prepareStatement("INSERT INTO resolve_node_changes "
+				//Cases (A), (B) and (C) - every new Node in the box, and its old version if there is one
+				+ "SELECT n.node_id, o.birth_timestamp AS old_birth, CASE WHEN o.node_id IS NULL THEN '" + ADDED + "' "
+				+ "WHEN n.osm_changeset > o.osm_changeset AND NOT (" + identical + ") THEN '" + UPDATED + "' "
+				+ "ELSE '" + UNTOUCHED + "' END AS kind "
+				+ "FROM resolve_new_nodes n LEFT JOIN resolve_old_nodes o ON o.node_id = n.node_id "
+				+ "WHERE NOT EXISTS (SELECT 1 FROM resolve_safe_node_ids s WHERE s.node_id = n.node_id) "
+				//Case (D) - old Nodes in the box which are gone, unless the new map is older than them
+				+ "UNION ALL SELECT o.node_id, o.birth_timestamp, '" + DELETED + "' FROM resolve_old_nodes o "
+				+ "WHERE o.in_box AND o.osm_changeset < ? AND NOT EXISTS (SELECT 1 FROM resolve_new_nodes n "
+				+ "WHERE n.node_id = o.node_id);")){
+			ps.setLong(1, newMap.getMaxChangeSet());
+			ps.executeUpdate();
+		}
+
+		//Kill the old versions, then add the new ones
+		st.execute("UPDATE " + nodeTable + " x SET death_timestamp = " + NOW + " FROM resolve_node_changes c "
+				+ "WHERE c.kind IN ('" + UPDATED + "', '" + DELETED + "') AND x.node_id = c.node_id AND x.birth_timestamp = c.old_birth;"
+				+ "INSERT INTO " + nodeTable + " SELECT n.* FROM resolve_new_nodes n JOIN resolve_node_changes c "
+				+ "ON c.node_id = n.node_id WHERE c.kind IN ('" + ADDED + "', '" + UPDATED + "');");
+
+		long[] counts = countChanges(st, "resolve_node_changes");
+		chLog.setNodes_added(counts[0]);
+		chLog.setNodes_updated(counts[1]);
+		chLog.setNodes_untouched(counts[2]);
+		chLog.setNodes_deleted(counts[3]);
+	}
+
+	/**
+	 * Step 4 of DBResolverThread.resolveDifferencesInDB(), for Links and the CountingNodes on them
+	 */
+	private void resolveLinks(Statement st) throws SQLException{
+		String identical = "ST_X(ST_PointN(n.geom, 1)) = ST_X(ST_PointN(o.geom, 1)) "
+				+ "AND ST_Y(ST_PointN(n.geom, 1)) = ST_Y(ST_PointN(o.geom, 1)) "
+				+ "AND ST_X(ST_PointN(n.geom, 2)) = ST_X(ST_PointN(o.geom, 2)) "
+				+ "AND ST_Y(ST_PointN(n.geom, 2)) = ST_Y(ST_PointN(o.geom, 2)) "
+				+ (isProcessed ? "" : "AND n.proc_link_id = o.proc_link_id ")
+				//A missing name on either side does not count as a difference
+				+ "AND (NULLIF(n.osm_name, 'null') IS NULL OR NULLIF(o.osm_name, 'null') IS NULL OR n.osm_name = o.osm_name)";
+		String sameKey = "n.begin_node_id = o.begin_node_id AND n.end_node_id = o.end_node_id";
+
+		st.execute(createTemp("resolve_link_changes", "(begin_node_id bigint, end_node_id bigint, old_id bigint, "
+				+ "old_birth bigint, new_id bigint, kind text)"));
+		try(PreparedStatement ps = st.getConnection().prepareStatement("INSERT INTO resolve_link_changes "
+				//Cases (A), (B) and (C) - every new Link in the box, and its old version if there is one
+				+ "SELECT n.begin_node_id, n.end_node_id, o.link_id AS old_id, o.birth_timestamp AS old_birth, "
+				+ "o.link_id AS new_id, CASE WHEN o.link_id IS NULL THEN '" + ADDED + "' "
+				+ "WHEN n.osm_changeset >= o.osm_changeset AND NOT (" + identical + ") THEN '" + UPDATED + "' "
+				+ "ELSE '" + UNTOUCHED + "' END AS kind "
+				+ "FROM resolve_new_links n LEFT JOIN resolve_old_links o ON " + sameKey + " "
+				+ "WHERE NOT EXISTS (SELECT 1 FROM resolve_safe_link_keys o WHERE " + sameKey + ") "
+				//Case (D) - old Links in the box which are gone, unless the new map is older than them
+				+ "UNION ALL SELECT o.begin_node_id, o.end_node_id, o.link_id, o.birth_timestamp, o.link_id, '" + DELETED + "' "
+				+ "FROM resolve_old_links o WHERE o.in_box AND o.osm_changeset < ? "
+				+ "AND NOT EXISTS (SELECT 1 FROM resolve_new_links n WHERE " + sameKey + ");")){
+			ps.setLong(1, newMap.getMaxChangeSet());
+			ps.executeUpdate();
+		}
+
+		long[] counts = countChanges(st, "resolve_link_changes");
+
+		//Added Links get a block of new ids.  The others keep the id of their old version.
+		if(counts[0] > 0){
+			Link prototype = isProcessed ? new Link() : new DetailLink();
+			long first = DBConnection.reserveIds(prototype, (int)counts[0]);
+			long step = prototype.usesNegativeId() ? -1 : 1;
+			st.execute("UPDATE resolve_link_changes c SET new_id = " + first + " + " + step + " * (a.rn - 1) FROM "
+					+ "(SELECT begin_node_id, end_node_id, row_number() OVER (ORDER BY begin_node_id, end_node_id) AS rn "
+					+ "FROM resolve_link_changes WHERE kind = '" + ADDED + "') a WHERE c.kind = '" + ADDED + "' "
+					+ "AND c.begin_node_id = a.begin_node_id AND c.end_node_id = a.end_node_id;");
+		}
+
+		//CountingNodes on updated Links die, and are recreated afterwards
+		String onUpdatedLink = "c.kind = '" + UPDATED + "' AND (cn.link1_id = c.old_id OR cn.link2_id = c.old_id)";
+		try(ResultSet rs = st.executeQuery("SELECT DISTINCT ON (cn.counting_node_id) ST_X(cn.geom), ST_Y(cn.geom), cn.name, "
+				+ "o.osm_name FROM resolve_old_counting_nodes cn JOIN resolve_link_changes c ON " + onUpdatedLink + " "
+				+ "JOIN resolve_old_links o ON o.link_id = c.old_id ORDER BY cn.counting_node_id;")){
+			while(rs.next()){
+				CountingNode cn = new CountingNode();
+				cn.setGeom(new Point(rs.getDouble(1), rs.getDouble(2)));
+				cn.setName(rs.getString(3));
+				cn.setName_filter(rs.getString(4));
+				countingNodesToRecreate.add(cn);
+			}
+		}
+
+		//Every Link in the box gets its final id, in the staging table and in newMap
+		try(ResultSet rs = st.executeQuery("UPDATE resolve_new_links n SET link_id = o.new_id FROM resolve_link_changes o "
+				+ "WHERE o.kind <> '" + DELETED + "' AND " + sameKey + " RETURNING n.begin_node_id, n.end_node_id, n.link_id;")){
+			while(rs.next()){
+				Link link = newMap.getLink(rs.getLong(1), rs.getLong(2));
+				if(link!=null)
+					link.setId(rs.getLong(3));
+			}
+		}
+		newMap.linksById = null;	//It was indexed by the ids from before
+
+		//Kill the old versions, then add the new ones
+		st.execute("UPDATE " + linkTable + " x SET death_timestamp = " + NOW + " FROM resolve_link_changes c "
+				+ "WHERE c.kind IN ('" + UPDATED + "', '" + DELETED + "') AND x.link_id = c.old_id AND x.birth_timestamp = c.old_birth;"
+				+ "INSERT INTO " + linkTable + " SELECT n.* FROM resolve_new_links n JOIN resolve_link_changes o "
+				+ "ON " + sameKey + " WHERE o.kind IN ('" + ADDED + "', '" + UPDATED + "');"
+				+ "UPDATE " + countingNodeTable + " x SET death_timestamp = " + NOW + " FROM resolve_old_counting_nodes cn "
+				+ "WHERE x.counting_node_id = cn.counting_node_id AND x.birth_timestamp = cn.birth_timestamp "
+				+ "AND EXISTS (SELECT 1 FROM resolve_link_changes c WHERE " + onUpdatedLink + ");");
+
+		chLog.setLinks_added(counts[0]);
+		chLog.setLinks_updated(counts[1]);
+		chLog.setLinks_untouched(counts[2]);
+		chLog.setLinks_deleted(counts[3]);
+	}
+
+	/**
+	 * Step 5 of DBResolverThread.resolveDifferencesInDB(), for DetailLinkMappings
+	 */
+	private void resolveMappings(Statement st) throws SQLException{
+		//Each new mapping's processed Link: the one resolved in the box, or else the live Link between the same Nodes
+		st.execute(createTemp("resolve_mapping_ids", "AS SELECT COALESCE(c.new_id, (SELECT x.link_id FROM " + linkTable
+				+ " x WHERE x.begin_node_id = m.begin_node_id AND x.end_node_id = m.end_node_id AND " + alive("x")
+				+ " LIMIT 1)) AS link_id, m.detail_link_id, m.osm_way_id, c.kind IS NOT NULL AS in_box "
+				+ "FROM resolve_new_mappings m LEFT JOIN resolve_link_changes c ON c.kind <> '" + DELETED + "' "
+				+ "AND c.begin_node_id = m.begin_node_id AND c.end_node_id = m.end_node_id"));
+
+		String sameMapping = "m.link_id = o.link_id AND m.detail_link_id = o.detail_link_id";
+		st.execute(
+				//Case (A) - mappings of Links in the box which are not in the DB yet
+				"INSERT INTO " + mappingTable + " (link_id, detail_link_id, osm_way_id, birth_timestamp, death_timestamp) "
+				+ "SELECT m.link_id, m.detail_link_id, m.osm_way_id, " + NOW + ", " + DBResolverThread.DISTANT_FUTURE
+				+ " FROM resolve_mapping_ids m WHERE m.in_box AND NOT EXISTS (SELECT 1 FROM resolve_old_mappings o WHERE " + sameMapping + ");"
+				//Case (D) - old mappings of old Links in the box which are not in the new map
+				+ "UPDATE " + mappingTable + " x SET death_timestamp = " + NOW + " FROM resolve_old_mappings o "
+				+ "WHERE x.link_id = o.link_id AND x.detail_link_id = o.detail_link_id AND x.birth_timestamp = o.birth_timestamp "
+				+ "AND EXISTS (SELECT 1 FROM resolve_old_links l WHERE l.link_id = o.link_id AND l.in_box) "
+				+ "AND NOT EXISTS (SELECT 1 FROM resolve_mapping_ids m WHERE " + sameMapping + ");");
+	}
+
+	/**
+	 * @return The number of rows of each kind in a change table - added, updated, untouched and deleted
+	 */
+	private static long[] countChanges(Statement st, String table) throws SQLException{
+		long[] counts = new long[4];
+		try(ResultSet rs = st.executeQuery("SELECT kind, COUNT(*) FROM " + table + " GROUP BY kind;")){
+			while(rs.next()){
+				String kind = rs.getString(1);
+				long count = rs.getLong(2);
+				if(kind.equals(ADDED))
+					counts[0] = count;
+				else if(kind.equals(UPDATED))
+					counts[1] = count;
+				else if(kind.equals(UNTOUCHED))
+					counts[2] = count;
+				else if(kind.equals(DELETED))
+					counts[3] = count;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Creates a temporary table which is dropped at the end of the transaction.  Any table left with the same name
+	 * (by an earlier tile in the same transaction) is dropped first.
+	 */
+	private static String createTemp(String name, String definition){
+		String create;
+		if(definition.startsWith("AS "))
+			create = "CREATE TEMP TABLE " + name + " ON COMMIT DROP " + definition;
+		else
+			create = "CREATE TEMP TABLE " + name + " " + definition + " ON COMMIT DROP";
+		return "DROP TABLE IF EXISTS " + name + "; " + create + ";";
+	}
+
+	private String alive(String alias){
+		return alias + ".birth_timestamp <= " + NOW + " AND " + alias + ".death_timestamp > " + NOW;
+	}
+
+	/**
+	 * Binds the coordinates of an ENVELOPE to the box of newMap, grown by a margin on every side.
+	 * @return The index of the next parameter
+	 */
+	private int bindBox(PreparedStatement ps, int index, double margin) throws SQLException{
+		ps.setDouble(index, newMap.leftLon - margin);
+		ps.setDouble(index + 1, newMap.bottomLat - margin);
+		ps.setDouble(index + 2, newMap.rightLon + margin);
+		ps.setDouble(index + 3, newMap.topLat + margin);
+		return index + 4;
+	}
+}
@@ -0,0 +1,119 @@
+package my.awesomestitch.control;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * An InputStream which copies every byte it reads into an OutputStream, so one pass over a download can both parse it
+ * and save it to disk.
+ * <p>Readers like OsmEventReader treat a read error as the end of a (truncated) document, so the first error from
+ * either stream is also remembered.  Check getFailure() after reading, to tell a complete document from a partial one.
+ */
+class TeeInputStream extends FilterInputStream {
+
+	private final OutputStream copy;
+
+	private IOException failure = null;
+
+	/**
+	 * @param in The stream to read
+	 * @param copy Receives every byte read from in.  It is closed along with this stream.
+	 */
+	TeeInputStream(InputStream in, OutputStream copy){
+		super(in);
+		this.copy = copy;
+	}
+
+	@Override
+	public int read() throws IOException{
+		try{
+			int b = in.read();
+			if(b >= 0)
+				copy.write(b);
+			return b;
+		}
+		catch(IOException e){
+			throw fail(e);
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException{
+		try{
+			int count = in.read(b, off, len);
+			if(count > 0)
+				copy.write(b, off, count);
+			return count;
+		}
+		catch(IOException e){
+			throw fail(e);
+		}
+	}
+
+	/**
+	 * Skipped bytes are read (and copied) like any others.
+	 */
+	@Override
+	public long skip(long n) throws IOException{
+		byte[] buffer = new byte[(int)Math.min(n, 8192)];
+		long skipped = 0;
+		while(skipped < n){
+			int count = read(buffer, 0, (int)Math.min(n - skipped, buffer.length));
+			if(count < 0)
+				break;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported(){
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit){
+	}
+
+	@Override
+	public void reset() throws IOException{
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Reads (and copies) whatever is left of the input, e.g. after a parser has stopped at the end of the document.
+	 * @throws IOException If either stream fails
+	 */
+	void drain() throws IOException{
+		byte[] buffer = new byte[8192];
+		while(read(buffer, 0, buffer.length) >= 0);
+	}
+
+	/**
+	 * @return The first error from reading the input or writing the copy, or null if there has been none
+	 */
+	IOException getFailure(){
+		return failure;
+	}
+
+	@Override
+	public void close() throws IOException{
+		try{
+			copy.close();
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	private IOException fail(IOException e){
+		if(failure==null)
+			failure = e;
+		return e;
+	}
+}
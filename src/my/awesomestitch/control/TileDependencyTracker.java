@@ -0,0 +1,172 @@
+package my.awesomestitch.control;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import my.awesomestitch.mapobjects.BBox;
+import my.awesomestitch.mapobjects.LongMap;
+import my.awesomestitch.mapobjects.Tile;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ *
+ * Decides when each Tile in the pipeline may be preprocessed.  MapProcessorThread reads the detailed map of a Tile
+ * plus BBox.SAFETY_MARGIN_SIZE around it, including the full Ways which cross that region - so the Tile must wait
+ * until every Tile which could still add to that part of the map has its detailed map in the DB.  These are the
+ * Tiles touched by the region its own detailed map spans (its Ways, plus the margin), and at least its 8 neighbors.
+ * Tiles elsewhere do not hold it back, so preprocessing goes on while the rest of a large request downloads.
+ * <p>Not thread safe - Controller only calls it while holding Controller.lock.
+ */
+class TileDependencyTracker {
+
+	/**
+	 * The safety margin, in grid cells.  With margins smaller than a Tile, this is 1.
+	 */
+	static final int MARGIN = (int)Math.ceil(BBox.SAFETY_MARGIN_SIZE / Tile.BIG_TILE_SIZE);
+
+	/**
+	 * A Tile whose detailed map is done, waiting for the Tiles it depends on
+	 */
+	private static class WaitingTile {
+		final Tile tile;
+
+		/**
+		 * The grid cells it depends on
+		 */
+		final int minX, minY, maxX, maxY;
+
+		/**
+		 * How many Tiles in those cells are still waiting for their detailed map
+		 */
+		int blockers = 0;
+
+		WaitingTile(Tile tile, int minX, int minY, int maxX, int maxY){
+			this.tile = tile;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+
+		boolean dependsOn(Tile other){
+			return other.getGrid_x() >= minX && other.getGrid_x() <= maxX && other.getGrid_y() >= minY && other.getGrid_y() <= maxY;
+		}
+	}
+
+	/**
+	 * Tiles whose detailed map is not in the DB yet, by Controller.tileKey()
+	 */
+	private final LongMap<Tile> pending = new LongMap<Tile>();
+
+	/**
+	 * Tiles whose detailed map is done but which cannot be preprocessed yet, by Controller.tileKey()
+	 */
+	private final LongMap<WaitingTile> waiting = new LongMap<WaitingTile>();
+
+	/**
+	 * Pending Tile --> the waiting Tiles which it holds back
+	 */
+	private final LongMap<List<WaitingTile>> blocked = new LongMap<List<WaitingTile>>();
+
+	/**
+	 * Records that a Tile has entered the pipeline, and will have its detailed map resolved later.  Waiting Tiles
+	 * which depend on it are held back until then.
+	 * @param tile A Tile which is not in the pipeline yet
+	 */
+	void detailedMapPending(Tile tile){
+		long key = Controller.tileKey(tile);
+		if(pending.put(key, tile)!=null)
+			return;
+		for(WaitingTile w : waiting.values())
+			if(w.dependsOn(tile))
+				block(key, w);
+	}
+
+	/**
+	 * Records that the detailed map of a Tile is in the DB (or has failed - either way it will not change any more).
+	 * @param tile A Tile given to detailedMapPending()
+	 * @param detailedMap Its detailed map, whose extent tells which Tiles the new Tile depends on.  If null (or empty),
+	 * the Tile depends on its neighbors only.
+	 * @return The Tiles which may be preprocessed now - possibly including this one
+	 */
+	List<Tile> detailedMapDone(Tile tile, BBox detailedMap){
+		List<Tile> ready = release(tile);
+		long key = Controller.tileKey(tile);
+
+		//The cells this Tile's map reaches, including the safety margin
+		int minX = tile.getGrid_x() - MARGIN, maxX = tile.getGrid_x() + MARGIN;
+		int minY = tile.getGrid_y() - MARGIN, maxY = tile.getGrid_y() + MARGIN;
+		if(detailedMap!=null && detailedMap.getMin_lon() <= detailedMap.getMax_lon()){
+			double margin = BBox.SAFETY_MARGIN_SIZE;
+			minX = Math.min(minX, (int)Math.floor((detailedMap.getMin_lon() - margin) / Tile.BIG_TILE_SIZE));
+			maxX = Math.max(maxX, (int)Math.floor((detailedMap.getMax_lon() + margin) / Tile.BIG_TILE_SIZE));
+			minY = Math.min(minY, (int)Math.floor((detailedMap.getMin_lat() - margin) / Tile.BIG_TILE_SIZE));
+			maxY = Math.max(maxY, (int)Math.floor((detailedMap.getMax_lat() + margin) / Tile.BIG_TILE_SIZE));
+		}
+
+		WaitingTile w = new WaitingTile(tile, minX, minY, maxX, maxY);
+		//Look up the cells or scan the pending Tiles, whichever is fewer
+		if((long)(maxX - minX + 1) * (maxY - minY + 1) < pending.size()){
+			for(int x = minX; x <= maxX; x++){
+				for(int y = minY; y <= maxY; y++){
+					long otherKey = Controller.tileKey(x, y);
+					if(pending.containsKey(otherKey))
+						block(otherKey, w);
+				}
+			}
+		}
+		else{
+			for(Tile other : pending.values())
+				if(w.dependsOn(other))
+					block(Controller.tileKey(other), w);
+		}
+
+		if(w.blockers==0)
+			ready.add(tile);
+		else
+			waiting.put(key, w);
+		return ready;
+	}
+
+	/**
+	 * Records that a Tile has been given up on.  Its detailed map will never be done, so the Tiles it was holding
+	 * back are preprocessed without it - but the Tile itself is never preprocessed.
+	 * @param tile A Tile given to detailedMapPending() (or to detailedMapDone(), in which case nothing changes)
+	 * @return The Tiles which may be preprocessed now
+	 */
+	List<Tile> detailedMapFailed(Tile tile){
+		return release(tile);
+	}
+
+	/**
+	 * Removes a Tile from the pending Tiles, and unblocks the waiting Tiles which it held back.
+	 * @return The waiting Tiles which have no blockers left
+	 */
+	private List<Tile> release(Tile tile){
+		List<Tile> ready = new ArrayList<Tile>();
+		long key = Controller.tileKey(tile);
+		pending.remove(key);
+		List<WaitingTile> heldBack = blocked.remove(key);
+		if(heldBack!=null){
+			for(WaitingTile w : heldBack){
+				if(--w.blockers==0){
+					waiting.remove(Controller.tileKey(w.tile));
+					ready.add(w.tile);
+				}
+			}
+		}
+		return ready;
+	}
+
+	private void block(long pendingKey, WaitingTile w){
+		List<WaitingTile> heldBack = blocked.get(pendingKey);
+		if(heldBack==null){
+			heldBack = new LinkedList<WaitingTile>();
+			blocked.put(pendingKey, heldBack);
+		}
+		heldBack.add(w);
+		w.blockers++;
+	}
+}
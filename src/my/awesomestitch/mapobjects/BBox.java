@@ -5,11 +5,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import my.awesomestitch.control.Log;
 
@@ -54,43 +60,43 @@ public class BBox {
 	/**
 	 * The Nodes contained within a BoundingBox.  node_ids map to Node objects.
 	 */
-	public Hashtable<Long,Node> nodes;
+	public LongMap<Node> nodes;
 
 	/**
 	 * The Nodes contained within a "safety margin" around a BoundingBox. node_ids map to Node objects.
 	 */
-	public Hashtable<Long, Node> safeNodes;
+	public LongMap<Node> safeNodes;
 
 
 	/**
 	 * The CountingNodes contained within the box.
 	 */
-	public Hashtable<Long, CountingNode> countingNodes;
+	public LongMap<CountingNode> countingNodes;
 
 
 	/** The links contained within a BoundingBox.  (begin_node_id, end_node_id) map to Link objects.
 	 */
-	public Hashtable<List<Long>, Link> links;
+	public LongPairMap<Link> links;
 
 	/** The links contained within a "safety margin" around a BoundingBox.
 	 * (begin_node_id, end_node_id) map to Link objects.
 	 */
-	public Hashtable<List<Long>, Link> safeLinks;
+	public LongPairMap<Link> safeLinks;
 
 	/**
 	 * Stores Links by id number
 	 */
-	public Hashtable<Long, Link> linksById;
+	public LongMap<Link> linksById;
 
 	/**
 	 * Maps a node_id to the list of links that begin with this node (out Links)
 	 */
-	private Hashtable<Long, List<Link>> linksByBeginNode;
+	private LinkAdjacency linksByBeginNode;
 
 	/**
 	 * Maps a node_id to the list of links that end with this node (in Links)
 	 */
-	private Hashtable<Long, List<Link>> linksByEndNode;
+	private LinkAdjacency linksByEndNode;
 
 	/**
 	 * A list of mappings between DetailLinks and processed Links
@@ -99,9 +105,9 @@ public class BBox {
 
 
 	/**
-	 * A Hashtable for quick lookup of DetailLinkMappings
+	 * A table for quick lookup of DetailLinkMappings by (link_id, detail_link_id)
 	 */
-	private Hashtable<List<Long>, DetailLinkMapping> detailLinkMappingTable;
+	private LongPairMap<DetailLinkMapping> detailLinkMappingTable;
 
 	/**
 	 * Local data structure used during map preprocessing.  Stores the mapping from DetailLinks to processed Links.
@@ -113,6 +119,52 @@ public class BBox {
 	 */
 	private Tile tile = null;
 
+	/**
+	 * For a processed map, the time of the detailed map it was built from - everything born after this is newer
+	 * than the processed map.  0 if unknown.
+	 */
+	private long timestamp = 0;
+
+	/**
+	 * If true, preprocess() splits the map into its connected components and collapses them in parallel.
+	 * The result is exactly the same as in the sequential mode.
+	 */
+	private static boolean parallelPreprocess = false;
+
+	/**
+	 * Shared by all preprocessing threads, created when parallel preprocessing is first used.
+	 */
+	private static ForkJoinPool preprocessPool = null;
+
+	/**
+	 * Nodes are collapsed in order of node_id, in both preprocessing modes.
+	 */
+	static final Comparator<Node> NODE_ORDER = new Comparator<Node>(){
+		public int compare(Node a, Node b){
+			return Long.compare(a.getId(), b.getId());
+		}
+	};
+
+	/**
+	 * Links are visited in order of (begin_node_id, end_node_id), in both preprocessing modes.
+	 */
+	static final Comparator<Link> LINK_ORDER = new Comparator<Link>(){
+		public int compare(Link a, Link b){
+			int c = Long.compare(a.getBegin_node_id(), b.getBegin_node_id());
+			return c!=0 ? c : Long.compare(a.getEnd_node_id(), b.getEnd_node_id());
+		}
+	};
+
+	public static void setParallelPreprocess(boolean parallel){
+		parallelPreprocess = parallel;
+	}
+
+	private static synchronized ForkJoinPool getPreprocessPool(){
+		if(preprocessPool==null)
+			preprocessPool = new ForkJoinPool();
+		return preprocessPool;
+	}
+
 
 
 	public Tile getTile() {
@@ -125,6 +177,16 @@ public class BBox {
 	}
 
 
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+
 	public BBox(double left, double top, double right, double bottom){
 		this.leftLon = left;
 		this.topLat = top;
@@ -137,11 +199,11 @@ public class BBox {
 		this.min_lat = 1000;
 		this.max_lat = -1000;
 
-		nodes = new Hashtable<Long, Node>();
-		safeNodes = new Hashtable<Long, Node>();
-		countingNodes = new Hashtable<Long, CountingNode>();
-		links = new Hashtable<List<Long>, Link>();
-		safeLinks = new Hashtable<List<Long>, Link>();
+		nodes = new LongMap<Node>();
+		safeNodes = new LongMap<Node>();
+		countingNodes = new LongMap<CountingNode>();
+		links = new LongPairMap<Link>();
+		safeLinks = new LongPairMap<Link>();
 	}
 
 
@@ -168,15 +230,25 @@ public class BBox {
 
 
 	private boolean inBox(Link link){
+		return inBox(link.getGeom().getPoint(0), link.getGeom().getPoint(1));
+	}
+
+	/**
+	 * Tells whether a Link between two points is (at least partly) within this box.
+	 * @param begin The first point of the Link's geometry
+	 * @param end The second point of the Link's geometry
+	 * @return True if either point is in the box, or the segment crosses the border of the box
+	 */
+	boolean inBox(Point begin, Point end){
 		boolean begin_in = false;
-		double x1 = link.getGeom().getPoint(0).x;
-		double y1 = link.getGeom().getPoint(0).y;
+		double x1 = begin.x;
+		double y1 = begin.y;
 		if(x1 > leftLon && x1 < rightLon && y1 < topLat && y1 > bottomLat)
 			begin_in = true;
 
 		boolean end_in = false;
-		double x2 = link.getGeom().getPoint(1).x;
-		double y2 = link.getGeom().getPoint(1).y;
+		double x2 = end.x;
+		double y2 = end.y;
 		if(x2 > leftLon && x2 < rightLon && y2 < topLat && y2 > bottomLat)
 			end_in = true;
 
@@ -221,9 +293,9 @@ public class BBox {
 
 
 		if(inBox(node))
-			nodes.put(new Long(node.getId()), node);
+			nodes.put(node.getId(), node);
 		else
-			safeNodes.put(new Long(node.getId()), node);
+			safeNodes.put(node.getId(), node);
 
 		if(node.getOsm_changeset() > maxChangeSet)
 			maxChangeSet = node.getOsm_changeset();
@@ -232,7 +304,7 @@ public class BBox {
 		min_lon = Math.min(min_lon, node.getGeom().x);
 		max_lon = Math.max(max_lon, node.getGeom().x);
 		min_lat = Math.min(min_lat, node.getGeom().y);
-		max_lat = Math.max(min_lat, node.getGeom().y);
+		max_lat = Math.max(max_lat, node.getGeom().y);
 
 	}
 
@@ -242,11 +314,8 @@ public class BBox {
 	 */
 	public void delete(long node_id){
 
-		if(nodes.containsKey(node_id))
-			nodes.remove(node_id);
-
-		if(safeNodes.containsKey(node_id))
-			safeNodes.remove(node_id);
+		nodes.remove(node_id);
+		safeNodes.remove(node_id);
 	}
 
 	/**
@@ -267,9 +336,8 @@ public class BBox {
 		boolean hasBeginNode = nodes.containsKey(link.getBegin_node_id()) || safeNodes.containsKey(link.getBegin_node_id());
 		boolean hasEndNode = nodes.containsKey(link.getEnd_node_id()) || safeNodes.containsKey(link.getEnd_node_id());
 		if(hasBeginNode && hasEndNode){
-			List<Long> key = new LinkedList<Long>();
-			key.add(link.getBegin_node_id());
-			key.add(link.getEnd_node_id());
+			long begin_node_id = link.getBegin_node_id();
+			long end_node_id = link.getEnd_node_id();
 
 			//If both endpoints are in the safety margin, this is a "safe link" otherwise, it is a regular link
 			/*
@@ -281,20 +349,18 @@ public class BBox {
 			}*/
 
 			if(!inBox(link)){
-				safeLinks.put(key, link);
+				safeLinks.put(begin_node_id, end_node_id, link);
 			}
 			else{
-				links.put(key, link);
+				links.put(begin_node_id, end_node_id, link);
 				//If the link is put into the regular box, so must its endnodes.
-				if(safeNodes.containsKey(link.getBegin_node_id())){
-					Node n = safeNodes.remove(link.getBegin_node_id());
-					nodes.put(link.getBegin_node_id(), n);
-				}
+				Node n = safeNodes.remove(begin_node_id);
+				if(n!=null)
+					nodes.put(begin_node_id, n);
 
-				if(safeNodes.containsKey(link.getEnd_node_id())){
-					Node n = safeNodes.remove(link.getEnd_node_id());
-					nodes.put(link.getEnd_node_id(), n);
-				}
+				n = safeNodes.remove(end_node_id);
+				if(n!=null)
+					nodes.put(end_node_id, n);
 
 			}
 
@@ -317,17 +383,8 @@ public class BBox {
 	 * @param link the Link in question.
 	 */
 	public void delete(Link link){
-		List<Long> key = new LinkedList<Long>();
-		key.add(link.getBegin_node_id());
-		key.add(link.getEnd_node_id());
-
-		if(links.containsKey(key)){
-			links.remove(key);
-		}
-		else if(safeLinks.containsKey(key)){
-			safeLinks.remove(key);
-		}
-		else
+		if(links.remove(link.getBegin_node_id(), link.getEnd_node_id())==null
+				&& safeLinks.remove(link.getBegin_node_id(), link.getEnd_node_id())==null)
 			System.out.println("Couldn't delete! No such link as " + link);
 	}
 
@@ -338,13 +395,11 @@ public class BBox {
 	 * @return a Node object which has the given id, or null if no such Node exists.
 	 */
 	public Node getNode(long nodeId){
-		if(nodes.containsKey(nodeId))
-			return nodes.get(nodeId);
-
-		if(safeNodes.containsKey(nodeId))
-			return safeNodes.get(nodeId);
+		Node n = nodes.get(nodeId);
+		if(n!=null)
+			return n;
 
-		return null;
+		return safeNodes.get(nodeId);
 	}
 
 	/**
@@ -354,14 +409,11 @@ public class BBox {
 	 * @return The link which connects the two nodes, or null if no such Link exists.
 	 */
 	public Link getLink(long begin_node_id, long end_node_id){
-		List<Long> key = new LinkedList<Long>();
-		key.add(begin_node_id);
-		key.add(end_node_id);
-
-		if(links.containsKey(key))
-			return links.get(key);
+		Link link = links.get(begin_node_id, end_node_id);
+		if(link!=null)
+			return link;
 		else
-			return safeLinks.get(key);
+			return safeLinks.get(begin_node_id, end_node_id);
 
 	}
 
@@ -405,10 +457,7 @@ public class BBox {
 	 * @return True if the BBox contains the Link, False if it does not
 	 */
 	public boolean hasLink(long begin_node_id, long end_node_id){
-		List<Long> key = new LinkedList<Long>();
-		key.add(begin_node_id);
-		key.add(end_node_id);
-		return links.containsKey(key);
+		return links.containsKey(begin_node_id, end_node_id);
 		//return nodes.containsKey(begin_node_id) || nodes.containsKey(end_node_id);
 	}
 
@@ -420,15 +469,12 @@ public class BBox {
 	 * @return
 	 */
 	public boolean safeHasLink(long begin_node_id, long end_node_id){
-		List<Long> key = new LinkedList<Long>();
-		key.add(begin_node_id);
-		key.add(end_node_id);
-		return links.containsKey(key) || safeLinks.containsKey(key);
+		return links.containsKey(begin_node_id, end_node_id) || safeLinks.containsKey(begin_node_id, end_node_id);
 	}
 
 	public Link getLinkById(long id){
 		if(linksById==null){
-			linksById = new Hashtable<Long, Link>();
+			linksById = new LongMap<Link>();
 			for(Link link : getAllLinks()){
 				linksById.put(link.getId(), link);
 			}
@@ -442,22 +488,15 @@ public class BBox {
 
 		
 		if(this.detailLinkMappingTable==null){
-			this.detailLinkMappingTable = new Hashtable<List<Long>, DetailLinkMapping>();
+			this.detailLinkMappingTable = new LongPairMap<DetailLinkMapping>();
 			if(this.detailLinkMappings==null)
 				return null;
 			for(DetailLinkMapping dlm : this.detailLinkMappings){
-				List<Long> key = new LinkedList<Long>();
-				key.add(dlm.getLink_id());
-				key.add(dlm.getDetail_link_id());
-				detailLinkMappingTable.put(key, dlm);
+				detailLinkMappingTable.put(dlm.getLink_id(), dlm.getDetail_link_id(), dlm);
 			}
 		}
 
-		List<Long> key = new LinkedList<Long>();
-		key.add(link_id);
-		key.add(detailed_link_id);
-
-		return this.detailLinkMappingTable.get(key);
+		return this.detailLinkMappingTable.get(link_id, detailed_link_id);
 	}
 
 
@@ -478,18 +517,8 @@ public class BBox {
 	 * @return A List of all Nodes.
 	 */
 	public List<Node> getAllNodes(){
-		List<Node> nodeList = new LinkedList<Node>();
-		for(long id : nodes.keySet()){
-			Node n = nodes.get(id);
-			if(n!=null)
-				nodeList.add(n);
-		}
-
-		for(long id : safeNodes.keySet()){
-			Node n = safeNodes.get(id);
-			if(n!=null)
-				nodeList.add(n);
-		}
+		List<Node> nodeList = nodes.values();
+		nodeList.addAll(safeNodes.values());
 		return nodeList;
 	}
 
@@ -500,23 +529,9 @@ public class BBox {
 	 * @return A List of all Links.
 	 */
 	public List<Link> getAllLinks(){
-		List<Link> list = new LinkedList<Link>();
-		for(List<Long> link_ids : links.keySet()){
-			//loop through all Links in the bounding box
-			long begin_node_id = link_ids.get(0);
-			long end_node_id = link_ids.get(1);
-			Link link = getLink(begin_node_id, end_node_id);
-			list.add(link);
-		}
-
-		for(List<Long> link_ids : safeLinks.keySet()){
-			//also loop through Links in the safety margin
-			long begin_node_id = link_ids.get(0);
-			long end_node_id = link_ids.get(1);
-			Link link = getLink(begin_node_id, end_node_id);
-			list.add(link);
-		}
-
+		//Links in the bounding box, followed by Links in the safety margin
+		List<Link> list = links.values();
+		list.addAll(safeLinks.values());
 		return list;
 	}
 
@@ -525,46 +540,59 @@ public class BBox {
 	 * @return a List of all Counting Nodes. This list will be empty if there are no Counting Nodes.
 	 */
 	public List<CountingNode> getAllCountingNodes(){
-		List<CountingNode> list = new LinkedList<CountingNode>();
 		if(countingNodes==null)
-			return list;
+			return new LinkedList<CountingNode>();
 
-		for(long id : countingNodes.keySet()){
-			CountingNode cn = countingNodes.get(id);
-			list.add(cn);
-		}
-		return list;
+		return countingNodes.values();
 	}
 
 
 	/**
 	 * Returns all of the links in the BBox that flow into the given node (have this node as an end node).
 	 * @param node_id The id of the node in question.
-	 * @return A List of relevant Links
+	 * @return A new List of relevant Links
 	 */
 	public List<Link> getInLinks(long node_id){
 		if(linksByEndNode==null)
 			generateLinkTables();
 
-		if(linksByEndNode.containsKey(node_id))
-			return linksByEndNode.get(node_id);
-		else
-			return new LinkedList<Link>();
+		return linksByEndNode.list(node_id);
 	}
 
 	/**
 	 * Returns all of the links in the BBox that flow out of the given node (have this node as a begin node)
 	 * @param node_id The id of the node in questioin.
-	 * @return A List of relevant LInks
+	 * @return A new List of relevant LInks
 	 */
 	public List<Link> getOutLinks(long node_id){
 		if(linksByBeginNode==null)
 			generateLinkTables();
 
-		if(linksByBeginNode.containsKey(node_id))
-			return linksByBeginNode.get(node_id);
-		else
-			return new LinkedList<Link>();
+		return linksByBeginNode.list(node_id);
+	}
+
+	/**
+	 * Counts the links in the BBox that flow into the given node, without building a List.
+	 * @param node_id The id of the node in question.
+	 * @return The number of Links which end at this node
+	 */
+	public int getInDegree(long node_id){
+		if(linksByEndNode==null)
+			generateLinkTables();
+
+		return linksByEndNode.degree(node_id);
+	}
+
+	/**
+	 * Counts the links in the BBox that flow out of the given node, without building a List.
+	 * @param node_id The id of the node in question.
+	 * @return The number of Links which begin at this node
+	 */
+	public int getOutDegree(long node_id){
+		if(linksByBeginNode==null)
+			generateLinkTables();
+
+		return linksByBeginNode.degree(node_id);
 	}
 
 
@@ -577,30 +605,19 @@ public class BBox {
 	 * @param box A BBox containing some links and nodes
 	 */
 	public void generateLinkTables(){
-		linksByBeginNode = new Hashtable<Long, List<Link>>();
-		linksByEndNode = new Hashtable<Long, List<Link>>();
-		for(Link link : getAllLinks()){
+		int numNodes = nodes.size() + safeNodes.size();
+		linksByBeginNode = new LinkAdjacency(numNodes);
+		linksByEndNode = new LinkAdjacency(numNodes);
+		//Links are added in a fixed order, so the order of each node's list does not depend on how the box was split
+		List<Link> allLinks = getAllLinks();
+		Collections.sort(allLinks, LINK_ORDER);
+		for(Link link : allLinks){
 			//loop through all links in the bounding box
-			long begin_node_id = link.getBegin_node_id();
-			long end_node_id = link.getEnd_node_id();
-
 			//Map the begin_node_id to a list of Links which start at this node
-			List<Link> list = linksByBeginNode.get(begin_node_id);
-			if(list==null){
-				list = new LinkedList<Link>();
-				linksByBeginNode.put(begin_node_id, list);
-			}
-			list.add(getLink(begin_node_id, end_node_id));
+			linksByBeginNode.add(link.getBegin_node_id(), link, false);
 
 			//Map the end_node_id to a list of Links which end at this node
-			list = linksByEndNode.get(end_node_id);
-			if(list==null){
-				list = new LinkedList<Link>();
-				linksByEndNode.put(end_node_id, list);
-			}
-
-			list.add(getLink(begin_node_id, end_node_id));
-
+			linksByEndNode.add(link.getEnd_node_id(), link, false);
 		}
 	}
 
@@ -611,20 +628,20 @@ public class BBox {
 	 * @param link The link to be deleted
 	 */
 	private void removeFromTables(Link link){
-		List<Link> beginLinks = linksByBeginNode.get(link.getBegin_node_id());
-		if(beginLinks !=null && link!=null)
-			beginLinks.remove(link);
-		List<Link> endLinks = linksByEndNode.get(link.getEnd_node_id());
-		if(endLinks !=null && link!=null)
-			endLinks.remove(link);
+		linksByBeginNode.remove(link.getBegin_node_id(), link);
+		linksByEndNode.remove(link.getEnd_node_id(), link);
 	}
 
+	/**
+	 * Drops the table entries of a Node which has been collapsed, once no Links refer to it anymore.
+	 * @param n The node which was removed
+	 */
 	private void removeAllFromTables(Node n){
-		if(linksByBeginNode.contains(n.getId()))
-			linksByBeginNode.remove(n.getId());
+		if(linksByBeginNode.degree(n.getId())==0)
+			linksByBeginNode.removeNode(n.getId());
 
-		if(linksByEndNode.contains(n.getId()))
-			linksByEndNode.remove(n.getId());
+		if(linksByEndNode.degree(n.getId())==0)
+			linksByEndNode.removeNode(n.getId());
 
 	}
 
@@ -635,27 +652,8 @@ public class BBox {
 	 * @param link The link to be deleted
 	 */
 	private void addToTables(Link link){
-		List<Link> beginLinks = linksByBeginNode.get(link.getBegin_node_id());
-		if(beginLinks==null){
-			beginLinks = new LinkedList<Link>();
-			linksByBeginNode.put(link.getBegin_node_id(), beginLinks);
-		}
-		if(!beginLinks.contains(link))
-			beginLinks.add(link);
-
-		List<Link> endLinks = linksByEndNode.get(link.getEnd_node_id());
-		if(endLinks==null){
-			endLinks = new LinkedList<Link>();
-			linksByEndNode.put(link.getEnd_node_id(), endLinks);
-		}
-		if(!endLinks.contains(link))
-			endLinks.add(link);
-	}
-
-	public static void printTable(Hashtable<Long, List<Link>> table){
-		for(Long id : table.keySet()){
-			System.out.println(id + "=====>" + table.get(id));
-		}
+		linksByBeginNode.add(link.getBegin_node_id(), link, true);
+		linksByEndNode.add(link.getEnd_node_id(), link, true);
 	}
 
 	/**
@@ -678,6 +676,7 @@ public class BBox {
 		//Step 2) Identify all links which are too short
 		//These links will be collapsed into a single node, and affected Links will be updated
 		List<Link> links = this.getAllLinks();
+		Collections.sort(links, LINK_ORDER);
 
 		int numchanged = 0;
 		int iter = 1;
@@ -719,9 +718,7 @@ public class BBox {
 					Node kNode = this.getNode(keep_node);
 					if(kNode!=null){
 						//Update affected Links whose begin_node is the one we are deleting
-						List<Link> affectedOutLinks = new LinkedList<Link>();
-						if(linksByBeginNode.get(delete_node)!=null)
-							affectedOutLinks = new LinkedList<Link>(linksByBeginNode.get(delete_node));
+						List<Link> affectedOutLinks = linksByBeginNode.list(delete_node);
 						for(Link affectedLink : affectedOutLinks){
 							this.delete(affectedLink);
 							removeFromTables(affectedLink);
@@ -736,12 +733,10 @@ public class BBox {
 
 						}
 						//finally, update our hashtable - affected links now have a different begin_node
-						linksByBeginNode.remove(delete_node);
+						linksByBeginNode.removeNode(delete_node);
 
 						//Update affected Links whose end_node is the one we are deleting
-						List<Link> affectedInLinks = new LinkedList<Link>();
-						if(linksByEndNode.get(delete_node)!=null)
-							affectedInLinks = new LinkedList<Link>(linksByEndNode.get(delete_node));
+						List<Link> affectedInLinks = linksByEndNode.list(delete_node);
 						for(Link affectedLink : affectedInLinks){
 							this.delete(affectedLink);
 							removeFromTables(affectedLink);
@@ -755,7 +750,7 @@ public class BBox {
 							addToTables(affectedLink);
 						}
 						//finally, update our hashtable - affected links now have a different end_node
-						linksByEndNode.remove(delete_node);
+						linksByEndNode.removeNode(delete_node);
 
 
 
@@ -826,37 +821,46 @@ public class BBox {
 		//We want to calculate the degree of this node - if it is 1, the node is a way end
 		//However, if we have a two-way street, there will be 2 links for the same street - we do not want to double-count these
 
-		List<Link> inLinks = getInLinks(n.getId());
-		List<Link> outLinks = getOutLinks(n.getId());
-
-		HashSet<List<Long>> linkSet = new HashSet<List<Long>>();
-
-		//Add all in-links to the set
-		for(Link l : inLinks){
-			//Link is encoded as (begin_node, end_node) pair
-			List<Long> idKey = new LinkedList<Long>();
-			idKey.add(l.getBegin_node_id());
-			idKey.add(l.getEnd_node_id());
-			//Add to the set
-			linkSet.add(idKey);
-		}
+		if(linksByBeginNode==null || linksByEndNode==null)
+			generateLinkTables();
 
-		for(Link l : outLinks){
-			//Link is encoded as (end_node begin_node) pair
-			//Note that these are backwards from inLinks
-			//so the matching inLink and outLink will get the same encoding
-			List<Long> idKey = new LinkedList<Long>();
-			idKey.add(l.getEnd_node_id());
-			idKey.add(l.getBegin_node_id());
-			//Add to the set
-			linkSet.add(idKey);
+		//In-links are encoded as (begin_node, end_node) pairs and out-links as (end_node, begin_node) pairs,
+		//so the matching inLink and outLink of a two-way street get the same encoding.
+		//The number of distinct pairs is the degree of the node.  Degrees are tiny, so we just compare
+		//each pair against the ones before it instead of building a set.
+		int inSlot = linksByEndNode.slot(n.getId());
+		int outSlot = linksByBeginNode.slot(n.getId());
+		int numIn = linksByEndNode.count(inSlot);
+		int numOut = linksByBeginNode.count(outSlot);
+
+		int degree = 0;
+		for(int i = 0; i < numIn + numOut; i++){
+			long a = pairFirst(inSlot, outSlot, numIn, i);
+			long b = pairSecond(inSlot, outSlot, numIn, i);
+			boolean seen = false;
+			for(int j = 0; j < i && !seen; j++)
+				seen = pairFirst(inSlot, outSlot, numIn, j)==a && pairSecond(inSlot, outSlot, numIn, j)==b;
+			if(!seen && ++degree > 2)
+				return true;
 		}
 
-		//The size of the set = the degree of the node
-		if(linkSet.size()==2)
-			return false;
-		else
-			return true;
+		return degree!=2;
+	}
+
+	/**
+	 * Helpers for isWayEnd().  Pair i is the i-th in-link as (begin, end) if i < numIn, and otherwise
+	 * the (i-numIn)-th out-link as (end, begin).
+	 */
+	private long pairFirst(int inSlot, int outSlot, int numIn, int i){
+		if(i < numIn)
+			return linksByEndNode.get(inSlot, i).getBegin_node_id();
+		return linksByBeginNode.get(outSlot, i - numIn).getEnd_node_id();
+	}
+
+	private long pairSecond(int inSlot, int outSlot, int numIn, int i){
+		if(i < numIn)
+			return linksByEndNode.get(inSlot, i).getEnd_node_id();
+		return linksByBeginNode.get(outSlot, i - numIn).getBegin_node_id();
 	}
 
 	/**
@@ -868,8 +872,7 @@ public class BBox {
 	 */
 	public void collapseNode(Node n){
 		//Get the links that flow in and out of this node
-		List<Link> inLinks = new LinkedList<Link>(getInLinks(n.getId()));
-		List<Link> outLinks = getOutLinks(n.getId());
+		List<Link> inLinks = getInLinks(n.getId());
 
 		//If the linkMap does not exist yet, create it
 		if(this.linkMap==null){
@@ -882,8 +885,9 @@ public class BBox {
 		for(Link in : inLinks){
 			//Discover the "next" outLink which corresponds to this inLink
 			//This is the link which continues the path of this link, so the two should be joined
+			//The outLinks are looked up again each time, since joining removes the previous outLink
 			Link out = null;
-			for(Link o : outLinks){
+			for(Link o : getOutLinks(n.getId())){
 				if(in.getBegin_node_id() != o.getEnd_node_id()){
 					out = o;
 					break;
@@ -939,17 +943,24 @@ public class BBox {
 	 * This allows us to have a much cleaner map to collect and process data on.
 	 */
 	public DetailLinkMap collapseTwowayNodes(){
-		int iteration = 0;
-		//Maps way Ids to the affected Nodes
-		Hashtable<Long, HashSet<Long>> wayNodes = new Hashtable<Long, HashSet<Long>>();
+		countWaysThroughNodes();
+		collapseChainNodes();
 
-		//STEP 1)
-		//Count the number of ways that cross through each Node
+		//Return the link mapping, which results from collapsing these links
+		return this.linkMap;
+	}
+
+	/**
+	 * Step 1 of collapseTwowayNodes() : count the number of ways that cross through each Node.
+	 * This looks at entire ways, so it is always done on the whole box.
+	 */
+	void countWaysThroughNodes(){
+		//Maps way Ids to the affected Nodes
+		LongMap<HashSet<Long>> wayNodes = new LongMap<HashSet<Long>>();
 
 		System.out.println("Counting intersections.");
 		//Initialize counts to 0
-		List<Node> allNodes = this.getAllNodes();
-		for(Node node : allNodes){
+		for(Node node : this.getAllNodes()){
 			node.setOsm_num_ways((short) 0);
 		}
 		//Loop through all links, and use the way id to grow the set of nodes for this way
@@ -966,33 +977,185 @@ public class BBox {
 			nodeSet.add(link.getEnd_node_id());			
 		}
 		//Loop through these ways and increment the count for each node
-		for(Long way_id : wayNodes.keySet()){
-			HashSet<Long> nodeSet = wayNodes.get(way_id);
+		for(HashSet<Long> nodeSet : wayNodes.values()){
 			for(long node_id : nodeSet){
 				Node n = this.getNode(node_id);
 				n.incrementOsm_num_ways();
 			}
 		}
+	}
 
+	/**
+	 * Step 2 of collapseTwowayNodes() : Nodes which have a way count of 1 are not important nodes, unless they
+	 * are a way end.  So we remove them and join the links on either side.  Nodes are visited in order of id.
+	 */
+	void collapseChainNodes(){
 		System.out.println("Merging nodes.");
 
+		//Every Link needs a leaf in the linkMap, even if nothing in this box is collapsed
+		if(this.linkMap==null){
+			this.linkMap = new DetailLinkMap();
+			for(Link link : this.getAllLinks())
+				this.linkMap.add(link);
+		}
 
-		//Step 2)
-		//Nodes which have a way count of 1 are not important nodes, unless they are a way end
-		//So we remove them and join the links on either side
-		int i = 0;
+		List<Node> allNodes = this.getAllNodes();
+		Collections.sort(allNodes, NODE_ORDER);
 		for(Node n : allNodes){
-			i++;
-			if(i%1000==0)
-				System.out.println(i + " / " + allNodes.size());
-
 			if(n.getOsm_num_ways() <= 1 && !isWayEnd(n)){
 				this.collapseNode(n);
 			}
 		}
+	}
+
+	/**
+	 * Splits this box into at most numParts boxes which share no Nodes or Links.  Each connected component of
+	 * the map goes into exactly one part, so the parts can be collapsed independently.  Nodes and Links stay in
+	 * the same table (regular or safety margin) as in this box.
+	 * @param numParts The desired number of parts
+	 * @return The non-empty parts
+	 */
+	private List<BBox> splitIntoComponents(int numParts){
+		List<Node> allNodes = getAllNodes();
+		Collections.sort(allNodes, NODE_ORDER);
+		List<Link> allLinks = getAllLinks();
+		Collections.sort(allLinks, LINK_ORDER);
+
+		//Union-find over the indexes of the sorted node ids
+		long[] ids = new long[allNodes.size()];
+		int[] parent = new int[ids.length];
+		for(int i = 0; i < ids.length; i++){
+			ids[i] = allNodes.get(i).getId();
+			parent[i] = i;
+		}
+		for(Link link : allLinks){
+			int a = findRoot(parent, Arrays.binarySearch(ids, link.getBegin_node_id()));
+			int b = findRoot(parent, Arrays.binarySearch(ids, link.getEnd_node_id()));
+			if(a!=b)
+				parent[Math.max(a, b)] = Math.min(a, b);
+		}
+
+		//Measure each component, then give each one to the least loaded part
+		int[] size = new int[ids.length];
+		for(int i = 0; i < ids.length; i++)
+			size[findRoot(parent, i)]++;
+		for(Link link : allLinks)
+			size[findRoot(parent, Arrays.binarySearch(ids, link.getBegin_node_id()))]++;
+
+		int[] partOf = new int[ids.length];
+		long[] load = new long[numParts];
+		for(int i = 0; i < ids.length; i++){
+			if(parent[i]==i){
+				int lightest = 0;
+				for(int p = 1; p < numParts; p++)
+					if(load[p] < load[lightest])
+						lightest = p;
+				partOf[i] = lightest;
+				load[lightest] += size[i];
+			}
+		}
 
-		//Return the link mapping, which results from collapsing these links
-		return this.linkMap;
+		BBox[] parts = new BBox[numParts];
+		for(int p = 0; p < numParts; p++)
+			parts[p] = new BBox(leftLon, topLat, rightLon, bottomLat);
+		for(int i = 0; i < ids.length; i++){
+			BBox part = parts[partOf[findRoot(parent, i)]];
+			Node n = allNodes.get(i);
+			if(nodes.containsKey(ids[i]))
+				part.nodes.put(ids[i], n);
+			else
+				part.safeNodes.put(ids[i], n);
+		}
+		for(Link link : allLinks){
+			BBox part = parts[partOf[findRoot(parent, Arrays.binarySearch(ids, link.getBegin_node_id()))]];
+			if(links.containsKey(link.getBegin_node_id(), link.getEnd_node_id()))
+				part.links.put(link.getBegin_node_id(), link.getEnd_node_id(), link);
+			else
+				part.safeLinks.put(link.getBegin_node_id(), link.getEnd_node_id(), link);
+		}
+
+		List<BBox> result = new ArrayList<BBox>(numParts);
+		for(BBox part : parts)
+			if(!part.nodes.isEmpty() || !part.safeNodes.isEmpty())
+				result.add(part);
+		return result;
+	}
+
+	private static int findRoot(int[] parent, int i){
+		while(parent[i]!=i){
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Builds a box with the same bounds as this one, containing the Nodes and Links left in the given graphs.  The
+	 * tables are filled in sorted order, so the result does not depend on how (or whether) the map was split.
+	 * @param graphs The collapsed graphs of this box, or of the parts it was split into
+	 * @param processedLinks Receives the mapping from each Link of this box to its processed Link
+	 * @return The combined box
+	 */
+	private BBox canonicalCopy(PreprocessGraph[] graphs, IdentityHashMap<Link,Link> processedLinks){
+		BBox copy = new BBox(leftLon, topLat, rightLon, bottomLat);
+		copy.setTile(tile);
+		copy.min_lon = min_lon;
+		copy.max_lon = max_lon;
+		copy.min_lat = min_lat;
+		copy.max_lat = max_lat;
+		copy.maxChangeSet = maxChangeSet;
+
+		//Each graph gives sorted runs, so these sorts only merge the runs
+		List<Node> boxNodes = new ArrayList<Node>();
+		List<Node> marginNodes = new ArrayList<Node>();
+		List<Link> boxLinks = new ArrayList<Link>();
+		List<Link> marginLinks = new ArrayList<Link>();
+		for(PreprocessGraph graph : graphs)
+			graph.exportTo(boxNodes, marginNodes, boxLinks, marginLinks, processedLinks);
+		Collections.sort(boxNodes, NODE_ORDER);
+		Collections.sort(marginNodes, NODE_ORDER);
+		Collections.sort(boxLinks, LINK_ORDER);
+		Collections.sort(marginLinks, LINK_ORDER);
+
+		for(Node n : boxNodes)
+			copy.nodes.put(n.getId(), n);
+		for(Node n : marginNodes)
+			copy.safeNodes.put(n.getId(), n);
+		for(Link link : boxLinks)
+			copy.links.put(link.getBegin_node_id(), link.getEnd_node_id(), link);
+		for(Link link : marginLinks)
+			copy.safeLinks.put(link.getBegin_node_id(), link.getEnd_node_id(), link);
+		return copy;
+	}
+
+	/**
+	 * Collapses the parts of a split box, dividing the range in half until each task has one part.
+	 */
+	private static class CollapseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<BBox> parts;
+		private final PreprocessGraph[] graphs;
+		private final int from, to;
+
+		CollapseTask(List<BBox> parts, PreprocessGraph[] graphs, int from, int to){
+			this.parts = parts;
+			this.graphs = graphs;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute(){
+			if(to - from==1){
+				graphs[from] = new PreprocessGraph(parts.get(from));
+				graphs[from].collapse();
+			}
+			else{
+				int mid = (from + to) / 2;
+				invokeAll(new CollapseTask(parts, graphs, from, mid), new CollapseTask(parts, graphs, mid, to));
+			}
+		}
 	}
 
 	/**
@@ -1020,12 +1183,26 @@ public class BBox {
 		}
 
 		//Collapse nodes which form a two-way street (unnecessary detail)
-		//mapping will tell which links in the processed map correspond to which links in the detailed map
+		//Also collapse extremely short Links (usually has the effect of merging divided highways)
+		//In parallel mode, each connected component is collapsed on its own - they cannot affect each other
 		System.out.println("Collapsing nodes.");
-		DetailLinkMap mapping = processed.collapseTwowayNodes();
+		processed.countWaysThroughNodes();
+		PreprocessGraph[] graphs;
+		if(parallelPreprocess){
+			ForkJoinPool pool = getPreprocessPool();
+			List<BBox> parts = processed.splitIntoComponents(pool.getParallelism() * 4);
+			graphs = new PreprocessGraph[parts.size()];
+			if(!parts.isEmpty())
+				pool.invoke(new CollapseTask(parts, graphs, 0, parts.size()));
+		}
+		else{
+			graphs = new PreprocessGraph[]{new PreprocessGraph(processed)};
+			graphs[0].collapse();
+		}
 
-		//Also collapse extremely short Links (usually has the effect of merging divided highways)
-		processed.collapseShortLinks();
+		//processedLinks will tell which links in the processed map correspond to which links in the detailed map
+		IdentityHashMap<Link,Link> processedLinks = new IdentityHashMap<Link,Link>(correspondingLink.size());
+		processed = processed.canonicalCopy(graphs, processedLinks);
 
 		System.out.println("Collapsing links.");
 		List<DetailLinkMapping> dlmList = new LinkedList<DetailLinkMapping>();
@@ -1035,7 +1212,7 @@ public class BBox {
 		for(Link detailed : this.getAllLinks()){
 			//For each link in the detailed map, search the mapping for the corresponding processed Link
 			Link tmp = correspondingLink.get(detailed);
-			Link processedLink = mapping.findLink(tmp);
+			Link processedLink = processedLinks.get(tmp);
 
 			//create a list of these mappings
 			DetailLinkMapping dlm = new DetailLinkMapping(processedLink, detailed);
@@ -1056,12 +1233,312 @@ public class BBox {
 
 	}
 
+	/**
+	 * The part of a detailed map which must be collapsed again after it changed : the changed DetailLinks, and every
+	 * DetailLink of the old processed Links (chains) which they belonged to.  See preprocessChanges().
+	 */
+	private static class ChangedRegion {
+		/**
+		 * The old processed map and its chains - DetailLink id --> processed Link, processed Link id --> DetailLink ids
+		 */
+		private final BBox oldProcessed;
+		private final LongMap<Link> chainOf = new LongMap<Link>();
+		private final LongMap<List<Long>> chainLinks = new LongMap<List<Long>>();
+
+		/**
+		 * The Links of the detailed map by id, and the Links at each Node
+		 */
+		private final LongMap<Link> detailLinks;
+		private final LongMap<List<Link>> linksAtNode;
+
+		/**
+		 * The DetailLinks to collapse again, and the old processed Links they replace
+		 */
+		final Set<Link> links = Collections.newSetFromMap(new IdentityHashMap<Link,Boolean>());
+		final Set<Link> chains = Collections.newSetFromMap(new IdentityHashMap<Link,Boolean>());
+
+		ChangedRegion(BBox oldProcessed, LongMap<Link> detailLinks, LongMap<List<Link>> linksAtNode){
+			this.oldProcessed = oldProcessed;
+			this.detailLinks = detailLinks;
+			this.linksAtNode = linksAtNode;
+			for(DetailLinkMapping dlm : oldProcessed.getDetailLinkMappings()){
+				Link chain = oldProcessed.getLinkById(dlm.getLink_id());
+				if(chain==null)
+					continue;
+				chainOf.put(dlm.getDetail_link_id(), chain);
+				List<Long> ids = chainLinks.get(chain.getId());
+				if(ids==null){
+					ids = new ArrayList<Long>();
+					chainLinks.put(chain.getId(), ids);
+				}
+				ids.add(dlm.getDetail_link_id());
+			}
+		}
+
+		boolean hasChain(Link detailed){
+			return chainOf.containsKey(detailed.getId());
+		}
+
+		/**
+		 * Adds a DetailLink to the region, along with the rest of its old chain.
+		 */
+		void addLink(Link detailed){
+			if(links.add(detailed))
+				addChain(chainOf.get(detailed.getId()));
+		}
+
+		/**
+		 * Adds an old processed Link to the region, along with all of its DetailLinks that still exist.
+		 */
+		void addChain(Link chain){
+			if(chain==null || !chains.add(chain))
+				return;
+			List<Long> ids = chainLinks.get(chain.getId());
+			if(ids!=null){
+				for(long id : ids){
+					Link detailed = detailLinks.get(id);
+					if(detailed!=null)
+						addLink(detailed);
+				}
+			}
+		}
+
+		/**
+		 * Grows the region across one of its border Nodes, by adding the other Links at that Node.
+		 */
+		void grow(long node_id){
+			for(Link link : linksAtNode.get(node_id))
+				addLink(link);
+		}
+
+		/**
+		 * @return True if the Node has a Link outside of the region (and one inside of it)
+		 */
+		boolean isBorder(long node_id){
+			for(Link link : linksAtNode.get(node_id))
+				if(!links.contains(link))
+					return true;
+			return false;
+		}
+
+		/**
+		 * @return True if preprocess() would collapse this Node - it is on only one way, and has two neighbors.
+		 * Equivalent to the test in collapseChainNodes(), done on the whole detailed map.
+		 */
+		boolean isChainNode(long node_id){
+			Set<Long> ways = new HashSet<Long>();
+			Set<Long> neighbors = new HashSet<Long>();
+			for(Link link : linksAtNode.get(node_id)){
+				ways.add(link.getOsm_way_id());
+				neighbors.add(link.getBegin_node_id()==node_id ? link.getEnd_node_id() : link.getBegin_node_id());
+			}
+			return ways.size() <= 1 && neighbors.size()==2;
+		}
+
+		/**
+		 * @return The number of ways through this Node in the whole detailed map, as countWaysThroughNodes() gives
+		 */
+		short countWays(long node_id){
+			Set<Long> ways = new HashSet<Long>();
+			for(Link link : linksAtNode.get(node_id))
+				ways.add(link.getOsm_way_id());
+			return (short)ways.size();
+		}
+
+		Link oldChain(long link_id){
+			return oldProcessed.getLinkById(link_id);
+		}
+	}
+
+	/**
+	 * Does the same thing as preprocess(), but only collapses again the chains which contain something that was born
+	 * after the old processed map was built.  The processed Links of all other chains, and their DetailLinkMappings,
+	 * are copied from the old map as they are - so the resolver finds nothing to do for them.
+	 * 
+	 * The changed region is collapsed on its own, with the Nodes on its border counted as junctions.  Where that could
+	 * differ from collapsing the whole map - at a border Node that preprocess() would collapse now, or that was collapsed
+	 * (or merged away by collapseShortLinks()) in the old map - the region grows by the neighboring chain, and is
+	 * checked again.
+	 * @param oldProcessed The processed map of this box in the DB, including its DetailLinkMappings
+	 * @param since The time of the detailed map which oldProcessed was built from (see getTimestamp())
+	 * @return The processed map, or null if so much has changed that preprocess() should be used instead
+	 */
+	public BBox preprocessChanges(BBox oldProcessed, long since){
+		if(oldProcessed.getDetailLinkMappings()==null)
+			return null;
+
+		List<Link> allLinks = getAllLinks();
+		LongMap<Link> detailLinks = new LongMap<Link>(allLinks.size());
+		LongMap<List<Link>> linksAtNode = new LongMap<List<Link>>();
+		for(Link link : allLinks){
+			detailLinks.put(link.getId(), link);
+			for(long node_id : new long[]{link.getBegin_node_id(), link.getEnd_node_id()}){
+				List<Link> atNode = linksAtNode.get(node_id);
+				if(atNode==null){
+					atNode = new ArrayList<Link>(2);
+					linksAtNode.put(node_id, atNode);
+				}
+				atNode.add(link);
+			}
+		}
+		ChangedRegion region = new ChangedRegion(oldProcessed, detailLinks, linksAtNode);
+
+		//Start from the Links which are new or were modified, or which have a Node that was, and from the chains
+		//which lost a DetailLink.  A Link in the box without a chain was never preprocessed, so it counts as new.
+		for(Link link : allLinks){
+			if(link.getBirth_timestamp() > since || getNode(link.getBegin_node_id()).getBirth_timestamp() > since
+					|| getNode(link.getEnd_node_id()).getBirth_timestamp() > since || (inBox(link) && !region.hasChain(link)))
+				region.addLink(link);
+		}
+		for(DetailLinkMapping dlm : oldProcessed.getDetailLinkMappings()){
+			if(!detailLinks.containsKey(dlm.getDetail_link_id()))
+				region.addChain(region.oldChain(dlm.getLink_id()));
+		}
+
+		//Every pass either returns, or makes the region bigger
+		while(true){
+			if(region.links.size() * 2 > allLinks.size())
+				return null;
+
+			//The Nodes of the region, and the ones on its border
+			HashSet<Long> regionNodes = new HashSet<Long>();
+			List<Long> border = new ArrayList<Long>();
+			for(Link link : region.links){
+				for(long node_id : new long[]{link.getBegin_node_id(), link.getEnd_node_id()}){
+					if(regionNodes.add(node_id) && region.isBorder(node_id))
+						border.add(node_id);
+				}
+			}
+
+			boolean grown = false;
+			for(long node_id : border){
+				if(oldProcessed.getNode(node_id)==null || region.isChainNode(node_id)){
+					region.grow(node_id);
+					grown = true;
+				}
+			}
+			//The end of an old chain may have lost its other Links, and be part of a longer chain now
+			List<Long> chainEnds = new ArrayList<Long>();
+			for(Link chain : region.chains){
+				chainEnds.add(chain.getBegin_node_id());
+				chainEnds.add(chain.getEnd_node_id());
+			}
+			for(long node_id : chainEnds){
+				if(!regionNodes.contains(node_id) && linksAtNode.containsKey(node_id) && region.isChainNode(node_id)){
+					region.grow(node_id);
+					grown = true;
+				}
+			}
+			if(grown)
+				continue;
+
+			//Collapse the region on its own, like preprocess() does
+			BBox part = new BBox(this.leftLon, this.topLat, this.rightLon, this.bottomLat);
+			part.setTile(this.getTile());
+			IdentityHashMap<Link,Link> correspondingLink = new IdentityHashMap<Link,Link>();
+			for(long node_id : regionNodes)
+				part.add(new Node(getNode(node_id)));
+			for(Link link : region.links){
+				Link tmp = new Link(link);
+				part.add(tmp);
+				correspondingLink.put(link, tmp);
+			}
+			part.countWaysThroughNodes();
+			for(long node_id : border)
+				part.getNode(node_id).setOsm_num_ways((short)2);
+			PreprocessGraph graph = new PreprocessGraph(part);
+			graph.collapse();
+			IdentityHashMap<Link,Link> processedLinks = new IdentityHashMap<Link,Link>(correspondingLink.size());
+			BBox collapsed = part.canonicalCopy(new PreprocessGraph[]{graph}, processedLinks);
+
+			//The border Nodes must all still be there, with the number of ways of the whole map
+			for(long node_id : border){
+				Node n = collapsed.getNode(node_id);
+				if(n==null){
+					region.grow(node_id);
+					grown = true;
+				}
+				else
+					n.setOsm_num_ways(region.countWays(node_id));
+			}
+			if(grown)
+				continue;
+
+			//Put the new chains together with the old ones.  Nodes without Links are never collapsed.
+			BBox processed = new BBox(this.leftLon, this.topLat, this.rightLon, this.bottomLat);
+			processed.setTile(this.getTile());
+			for(Node n : getAllNodes()){
+				if(!linksAtNode.containsKey(n.getId()))
+					processed.add(new Node(n));
+			}
+			for(Node n : oldProcessed.getAllNodes()){
+				long node_id = n.getId();
+				if(!regionNodes.contains(node_id) && linksAtNode.containsKey(node_id)){
+					Node copy = new Node(getNode(node_id));
+					copy.setOsm_num_ways(region.countWays(node_id));
+					processed.add(copy);
+				}
+			}
+			for(Node n : collapsed.getAllNodes())
+				processed.add(n);
+
+			//An old chain may end at a Node which is gone now (e.g. merged by collapseShortLinks()), or connect the same
+			//Nodes as a new one - only one of them fits in the tables, and which one depends on the order of collapsing
+			List<Link> kept = new ArrayList<Link>();
+			for(Link link : oldProcessed.getAllLinks()){
+				if(region.chains.contains(link))
+					continue;
+				long begin_node_id = link.getBegin_node_id();
+				long end_node_id = link.getEnd_node_id();
+				if(processed.getNode(begin_node_id)==null || processed.getNode(end_node_id)==null
+						|| collapsed.safeHasLink(begin_node_id, end_node_id)){
+					region.addChain(link);
+					grown = true;
+				}
+				else
+					kept.add(link);
+			}
+			if(grown)
+				continue;
+
+			for(Link link : kept)
+				processed.add(link);
+			for(Link link : collapsed.getAllLinks())
+				processed.add(link);
+			processed.maxChangeSet = this.maxChangeSet;
+
+			List<DetailLinkMapping> dlmList = new LinkedList<DetailLinkMapping>();
+			for(DetailLinkMapping dlm : oldProcessed.getDetailLinkMappings()){
+				Link chain = region.oldChain(dlm.getLink_id());
+				Link detailed = detailLinks.get(dlm.getDetail_link_id());
+				if(chain!=null && detailed!=null && !region.chains.contains(chain))
+					dlmList.add(new DetailLinkMapping(chain, detailed));
+			}
+			for(Link detailed : region.links)
+				dlmList.add(new DetailLinkMapping(processedLinks.get(correspondingLink.get(detailed)), detailed));
+			processed.setDetailLinkMappings(dlmList);
+
+			Log.v("TILE", "Collapsed " + region.links.size() + " of " + allLinks.size() + " links again.");
+			return processed;
+		}
+	}
+
 
 
 	public long getMaxChangeSet() {
 		return maxChangeSet;
 	}
 
+	/**
+	 * Makes this box count as up to date with a changeset, even if none of its elements come from it (e.g. the
+	 * changeset only deleted things).  Old elements missing from the box are only deleted if they are older than this.
+	 * @param changeset An OSM changeset
+	 */
+	public void raiseMaxChangeSet(long changeset){
+		if(changeset > maxChangeSet)
+			maxChangeSet = changeset;
+	}
+
 	public String toString(){
 		String str = nodes.size() + " nodes, " + safeNodes.size() + " safeNodes, ";
 		str += links.size() + " links, " + safeLinks.size() + " safeLinks";
@@ -1069,8 +1546,8 @@ public class BBox {
 	}
 
 	public void printLinks(){
-		for(List<Long> key : links.keySet()){
-			System.out.println(key + "~~>" + links.get(key));
+		for(Link link : links.values()){
+			System.out.println("[" + link.getBegin_node_id() + ", " + link.getEnd_node_id() + "]~~>" + link);
 		}
 	}
 
@@ -1084,11 +1561,11 @@ public class BBox {
 		try {
 			File f = new File(nodeFileName);
 			PrintWriter writer = new PrintWriter(f);
-			writer.println("id,lat,lon,version");
+			writer.println(NODE_FILE_HEADER);
 			for(Node node : getAllNodes()){
-				String line = node.getId() + "," + node.getGeom().y + "," + node.getGeom().x + "," + node.getBirth_timestamp();
-				writer.println(line);
+				writer.println(getNodeFileLine(node));
 			}
+			writer.close();
 			
 		} catch (FileNotFoundException e) {
 			Log.e(e);
@@ -1097,19 +1574,45 @@ public class BBox {
 		try {
 			File f = new File(linkFileName);
 			PrintWriter writer = new PrintWriter(f);
-			writer.println("id,begin_node_id,end_node_id,street_name,street_class,street_length,begin_angle,end_angle,begin_lat,begin_lon,end_lat,end_lon,version");
+			writer.println(LINK_FILE_HEADER);
 			for(Link link : getAllLinks()){
-				String line = link.getId() + "," + link.getBegin_node_id() + "," + link.getEnd_node_id() + "," + link.getOsm_name().replace(",", "") +
-						"," + link.getOsm_class() + "," + link.getStreet_length() + "," + link.getBegin_angle() + "," + link.getEnd_angle() + 
-						"," + link.getGeom().getPoints()[0].y + ","  + link.getGeom().getPoints()[0].x +
-						"," + link.getGeom().getPoints()[1].y + ","  + link.getGeom().getPoints()[1].x + "," + link.getBirth_timestamp();
-				writer.println(line);
+				writer.println(getLinkFileLine(link));
 			}
+			writer.close();
 			
 		} catch (FileNotFoundException e) {
 			Log.e(e);
 		}
 	}
+
+	/**
+	 * The first line of the node file written by saveToFile()
+	 */
+	public static final String NODE_FILE_HEADER = "id,lat,lon,version";
+
+	/**
+	 * The first line of the link file written by saveToFile()
+	 */
+	public static final String LINK_FILE_HEADER = "id,begin_node_id,end_node_id,street_name,street_class,street_length,begin_angle,end_angle,begin_lat,begin_lon,end_lat,end_lon,version";
+
+	/**
+	 * @param node A Node
+	 * @return The Node's line in the node file written by saveToFile()
+	 */
+	public static String getNodeFileLine(Node node){
+		return node.getId() + "," + node.getGeom().y + "," + node.getGeom().x + "," + node.getBirth_timestamp();
+	}
+
+	/**
+	 * @param link A Link
+	 * @return The Link's line in the link file written by saveToFile()
+	 */
+	public static String getLinkFileLine(Link link){
+		return link.getId() + "," + link.getBegin_node_id() + "," + link.getEnd_node_id() + "," + link.getOsm_name().replace(",", "") +
+				"," + link.getOsm_class() + "," + link.getStreet_length() + "," + link.getBegin_angle() + "," + link.getEnd_angle() + 
+				"," + link.getGeom().getPoints()[0].y + ","  + link.getGeom().getPoints()[0].x +
+				"," + link.getGeom().getPoints()[1].y + ","  + link.getGeom().getPoints()[1].x + "," + link.getBirth_timestamp();
+	}
 	
 	
 	public double getMin_lon() {
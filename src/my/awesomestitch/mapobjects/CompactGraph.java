@@ -0,0 +1,493 @@
+package my.awesomestitch.mapobjects;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.postgis.LineString;
+import org.postgis.Point;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * An immutable, compact copy of a processed map, stored in compressed-sparse-row form.  Nodes and Links are not
+ * objects here - they are just indexes into parallel primitive arrays.
+ *
+ * Nodes are sorted by node_id.  Links are sorted by (begin node, end node), so the out-links of node i are exactly
+ * the links outOffsets[i] ... outOffsets[i+1]-1.  The in-links of node i are listed in inLinks[inOffsets[i]] ...
+ * inLinks[inOffsets[i+1]-1].  Traversing a node's neighborhood therefore touches a few contiguous array ranges
+ * instead of chasing pointers through hash tables, Points and LineStrings.
+ *
+ * Link geometries are not stored - in the processed map a Link is a straight line between its two Nodes, so
+ * toLink() rebuilds the geometry from the node coordinates.
+ *
+ * Use CompactGraph.fromBBox() to convert an existing BBox, or a CompactGraph.Builder to construct one directly
+ * (for example, from query results) without creating any Node or Link objects.
+ */
+public class CompactGraph {
+
+	//Node columns, indexed by node index
+	private final long[] nodeIds;
+	private final double[] lats, lons;
+
+	//Link columns, indexed by link index
+	private final long[] linkIds;
+	private final int[] beginNodes, endNodes;
+	private final double[] streetLengths;
+	private final float[] beginAngles, endAngles;
+	private final long[] wayIds;
+	private final String[] names, classes;
+
+	/**
+	 * Out-links of node i are the link indexes outOffsets[i] (inclusive) to outOffsets[i+1] (exclusive).
+	 */
+	private final int[] outOffsets;
+
+	/**
+	 * In-links of node i are inLinks[inOffsets[i]] (inclusive) to inLinks[inOffsets[i+1]] (exclusive).
+	 */
+	private final int[] inOffsets;
+	private final int[] inLinks;
+
+	private static final int[] NO_LINKS = new int[0];
+
+	private CompactGraph(Builder b, int[] nodeOrder, int numNodes, int[] linkOrder, int numLinks, int[] begins, int[] ends){
+		nodeIds = new long[numNodes];
+		lats = new double[numNodes];
+		lons = new double[numNodes];
+		for(int i = 0; i < numNodes; i++){
+			int src = nodeOrder[i];
+			nodeIds[i] = b.nodeIds[src];
+			lats[i] = b.lats[src];
+			lons[i] = b.lons[src];
+		}
+
+		linkIds = new long[numLinks];
+		beginNodes = new int[numLinks];
+		endNodes = new int[numLinks];
+		streetLengths = new double[numLinks];
+		beginAngles = new float[numLinks];
+		endAngles = new float[numLinks];
+		wayIds = new long[numLinks];
+		names = new String[numLinks];
+		classes = new String[numLinks];
+		for(int i = 0; i < numLinks; i++){
+			int src = linkOrder[i];
+			linkIds[i] = b.linkIds[src];
+			beginNodes[i] = begins[src];
+			endNodes[i] = ends[src];
+			streetLengths[i] = b.streetLengths[src];
+			beginAngles[i] = b.beginAngles[src];
+			endAngles[i] = b.endAngles[src];
+			wayIds[i] = b.wayIds[src];
+			names[i] = b.names[src];
+			classes[i] = b.classes[src];
+		}
+
+		//Links are sorted by begin node, so the out-link offsets are just a running count
+		outOffsets = new int[numNodes + 1];
+		for(int i = 0; i < numLinks; i++)
+			outOffsets[beginNodes[i] + 1]++;
+		for(int i = 0; i < numNodes; i++)
+			outOffsets[i + 1] += outOffsets[i];
+
+		//Counting sort of the links by end node for the in-link index
+		inOffsets = new int[numNodes + 1];
+		for(int i = 0; i < numLinks; i++)
+			inOffsets[endNodes[i] + 1]++;
+		for(int i = 0; i < numNodes; i++)
+			inOffsets[i + 1] += inOffsets[i];
+		inLinks = new int[numLinks];
+		int[] fill = Arrays.copyOf(inOffsets, numNodes);
+		for(int i = 0; i < numLinks; i++)
+			inLinks[fill[endNodes[i]]++] = i;
+	}
+
+	/**
+	 * Copies the Nodes and Links of a BBox (including the safety margin) into a CompactGraph.
+	 * @param box A BBox containing a processed map
+	 * @return The equivalent CompactGraph
+	 */
+	public static CompactGraph fromBBox(BBox box){
+		Builder b = new Builder(box.nodes.size() + box.safeNodes.size(), box.links.size() + box.safeLinks.size());
+		for(Node n : box.getAllNodes())
+			b.addNode(n.getId(), n.getGeom().y, n.getGeom().x);
+		for(Link l : box.getAllLinks())
+			b.addLink(l.getId(), l.getBegin_node_id(), l.getEnd_node_id(), l.getStreet_length(), l.getBegin_angle(),
+					l.getEnd_angle(), l.getOsm_way_id(), l.getOsm_name(), l.getOsm_class());
+		return b.build();
+	}
+
+
+	//Nodes
+
+	public int getNumNodes(){
+		return nodeIds.length;
+	}
+
+	/**
+	 * Looks up a node by id.
+	 * @param nodeId The node_id in question
+	 * @return The index of this node, or -1 if it is not in the graph
+	 */
+	public int indexOf(long nodeId){
+		int i = Arrays.binarySearch(nodeIds, nodeId);
+		return i < 0 ? -1 : i;
+	}
+
+	public long getNodeId(int node){
+		return nodeIds[node];
+	}
+
+	public double getLat(int node){
+		return lats[node];
+	}
+
+	public double getLon(int node){
+		return lons[node];
+	}
+
+	/**
+	 * Materializes a Node object, for code which still needs one.
+	 * @param node A node index
+	 * @return A new Node with this node's id and geometry
+	 */
+	public Node toNode(int node){
+		Node n = new Node(true, nodeIds[node], "", new Point(lons[node], lats[node]));
+		n.setNum_in_links((short)getInDegree(node));
+		n.setNum_out_links((short)getOutDegree(node));
+		return n;
+	}
+
+
+	//Links
+
+	public int getNumLinks(){
+		return linkIds.length;
+	}
+
+	/**
+	 * Looks up a link by its begin and end nodes.
+	 * @param begin_node_id The id of the node this link starts at
+	 * @param end_node_id The id of the node this link ends at
+	 * @return The index of the link, or -1 if there is no such link
+	 */
+	public int findLink(long begin_node_id, long end_node_id){
+		int begin = indexOf(begin_node_id);
+		int end = indexOf(end_node_id);
+		if(begin < 0 || end < 0)
+			return -1;
+		//out-links of a node are sorted by end node
+		int i = Arrays.binarySearch(endNodes, outOffsets[begin], outOffsets[begin + 1], end);
+		return i < 0 ? -1 : i;
+	}
+
+	public long getLinkId(int link){
+		return linkIds[link];
+	}
+
+	/**
+	 * @param link A link index
+	 * @return The index of the node this link begins at
+	 */
+	public int getBeginNode(int link){
+		return beginNodes[link];
+	}
+
+	/**
+	 * @param link A link index
+	 * @return The index of the node this link ends at
+	 */
+	public int getEndNode(int link){
+		return endNodes[link];
+	}
+
+	public double getStreetLength(int link){
+		return streetLengths[link];
+	}
+
+	public float getBeginAngle(int link){
+		return beginAngles[link];
+	}
+
+	public float getEndAngle(int link){
+		return endAngles[link];
+	}
+
+	public long getOsmWayId(int link){
+		return wayIds[link];
+	}
+
+	public String getOsmName(int link){
+		return names[link];
+	}
+
+	public String getOsmClass(int link){
+		return classes[link];
+	}
+
+	/**
+	 * Materializes a Link object, for code which still needs one.  The geometry is a straight line between the
+	 * two end nodes.
+	 * @param link A link index
+	 * @return A new Link with this link's attributes
+	 */
+	public Link toLink(int link){
+		int b = beginNodes[link], e = endNodes[link];
+		Link l = new Link(linkIds[link], nodeIds[b], nodeIds[e], beginAngles[link], endAngles[link], names[link]);
+		l.setStreet_length(streetLengths[link]);
+		l.setOsm_class(classes[link]);
+		l.setOsm_way_id(wayIds[link]);
+		Point[] points = {new Point(lons[b], lats[b]), new Point(lons[e], lats[e])};
+		l.setGeom(new LineString(points));
+		return l;
+	}
+
+
+	//Adjacency
+
+	/**
+	 * @param node A node index
+	 * @return The number of links which begin at this node
+	 */
+	public int getOutDegree(int node){
+		return outOffsets[node + 1] - outOffsets[node];
+	}
+
+	/**
+	 * @param node A node index
+	 * @param k An index less than getOutDegree(node)
+	 * @return The link index of the k-th link which begins at this node
+	 */
+	public int getOutLink(int node, int k){
+		return outOffsets[node] + k;
+	}
+
+	/**
+	 * @param node A node index
+	 * @return The number of links which end at this node
+	 */
+	public int getInDegree(int node){
+		return inOffsets[node + 1] - inOffsets[node];
+	}
+
+	/**
+	 * @param node A node index
+	 * @param k An index less than getInDegree(node)
+	 * @return The link index of the k-th link which ends at this node
+	 */
+	public int getInLink(int node, int k){
+		return inLinks[inOffsets[node] + k];
+	}
+
+	/**
+	 * Returns all of the links that flow into the given node (have this node as an end node), like
+	 * BBox.getInLinks().
+	 * @param node_id The id of the node in question.
+	 * @return The link indexes of the relevant Links.  This is empty if the node is not in the graph.
+	 */
+	public int[] getInLinks(long node_id){
+		int node = indexOf(node_id);
+		if(node < 0)
+			return NO_LINKS;
+		return Arrays.copyOfRange(inLinks, inOffsets[node], inOffsets[node + 1]);
+	}
+
+	/**
+	 * Returns all of the links that flow out of the given node (have this node as a begin node), like
+	 * BBox.getOutLinks().
+	 * @param node_id The id of the node in question.
+	 * @return The link indexes of the relevant Links.  This is empty if the node is not in the graph.
+	 */
+	public int[] getOutLinks(long node_id){
+		int node = indexOf(node_id);
+		if(node < 0)
+			return NO_LINKS;
+		int[] result = new int[getOutDegree(node)];
+		for(int k = 0; k < result.length; k++)
+			result[k] = outOffsets[node] + k;
+		return result;
+	}
+
+	public String toString(){
+		return getNumNodes() + " nodes, " + getNumLinks() + " links";
+	}
+
+
+	/**
+	 * Collects nodes and links in growable primitive arrays, then sorts and indexes them into a CompactGraph.
+	 * If a node_id or a (begin_node_id, end_node_id) pair is added more than once, the first one wins.
+	 * Links whose begin or end node was never added are dropped, just as BBox.add(Link) ignores them.
+	 */
+	public static class Builder {
+		private long[] nodeIds;
+		private double[] lats, lons;
+		private int numNodes = 0;
+
+		private long[] linkIds, beginIds, endIds, wayIds;
+		private double[] streetLengths;
+		private float[] beginAngles, endAngles;
+		private String[] names, classes;
+		private int numLinks = 0;
+
+		/**
+		 * Street names and classes repeat a lot, so each distinct String is only stored once.
+		 */
+		private HashMap<String, String> strings = new HashMap<String, String>();
+
+		public Builder(){
+			this(1024, 1024);
+		}
+
+		/**
+		 * @param expectedNodes Initial node capacity
+		 * @param expectedLinks Initial link capacity
+		 */
+		public Builder(int expectedNodes, int expectedLinks){
+			expectedNodes = Math.max(expectedNodes, 16);
+			expectedLinks = Math.max(expectedLinks, 16);
+			nodeIds = new long[expectedNodes];
+			lats = new double[expectedNodes];
+			lons = new double[expectedNodes];
+			linkIds = new long[expectedLinks];
+			beginIds = new long[expectedLinks];
+			endIds = new long[expectedLinks];
+			wayIds = new long[expectedLinks];
+			streetLengths = new double[expectedLinks];
+			beginAngles = new float[expectedLinks];
+			endAngles = new float[expectedLinks];
+			names = new String[expectedLinks];
+			classes = new String[expectedLinks];
+		}
+
+		public Builder addNode(long nodeId, double lat, double lon){
+			if(numNodes==nodeIds.length){
+				int cap = numNodes * 2;
+				nodeIds = Arrays.copyOf(nodeIds, cap);
+				lats = Arrays.copyOf(lats, cap);
+				lons = Arrays.copyOf(lons, cap);
+			}
+			nodeIds[numNodes] = nodeId;
+			lats[numNodes] = lat;
+			lons[numNodes] = lon;
+			numNodes++;
+			return this;
+		}
+
+		public Builder addLink(long linkId, long begin_node_id, long end_node_id, double streetLength,
+				float beginAngle, float endAngle, long wayId, String name, String osmClass){
+			if(numLinks==linkIds.length){
+				int cap = numLinks * 2;
+				linkIds = Arrays.copyOf(linkIds, cap);
+				beginIds = Arrays.copyOf(beginIds, cap);
+				endIds = Arrays.copyOf(endIds, cap);
+				wayIds = Arrays.copyOf(wayIds, cap);
+				streetLengths = Arrays.copyOf(streetLengths, cap);
+				beginAngles = Arrays.copyOf(beginAngles, cap);
+				endAngles = Arrays.copyOf(endAngles, cap);
+				names = Arrays.copyOf(names, cap);
+				classes = Arrays.copyOf(classes, cap);
+			}
+			linkIds[numLinks] = linkId;
+			beginIds[numLinks] = begin_node_id;
+			endIds[numLinks] = end_node_id;
+			wayIds[numLinks] = wayId;
+			streetLengths[numLinks] = streetLength;
+			beginAngles[numLinks] = beginAngle;
+			endAngles[numLinks] = endAngle;
+			names[numLinks] = share(name);
+			classes[numLinks] = share(osmClass);
+			numLinks++;
+			return this;
+		}
+
+		private String share(String s){
+			if(s==null)
+				return null;
+			String shared = strings.get(s);
+			if(shared==null){
+				strings.put(s, s);
+				shared = s;
+			}
+			return shared;
+		}
+
+		/**
+		 * Sorts and indexes everything that has been added.  The Builder should not be used afterwards.
+		 * @return The finished graph
+		 */
+		public CompactGraph build(){
+			//Sort the nodes by id and drop duplicates
+			int[] nodeOrder = identity(numNodes);
+			sortByKey(nodeOrder, nodeIds);
+			int uniqueNodes = 0;
+			for(int i = 0; i < numNodes; i++){
+				if(uniqueNodes > 0 && nodeIds[nodeOrder[uniqueNodes - 1]]==nodeIds[nodeOrder[i]])
+					continue;
+				nodeOrder[uniqueNodes++] = nodeOrder[i];
+			}
+			long[] sortedIds = new long[uniqueNodes];
+			for(int i = 0; i < uniqueNodes; i++)
+				sortedIds[i] = nodeIds[nodeOrder[i]];
+
+			//Resolve link endpoints to node indexes, dropping links with missing nodes
+			int[] begins = new int[numLinks];
+			int[] ends = new int[numLinks];
+			long[] linkKeys = new long[numLinks];
+			int[] linkOrder = new int[numLinks];
+			int validLinks = 0;
+			for(int i = 0; i < numLinks; i++){
+				begins[i] = Arrays.binarySearch(sortedIds, beginIds[i]);
+				ends[i] = Arrays.binarySearch(sortedIds, endIds[i]);
+				if(begins[i] < 0 || ends[i] < 0)
+					continue;
+				linkKeys[i] = ((long)begins[i] << 32) | ends[i];
+				linkOrder[validLinks++] = i;
+			}
+			linkOrder = Arrays.copyOf(linkOrder, validLinks);
+
+			//Sort the links by (begin, end) and drop duplicates
+			sortByKey(linkOrder, linkKeys);
+			int uniqueLinks = 0;
+			for(int i = 0; i < validLinks; i++){
+				if(uniqueLinks > 0 && linkKeys[linkOrder[uniqueLinks - 1]]==linkKeys[linkOrder[i]])
+					continue;
+				linkOrder[uniqueLinks++] = linkOrder[i];
+			}
+
+			CompactGraph graph = new CompactGraph(this, nodeOrder, uniqueNodes, linkOrder, uniqueLinks, begins, ends);
+			strings = null;
+			return graph;
+		}
+
+		private static int[] identity(int n){
+			int[] a = new int[n];
+			for(int i = 0; i < n; i++)
+				a[i] = i;
+			return a;
+		}
+
+		/**
+		 * Stable sort of an index array by keys[index].  Stability makes "first one wins" hold for duplicates.
+		 */
+		private static void sortByKey(int[] order, long[] keys){
+			int n = order.length;
+			int[] buf = new int[n];
+			int[] src = order, dst = buf;
+			for(int width = 1; width < n; width *= 2){
+				for(int lo = 0; lo < n; lo += 2 * width){
+					int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+					int i = lo, j = mid, k = lo;
+					while(i < mid && j < hi)
+						dst[k++] = keys[src[j]] < keys[src[i]] ? src[j++] : src[i++];
+					while(i < mid)
+						dst[k++] = src[i++];
+					while(j < hi)
+						dst[k++] = src[j++];
+				}
+				int[] tmp = src; src = dst; dst = tmp;
+			}
+			if(src!=order)
+				System.arraycopy(src, 0, order, 0, n);
+		}
+	}
+}
@@ -5,6 +5,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Hashtable;
 
+import my.awesomestitch.control.BinaryRow;
+
 
 /**
  * Represents an object which can be inserted or extracted from the PostGres database.
@@ -73,6 +75,32 @@ public abstract class DBObject {
 	 */
 	public abstract String getCSVLine();
 
+	/**
+	 * Appends this object in CSV form to a buffer.  DBConnection.flush() streams COPY statements this way, so
+	 * classes which are inserted in bulk should override it to append their fields directly.
+	 * @param sb The buffer to append the same text as getCSVLine() to
+	 */
+	public void appendCSVLine(StringBuilder sb){
+		sb.append(getCSVLine());
+	}
+
+	/**
+	 * @return True if this object can be written with writeBinaryRow(), for COPY ... WITH (FORMAT binary)
+	 */
+	public boolean hasBinaryRow(){
+		return false;
+	}
+
+	/**
+	 * Writes this object as one tuple of a binary COPY, with the same values that getCSVLine() would give.  Only
+	 * called if hasBinaryRow() returns true.
+	 * @param row The row to fill - its fields must follow the columns of getTableName()
+	 * @throws SQLException If a field cannot be stored in its column
+	 */
+	public void writeBinaryRow(BinaryRow row) throws SQLException{
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " has no binary row");
+	}
+
 	/**
 	 * The size of buffer that the DBConnection should use to store objects of this type.
 	 * @return
@@ -3,6 +3,7 @@ package my.awesomestitch.mapobjects;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import my.awesomestitch.control.BinaryRow;
 import my.awesomestitch.control.Log;
 
 import org.postgis.PGgeometryLW;
@@ -93,16 +94,24 @@ public class DetailLink extends Link {
 	}
 
 	@Override
-	public String getCSVLine() {
+	public void appendCSVLine(StringBuilder sb) {
 		//first get geometry data string for this object
 		geom.srid=4326;
 		PGgeometryLW tmp = new PGgeometryLW(geom);
-		String geom_string = tmp.getValue();
 
-		String line = id + "|" + proc_link_id + "|" + begin_node_id + "|" + end_node_id + "|" + begin_angle + "|" + end_angle + "|" +
-				street_length + "|" + osm_name + "|" + osm_class + "|" + osm_way_id  + "|" + geom_string + "|" + osm_changeset + "|" +
-				birth_timestamp + "|" + death_timestamp + "\n";
-		return line;
+		sb.append(id).append('|').append(proc_link_id).append('|').append(begin_node_id).append('|')
+				.append(end_node_id).append('|').append(begin_angle).append('|').append(end_angle).append('|')
+				.append(street_length).append('|').append(osm_name).append('|').append(osm_class).append('|')
+				.append(osm_way_id).append('|').append(tmp.getValue()).append('|').append(osm_changeset).append('|')
+				.append(birth_timestamp).append('|').append(death_timestamp).append('\n');
+	}
+
+	@Override
+	public void writeBinaryRow(BinaryRow row) throws SQLException {
+		row.begin(14);
+		row.writeLong(id);
+		row.writeLong(proc_link_id);
+		writeBinaryFields(row);
 	}
 
 
@@ -118,22 +118,20 @@ public class DetailLinkMapping extends DBObject {
 
 	@Override
 	public String getCSVLine() {
-		//geom.srid=4326;
-		//PGgeometryLW lw = new PGgeometryLW(geom);
-		//String geom_string = lw.getValue();
+		StringBuilder sb = new StringBuilder(64);
+		appendCSVLine(sb);
+		return sb.toString();
+	}
+
+	@Override
+	public void appendCSVLine(StringBuilder sb) {
 		//Update ids before we insert
 		if(this.processed!=null){
 			this.link_id = this.processed.getId();
 			this.detail_link_id = this.detailed.getId();
-			//System.out.println("not null");
-		}
-		else{
-			//System.out.println("null");
 		}
-		String csv = link_id + "|" + detail_link_id + "|" + osm_way_id + "|" +
-				birth_timestamp + "|" + death_timestamp + "\n";
-
-		return csv;
+		sb.append(link_id).append('|').append(detail_link_id).append('|').append(osm_way_id).append('|')
+				.append(birth_timestamp).append('|').append(death_timestamp).append('\n');
 	}
 
 	@Override
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import my.awesomestitch.control.BinaryRow;
 import my.awesomestitch.control.Direction;
 import my.awesomestitch.control.Log;
 
@@ -254,15 +255,54 @@ public class Link extends DBObject implements Serializable{
 
 	@Override
 	public String getCSVLine() {
+		StringBuilder sb = new StringBuilder(256);
+		appendCSVLine(sb);
+		return sb.toString();
+	}
+
+	@Override
+	public void appendCSVLine(StringBuilder sb) {
 		//first get geometry data string for this object
 		geom.srid=4326;
 		PGgeometryLW lw = new PGgeometryLW(geom);
-		String geom_string = lw.getValue();
-		//Now concatenate all fields together into a CSV line
-		String line = id + "|" + begin_node_id + "|" + end_node_id + "|" + begin_angle + "|" + end_angle + "|" +
-				street_length + "|" + osm_name + "|" + osm_class + "|" + osm_way_id  + "|" + geom_string + "|" + osm_changeset + "|" +
-				birth_timestamp + "|" + death_timestamp + "\n";
-		return line;
+		//Now append all fields as a CSV line
+		sb.append(id).append('|').append(begin_node_id).append('|').append(end_node_id).append('|')
+				.append(begin_angle).append('|').append(end_angle).append('|').append(street_length).append('|')
+				.append(osm_name).append('|').append(osm_class).append('|').append(osm_way_id).append('|')
+				.append(lw.getValue()).append('|').append(osm_changeset).append('|')
+				.append(birth_timestamp).append('|').append(death_timestamp).append('\n');
+	}
+
+	@Override
+	public boolean hasBinaryRow() {
+		return true;
+	}
+
+	@Override
+	public void writeBinaryRow(BinaryRow row) throws SQLException {
+		row.begin(13);
+		row.writeLong(id);
+		writeBinaryFields(row);
+	}
+
+	/**
+	 * Writes the columns which links and detail_links have in common, from begin_node_id onwards.
+	 * @param row The row to write to
+	 * @throws SQLException If a field cannot be stored in its column
+	 */
+	protected void writeBinaryFields(BinaryRow row) throws SQLException {
+		row.writeLong(begin_node_id);
+		row.writeLong(end_node_id);
+		row.writeNumeric(begin_angle, 2);
+		row.writeNumeric(end_angle, 2);
+		row.writeNumeric(street_length, 3);
+		row.writeCSVText(osm_name);
+		row.writeCSVText(osm_class);
+		row.writeLong(osm_way_id);
+		row.writeLineString(geom);
+		row.writeLong(osm_changeset);
+		row.writeLong(birth_timestamp);
+		row.writeLong(death_timestamp);
 	}
 
 	@Override
@@ -0,0 +1,200 @@
+package my.awesomestitch.mapobjects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * Maps a node_id to the Links which begin (or end) at that node.  This backs BBox.linksByBeginNode and
+ * BBox.linksByEndNode.  Each node gets one slot in an open-addressed table, and its Links are kept in a small
+ * array in that slot, so looking up the degree or the i-th Link of a node does not box the id or allocate a list.
+ */
+class LinkAdjacency {
+
+	private static final Link[] EMPTY = new Link[0];
+
+	/**
+	 * node_ids of the occupied slots
+	 */
+	private long[] keys;
+
+	/**
+	 * The Links of each slot, or null for an empty slot.  Only the first counts[slot] entries are valid.
+	 */
+	private Link[][] lists;
+
+	/**
+	 * The number of Links stored in each slot
+	 */
+	private int[] counts;
+
+	private int size, mask;
+
+	LinkAdjacency(int expectedNodes){
+		int capacity = 16;
+		while(capacity < expectedNodes * 2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		lists = new Link[capacity][];
+		counts = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @param nodeId The node in question
+	 * @return The slot holding this node's Links, or -1 if it has none
+	 */
+	int slot(long nodeId){
+		int slot = LongMap.hash(nodeId) & mask;
+		while(lists[slot]!=null){
+			if(keys[slot]==nodeId)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param slot A slot returned by slot(), or -1
+	 * @return The number of Links in this slot
+	 */
+	int count(int slot){
+		return slot < 0 ? 0 : counts[slot];
+	}
+
+	/**
+	 * @param slot A slot returned by slot()
+	 * @param i An index less than count(slot)
+	 * @return The i-th Link in this slot
+	 */
+	Link get(int slot, int i){
+		return lists[slot][i];
+	}
+
+	/**
+	 * @param nodeId The node in question
+	 * @return The number of Links stored for this node
+	 */
+	int degree(long nodeId){
+		return count(slot(nodeId));
+	}
+
+	/**
+	 * @param nodeId The node in question
+	 * @return A new List containing the Links stored for this node
+	 */
+	List<Link> list(long nodeId){
+		int slot = slot(nodeId);
+		int n = count(slot);
+		List<Link> result = new ArrayList<Link>(n);
+		for(int i = 0; i < n; i++)
+			result.add(lists[slot][i]);
+		return result;
+	}
+
+	/**
+	 * Appends a Link to a node's list.
+	 * @param nodeId The node
+	 * @param link The Link
+	 * @param onlyIfAbsent If true, the Link is not added when an equal Link is already in the list
+	 */
+	void add(long nodeId, Link link, boolean onlyIfAbsent){
+		int slot = LongMap.hash(nodeId) & mask;
+		while(lists[slot]!=null && keys[slot]!=nodeId)
+			slot = (slot + 1) & mask;
+
+		if(lists[slot]==null){
+			keys[slot] = nodeId;
+			lists[slot] = EMPTY;
+			counts[slot] = 0;
+			size++;
+		}
+		else if(onlyIfAbsent){
+			for(int i = 0; i < counts[slot]; i++)
+				if(lists[slot][i].equals(link))
+					return;
+		}
+
+		Link[] list = lists[slot];
+		int n = counts[slot];
+		if(n==list.length){
+			Link[] grown = new Link[Math.max(4, n * 2)];
+			System.arraycopy(list, 0, grown, 0, n);
+			lists[slot] = list = grown;
+		}
+		list[n] = link;
+		counts[slot] = n + 1;
+
+		if(size * 2 > keys.length)
+			resize(keys.length * 2);
+	}
+
+	/**
+	 * Removes the first Link equal to the given one from a node's list, keeping the order of the others.
+	 * @param nodeId The node
+	 * @param link The Link to remove
+	 */
+	void remove(long nodeId, Link link){
+		int slot = slot(nodeId);
+		if(slot < 0)
+			return;
+		Link[] list = lists[slot];
+		int n = counts[slot];
+		for(int i = 0; i < n; i++){
+			if(list[i].equals(link)){
+				System.arraycopy(list, i + 1, list, i, n - i - 1);
+				list[n - 1] = null;
+				counts[slot] = n - 1;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes a node and all of its Links.
+	 * @param nodeId The node
+	 */
+	void removeNode(long nodeId){
+		int slot = slot(nodeId);
+		if(slot < 0)
+			return;
+
+		//Empty the slot and shift later entries of the same probe sequence back
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while(lists[next]!=null){
+			int home = LongMap.hash(keys[next]) & mask;
+			if(((next - home) & mask) >= ((next - gap) & mask)){
+				keys[gap] = keys[next];
+				lists[gap] = lists[next];
+				counts[gap] = counts[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		lists[gap] = null;
+		counts[gap] = 0;
+		size--;
+	}
+
+	private void resize(int capacity){
+		long[] oldKeys = keys;
+		Link[][] oldLists = lists;
+		int[] oldCounts = counts;
+		keys = new long[capacity];
+		lists = new Link[capacity][];
+		counts = new int[capacity];
+		mask = capacity - 1;
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldLists[i]!=null){
+				int slot = LongMap.hash(oldKeys[i]) & mask;
+				while(lists[slot]!=null)
+					slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[i];
+				lists[slot] = oldLists[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package my.awesomestitch.mapobjects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * A hash table from primitive long keys to objects.  It is used instead of Hashtable<Long, V> for the large
+ * tables in a BBox - keys are stored in a long[], so lookups neither box the key nor take a monitor.
+ *
+ * The table uses open addressing with linear probing.  A slot is empty when its value is null, so null values
+ * cannot be stored.  Like the rest of BBox, this class is not thread-safe.
+ */
+public class LongMap<V> {
+
+	/**
+	 * Keys of the occupied slots
+	 */
+	private long[] keys;
+
+	/**
+	 * Values of the occupied slots, or null for an empty slot
+	 */
+	private Object[] values;
+
+	/**
+	 * Number of entries in the table
+	 */
+	private int size;
+
+	/**
+	 * keys.length - 1.  The capacity is always a power of two.
+	 */
+	private int mask;
+
+	/**
+	 * Constructs an empty table.
+	 */
+	public LongMap(){
+		this(16);
+	}
+
+	/**
+	 * Constructs an empty table which can hold expectedSize entries without growing.
+	 * @param expectedSize The number of entries we expect to store
+	 */
+	public LongMap(int expectedSize){
+		int capacity = 16;
+		while(capacity < expectedSize * 2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Spreads the bits of a key so that sequential ids do not cluster.
+	 */
+	static int hash(long key){
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	private int slotOf(long key){
+		int slot = hash(key) & mask;
+		while(values[slot]!=null){
+			if(keys[slot]==key)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Looks up a value.
+	 * @param key The key to look up
+	 * @return The value for this key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key){
+		int slot = slotOf(key);
+		return slot < 0 ? null : (V)values[slot];
+	}
+
+	/**
+	 * @param key The key in question
+	 * @return True if the table contains this key
+	 */
+	public boolean containsKey(long key){
+		return slotOf(key) >= 0;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any previous value.
+	 * @param key The key
+	 * @param value The value - may not be null
+	 * @return The previous value for this key, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value){
+		if(value==null)
+			throw new IllegalArgumentException("LongMap cannot store null values");
+
+		int slot = hash(key) & mask;
+		while(values[slot]!=null){
+			if(keys[slot]==key){
+				V old = (V)values[slot];
+				values[slot] = value;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		if(size * 2 > keys.length)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * Removes a key from the table.
+	 * @param key The key to remove
+	 * @return The value that was removed, or null if the key was not in the table
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key){
+		int slot = slotOf(key);
+		if(slot < 0)
+			return null;
+		V old = (V)values[slot];
+		deleteSlot(slot);
+		size--;
+		return old;
+	}
+
+	/**
+	 * Empties a slot and shifts later entries of the same probe sequence back, so no tombstones are needed.
+	 */
+	private void deleteSlot(int slot){
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while(values[next]!=null){
+			int home = hash(keys[next]) & mask;
+			//move the entry into the gap if its home slot is not between the gap and its current position
+			if(((next - home) & mask) >= ((next - gap) & mask)){
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[gap] = null;
+	}
+
+	private void resize(int capacity){
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldValues[i]!=null){
+				int slot = hash(oldKeys[i]) & mask;
+				while(values[slot]!=null)
+					slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size==0;
+	}
+
+	public void clear(){
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return A copy of all keys in the table, so the table may be modified while looping through them
+	 */
+	public long[] keys(){
+		long[] result = new long[size];
+		int j = 0;
+		for(int i = 0; i < keys.length; i++)
+			if(values[i]!=null)
+				result[j++] = keys[i];
+		return result;
+	}
+
+	/**
+	 * @return A copy of all values in the table
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values(){
+		List<V> result = new ArrayList<V>(size);
+		for(int i = 0; i < values.length; i++)
+			if(values[i]!=null)
+				result.add((V)values[i]);
+		return result;
+	}
+}
@@ -0,0 +1,200 @@
+package my.awesomestitch.mapobjects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * A hash table keyed by a pair of primitive longs, such as (begin_node_id, end_node_id) for Links or
+ * (link_id, detail_link_id) for DetailLinkMappings.  This replaces Hashtable<List<Long>, V>, which needed a
+ * two-element LinkedList of boxed Longs to be allocated for every single lookup.
+ *
+ * The table uses open addressing with linear probing, and a slot is empty when its value is null.  Like the rest of
+ * BBox, this class is not thread-safe.
+ */
+public class LongPairMap<V> {
+
+	/**
+	 * First and second halves of the keys of the occupied slots
+	 */
+	private long[] firstKeys, secondKeys;
+
+	/**
+	 * Values of the occupied slots, or null for an empty slot
+	 */
+	private Object[] values;
+
+	/**
+	 * Number of entries in the table
+	 */
+	private int size;
+
+	/**
+	 * values.length - 1.  The capacity is always a power of two.
+	 */
+	private int mask;
+
+	/**
+	 * Constructs an empty table.
+	 */
+	public LongPairMap(){
+		this(16);
+	}
+
+	/**
+	 * Constructs an empty table which can hold expectedSize entries without growing.
+	 * @param expectedSize The number of entries we expect to store
+	 */
+	public LongPairMap(int expectedSize){
+		int capacity = 16;
+		while(capacity < expectedSize * 2)
+			capacity <<= 1;
+		firstKeys = new long[capacity];
+		secondKeys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(long first, long second){
+		return LongMap.hash(first * 31 + second);
+	}
+
+	private int slotOf(long first, long second){
+		int slot = hash(first, second) & mask;
+		while(values[slot]!=null){
+			if(firstKeys[slot]==first && secondKeys[slot]==second)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Looks up a value.
+	 * @param first The first half of the key
+	 * @param second The second half of the key
+	 * @return The value for this key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long first, long second){
+		int slot = slotOf(first, second);
+		return slot < 0 ? null : (V)values[slot];
+	}
+
+	/**
+	 * @param first The first half of the key
+	 * @param second The second half of the key
+	 * @return True if the table contains this key
+	 */
+	public boolean containsKey(long first, long second){
+		return slotOf(first, second) >= 0;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any previous value.
+	 * @param first The first half of the key
+	 * @param second The second half of the key
+	 * @param value The value - may not be null
+	 * @return The previous value for this key, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long first, long second, V value){
+		if(value==null)
+			throw new IllegalArgumentException("LongPairMap cannot store null values");
+
+		int slot = hash(first, second) & mask;
+		while(values[slot]!=null){
+			if(firstKeys[slot]==first && secondKeys[slot]==second){
+				V old = (V)values[slot];
+				values[slot] = value;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		firstKeys[slot] = first;
+		secondKeys[slot] = second;
+		values[slot] = value;
+		size++;
+		if(size * 2 > values.length)
+			resize(values.length * 2);
+		return null;
+	}
+
+	/**
+	 * Removes a key from the table.
+	 * @param first The first half of the key
+	 * @param second The second half of the key
+	 * @return The value that was removed, or null if the key was not in the table
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long first, long second){
+		int slot = slotOf(first, second);
+		if(slot < 0)
+			return null;
+		V old = (V)values[slot];
+
+		//Empty the slot and shift later entries of the same probe sequence back
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while(values[next]!=null){
+			int home = hash(firstKeys[next], secondKeys[next]) & mask;
+			if(((next - home) & mask) >= ((next - gap) & mask)){
+				firstKeys[gap] = firstKeys[next];
+				secondKeys[gap] = secondKeys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[gap] = null;
+		size--;
+		return old;
+	}
+
+	private void resize(int capacity){
+		long[] oldFirst = firstKeys;
+		long[] oldSecond = secondKeys;
+		Object[] oldValues = values;
+		firstKeys = new long[capacity];
+		secondKeys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for(int i = 0; i < oldValues.length; i++){
+			if(oldValues[i]!=null){
+				int slot = hash(oldFirst[i], oldSecond[i]) & mask;
+				while(values[slot]!=null)
+					slot = (slot + 1) & mask;
+				firstKeys[slot] = oldFirst[i];
+				secondKeys[slot] = oldSecond[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size==0;
+	}
+
+	public void clear(){
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return A copy of all values in the table, so the table may be modified while looping through them
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values(){
+		List<V> result = new ArrayList<V>(size);
+		for(int i = 0; i < values.length; i++)
+			if(values[i]!=null)
+				result.add((V)values[i]);
+		return result;
+	}
+}
@@ -0,0 +1,679 @@
+package my.awesomestitch.mapobjects;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import my.awesomestitch.control.Log;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * An OsmEventReader which tokenizes a memory-mapped OSM file directly from its bytes.  Ids, refs, changesets and
+ * coordinates are parsed straight into primitive fields, so reading nodes and nds allocates nothing.  Tag keys and
+ * values are only remembered as byte ranges and are decoded into Strings when getKey() or getValue() is called.
+ *
+ * The tokenizer understands exactly as much XML as an OSM file needs - elements, quoted attributes, comments and
+ * processing instructions.  Anything else between elements is skipped.
+ */
+public class MappedOsmReader extends OsmEventReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Powers of ten which are exactly representable as doubles.
+	 */
+	private static final double[] POW10 = new double[23];
+	static{
+		POW10[0] = 1.0;
+		for(int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i-1] * 10.0;
+	}
+
+	/**
+	 * Each attribute we care about gets a bit in the present mask.
+	 */
+	private static final int ID = 1, LAT = 2, LON = 4, CHANGESET = 8, REF = 16, KEY = 32, VALUE = 64;
+	private static final int MINLAT = 128, MINLON = 256, MAXLAT = 512, MAXLON = 1024;
+
+	/**
+	 * The mapped file
+	 */
+	private ByteBuffer buf;
+
+	/**
+	 * Current read position and end of the mapped region
+	 */
+	private int pos, limit;
+
+	//Values of the current element
+	private int present;
+	private long id, changeset, ref;
+	private double lat, lon, minlat, minlon, maxlat, maxlon;
+	private int keyStart, keyEnd, valueStart, valueEnd;
+	private String action;
+
+	/**
+	 * True if the last start tag read was self-closing (e.g. <way id="1"/> in the delete section of a change file)
+	 */
+	private boolean selfClosing;
+
+	/**
+	 * True if next() must report the end of a self-closing <way/> before reading on
+	 */
+	private boolean wayEndPending = false;
+
+	/**
+	 * Constructs a reader over a buffer containing an OSM XML document.
+	 * @param buf The document, from position() to limit()
+	 */
+	public MappedOsmReader(ByteBuffer buf){
+		this.buf = buf;
+		this.pos = buf.position();
+		this.limit = buf.limit();
+	}
+
+	/**
+	 * Memory-maps an OSM file for reading.  The file handle is released immediately - the mapping stays valid until
+	 * the reader is garbage collected.
+	 * @param fileName The .osm file
+	 * @return A reader positioned at the start of the file
+	 * @throws FileNotFoundException If the file does not exist or cannot be mapped
+	 */
+	public static MappedOsmReader map(String fileName) throws FileNotFoundException{
+		RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		try{
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MappedOsmReader(mbb);
+		}
+		catch(IOException e){
+			throw new FileNotFoundException(fileName + " : " + e.getMessage());
+		}
+		finally{
+			try { raf.close(); } catch (IOException e) {}
+		}
+	}
+
+	@Override
+	public int next() throws IOException{
+		if(wayEndPending){
+			wayEndPending = false;
+			return WAY_END;
+		}
+		while(true){
+			//find the next element
+			while(pos < limit && buf.get(pos)!='<')
+				pos++;
+			if(pos >= limit)
+				return END_DOCUMENT;
+			pos++;
+			if(pos >= limit)
+				return END_DOCUMENT;
+
+			byte b = buf.get(pos);
+			if(b=='/'){
+				//closing tag - we only care about </way>
+				pos++;
+				boolean isWay = matchName("way");
+				skipPast('>');
+				if(isWay)
+					return WAY_END;
+			}
+			else if(b=='!'){
+				if(startsWith("!--"))
+					skipPastComment();
+				else
+					skipPast('>');
+			}
+			else if(b=='?'){
+				skipPast('>');
+			}
+			else{
+				int type;
+				if(matchName("node"))
+					type = NODE;
+				else if(matchName("nd"))
+					type = ND;
+				else if(matchName("tag"))
+					type = TAG;
+				else if(matchName("way"))
+					type = WAY;
+				else if(matchName("bounds"))
+					type = BOUNDS;
+				else{
+					String section = matchAction();
+					skipElement();
+					if(section==null)
+						continue;
+					action = section;
+					return CHANGE;
+				}
+				readAttributes();
+				//StAX reports the end of <way/> too, so every WAY is followed by a WAY_END
+				wayEndPending = type==WAY && selfClosing;
+				return type;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the element name at pos is exactly name.  If it is, pos is advanced past it.
+	 */
+	private boolean matchName(String name){
+		int len = name.length();
+		if(pos + len > limit)
+			return false;
+		for(int i = 0; i < len; i++)
+			if(buf.get(pos+i)!=name.charAt(i))
+				return false;
+		//make sure that the name does not continue (e.g. "nd" vs "node")
+		if(pos + len < limit && !isNameEnd(buf.get(pos+len)))
+			return false;
+		pos += len;
+		return true;
+	}
+
+	/**
+	 * Checks whether the element at pos is a section of an osmChange file.  If it is, pos is advanced past its name.
+	 * @return "create", "modify" or "delete", or null for any other element
+	 */
+	private String matchAction(){
+		if(matchName("create"))
+			return "create";
+		if(matchName("modify"))
+			return "modify";
+		if(matchName("delete"))
+			return "delete";
+		return null;
+	}
+
+	private boolean startsWith(String s){
+		if(pos + s.length() > limit)
+			return false;
+		for(int i = 0; i < s.length(); i++)
+			if(buf.get(pos+i)!=s.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static boolean isNameEnd(byte b){
+		return b==' ' || b=='/' || b=='>' || b=='\t' || b=='\n' || b=='\r';
+	}
+
+	private static boolean isSpace(byte b){
+		return b==' ' || b=='\t' || b=='\n' || b=='\r';
+	}
+
+	private void skipPast(char c){
+		while(pos < limit && buf.get(pos)!=c)
+			pos++;
+		pos++;
+	}
+
+	private void skipPastComment(){
+		pos += 3;
+		while(pos + 2 < limit && !(buf.get(pos)=='-' && buf.get(pos+1)=='-' && buf.get(pos+2)=='>'))
+			pos++;
+		pos += 3;
+	}
+
+	/**
+	 * Skips the start tag of an element we are not interested in, taking care of '>' characters inside of
+	 * quoted attribute values.
+	 */
+	private void skipElement(){
+		while(pos < limit){
+			byte b = buf.get(pos);
+			if(b=='"' || b=='\''){
+				pos++;
+				skipPast((char)b);
+			}
+			else if(b=='>'){
+				pos++;
+				return;
+			}
+			else
+				pos++;
+		}
+	}
+
+	/**
+	 * Reads the attributes of the current start tag, up to and including its closing '>'.
+	 * @throws IOException If the tag is malformed
+	 */
+	private void readAttributes() throws IOException{
+		present = 0;
+		selfClosing = false;
+		while(true){
+			while(pos < limit && isSpace(buf.get(pos)))
+				pos++;
+			if(pos >= limit)
+				return;
+			byte b = buf.get(pos);
+			if(b=='>'){
+				pos++;
+				return;
+			}
+			if(b=='/'){
+				selfClosing = true;
+				pos++;
+				continue;
+			}
+
+			//attribute name
+			int nameStart = pos;
+			while(pos < limit && buf.get(pos)!='=' && !isSpace(buf.get(pos)))
+				pos++;
+			int nameEnd = pos;
+			while(pos < limit && buf.get(pos)!='"' && buf.get(pos)!='\'')
+				pos++;
+			if(pos >= limit)
+				throw new IOException("Unterminated attribute at byte " + nameStart);
+
+			//attribute value
+			byte quote = buf.get(pos);
+			int valStart = ++pos;
+			while(pos < limit && buf.get(pos)!=quote)
+				pos++;
+			if(pos >= limit)
+				throw new IOException("Unterminated attribute value at byte " + valStart);
+			int valEnd = pos;
+			pos++;
+
+			storeAttribute(nameStart, nameEnd - nameStart, valStart, valEnd);
+		}
+	}
+
+	/**
+	 * Parses an attribute into the matching field, if it is one that we use.  Values that are not valid numbers
+	 * are left out of the present mask, so the getter throws a NumberFormatException just like the StAX reader.
+	 */
+	private void storeAttribute(int nameStart, int nameLen, int valStart, int valEnd){
+		byte c0 = buf.get(nameStart);
+		switch(nameLen){
+		case 1:
+			if(c0=='k'){
+				keyStart = valStart; keyEnd = valEnd; present |= KEY;
+			}
+			else if(c0=='v'){
+				valueStart = valStart; valueEnd = valEnd; present |= VALUE;
+			}
+			break;
+		case 2:
+			if(c0=='i' && buf.get(nameStart+1)=='d' && parseLong(valStart, valEnd)){
+				id = parsedLong; present |= ID;
+			}
+			break;
+		case 3:
+			if(nameIs(nameStart, "lat") && parseDouble(valStart, valEnd)){
+				lat = parsedDouble; present |= LAT;
+			}
+			else if(nameIs(nameStart, "lon") && parseDouble(valStart, valEnd)){
+				lon = parsedDouble; present |= LON;
+			}
+			else if(nameIs(nameStart, "ref") && parseLong(valStart, valEnd)){
+				ref = parsedLong; present |= REF;
+			}
+			break;
+		case 6:
+			if(c0!='m')
+				break;
+			if(nameIs(nameStart, "minlat") && parseDouble(valStart, valEnd)){
+				minlat = parsedDouble; present |= MINLAT;
+			}
+			else if(nameIs(nameStart, "minlon") && parseDouble(valStart, valEnd)){
+				minlon = parsedDouble; present |= MINLON;
+			}
+			else if(nameIs(nameStart, "maxlat") && parseDouble(valStart, valEnd)){
+				maxlat = parsedDouble; present |= MAXLAT;
+			}
+			else if(nameIs(nameStart, "maxlon") && parseDouble(valStart, valEnd)){
+				maxlon = parsedDouble; present |= MAXLON;
+			}
+			break;
+		case 9:
+			if(nameIs(nameStart, "changeset") && parseLong(valStart, valEnd)){
+				changeset = parsedLong; present |= CHANGESET;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private boolean nameIs(int start, String name){
+		for(int i = 0; i < name.length(); i++)
+			if(buf.get(start+i)!=name.charAt(i))
+				return false;
+		return true;
+	}
+
+
+	//Number parsing.  The results are left in these fields so that nothing needs to be boxed.
+	private long parsedLong;
+	private double parsedDouble;
+
+	/**
+	 * Parses a decimal integer from bytes [start, end) into parsedLong.
+	 * @return false if the bytes are not a valid long
+	 */
+	private boolean parseLong(int start, int end){
+		if(start >= end)
+			return false;
+		boolean negative = false;
+		int i = start;
+		byte b = buf.get(i);
+		if(b=='-' || b=='+'){
+			negative = b=='-';
+			i++;
+			if(i >= end)
+				return false;
+		}
+		if(end - i > 18){
+			//could overflow - let the JDK deal with it
+			try{
+				parsedLong = Long.parseLong(decode(start, end));
+				return true;
+			}
+			catch(NumberFormatException e){
+				return false;
+			}
+		}
+		long result = 0;
+		for(; i < end; i++){
+			b = buf.get(i);
+			if(b < '0' || b > '9')
+				return false;
+			result = result * 10 + (b - '0');
+		}
+		parsedLong = negative ? -result : result;
+		return true;
+	}
+
+	/**
+	 * Parses a decimal number from bytes [start, end) into parsedDouble.  Numbers with at most 15 significant digits
+	 * and no exponent (which covers every coordinate OSM writes) are computed as mantissa / 10^k.  Both operands are
+	 * exact doubles, so the single division is correctly rounded and the result is identical to Double.parseDouble().
+	 * Anything else falls back to Double.parseDouble().
+	 * @return false if the bytes are not a valid double
+	 */
+	private boolean parseDouble(int start, int end){
+		if(start >= end)
+			return false;
+		boolean negative = false;
+		int i = start;
+		byte b = buf.get(i);
+		if(b=='-' || b=='+'){
+			negative = b=='-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0, fractionDigits = 0;
+		boolean seenPoint = false, seenDigit = false, simple = true;
+		for(; i < end; i++){
+			b = buf.get(i);
+			if(b >= '0' && b <= '9'){
+				seenDigit = true;
+				if(mantissa!=0 || b!='0')
+					digits++;
+				mantissa = mantissa * 10 + (b - '0');
+				if(seenPoint)
+					fractionDigits++;
+				if(digits > 15){
+					simple = false;
+					break;
+				}
+			}
+			else if(b=='.' && !seenPoint)
+				seenPoint = true;
+			else{
+				simple = false;
+				break;
+			}
+		}
+		if(simple && seenDigit && fractionDigits < POW10.length){
+			double d = fractionDigits==0 ? (double)mantissa : mantissa / POW10[fractionDigits];
+			parsedDouble = negative ? -d : d;
+			return true;
+		}
+		try{
+			parsedDouble = Double.parseDouble(decode(start, end));
+			return true;
+		}
+		catch(NumberFormatException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Decodes bytes [start, end) into a String, expanding XML character references.
+	 */
+	private String decode(int start, int end){
+		byte[] bytes = new byte[end - start];
+		boolean hasEntity = false;
+		for(int i = start; i < end; i++){
+			bytes[i - start] = buf.get(i);
+			if(bytes[i - start]=='&')
+				hasEntity = true;
+		}
+		String s = new String(bytes, UTF8);
+		return hasEntity ? unescape(s) : s;
+	}
+
+	/**
+	 * Expands the predefined XML entities and numeric character references.
+	 */
+	private static String unescape(String s){
+		StringBuilder sb = new StringBuilder(s.length());
+		int i = 0;
+		while(i < s.length()){
+			char c = s.charAt(i);
+			int semi;
+			if(c=='&' && (semi = s.indexOf(';', i)) > i){
+				String entity = s.substring(i + 1, semi);
+				String replacement = null;
+				if(entity.equals("amp")) replacement = "&";
+				else if(entity.equals("lt")) replacement = "<";
+				else if(entity.equals("gt")) replacement = ">";
+				else if(entity.equals("quot")) replacement = "\"";
+				else if(entity.equals("apos")) replacement = "'";
+				else if(entity.startsWith("#")){
+					try{
+						int cp = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16)
+								: Integer.parseInt(entity.substring(1));
+						replacement = new String(Character.toChars(cp));
+					}
+					catch(IllegalArgumentException e){
+						replacement = null;
+					}
+				}
+				if(replacement!=null){
+					sb.append(replacement);
+					i = semi + 1;
+					continue;
+				}
+			}
+			sb.append(c);
+			i++;
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void close(){
+		buf = null;
+		pos = limit = 0;
+	}
+
+
+	//Getters for the current element
+
+	private void require(int flag, String name){
+		if((present & flag)==0)
+			throw new NumberFormatException("Missing or invalid attribute " + name);
+	}
+
+	@Override
+	public long getId(){
+		require(ID, "id");
+		return id;
+	}
+
+	@Override
+	public long getChangeset(){
+		require(CHANGESET, "changeset");
+		return changeset;
+	}
+
+	@Override
+	public double getLat(){
+		require(LAT, "lat");
+		return lat;
+	}
+
+	@Override
+	public double getLon(){
+		require(LON, "lon");
+		return lon;
+	}
+
+	@Override
+	public long getRef(){
+		require(REF, "ref");
+		return ref;
+	}
+
+	@Override
+	public String getKey(){
+		if((present & KEY)==0)
+			return null;
+		return decode(keyStart, keyEnd);
+	}
+
+	@Override
+	public String getValue(){
+		if((present & VALUE)==0)
+			return null;
+		return decode(valueStart, valueEnd);
+	}
+
+	@Override
+	public String getAction(){
+		return action;
+	}
+
+	@Override
+	public double getMinLat(){
+		require(MINLAT, "minlat");
+		return minlat;
+	}
+
+	@Override
+	public double getMinLon(){
+		require(MINLON, "minlon");
+		return minlon;
+	}
+
+	@Override
+	public double getMaxLat(){
+		require(MAXLAT, "maxlat");
+		return maxlat;
+	}
+
+	@Override
+	public double getMaxLon(){
+		require(MAXLON, "maxlon");
+		return maxlon;
+	}
+
+
+	/**
+	 * Compares the time taken to read a tile file with XMLTag, with the StAX OsmEventReader and with this class.
+	 * Each reader builds the same Nodes and touches the same way attributes that ParserThread does.
+	 * @param args The .osm file to read (defaults to the first tile in Tile.MAP_DIR) and the number of rounds
+	 */
+	public static void main(String[] args) throws Exception{
+		String fileName = null;
+		if(args.length > 0)
+			fileName = args[0];
+		else{
+			File[] files = new File(Tile.MAP_DIR).listFiles();
+			if(files!=null)
+				for(File f : files)
+					if(f.getName().endsWith(".osm")){
+						fileName = f.getPath();
+						break;
+					}
+		}
+		if(fileName==null){
+			Log.v("BENCH", "Usage : MappedOsmReader <file.osm> [timed rounds]");
+			return;
+		}
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		Log.v("BENCH", "Reading " + fileName + " (" + new File(fileName).length() + " bytes), " + rounds + " rounds");
+
+		//Warm-up for the JIT - these rounds are not timed, so only the compiled readers are measured
+		int warmup = Math.max(1, rounds / 2);
+		long checksum = 0;
+		for(int r = 0; r < warmup; r++){
+			checksum += readWithXMLTag(fileName);
+			checksum -= readWithReader(OsmEventReader.openStreaming(fileName));
+			checksum += readWithReader(map(fileName));
+		}
+		Log.v("BENCH", "Warmed up with " + warmup + " untimed rounds (checksum " + checksum + ")");
+
+		long xmlTime = 0, staxTime = 0, mappedTime = 0;
+		checksum = 0;
+		for(int r = 0; r < rounds; r++){
+			long t = System.nanoTime();
+			checksum += readWithXMLTag(fileName);
+			xmlTime += System.nanoTime() - t;
+
+			t = System.nanoTime();
+			checksum -= readWithReader(OsmEventReader.openStreaming(fileName));
+			staxTime += System.nanoTime() - t;
+
+			t = System.nanoTime();
+			checksum += readWithReader(map(fileName));
+			mappedTime += System.nanoTime() - t;
+		}
+		Log.v("BENCH", "XMLTag         : " + (xmlTime / rounds / 1000000.0) + " ms/file");
+		Log.v("BENCH", "OsmEventReader : " + (staxTime / rounds / 1000000.0) + " ms/file");
+		Log.v("BENCH", "MappedOsmReader: " + (mappedTime / rounds / 1000000.0) + " ms/file");
+		Log.v("BENCH", "checksum " + checksum);
+	}
+
+	private static long readWithXMLTag(String fileName) throws FileNotFoundException{
+		long sum = 0;
+		List<XMLTag> tags = XMLTag.parseFile(fileName);
+		for(XMLTag tag : tags){
+			if(tag==null || tag.getType()==null)
+				continue;
+			if(tag.getType().equals("node"))
+				sum += new Node(tag).getId();
+			else if(tag.getType().equals("nd"))
+				sum += Long.parseLong(tag.getValue("ref"));
+		}
+		return sum;
+	}
+
+	private static long readWithReader(OsmEventReader reader) throws IOException{
+		long sum = 0;
+		int event;
+		while((event = reader.next())!=END_DOCUMENT){
+			if(event==NODE)
+				sum += new Node(reader).getId();
+			else if(event==ND)
+				sum += reader.getRef();
+		}
+		reader.close();
+		return sum;
+	}
+}
@@ -3,6 +3,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
+import my.awesomestitch.control.BinaryRow;
 import my.awesomestitch.control.Log;
 
 import org.postgis.Geometry;
@@ -108,9 +109,23 @@ public class Node extends DBObject{
 		double lat = Double.parseDouble(tag.getValue("lat"));
 		double lon = Double.parseDouble(tag.getValue("lon"));
 		geom = new Point(lon, lat);
-		
+
 	}
-	
+
+	/**
+	 * Constructs a node from the current element of an OsmEventReader.  The reader must have just returned
+	 * OsmEventReader.NODE from next().
+	 * @param reader An OsmEventReader positioned on a node element
+	 */
+	public Node(OsmEventReader reader){
+		this.is_complete = true;
+		isWayEnd = false;
+		this.node_id = reader.getId();
+		this.osm_traffic_controller = "";
+		this.osm_changeset = reader.getChangeset();
+		geom = new Point(reader.getLon(), reader.getLat());
+	}
+
 	/**
 	 * Constructs a Node from one row of an SQL query result.  The assumption was that the resultset
 	 * was generated from an appropriate query and that rs.next() has been called the appropriate number
@@ -189,14 +204,38 @@ public class Node extends DBObject{
 
 	@Override
 	public String getCSVLine() {
+		StringBuilder sb = new StringBuilder(128);
+		appendCSVLine(sb);
+		return sb.toString();
+	}
+
+	@Override
+	public void appendCSVLine(StringBuilder sb) {
 		geom.srid=4326;
 		PGgeometryLW tmp = new PGgeometryLW(geom);
-		String geom_string = tmp.getValue();
-		
-		String line = node_id + "|" + is_complete + "|" + num_in_links + "|" + num_out_links + "|" + 
-				osm_traffic_controller + "|" + geom_string + "|" + osm_changeset + "|" + birth_timestamp + "|" + death_timestamp + "\n";
-		//System.out.println(line);
-		return line;
+
+		sb.append(node_id).append('|').append(is_complete).append('|').append(num_in_links).append('|')
+				.append(num_out_links).append('|').append(osm_traffic_controller).append('|').append(tmp.getValue()).append('|')
+				.append(osm_changeset).append('|').append(birth_timestamp).append('|').append(death_timestamp).append('\n');
+	}
+
+	@Override
+	public boolean hasBinaryRow() {
+		return true;
+	}
+
+	@Override
+	public void writeBinaryRow(BinaryRow row) throws SQLException {
+		row.begin(9);
+		row.writeLong(node_id);
+		row.writeBoolean(is_complete);
+		row.writeShort(num_in_links);
+		row.writeShort(num_out_links);
+		row.writeCSVText(osm_traffic_controller);
+		row.writePoint(geom);
+		row.writeLong(osm_changeset);
+		row.writeLong(birth_timestamp);
+		row.writeLong(death_timestamp);
 	}
 
 	@Override
@@ -0,0 +1,274 @@
+package my.awesomestitch.mapobjects;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * A pull-based reader for OSM files.  Unlike XMLTag.parseFile(), the document is never held in memory - the caller
+ * asks for one element at a time with next(), then reads the relevant attributes with the getters.  Only the
+ * attributes that AwesomeStitch actually uses (id, lat, lon, changeset, ref, k, v and the bounds) are extracted,
+ * so attributes such as user, uid and timestamp are skipped without allocating anything.
+ */
+public class OsmEventReader {
+
+	/**
+	 * Returned by next() once the whole file has been read.
+	 */
+	public static final int END_DOCUMENT = 0;
+
+	/**
+	 * A <bounds> element.  The getMin/Max getters are valid.
+	 */
+	public static final int BOUNDS = 1;
+
+	/**
+	 * A <node> element.  getId(), getLat(), getLon() and getChangeset() are valid.
+	 */
+	public static final int NODE = 2;
+
+	/**
+	 * The start of a <way> element.  getId() and getChangeset() are valid.
+	 */
+	public static final int WAY = 3;
+
+	/**
+	 * An <nd> element inside of a way.  getRef() is valid.
+	 */
+	public static final int ND = 4;
+
+	/**
+	 * A <tag> element.  getKey() and getValue() are valid.
+	 */
+	public static final int TAG = 5;
+
+	/**
+	 * The end of a </way> element.
+	 */
+	public static final int WAY_END = 6;
+
+	/**
+	 * The start of a <create>, <modify> or <delete> section of an osmChange (.osc) file.  getAction() is valid.  The
+	 * elements which follow belong to this section, until the next one starts.
+	 */
+	public static final int CHANGE = 7;
+
+	/**
+	 * The underlying StAX reader.
+	 */
+	private XMLStreamReader reader;
+
+	private InputStream in;
+
+	//Raw values of the attributes we care about, for the element most recently returned by next()
+	private String id, lat, lon, changeset, ref, key, value;
+	private String minlat, minlon, maxlat, maxlon;
+	private String action;
+
+	/**
+	 * Used by subclasses which do not read through StAX.
+	 */
+	protected OsmEventReader(){}
+
+	/**
+	 * Constructs a reader which pulls OSM elements from a stream.
+	 * @param in A stream containing an OSM XML document
+	 * @throws IOException If the stream cannot be read as XML
+	 */
+	public OsmEventReader(InputStream in) throws IOException{
+		this.in = in;
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		try {
+			reader = factory.createXMLStreamReader(in);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Opens an OSM file for reading.  Files are memory-mapped and tokenized directly from their bytes by
+	 * MappedOsmReader.  Files too large to map in one piece are read through StAX instead.
+	 * @param fileName The .osm file
+	 * @return A reader positioned at the start of the file
+	 * @throws FileNotFoundException If the file does not exist
+	 */
+	public static OsmEventReader open(String fileName) throws FileNotFoundException{
+		if(new File(fileName).length() < Integer.MAX_VALUE)
+			return MappedOsmReader.map(fileName);
+		return openStreaming(fileName);
+	}
+
+	/**
+	 * Opens an OSM file for reading through StAX.
+	 * @param fileName The .osm file
+	 * @return A reader positioned at the start of the file
+	 * @throws FileNotFoundException If the file does not exist
+	 */
+	public static OsmEventReader openStreaming(String fileName) throws FileNotFoundException{
+		InputStream in = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+		try {
+			return new OsmEventReader(in);
+		} catch (IOException e) {
+			try { in.close(); } catch (IOException e2) {}
+			throw new FileNotFoundException(fileName + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Advances to the next OSM element which is relevant to map building.  Other elements (relations, members,
+	 * text, comments, etc...) are skipped.
+	 * @return One of the event constants (NODE, WAY, ND, TAG, WAY_END, BOUNDS, CHANGE) or END_DOCUMENT
+	 * @throws IOException If the document is malformed or cannot be read
+	 */
+	public int next() throws IOException{
+		try{
+			while(reader.hasNext()){
+				int event = reader.next();
+				if(event==XMLStreamConstants.START_ELEMENT){
+					String name = reader.getLocalName();
+					if(name.equals("node")){
+						readAttributes();
+						return NODE;
+					}
+					else if(name.equals("nd")){
+						readAttributes();
+						return ND;
+					}
+					else if(name.equals("tag")){
+						readAttributes();
+						return TAG;
+					}
+					else if(name.equals("way")){
+						readAttributes();
+						return WAY;
+					}
+					else if(name.equals("bounds")){
+						readAttributes();
+						return BOUNDS;
+					}
+					else if(name.equals("create") || name.equals("modify") || name.equals("delete")){
+						action = name;
+						return CHANGE;
+					}
+				}
+				else if(event==XMLStreamConstants.END_ELEMENT){
+					if(reader.getLocalName().equals("way"))
+						return WAY_END;
+				}
+			}
+		}
+		catch(XMLStreamException e){
+			throw new IOException(e);
+		}
+		return END_DOCUMENT;
+	}
+
+	/**
+	 * Copies the relevant attributes of the current element.  Attribute values are only materialized as Strings
+	 * for the handful of names that we actually use.
+	 */
+	private void readAttributes(){
+		id = lat = lon = changeset = ref = key = value = null;
+		minlat = minlon = maxlat = maxlon = null;
+
+		int count = reader.getAttributeCount();
+		for(int i = 0; i < count; i++){
+			String name = reader.getAttributeLocalName(i);
+			switch(name){
+			case "id": id = reader.getAttributeValue(i); break;
+			case "lat": lat = reader.getAttributeValue(i); break;
+			case "lon": lon = reader.getAttributeValue(i); break;
+			case "changeset": changeset = reader.getAttributeValue(i); break;
+			case "ref": ref = reader.getAttributeValue(i); break;
+			case "k": key = reader.getAttributeValue(i); break;
+			case "v": value = reader.getAttributeValue(i); break;
+			case "minlat": minlat = reader.getAttributeValue(i); break;
+			case "minlon": minlon = reader.getAttributeValue(i); break;
+			case "maxlat": maxlat = reader.getAttributeValue(i); break;
+			case "maxlon": maxlon = reader.getAttributeValue(i); break;
+			default: break;
+			}
+		}
+	}
+
+	/**
+	 * Releases the underlying file.
+	 */
+	public void close(){
+		try {
+			if(reader!=null)
+				reader.close();
+			if(in!=null)
+				in.close();
+		} catch (XMLStreamException | IOException e) {
+			//Nothing useful to do - we are done with this file anyway
+		}
+	}
+
+
+	//Getters for the current element
+
+	public long getId(){
+		return Long.parseLong(id);
+	}
+
+	public long getChangeset(){
+		return Long.parseLong(changeset);
+	}
+
+	public double getLat(){
+		return Double.parseDouble(lat);
+	}
+
+	public double getLon(){
+		return Double.parseDouble(lon);
+	}
+
+	public long getRef(){
+		return Long.parseLong(ref);
+	}
+
+	public String getKey(){
+		return key;
+	}
+
+	public String getValue(){
+		return value;
+	}
+
+	/**
+	 * @return "create", "modify" or "delete"
+	 */
+	public String getAction(){
+		return action;
+	}
+
+	public double getMinLat(){
+		return Double.parseDouble(minlat);
+	}
+
+	public double getMinLon(){
+		return Double.parseDouble(minlon);
+	}
+
+	public double getMaxLat(){
+		return Double.parseDouble(maxlat);
+	}
+
+	public double getMaxLon(){
+		return Double.parseDouble(maxlon);
+	}
+
+}
@@ -0,0 +1,503 @@
+package my.awesomestitch.mapobjects;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * Decodes OSM PBF files (http://wiki.openstreetmap.org/wiki/PBF_Format) without a protobuf library - the handful of
+ * messages we need are read field by field, straight from the bytes.
+ * <p>A PBF file is a sequence of independent blobs, each of them a zlib-compressed block of a few thousand
+ * elements.  readBlob() only splits the file into blobs, which is cheap and must be done in order.  decode() inflates
+ * and parses one blob, which is where the time goes, and can be run on any number of threads at once.
+ * <p>Only what AwesomeStitch uses is kept: node ids, coordinates and changesets, and way ids, changesets, node refs
+ * and tags.  Node tags, relations, users and timestamps are skipped.
+ */
+public class PbfDecoder {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Larger blobs are not allowed by the format, so a bigger size means a corrupt (or non-PBF) file
+	 */
+	private static final int MAX_BLOB_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Features which a file may require of its reader.  Anything else (e.g. HistoricalInformation) is refused.
+	 */
+	private static final List<String> SUPPORTED_FEATURES = Arrays.asList("OsmSchema-V0.6", "DenseNodes");
+
+	/**
+	 * One raw blob of a PBF file, as read by readBlob()
+	 */
+	public static class Blob {
+		/**
+		 * "OSMHeader" or "OSMData"
+		 */
+		public final String type;
+		final byte[] data;
+
+		Blob(String type, byte[] data){
+			this.type = type;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * A way from a PBF block
+	 */
+	public static class Way {
+		public long id;
+		public long changeset;
+		public long[] refs;
+		public String[] keys;
+		public String[] values;
+	}
+
+	/**
+	 * The nodes and ways of one decoded blob, in the order they appear in the file.  Nodes are kept in parallel
+	 * arrays; coordinates are in units of 1e-7 degrees, the precision of OSM itself.
+	 */
+	public static class Block {
+		public int nodeCount = 0;
+		public long[] nodeIds = new long[0];
+		public int[] nodeLats = new int[0];
+		public int[] nodeLons = new int[0];
+		public long[] nodeChangesets = new long[0];
+		public List<Way> ways = new ArrayList<Way>();
+
+		private void addNode(long id, long latNano, long lonNano, long changeset){
+			if(nodeCount==nodeIds.length){
+				int size = Math.max(16, nodeCount * 2);
+				nodeIds = Arrays.copyOf(nodeIds, size);
+				nodeLats = Arrays.copyOf(nodeLats, size);
+				nodeLons = Arrays.copyOf(nodeLons, size);
+				nodeChangesets = Arrays.copyOf(nodeChangesets, size);
+			}
+			nodeIds[nodeCount] = id;
+			nodeLats[nodeCount] = (int)Math.round(latNano / 100.0);
+			nodeLons[nodeCount] = (int)Math.round(lonNano / 100.0);
+			nodeChangesets[nodeCount] = changeset;
+			nodeCount++;
+		}
+	}
+
+	/**
+	 * Reads the next blob of a PBF file.
+	 * @param in The file, positioned at the start of a blob
+	 * @return The blob, or null at the end of the file
+	 * @throws IOException If the file is truncated or is not a PBF file
+	 */
+	public static Blob readBlob(DataInputStream in) throws IOException{
+		int headerSize;
+		try{
+			headerSize = in.readInt();
+		}
+		catch(EOFException e){
+			return null;
+		}
+		if(headerSize < 0 || headerSize > MAX_BLOB_SIZE)
+			throw new IOException("Not a PBF file (blob header of " + headerSize + " bytes)");
+		byte[] header = new byte[headerSize];
+		in.readFully(header);
+
+		//BlobHeader { string type = 1; bytes indexdata = 2; int32 datasize = 3; }
+		String type = null;
+		int dataSize = -1;
+		Reader r = new Reader(header, 0, header.length);
+		int tag;
+		while((tag = r.readTag()) != 0){
+			switch(tag >>> 3){
+			case 1: type = r.readString(); break;
+			case 3: dataSize = (int)r.readVarint(); break;
+			default: r.skip(tag); break;
+			}
+		}
+		if(type==null || dataSize < 0 || dataSize > MAX_BLOB_SIZE)
+			throw new IOException("Not a PBF file (bad blob header)");
+
+		byte[] data = new byte[dataSize];
+		in.readFully(data);
+		return new Blob(type, data);
+	}
+
+	/**
+	 * Checks the header blob at the start of a PBF file, and reads the area that the file covers.
+	 * @param blob A blob of type OSMHeader
+	 * @return The bbox of the file as {min_lon, min_lat, max_lon, max_lat} in degrees, or null if the header has none
+	 * @throws IOException If the file requires a feature we cannot read
+	 */
+	public static double[] checkHeader(Blob blob) throws IOException{
+		byte[] data = inflate(blob.data);
+		//HeaderBlock { HeaderBBox bbox = 1; repeated string required_features = 4; ... }
+		double[] bounds = null;
+		Reader r = new Reader(data, 0, data.length);
+		int tag;
+		while((tag = r.readTag()) != 0){
+			if(tag >>> 3 == 1)
+				bounds = readHeaderBBox(r.readMessage());
+			else if(tag >>> 3 == 4){
+				String feature = r.readString();
+				if(!SUPPORTED_FEATURES.contains(feature))
+					throw new IOException("PBF file requires unsupported feature " + feature);
+			}
+			else
+				r.skip(tag);
+		}
+		return bounds;
+	}
+
+	private static double[] readHeaderBBox(Reader r) throws IOException{
+		//HeaderBBox { sint64 left = 1; sint64 right = 2; sint64 top = 3; sint64 bottom = 4; } in nanodegrees
+		long left = 0, right = 0, top = 0, bottom = 0;
+		int tag;
+		while((tag = r.readTag()) != 0){
+			switch(tag >>> 3){
+			case 1: left = r.readSInt64(); break;
+			case 2: right = r.readSInt64(); break;
+			case 3: top = r.readSInt64(); break;
+			case 4: bottom = r.readSInt64(); break;
+			default: r.skip(tag); break;
+			}
+		}
+		return new double[]{left / 1e9, bottom / 1e9, right / 1e9, top / 1e9};
+	}
+
+	/**
+	 * Inflates and parses one blob of a PBF file.  Safe to call from several threads at once.
+	 * @param blob A blob of type OSMData
+	 * @return Its nodes and ways
+	 * @throws IOException If the blob is corrupt or compressed in a way we cannot read
+	 */
+	public static Block decode(Blob blob) throws IOException{
+		byte[] data = inflate(blob.data);
+
+		//PrimitiveBlock { StringTable stringtable = 1; repeated PrimitiveGroup primitivegroup = 2;
+		//                 int32 granularity = 17 [default=100]; int64 lat_offset = 19; int64 lon_offset = 20; }
+		//The groups come before the fields that scale their coordinates, so they are decoded last
+		String[] strings = new String[0];
+		List<int[]> groups = new ArrayList<int[]>();
+		long granularity = 100, latOffset = 0, lonOffset = 0;
+		Reader r = new Reader(data, 0, data.length);
+		int tag;
+		while((tag = r.readTag()) != 0){
+			switch(tag >>> 3){
+			case 1: strings = readStringTable(r.readMessage()); break;
+			case 2: {
+				Reader group = r.readMessage();
+				groups.add(new int[]{group.pos, group.limit});
+				break;
+			}
+			case 17: granularity = r.readVarint(); break;
+			case 19: latOffset = r.readVarint(); break;
+			case 20: lonOffset = r.readVarint(); break;
+			default: r.skip(tag); break;
+			}
+		}
+
+		Block block = new Block();
+		for(int[] range : groups){
+			//PrimitiveGroup { repeated Node nodes = 1; DenseNodes dense = 2; repeated Way ways = 3; ... }
+			Reader group = new Reader(data, range[0], range[1]);
+			while((tag = group.readTag()) != 0){
+				switch(tag >>> 3){
+				case 1: readNode(group.readMessage(), block, granularity, latOffset, lonOffset); break;
+				case 2: readDenseNodes(group.readMessage(), block, granularity, latOffset, lonOffset); break;
+				case 3: block.ways.add(readWay(group.readMessage(), strings)); break;
+				default: group.skip(tag); break;
+				}
+			}
+		}
+		return block;
+	}
+
+	private static byte[] inflate(byte[] blobData) throws IOException{
+		//Blob { bytes raw = 1; int32 raw_size = 2; bytes zlib_data = 3; bytes lzma_data = 4; ... }
+		Reader r = new Reader(blobData, 0, blobData.length);
+		int rawSize = -1;
+		Reader zlib = null;
+		byte[] raw = null;
+		int tag;
+		while((tag = r.readTag()) != 0){
+			switch(tag >>> 3){
+			case 1: raw = r.readBytes(); break;
+			case 2: rawSize = (int)r.readVarint(); break;
+			case 3: zlib = r.readMessage(); break;
+			default:
+				if(tag >>> 3 == 4 || tag >>> 3 == 7)
+					throw new IOException("PBF blob uses an unsupported compression");
+				r.skip(tag);
+				break;
+			}
+		}
+		if(raw!=null)
+			return raw;
+		if(zlib==null || rawSize < 0 || rawSize > MAX_BLOB_SIZE)
+			throw new IOException("Corrupt PBF blob");
+
+		byte[] out = new byte[rawSize];
+		Inflater inflater = new Inflater();
+		try{
+			inflater.setInput(zlib.buf, zlib.pos, zlib.limit - zlib.pos);
+			int count = 0;
+			while(count < rawSize && !inflater.finished()){
+				int n = inflater.inflate(out, count, rawSize - count);
+				if(n==0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				count += n;
+			}
+			if(count != rawSize)
+				throw new IOException("Corrupt PBF blob (inflated " + count + " of " + rawSize + " bytes)");
+		}
+		catch(DataFormatException e){
+			throw new IOException(e);
+		}
+		finally{
+			inflater.end();
+		}
+		return out;
+	}
+
+	private static String[] readStringTable(Reader r) throws IOException{
+		//StringTable { repeated bytes s = 1; }
+		List<String> strings = new ArrayList<String>();
+		int tag;
+		while((tag = r.readTag()) != 0){
+			if(tag >>> 3 == 1)
+				strings.add(r.readString());
+			else
+				r.skip(tag);
+		}
+		return strings.toArray(new String[strings.size()]);
+	}
+
+	private static void readNode(Reader r, Block block, long granularity, long latOffset, long lonOffset) throws IOException{
+		//Node { sint64 id = 1; ... Info info = 4; sint64 lat = 8; sint64 lon = 9; }
+		long id = 0, lat = 0, lon = 0, changeset = 0;
+		int tag;
+		while((tag = r.readTag()) != 0){
+			switch(tag >>> 3){
+			case 1: id = r.readSInt64(); break;
+			case 4: changeset = readInfoChangeset(r.readMessage()); break;
+			case 8: lat = r.readSInt64(); break;
+			case 9: lon = r.readSInt64(); break;
+			default: r.skip(tag); break;
+			}
+		}
+		block.addNode(id, latOffset + granularity * lat, lonOffset + granularity * lon, changeset);
+	}
+
+	private static void readDenseNodes(Reader r, Block block, long granularity, long latOffset, long lonOffset) throws IOException{
+		//DenseNodes { repeated sint64 id = 1 [packed]; DenseInfo denseinfo = 5; repeated sint64 lat = 8 [packed];
+		//             repeated sint64 lon = 9 [packed]; repeated int32 keys_vals = 10 [packed]; }
+		//Ids, coordinates and changesets are delta-coded
+		LongList ids = new LongList(), lats = new LongList(), lons = new LongList(), changesets = new LongList();
+		int tag;
+		while((tag = r.readTag()) != 0){
+			switch(tag >>> 3){
+			case 1: r.readSInt64s(tag, ids); break;
+			case 5: {
+				//DenseInfo { repeated int32 version = 1; repeated sint64 timestamp = 2; repeated sint64 changeset = 3; ... }
+				Reader info = r.readMessage();
+				int infoTag;
+				while((infoTag = info.readTag()) != 0){
+					if(infoTag >>> 3 == 3)
+						info.readSInt64s(infoTag, changesets);
+					else
+						info.skip(infoTag);
+				}
+				break;
+			}
+			case 8: r.readSInt64s(tag, lats); break;
+			case 9: r.readSInt64s(tag, lons); break;
+			default: r.skip(tag); break;
+			}
+		}
+		if(lats.size != ids.size || lons.size != ids.size)
+			throw new IOException("Corrupt PBF dense nodes");
+
+		long id = 0, lat = 0, lon = 0, changeset = 0;
+		for(int i = 0; i < ids.size; i++){
+			id += ids.values[i];
+			lat += lats.values[i];
+			lon += lons.values[i];
+			if(i < changesets.size)
+				changeset += changesets.values[i];
+			block.addNode(id, latOffset + granularity * lat, lonOffset + granularity * lon, changeset);
+		}
+	}
+
+	private static Way readWay(Reader r, String[] strings) throws IOException{
+		//Way { int64 id = 1; repeated uint32 keys = 2 [packed]; repeated uint32 vals = 3 [packed]; Info info = 4;
+		//      repeated sint64 refs = 8 [packed]; }
+		Way way = new Way();
+		LongList keys = new LongList(), values = new LongList(), refs = new LongList();
+		int tag;
+		while((tag = r.readTag()) != 0){
+			switch(tag >>> 3){
+			case 1: way.id = r.readVarint(); break;
+			case 2: r.readVarints(tag, keys); break;
+			case 3: r.readVarints(tag, values); break;
+			case 4: way.changeset = readInfoChangeset(r.readMessage()); break;
+			case 8: r.readSInt64s(tag, refs); break;
+			default: r.skip(tag); break;
+			}
+		}
+
+		way.refs = new long[refs.size];
+		long ref = 0;
+		for(int i = 0; i < refs.size; i++){
+			ref += refs.values[i];
+			way.refs[i] = ref;
+		}
+
+		int tagCount = Math.min(keys.size, values.size);
+		way.keys = new String[tagCount];
+		way.values = new String[tagCount];
+		for(int i = 0; i < tagCount; i++){
+			way.keys[i] = string(strings, keys.values[i]);
+			way.values[i] = string(strings, values.values[i]);
+		}
+		return way;
+	}
+
+	private static long readInfoChangeset(Reader r) throws IOException{
+		//Info { int32 version = 1; int64 timestamp = 2; int64 changeset = 3; ... }
+		long changeset = 0;
+		int tag;
+		while((tag = r.readTag()) != 0){
+			if(tag >>> 3 == 3)
+				changeset = r.readVarint();
+			else
+				r.skip(tag);
+		}
+		return changeset;
+	}
+
+	private static String string(String[] strings, long index) throws IOException{
+		if(index < 0 || index >= strings.length)
+			throw new IOException("Corrupt PBF string index " + index);
+		return strings[(int)index];
+	}
+
+	/**
+	 * A growable array of longs, for packed fields
+	 */
+	private static class LongList {
+		long[] values = new long[16];
+		int size = 0;
+
+		void add(long value){
+			if(size==values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * Reads protobuf wire format from a range of a byte array
+	 */
+	private static class Reader {
+		final byte[] buf;
+		int pos;
+		final int limit;
+
+		Reader(byte[] buf, int pos, int limit){
+			this.buf = buf;
+			this.pos = pos;
+			this.limit = limit;
+		}
+
+		/**
+		 * @return The next field's tag (field number << 3 | wire type), or 0 at the end of the message
+		 */
+		int readTag() throws IOException{
+			if(pos >= limit)
+				return 0;
+			return (int)readVarint();
+		}
+
+		long readVarint() throws IOException{
+			long result = 0;
+			for(int shift = 0; shift < 64; shift += 7){
+				if(pos >= limit)
+					throw new IOException("Truncated PBF varint");
+				byte b = buf[pos++];
+				result |= (long)(b & 0x7f) << shift;
+				if(b >= 0)
+					return result;
+			}
+			throw new IOException("Malformed PBF varint");
+		}
+
+		long readSInt64() throws IOException{
+			long n = readVarint();
+			return (n >>> 1) ^ -(n & 1);
+		}
+
+		Reader readMessage() throws IOException{
+			int length = (int)readVarint();
+			if(length < 0 || length > limit - pos)
+				throw new IOException("Truncated PBF message");
+			Reader message = new Reader(buf, pos, pos + length);
+			pos += length;
+			return message;
+		}
+
+		byte[] readBytes() throws IOException{
+			Reader bytes = readMessage();
+			return Arrays.copyOfRange(buf, bytes.pos, bytes.limit);
+		}
+
+		String readString() throws IOException{
+			Reader bytes = readMessage();
+			return new String(buf, bytes.pos, bytes.limit - bytes.pos, UTF8);
+		}
+
+		/**
+		 * Reads a repeated varint field, which may be packed (wire type 2) or not
+		 */
+		void readVarints(int tag, LongList out) throws IOException{
+			if((tag & 7) == 2){
+				Reader packed = readMessage();
+				while(packed.pos < packed.limit)
+					out.add(packed.readVarint());
+			}
+			else
+				out.add(readVarint());
+		}
+
+		/**
+		 * Reads a repeated sint64 field, which may be packed (wire type 2) or not
+		 */
+		void readSInt64s(int tag, LongList out) throws IOException{
+			if((tag & 7) == 2){
+				Reader packed = readMessage();
+				while(packed.pos < packed.limit)
+					out.add(packed.readSInt64());
+			}
+			else
+				out.add(readSInt64());
+		}
+
+		void skip(int tag) throws IOException{
+			switch(tag & 7){
+			case 0: readVarint(); break;
+			case 1: pos += 8; break;
+			case 2: readMessage(); break;
+			case 5: pos += 4; break;
+			default: throw new IOException("Unsupported PBF wire type " + (tag & 7));
+			}
+			if(pos > limit)
+				throw new IOException("Truncated PBF message");
+		}
+	}
+}
@@ -0,0 +1,842 @@
+package my.awesomestitch.mapobjects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import my.awesomestitch.control.Log;
+
+import org.postgis.LineString;
+import org.postgis.Point;
+
+/**
+ *
+ * @author Brian Donovan <briandonovan100@gmail.com>
+ * An index-based, mutable copy of a BBox which is used to collapse it during preprocessing.  This performs exactly
+ * the same steps as BBox.collapseTwowayNodes() (step 2) and BBox.collapseShortLinks(), and gives exactly the same
+ * result, but much faster :
+ *
+ * Nodes are numbered by their position in id order, and Links by their position in an array.  The Links which begin
+ * (or end) at a node form a doubly linked list threaded through int arrays, so adding or removing a Link is O(1)
+ * and finding one by (begin_node_id, end_node_id) is O(degree).  Collapsing a node never allocates, apart from
+ * growing the Link arrays when a joined Link is created.  The Link objects themselves are only touched again in
+ * exportTo(), which hands the result back to BBox.preprocess().
+ */
+class PreprocessGraph {
+
+	/**
+	 * Which table of the BBox a node is in.  Mirrors BBox.nodes and BBox.safeNodes.
+	 */
+	private static final byte DELETED = 0, IN_BOX = 1, IN_MARGIN = 2;
+
+	/**
+	 * The box we were built from.  Used for its bounds.
+	 */
+	private final BBox box;
+
+	//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	//Nodes, by index
+
+	private final long[] nodeIds;
+	private final Node[] nodeObjects;
+	private final byte[] nodeTable;
+
+	/**
+	 * First and last Link of each node's out-list and in-list, or -1
+	 */
+	private final int[] outHead, outTail, inHead, inTail;
+
+	//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	//Links, by index.  The first numOriginalLinks are the Links of the BBox, the rest are joined Links
+
+	private int numLinks, numOriginalLinks;
+	private int[] begin, end;
+	private double[] length;
+	private float[] beginAngle, endAngle;
+	private long[] wayId, changeset;
+	private String[] name, osmClass;
+	private Point[] beginPoint, endPoint;
+
+	/**
+	 * The Link objects of the original Links.  Joined Links get an object in exportTo().
+	 */
+	private Link[] linkObjects;
+
+	/**
+	 * True if collapseShortLinks() moved an endpoint of this Link
+	 */
+	private boolean[] moved;
+
+	/**
+	 * Disjoint-set forest mapping each Link to the Link it was joined into.  Same as DetailLinkMap.
+	 */
+	private int[] parent;
+
+	/**
+	 * Neighbors in the out-list (and in-list) that the Link is on.  outOwner is the node whose list it is, or -1.
+	 */
+	private int[] outOwner, outPrev, outNext, inOwner, inPrev, inNext;
+
+	/**
+	 * (begin, end) --> Link, mirroring BBox.links and BBox.safeLinks
+	 */
+	private final IndexTable boxLinks, marginLinks;
+
+	/**
+	 * Reused to hold a copy of a node's list while it is being modified
+	 */
+	private int[] scratch = new int[16];
+	private int[] pairFirst = new int[16], pairSecond = new int[16];
+
+	/**
+	 * Copies the Nodes and Links of a BBox.  Links are added to the adjacency lists in LINK_ORDER, like
+	 * BBox.generateLinkTables() does.
+	 * @param box A BBox which has not been collapsed yet, whose Nodes already have their osm_num_ways counted
+	 */
+	PreprocessGraph(BBox box){
+		this.box = box;
+
+		//Sorting the ids is much cheaper than sorting the Node objects with NODE_ORDER
+		long[] boxIds = box.nodes.keys();
+		long[] marginIds = box.safeNodes.keys();
+		int n = boxIds.length + marginIds.length;
+		nodeIds = Arrays.copyOf(boxIds, n);
+		System.arraycopy(marginIds, 0, nodeIds, boxIds.length, marginIds.length);
+		Arrays.sort(nodeIds);
+		nodeObjects = new Node[n];
+		nodeTable = new byte[n];
+		for(int i = 0; i < n; i++){
+			Node node = box.nodes.get(nodeIds[i]);
+			nodeTable[i] = IN_BOX;
+			if(node==null){
+				node = box.safeNodes.get(nodeIds[i]);
+				nodeTable[i] = IN_MARGIN;
+			}
+			nodeObjects[i] = node;
+		}
+		outHead = new int[n];
+		outTail = new int[n];
+		inHead = new int[n];
+		inTail = new int[n];
+		Arrays.fill(outHead, -1);
+		Arrays.fill(outTail, -1);
+		Arrays.fill(inHead, -1);
+		Arrays.fill(inTail, -1);
+
+		//Likewise, the Links are put in LINK_ORDER by sorting their (begin, end) node indexes.  Links of the box
+		//come before those of the safety margin with the same key, as in a stable sort of BBox.getAllLinks()
+		IndexTable nodeIndex = new IndexTable(n);
+		for(int i = 0; i < n; i++)
+			nodeIndex.put(nodeIds[i], i);
+		long[] boxKeys = sortedKeys(box.links.values(), nodeIndex);
+		long[] marginKeys = sortedKeys(box.safeLinks.values(), nodeIndex);
+		int numOriginal = boxKeys.length + marginKeys.length;
+		allocateLinks(Math.max(16, numOriginal + numOriginal / 2));
+		boxLinks = new IndexTable(boxKeys.length);
+		marginLinks = new IndexTable(marginKeys.length);
+		linkObjects = new Link[begin.length];
+
+		int i = 0, j = 0;
+		while(i < boxKeys.length || j < marginKeys.length){
+			boolean inBox = j==marginKeys.length || (i < boxKeys.length && boxKeys[i] <= marginKeys[j]);
+			long key = inBox ? boxKeys[i++] : marginKeys[j++];
+			int l = numLinks++;
+			begin[l] = (int)(key >>> 32);
+			end[l] = (int)key;
+			Link link = inBox ? box.links.get(nodeIds[begin[l]], nodeIds[end[l]]) : box.safeLinks.get(nodeIds[begin[l]], nodeIds[end[l]]);
+			length[l] = link.getStreet_length();
+			beginAngle[l] = link.getBegin_angle();
+			endAngle[l] = link.getEnd_angle();
+			wayId[l] = link.getOsm_way_id();
+			changeset[l] = link.getOsm_changeset();
+			name[l] = link.getOsm_name();
+			osmClass[l] = link.getOsm_class();
+			beginPoint[l] = link.getGeom().getPoint(0);
+			endPoint[l] = link.getGeom().getPoint(1);
+			linkObjects[l] = link;
+			parent[l] = l;
+
+			if(inBox)
+				boxLinks.put(begin[l], end[l], l);
+			else
+				marginLinks.put(begin[l], end[l], l);
+			appendOut(begin[l], l);
+			appendIn(end[l], l);
+		}
+		numOriginalLinks = numLinks;
+	}
+
+	/**
+	 * @return The (begin, end) node index pairs of the given Links, packed into longs and sorted
+	 */
+	private static long[] sortedKeys(List<Link> links, IndexTable nodeIndex){
+		long[] keys = new long[links.size()];
+		int k = 0;
+		for(Link link : links)
+			keys[k++] = IndexTable.key(nodeIndex.get(link.getBegin_node_id()), nodeIndex.get(link.getEnd_node_id()));
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	private void allocateLinks(int capacity){
+		begin = Arrays.copyOf(begin==null ? new int[0] : begin, capacity);
+		end = Arrays.copyOf(end==null ? new int[0] : end, capacity);
+		length = Arrays.copyOf(length==null ? new double[0] : length, capacity);
+		beginAngle = Arrays.copyOf(beginAngle==null ? new float[0] : beginAngle, capacity);
+		endAngle = Arrays.copyOf(endAngle==null ? new float[0] : endAngle, capacity);
+		wayId = Arrays.copyOf(wayId==null ? new long[0] : wayId, capacity);
+		changeset = Arrays.copyOf(changeset==null ? new long[0] : changeset, capacity);
+		name = Arrays.copyOf(name==null ? new String[0] : name, capacity);
+		osmClass = Arrays.copyOf(osmClass==null ? new String[0] : osmClass, capacity);
+		beginPoint = Arrays.copyOf(beginPoint==null ? new Point[0] : beginPoint, capacity);
+		endPoint = Arrays.copyOf(endPoint==null ? new Point[0] : endPoint, capacity);
+		moved = Arrays.copyOf(moved==null ? new boolean[0] : moved, capacity);
+		parent = Arrays.copyOf(parent==null ? new int[0] : parent, capacity);
+		outOwner = Arrays.copyOf(outOwner==null ? new int[0] : outOwner, capacity);
+		outPrev = Arrays.copyOf(outPrev==null ? new int[0] : outPrev, capacity);
+		outNext = Arrays.copyOf(outNext==null ? new int[0] : outNext, capacity);
+		inOwner = Arrays.copyOf(inOwner==null ? new int[0] : inOwner, capacity);
+		inPrev = Arrays.copyOf(inPrev==null ? new int[0] : inPrev, capacity);
+		inNext = Arrays.copyOf(inNext==null ? new int[0] : inNext, capacity);
+		if(linkObjects!=null)
+			linkObjects = Arrays.copyOf(linkObjects, capacity);
+	}
+
+	/**
+	 * Runs both collapsing steps.
+	 */
+	void collapse(){
+		collapseChainNodes();
+		collapseShortLinks();
+	}
+
+
+	//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	//Adjacency lists
+
+	private void appendOut(int node, int l){
+		outOwner[l] = node;
+		outPrev[l] = outTail[node];
+		outNext[l] = -1;
+		if(outTail[node] < 0)
+			outHead[node] = l;
+		else
+			outNext[outTail[node]] = l;
+		outTail[node] = l;
+	}
+
+	private void appendIn(int node, int l){
+		inOwner[l] = node;
+		inPrev[l] = inTail[node];
+		inNext[l] = -1;
+		if(inTail[node] < 0)
+			inHead[node] = l;
+		else
+			inNext[inTail[node]] = l;
+		inTail[node] = l;
+	}
+
+	private void unlinkOut(int l){
+		int node = outOwner[l];
+		if(outPrev[l] < 0)
+			outHead[node] = outNext[l];
+		else
+			outNext[outPrev[l]] = outNext[l];
+		if(outNext[l] < 0)
+			outTail[node] = outPrev[l];
+		else
+			outPrev[outNext[l]] = outPrev[l];
+		outOwner[l] = -1;
+	}
+
+	private void unlinkIn(int l){
+		int node = inOwner[l];
+		if(inPrev[l] < 0)
+			inHead[node] = inNext[l];
+		else
+			inNext[inPrev[l]] = inNext[l];
+		if(inNext[l] < 0)
+			inTail[node] = inPrev[l];
+		else
+			inPrev[inNext[l]] = inPrev[l];
+		inOwner[l] = -1;
+	}
+
+	/**
+	 * Same as BBox.removeFromTables() - removes the first Link with the same (begin, end) from each list.
+	 */
+	private void removeFromTables(int l){
+		int b = begin[l], e = end[l];
+		for(int o = outHead[b]; o >= 0; o = outNext[o]){
+			if(begin[o]==b && end[o]==e){
+				unlinkOut(o);
+				break;
+			}
+		}
+		for(int i = inHead[e]; i >= 0; i = inNext[i]){
+			if(begin[i]==b && end[i]==e){
+				unlinkIn(i);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Same as BBox.addToTables() - appends the Link to each list, unless a Link with the same (begin, end) is there.
+	 */
+	private void addToTables(int l){
+		int b = begin[l], e = end[l];
+		boolean found = false;
+		for(int o = outHead[b]; o >= 0 && !found; o = outNext[o])
+			found = begin[o]==b && end[o]==e;
+		if(!found)
+			appendOut(b, l);
+
+		found = false;
+		for(int i = inHead[e]; i >= 0 && !found; i = inNext[i])
+			found = begin[i]==b && end[i]==e;
+		if(!found)
+			appendIn(e, l);
+	}
+
+	/**
+	 * Copies a node's out-list into scratch.
+	 * @return The number of Links copied
+	 */
+	private int copyOutList(int node){
+		int n = 0;
+		for(int o = outHead[node]; o >= 0; o = outNext[o]){
+			if(n==scratch.length)
+				scratch = Arrays.copyOf(scratch, n * 2);
+			scratch[n++] = o;
+		}
+		return n;
+	}
+
+	/**
+	 * Copies a node's in-list into scratch.
+	 * @return The number of Links copied
+	 */
+	private int copyInList(int node){
+		int n = 0;
+		for(int i = inHead[node]; i >= 0; i = inNext[i]){
+			if(n==scratch.length)
+				scratch = Arrays.copyOf(scratch, n * 2);
+			scratch[n++] = i;
+		}
+		return n;
+	}
+
+
+	//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	//The Link tables, with the same behavior as the BBox methods of the same name
+
+	private void addLink(int l){
+		int b = begin[l], e = end[l];
+		if(nodeTable[b]==DELETED || nodeTable[e]==DELETED)
+			return;
+		if(!box.inBox(beginPoint[l], endPoint[l]))
+			marginLinks.put(b, e, l);
+		else{
+			boxLinks.put(b, e, l);
+			//If the link is put into the regular box, so must its endnodes.
+			if(nodeTable[b]==IN_MARGIN)
+				nodeTable[b] = IN_BOX;
+			if(nodeTable[e]==IN_MARGIN)
+				nodeTable[e] = IN_BOX;
+		}
+	}
+
+	private void deleteLink(int l){
+		if(boxLinks.remove(begin[l], end[l]) < 0 && marginLinks.remove(begin[l], end[l]) < 0)
+			System.out.println("Couldn't delete! No such link as " + name[l] + " (" + nodeIds[begin[l]] + "-->" + nodeIds[end[l]] + ")");
+	}
+
+	private int getLink(int b, int e){
+		int l = boxLinks.get(b, e);
+		return l >= 0 ? l : marginLinks.get(b, e);
+	}
+
+	private int newLink(){
+		if(numLinks==begin.length)
+			allocateLinks(begin.length * 2);
+		int l = numLinks++;
+		parent[l] = l;
+		outOwner[l] = -1;
+		inOwner[l] = -1;
+		return l;
+	}
+
+	private int findRoot(int l){
+		while(parent[l]!=l){
+			parent[l] = parent[parent[l]];
+			l = parent[l];
+		}
+		return l;
+	}
+
+
+	//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	//Collapsing
+
+	/**
+	 * Same as BBox.isWayEnd().  The in-links as (begin, end) pairs and the out-links as (end, begin) pairs are
+	 * copied into pairFirst / pairSecond, and the number of distinct pairs is the degree of the node.
+	 */
+	private boolean isWayEnd(int node){
+		int n = 0;
+		for(int i = inHead[node]; i >= 0; i = inNext[i])
+			n = addPair(n, begin[i], end[i]);
+		for(int o = outHead[node]; o >= 0; o = outNext[o])
+			n = addPair(n, end[o], begin[o]);
+
+		int degree = 0;
+		for(int i = 0; i < n; i++){
+			boolean seen = false;
+			for(int j = 0; j < i && !seen; j++)
+				seen = pairFirst[j]==pairFirst[i] && pairSecond[j]==pairSecond[i];
+			if(!seen && ++degree > 2)
+				return true;
+		}
+		return degree!=2;
+	}
+
+	private int addPair(int n, int first, int second){
+		if(n==pairFirst.length){
+			pairFirst = Arrays.copyOf(pairFirst, n * 2);
+			pairSecond = Arrays.copyOf(pairSecond, n * 2);
+		}
+		pairFirst[n] = first;
+		pairSecond[n] = second;
+		return n + 1;
+	}
+
+	/**
+	 * Same as BBox.collapseNode().
+	 */
+	private void collapseNode(int node){
+		int numIn = copyInList(node);
+		for(int k = 0; k < numIn; k++){
+			int in = scratch[k];
+			//Find the "next" outLink which continues the path of this inLink
+			int out = -1;
+			for(int o = outHead[node]; o >= 0; o = outNext[o]){
+				if(begin[in]!=end[o]){
+					out = o;
+					break;
+				}
+			}
+			if(out < 0)
+				continue;
+
+			//remove the two old links
+			removeFromTables(in);
+			removeFromTables(out);
+			deleteLink(in);
+			deleteLink(out);
+
+			//Create the new link which connects them
+			int joined = newLink();
+			begin[joined] = begin[in];
+			end[joined] = end[out];
+			beginAngle[joined] = beginAngle[in];
+			endAngle[joined] = endAngle[out];
+			name[joined] = name[in];
+			length[joined] = length[in] + length[out];
+			beginPoint[joined] = beginPoint[in];
+			endPoint[joined] = endPoint[out];
+			changeset[joined] = changeset[in];
+			osmClass[joined] = osmClass[in];
+			wayId[joined] = wayId[in];
+			addLink(joined);
+			addToTables(joined);
+
+			//Map the two small links to the new joined link
+			parent[in] = findRoot(joined);
+			parent[out] = findRoot(joined);
+		}
+
+		//Finally, remove the node
+		nodeTable[node] = DELETED;
+	}
+
+	/**
+	 * Same as step 2 of BBox.collapseTwowayNodes() - nodes are visited in order of id.
+	 */
+	private void collapseChainNodes(){
+		for(int node = 0; node < nodeIds.length; node++)
+			if(nodeObjects[node].getOsm_num_ways() <= 1 && !isWayEnd(node))
+				collapseNode(node);
+	}
+
+	/**
+	 * Same as BBox.collapseShortLinks() - Links are visited in LINK_ORDER.
+	 */
+	private void collapseShortLinks(){
+		int[] order = sortedLinks();
+
+		for(int l : order){
+			if(length[l] >= BBox.MIN_LINK_LENGTH || boxLinks.get(begin[l], end[l]) < 0)
+				continue;
+
+			//delete this link, and its counterpart if the street is two-way
+			deleteLink(l);
+			removeFromTables(l);
+			int other = getLink(end[l], begin[l]);
+			if(other >= 0){
+				deleteLink(other);
+				removeFromTables(other);
+			}
+
+			//We will keep one of the links endpoint nodes, and delete the other
+			//Other links may point to this delete_node - we must modify them to point to the keep_node
+			int keep = begin[l];
+			int delete = end[l];
+			if(nodeTable[keep]==DELETED)
+				continue;
+			Point keepPoint = nodeObjects[keep].getGeom();
+
+			//Update affected Links whose begin_node is the one we are deleting
+			int n = copyOutList(delete);
+			for(int k = 0; k < n; k++){
+				int a = scratch[k];
+				deleteLink(a);
+				removeFromTables(a);
+				begin[a] = keep;
+				beginPoint[a] = keepPoint;
+				moved[a] = true;
+				addLink(a);
+				addToTables(a);
+			}
+			while(outHead[delete] >= 0)
+				unlinkOut(outHead[delete]);
+
+			//Update affected Links whose end_node is the one we are deleting
+			n = copyInList(delete);
+			for(int k = 0; k < n; k++){
+				int a = scratch[k];
+				deleteLink(a);
+				removeFromTables(a);
+				end[a] = keep;
+				endPoint[a] = keepPoint;
+				moved[a] = true;
+				addLink(a);
+				addToTables(a);
+			}
+			while(inHead[delete] >= 0)
+				unlinkIn(inHead[delete]);
+
+			//finally, delete the node
+			nodeTable[delete] = DELETED;
+		}
+	}
+
+	/**
+	 * @return The Links of both tables, sorted by (begin, end), with Links of the box before those of the
+	 * safety margin when both tables have the same key - the order BBox.getAllLinks() gives after a stable sort.
+	 */
+	private int[] sortedLinks(){
+		long[] boxKeys = boxLinks.sortedKeys();
+		long[] marginKeys = marginLinks.sortedKeys();
+		int[] order = new int[boxKeys.length + marginKeys.length];
+		int i = 0, j = 0, k = 0;
+		while(i < boxKeys.length || j < marginKeys.length){
+			if(j==marginKeys.length || (i < boxKeys.length && boxKeys[i] <= marginKeys[j]))
+				order[k++] = boxLinks.get(boxKeys[i++]);
+			else
+				order[k++] = marginLinks.get(marginKeys[j++]);
+		}
+		return order;
+	}
+
+
+	//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	//Writing the result back
+
+	private Link linkObject(int l){
+		if(linkObjects[l]==null){
+			Link joined = new Link(0, nodeIds[begin[l]], nodeIds[end[l]], beginAngle[l], endAngle[l], name[l]);
+			joined.setStreet_length(length[l]);
+			Point[] points = {beginPoint[l], endPoint[l]};
+			joined.setGeom(new LineString(points));
+			joined.setOsm_changeset(changeset[l]);
+			joined.setOsm_class(osmClass[l]);
+			joined.setOsm_way_id(wayId[l]);
+			linkObjects[l] = joined;
+		}
+		return linkObjects[l];
+	}
+
+	/**
+	 * Appends the Nodes and Links left after collapse() to the given lists, each in sorted order.  Also maps each of
+	 * the original Links to the Link it was joined into (or itself, if it was not joined).
+	 * @param boxNodes Receives the Nodes that belong in BBox.nodes, in NODE_ORDER
+	 * @param marginNodes Receives the Nodes that belong in BBox.safeNodes, in NODE_ORDER
+	 * @param boxLinks Receives the Links that belong in BBox.links, in LINK_ORDER
+	 * @param marginLinks Receives the Links that belong in BBox.safeLinks, in LINK_ORDER
+	 * @param processedLinks Receives original Link --> processed Link
+	 */
+	void exportTo(List<Node> boxNodes, List<Node> marginNodes, List<Link> boxLinks, List<Link> marginLinks,
+			IdentityHashMap<Link, Link> processedLinks){
+		//Original Links which were moved by collapseShortLinks() are updated in place, as BBox does
+		for(int l = 0; l < numOriginalLinks; l++){
+			if(moved[l]){
+				Link link = linkObjects[l];
+				link.setBegin_node_id(nodeIds[begin[l]]);
+				link.setEnd_node_id(nodeIds[end[l]]);
+				Point[] points = {beginPoint[l], endPoint[l]};
+				link.setGeom(new LineString(points));
+			}
+		}
+
+		//Node indexes follow node ids, and Link keys follow (begin, end) ids, so these are already sorted
+		for(int node = 0; node < nodeIds.length; node++){
+			if(nodeTable[node]==IN_BOX)
+				boxNodes.add(nodeObjects[node]);
+			else if(nodeTable[node]==IN_MARGIN)
+				marginNodes.add(nodeObjects[node]);
+		}
+		for(long key : this.boxLinks.sortedKeys())
+			boxLinks.add(linkObject(this.boxLinks.get(key)));
+		for(long key : this.marginLinks.sortedKeys())
+			marginLinks.add(linkObject(this.marginLinks.get(key)));
+
+		for(int l = 0; l < numOriginalLinks; l++)
+			processedLinks.put(linkObjects[l], linkObject(findRoot(l)));
+	}
+
+
+	/**
+	 * A hash table from long keys to indexes - node_id to node index, or a (begin, end) pair of node indexes to a
+	 * Link index.  Open addressing with linear probing, like LongMap.
+	 */
+	private static class IndexTable {
+		private long[] keys;
+		private int[] values;
+		private int size, mask;
+
+		IndexTable(int expectedSize){
+			int capacity = 16;
+			while(capacity < expectedSize * 2)
+				capacity <<= 1;
+			keys = new long[capacity];
+			values = new int[capacity];
+			Arrays.fill(values, -1);
+			mask = capacity - 1;
+		}
+
+		static long key(int b, int e){
+			return ((long)b << 32) | e;
+		}
+
+		int get(int b, int e){
+			return get(key(b, e));
+		}
+
+		int get(long key){
+			int slot = LongMap.hash(key) & mask;
+			while(values[slot] >= 0){
+				if(keys[slot]==key)
+					return values[slot];
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		void put(int b, int e, int l){
+			put(key(b, e), l);
+		}
+
+		void put(long key, int l){
+			int slot = LongMap.hash(key) & mask;
+			while(values[slot] >= 0){
+				if(keys[slot]==key){
+					values[slot] = l;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = l;
+			if(++size * 2 > keys.length)
+				resize(keys.length * 2);
+		}
+
+		/**
+		 * @return The Link that was removed, or -1
+		 */
+		int remove(int b, int e){
+			long key = key(b, e);
+			int slot = LongMap.hash(key) & mask;
+			while(values[slot] >= 0 && keys[slot]!=key)
+				slot = (slot + 1) & mask;
+			if(values[slot] < 0)
+				return -1;
+			int old = values[slot];
+
+			//Empty the slot and shift later entries of the same probe sequence back
+			int gap = slot;
+			int next = (gap + 1) & mask;
+			while(values[next] >= 0){
+				int home = LongMap.hash(keys[next]) & mask;
+				if(((next - home) & mask) >= ((next - gap) & mask)){
+					keys[gap] = keys[next];
+					values[gap] = values[next];
+					gap = next;
+				}
+				next = (next + 1) & mask;
+			}
+			values[gap] = -1;
+			size--;
+			return old;
+		}
+
+		private void resize(int capacity){
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[capacity];
+			values = new int[capacity];
+			Arrays.fill(values, -1);
+			mask = capacity - 1;
+			for(int i = 0; i < oldKeys.length; i++){
+				if(oldValues[i] >= 0){
+					int slot = LongMap.hash(oldKeys[i]) & mask;
+					while(values[slot] >= 0)
+						slot = (slot + 1) & mask;
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+
+		/**
+		 * @return The keys in ascending order, which is (begin, end) order since node indexes follow node ids
+		 */
+		long[] sortedKeys(){
+			long[] result = new long[size];
+			int j = 0;
+			for(int i = 0; i < keys.length; i++)
+				if(values[i] >= 0)
+					result[j++] = keys[i];
+			Arrays.sort(result);
+			return result;
+		}
+
+		int[] values(){
+			int[] result = new int[size];
+			int j = 0;
+			for(int i = 0; i < values.length; i++)
+				if(values[i] >= 0)
+					result[j++] = values[i];
+			return result;
+		}
+	}
+
+
+	/**
+	 * Compares the time taken to collapse a synthetic street grid with the BBox methods and with this class,
+	 * for square regions from 1/8 degree up to 1 degree on a side.  Every fifth street is a divided road, so
+	 * collapseShortLinks() has work to do as well.
+	 * @param args The largest region size in degrees (default 1.0)
+	 */
+	public static void main(String[] args){
+		double maxSize = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+
+		//The first region is repeated to warm up the JIT
+		double[] sizes = {.125, .125, .25, .5, 1};
+		for(int s = 0; s < sizes.length; s++){
+			double size = sizes[s] * maxSize;
+
+			BBox box = makeGrid(size);
+			int numLinks = box.getAllLinks().size();
+			box.countWaysThroughNodes();
+			System.gc();
+			long t = System.nanoTime();
+			box.collapseChainNodes();
+			box.collapseShortLinks();
+			long oldTime = System.nanoTime() - t;
+			int oldLinksLeft = box.getAllLinks().size();
+
+			box = makeGrid(size);
+			box.countWaysThroughNodes();
+			System.gc();
+			t = System.nanoTime();
+			PreprocessGraph graph = new PreprocessGraph(box);
+			graph.collapse();
+			List<Node> nodes = new ArrayList<Node>();
+			List<Link> links = new ArrayList<Link>();
+			graph.exportTo(nodes, nodes, links, links, new IdentityHashMap<Link, Link>());
+			long newTime = System.nanoTime() - t;
+
+			if(s > 0){
+				Log.v("BENCH", size + " degrees : " + numLinks + " links");
+				Log.v("BENCH", "   BBox            : " + oldTime / 1000000 + " ms (" + (oldTime / numLinks) + " ns/link), " + oldLinksLeft + " links left");
+				Log.v("BENCH", "   PreprocessGraph : " + newTime / 1000000 + " ms (" + (newTime / numLinks) + " ns/link), " + links.size() + " links left");
+			}
+		}
+	}
+
+	/**
+	 * Builds a grid of two-way streets every .004 degrees, with a node every .001 degrees.  Every fifth
+	 * east-west street also has a one-way carriageway .0002 degrees north of it, joined to the crossing streets
+	 * by short links.
+	 */
+	private static BBox makeGrid(double size){
+		double left = -88, bottom = 40;
+		BBox box = new BBox(left, bottom + size, left + size, bottom);
+		int cells = (int)Math.round(size / .001);
+		Random random = new Random(cells);
+		long way = 0;
+
+		//Lattice nodes lie on a street if their row or column is a multiple of 4
+		for(int row = 0; row <= cells; row++)
+			for(int col = 0; col <= cells; col++)
+				if(row % 4==0 || col % 4==0)
+					box.add(new Node(true, gridId(row, col), null, new Point(left + col * .001, bottom + row * .001)));
+
+		for(int row = 0; row <= cells; row += 4){
+			way++;
+			for(int col = 0; col < cells; col++)
+				addTwoWay(box, gridId(row, col), gridId(row, col + 1), way, random);
+		}
+		for(int col = 0; col <= cells; col += 4){
+			way++;
+			for(int row = 0; row < cells; row++)
+				addTwoWay(box, gridId(row, col), gridId(row + 1, col), way, random);
+		}
+
+		//Divided roads : a parallel westbound carriageway, with connectors at each crossing street
+		for(int row = 0; row < cells; row += 20){
+			way++;
+			long carriageWay = way++;
+			for(int col = 0; col <= cells; col++)
+				box.add(new Node(true, -gridId(row, col), null, new Point(left + col * .001, bottom + row * .001 + .0002)));
+			for(int col = 0; col < cells; col++)
+				addLink(box, -gridId(row, col + 1), -gridId(row, col), carriageWay);
+			for(int col = 0; col <= cells; col += 4){
+				addLink(box, gridId(row, col), -gridId(row, col), way);
+				addLink(box, -gridId(row, col), gridId(row, col), way);
+			}
+		}
+		return box;
+	}
+
+	private static long gridId(int row, int col){
+		return (long)row * 1000003L + col + 1;
+	}
+
+	private static void addTwoWay(BBox box, long a, long b, long way, Random random){
+		addLink(box, a, b, way);
+		//Some streets are one-way
+		if(random.nextInt(10) > 0)
+			addLink(box, b, a, way);
+	}
+
+	private static void addLink(BBox box, long a, long b, long way){
+		Link link = new Link(box.getNode(a), box.getNode(b), "street", "residential", way);
+		link.setStreet_length(link.haversine());
+		box.add(link);
+	}
+}
@@ -48,7 +48,13 @@ public class Tile extends DBObject {
 	 * A constant that specifies the Tile is done being processed.
 	 */
 	public static final int DONE = 2;
-	
+
+	/**
+	 * A constant that specifies the Tile was given up on after failing too many times.  It is not resumed when the
+	 * pipeline is restarted, but it is tried again when it is requested again.
+	 */
+	public static final int FAILED = 3;
+
 	/**
 	 * The x-cordinate of this tile, corresponds to longitude
 	 */
@@ -79,6 +85,12 @@ public class Tile extends DBObject {
 	 */
 	long updated_timestamp;
 
+	/**
+	 * When the detailed map that the processed map of this tile was last built from was read from the DB, or 0 if
+	 * unknown.  Changes made after this time are the ones an incremental preprocess has to redo.
+	 */
+	long snapshot_timestamp;
+
 	/**
 	 * Stores the geometrical properties of this Tile
 	 */
@@ -165,6 +177,7 @@ public class Tile extends DBObject {
 			
 			this.created_timestamp = rs.getLong("created_timestamp");
 			this.updated_timestamp = rs.getLong("updated_timestamp");
+			this.snapshot_timestamp = rs.getLong("snapshot_timestamp");
 			this.download_status = rs.getInt("download_status");
 			this.detailed_map_status = rs.getInt("detailed_map_status");
 			this.processed_map_status = rs.getInt("processed_map_status");
@@ -199,12 +212,23 @@ public class Tile extends DBObject {
 
 	@Override
 	public String getInsertStatement() {
-		String sql = "INSERT INTO " + getTableName() + " (grid_x, grid_y, left_lon, bottom_lat, created_timestamp, updated_timestamp, download_status, detailed_map_status, processed_map_status, geom)"
-				+ " VALUES(" + grid_x + "," + grid_y + "," + left_lon + "," + bottom_lat + "," + created_timestamp + "," + updated_timestamp
-				+ ", " + download_status + "," + detailed_map_status + "," + processed_map_status + ", 'SRID=4326;" + geom.toString() + "');";
+		String sql = "INSERT INTO " + getTableName() + " " + INSERT_COLUMNS + " VALUES" + getInsertValues() + ";";
 		return sql;
 	}
 
+	/**
+	 * The columns filled by getInsertValues()
+	 */
+	public static final String INSERT_COLUMNS = "(grid_x, grid_y, left_lon, bottom_lat, created_timestamp, updated_timestamp, download_status, detailed_map_status, processed_map_status, geom)";
+
+	/**
+	 * @return The row of this Tile, as a parenthesized tuple that can be used in a multi-row INSERT
+	 */
+	public String getInsertValues() {
+		return "(" + grid_x + "," + grid_y + "," + left_lon + "," + bottom_lat + "," + created_timestamp + "," + updated_timestamp
+				+ ", " + download_status + "," + detailed_map_status + "," + processed_map_status + ", 'SRID=4326;" + geom.toString() + "')";
+	}
+
 	@Override
 	public String getHighestIdQuery() {
 		// Nothing to do - tile does not have a single ID
@@ -218,7 +242,7 @@ public class Tile extends DBObject {
 		String geomString = lw.getValue();
 
 		String csv = grid_x + "|" + grid_y + "|" + left_lon + "|"  + bottom_lat + "|" + created_timestamp + "|" + updated_timestamp + "|"
-		+ download_status + "|" + detailed_map_status + "|" + processed_map_status + "|" + geomString + "\n";
+		+ download_status + "|" + detailed_map_status + "|" + processed_map_status + "|" + geomString + "|" + snapshot_timestamp + "\n";
 		return csv;
 	}
 
@@ -294,6 +318,16 @@ public class Tile extends DBObject {
 	}
 
 
+	public long getSnapshot_timestamp() {
+		return snapshot_timestamp;
+	}
+
+
+	public void setSnapshot_timestamp(long snapshot_timestamp) {
+		this.snapshot_timestamp = snapshot_timestamp;
+	}
+
+
 	public Polygon getGeom() {
 		return geom;
 	}
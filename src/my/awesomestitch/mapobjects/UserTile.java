@@ -56,11 +56,22 @@ public class UserTile extends DBObject{
 
 	@Override
 	public String getInsertStatement() {
-		String sql = "INSERT INTO " + getTableName() + " (user_id, grid_x, grid_y, ordered_timestamp, owned_timestamp)"
-				+ " VALUES(" + user_id + "," + grid_x + "," + grid_y + "," + ordered_timestamp + "," + owned_timestamp + ");";
+		String sql = "INSERT INTO " + getTableName() + " " + INSERT_COLUMNS + " VALUES" + getInsertValues() + ";";
 		return sql;
 	}
 
+	/**
+	 * The columns filled by getInsertValues()
+	 */
+	public static final String INSERT_COLUMNS = "(user_id, grid_x, grid_y, ordered_timestamp, owned_timestamp)";
+
+	/**
+	 * @return The row of this UserTile, as a parenthesized tuple that can be used in a multi-row INSERT
+	 */
+	public String getInsertValues() {
+		return "(" + user_id + "," + grid_x + "," + grid_y + "," + ordered_timestamp + "," + owned_timestamp + ")";
+	}
+
 	@Override
 	public String getHighestIdQuery() {
 		//Unused
@@ -39,6 +39,30 @@ public class Way {
 		Log.v("Way","Using whitelist: " + Arrays.toString(whitelist));
 	}
 
+	/**
+	 * Reads one tag of this way.  Only the name (or ref, if there is no name), highway class and oneway tags are kept.
+	 * @param key The key of the tag
+	 * @param value The value of the tag
+	 */
+	public void addTag(String key, String value){
+		if(key.equals("name"))
+			name = value; //get streetname from the tag
+		if(key.equals("ref") && name==null)
+			name = value;
+		else if(key.equals("highway"))
+			street_class = value; //get street class
+		else if(key.equals("oneway")){ //get one-way street status
+			if(value.equals("yes") || value.equals("true") || value.equals("1")) //one way streets
+				oneWay = true;
+			if(value.equals("no") || value.equals("false") || value.equals("0")) //normal streets
+				oneWay = false;
+			if(value.equals("reverse") || value.equals("-1")){  	//one way streets that are encoded backwards
+				oneWay = true;
+				backwards = true;
+			}
+		}
+	}
+
 	/**
 	 * updates the effects of this way on its nodes
 	 * these will be important when deciding which nodes will be inserted